@@ -31,6 +31,7 @@ import ij.process.*;
 
 import java.awt.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -50,6 +51,7 @@ public class Counter3D {
     float[][] centreOfMass, centroid;
     boolean sizeFilter=true, exclude=false, redirect=false, closeImg=Prefs.get("3D-OC-Options_closeImg.boolean", false), showMaskedImg=Prefs.get("3D-OC-Options_showMaskedImg.boolean", true);
     Vector<Object3D> obj;
+    int nbThreads=Runtime.getRuntime().availableProcessors();
     
     boolean foundObjects=false, getObjects=false, getCentreOfMass=false, getCentroid=false, getSurfList=false, getSurfCoord=false;
     
@@ -213,141 +215,293 @@ public class Counter3D {
     /** Generates the connexity analysis.
      */
     private void findObjects() {
-        //First ID attribution
-        int currID=0;
-        int currPos=0;
-        int minID=0;
-        int surfPix=0;
-        int neigbNb=0;
-        int pos, currPixID;
-        int neigbX, neigbY, neigbZ;
-        
-        long start=System.currentTimeMillis();
         /*
          Finding the structures:
-         *The minID tag is initialized with the current value of tag (currID).If thresholded,
-         *the neighborhood of the current pixel is collected. For each of those 13 pixels,
-         *the value is retrieved and tested against minID: only the minimum of the two is kept.
-         *As anterior pixels have already been tagged, only two possibilities may exists:
-         *1-The minimum is currID: we start a new structure and currID should be incremented
-         *2-The minimum is not currID: we continue an already existing structure
-         *Each time a new pixel is tagged, a counter of pixels in the current tag is incremented.
+         *The stack is cut into slabs of consecutive slices, one per thread. Within each slab, pixels are
+         *scanned once: each thresholded pixel gets the tag of one of its 13 anterior neighbours (4 in 2D)
+         *lying in the same slab, or a new tag if none is thresholded, and all the tags found around it are
+         *merged in a union-find table. The slabs are then stitched together by merging the tags of pixels
+         *on both sides of each slab border.
+         *Merging tags only updates the table: pixels are renumbered once, at the end, which also collects
+         *the statistics needed for the centroids and centres of mass.
          */
-                
+        int nbSlabs=Math.max(1, Math.min(nbThreads, nbSlices));
+        final int[] slabStart=new int[nbSlabs+1];
+        for (int i=0; i<=nbSlabs; i++) slabStart[i]=1+i*nbSlices/nbSlabs;
+        
         objID=new int[length];
+        isSurf=new boolean[length];
         
-        for (int z=1; z<=nbSlices; z++){
+        final Slab[] slabs=new Slab[nbSlabs];
+        final AtomicInteger progress=new AtomicInteger(0);
+        Thread[] threads=new Thread[nbSlabs];
+        for (int i=0; i<nbSlabs; i++){
+            final Slab slab=new Slab(slabStart[i], slabStart[i+1]-1);
+            slabs[i]=slab;
+            threads[i]=new Thread(){
+                public void run(){
+                    labelSlab(slab, progress);
+                }
+            };
+        }
+        startAndJoin(threads);
+        IJ.showStatus("");
+        
+        //Merging the per-slab tables into a single one, each slab using its own range of tags
+        int nbTags=0;
+        for (int i=0; i<nbSlabs; i++){
+            slabs[i].tagOffset=nbTags;
+            nbTags+=slabs[i].nbTags;
+        }
+        int[] parent=new int[nbTags+1];
+        IDcount=new int[nbTags+1];
+        IDisAtEdge=new boolean[nbTags+1];
+        for (int i=0; i<nbSlabs; i++){
+            Slab slab=slabs[i];
+            for (int tag=1; tag<=slab.nbTags; tag++){
+                parent[slab.tagOffset+tag]=slab.tagOffset+slab.parent[tag];
+                IDcount[slab.tagOffset+tag]=slab.count[tag];
+                IDisAtEdge[slab.tagOffset+tag]=slab.atEdge[tag];
+            }
+            slab.parent=null;
+            slab.count=null;
+            slab.atEdge=null;
+        }
+        
+        /*
+         *Connecting structures:
+         *The first slice of each slab was tagged without looking at the last slice of the previous slab.
+         *Tags of thresholded pixels facing each other on both sides of the border are merged.
+         */
+        for (int i=1; i<nbSlabs; i++){
+            int z=slabs[i].zStart;
+            int offsetCurr=slabs[i].tagOffset;
+            int offsetPrev=slabs[i-1].tagOffset;
             for (int y=0; y<height; y++){
                 for (int x=0; x<width; x++){
-                    if (minID==currID) currID++;
-                    if (imgArray[currPos]!=0){
-                        minID=currID;
-                        minID=minAntTag(minID, x, y, z);
-                        objID[currPos]=minID;
+                    int pos=x+y*width+(z-1)*width*height;
+                    if (imgArray[pos]==0) continue;
+                    for (int neigbY=Math.max(0, y-1); neigbY<=Math.min(height-1, y+1); neigbY++){
+                        for (int neigbX=Math.max(0, x-1); neigbX<=Math.min(width-1, x+1); neigbX++){
+                            int neigbPos=neigbX+neigbY*width+(z-2)*width*height;
+                            if (imgArray[neigbPos]!=0) union(parent, objID[pos]+offsetCurr, objID[neigbPos]+offsetPrev);
+                        }
                     }
-                    currPos++;
                 }
             }
-            //IJ.showStatus("Finding structures "+z*100/nbSlices+"%");
-            IJ.showStatus("Step 1/3: Finding structures");
-            IJ.showProgress(z, nbSlices);
         }
+        
+        //Tags are always merged into the smallest one: the root of each structure is the tag of its first pixel,
+        //hence renumbering roots in increasing order keeps structures sorted as they are met in the stack
+        for (int tag=1; tag<=nbTags; tag++){
+            int root=find(parent, tag);
+            if (root!=tag){
+                IDcount[root]+=IDcount[tag];
+                IDisAtEdge[root]|=IDisAtEdge[tag];
+            }
+        }
+        
+        //Renumbering of all the found objects and update of their respective number of pixels while filtering based on the number of pixels
+        final int[] newID=new int[nbTags+1];
+        int newCurrID=0;
+        for (int tag=1; tag<=nbTags; tag++){
+            int root=find(parent, tag);
+            if (root==tag){
+                if ((IDcount[tag]!=0 && IDcount[tag]>=minSize && IDcount[tag]<=maxSize)&& (!exclude || !(exclude && IDisAtEdge[tag]))){
+                    newCurrID++;
+                    newID[tag]=newCurrID;
+                    IDcount[newCurrID]=IDcount[tag];
+                }
+            }else{
+                newID[tag]=newID[root];
+            }
+        }
+        parent=null;
+        IDisAtEdge=null;
+        nbObj=newCurrID;
+        int[] tmp=new int[nbObj+1];
+        System.arraycopy(IDcount, 0, tmp, 0, nbObj+1);
+        IDcount=tmp;
+        
+        //Renumbering the pixels, and gathering the per-object sums in the same pass
+        ImagePlus imgRedir=null;
+        if (redirect){
+            imgRedir=WindowManager.getImage(Prefs.get("3D-OC-Options_redirectTo.string", "none"));
+            title=title+" redirect to "+imgRedir.getTitle();
+        }
+        final ImageStack stackRedir=imgRedir==null?null:imgRedir.getStack();
+        progress.set(0);
+        for (int i=0; i<nbSlabs; i++){
+            final Slab slab=slabs[i];
+            threads[i]=new Thread(){
+                public void run(){
+                    renumberSlab(slab, newID, stackRedir, progress);
+                }
+            };
+        }
+        startAndJoin(threads);
         IJ.showStatus("");
+        if (redirect && closeImg) imgRedir.close();
         
-        IDcount=new int[currID];
-        for (int i=0; i<length; i++) IDcount[objID[i]]++;
+        //Reducing the per-slab sums, always in the same order
+        centroid=new float[nbObj][3];
+        centreOfMass=new float[nbObj][3];
+        nbSurfPix=0;
+        for (int id=1; id<=nbObj; id++){
+            double[] sums=new double[7];
+            for (int i=0; i<nbSlabs; i++){
+                Slab slab=slabs[i];
+                if (id<slab.minID || id>slab.maxID) continue;
+                for (int j=0; j<7; j++) sums[j]+=slab.sums[7*(id-slab.minID)+j];
+                nbSurfPix+=slab.surfCount[id-slab.minID];
+            }
+            for (int j=0; j<3; j++){
+                centroid[id-1][j]=(float) (sums[j]/IDcount[id]);
+                centreOfMass[id-1][j]=(float) (sums[4+j]/sums[3]);
+            }
+        }
+        getCentroid=true;
+        getCentreOfMass=true;
         
-        IDisAtEdge=new boolean[currID];
-        Arrays.fill(IDisAtEdge, false);
-        /*
-         *Connecting structures:
-         *The first tagging of structure may have led to shearing apart pieces of a same structure
-         *This part will connect them back by attributing the minimal retrieved tag among the 13 neighboring
-         *pixels located prior to the current pixel + the centre pixel and will replace all the values of those pixels
-         *by the minimum value.
-         */
-        isSurf=new boolean[length];
-        currPos=0;
-        minID=1;
-                
-        for (int z=1; z<=nbSlices; z++){
+        if (showMaskedImg) buildImg(imgArray, null, "Masked image for "+title, false, false, false, 0, 0).show();
+        
+        foundObjects=true;
+    }
+    
+    /** First pass of the connexity analysis over one slab: tags pixels, flags surface pixels and records
+     * the equivalences between tags.
+     * @param slab the slab to analyse.
+     * @param progress number of slices already processed by all threads.
+     */
+    private void labelSlab(Slab slab, AtomicInteger progress){
+        int currID=0;
+        int[] parent=new int[1024];
+        int[] count=new int[1024];
+        boolean[] atEdge=new boolean[1024];
+        int sliceSize=width*height;
+        
+        for (int z=slab.zStart; z<=slab.zEnd; z++){
+            int currPos=(z-1)*sliceSize;
             for (int y=0; y<height; y++){
                 for (int x=0; x<width; x++){
                     if (imgArray[currPos]!=0){
-                        minID=objID[currPos];
-                        surfPix=0;
-                        neigbNb=0;
-                        //Find the minimum tag in the neighbours pixels
-                        for (neigbZ=z-1; neigbZ<=z+1; neigbZ++){
-                            for (neigbY=y-1; neigbY<=y+1; neigbY++){
-                                for (neigbX=x-1; neigbX<=x+1; neigbX++){
-                                    //Following line is important otherwise objects might be linked from one side of the stack to the other !!!
-                                    if (neigbX>=0 && neigbX<width && neigbY>=0 && neigbY<height && neigbZ>=1 && neigbZ<=nbSlices){
-                                        pos=offset(neigbX, neigbY, neigbZ);
-                                        if (imgArray[pos]!=0){
-                                            if ((nbSlices>1 && ((neigbX==x && neigbY==y && neigbZ==z-1) ||(neigbX==x && neigbY==y && neigbZ==z+1))) ||(neigbX==x && neigbY==y-1 && neigbZ==z) ||(neigbX==x && neigbY==y+1 && neigbZ==z) ||(neigbX==x-1 && neigbY==y && neigbZ==z) ||(neigbX==x+1 && neigbY==y && neigbZ==z)) surfPix++;
-                                            minID=Math.min(minID, objID[pos]);
-                                        }
-                                        neigbNb++;
-                                    }
+                        int tag=0;
+                        //Anterior neighbours on the previous slice, within the slab
+                        if (z>slab.zStart){
+                            for (int neigbY=Math.max(0, y-1); neigbY<=Math.min(height-1, y+1); neigbY++){
+                                for (int neigbX=Math.max(0, x-1); neigbX<=Math.min(width-1, x+1); neigbX++){
+                                    int pos=neigbX+neigbY*width+(z-2)*sliceSize;
+                                    if (imgArray[pos]!=0) tag=mergeTags(parent, tag, objID[pos]);
                                 }
                             }
                         }
-                        if ((surfPix!=6 && nbSlices>1) || (surfPix!=4 && nbSlices==1)){
-                            isSurf[currPos]=true;
-                            nbSurfPix++;
-                        }else{
-                            isSurf[currPos]=false;
+                        //Anterior neighbours on the previous line
+                        if (y>0){
+                            for (int neigbX=Math.max(0, x-1); neigbX<=Math.min(width-1, x+1); neigbX++){
+                                int pos=currPos-width+neigbX-x;
+                                if (imgArray[pos]!=0) tag=mergeTags(parent, tag, objID[pos]);
+                            }
                         }
-                        //Replacing tag by the minimum tag found
-                        for (neigbZ=z-1; neigbZ<=z+1; neigbZ++){
-                            for (neigbY=y-1; neigbY<=y+1; neigbY++){
-                                for (neigbX=x-1; neigbX<=x+1; neigbX++){
-                                    //Following line is important otherwise objects might be linked from one side of the stack to the other !!!
-                                    if (neigbX>=0 && neigbX<width && neigbY>=0 && neigbY<height && neigbZ>=1 && neigbZ<=nbSlices){
-                                        pos=offset(neigbX, neigbY, neigbZ);
-                                        if (imgArray[pos]!=0){
-                                            currPixID=objID[pos];
-                                            if (currPixID>minID) replaceID(currPixID, minID);
-                                        }
-                                    }
-                                }
+                        //Anterior neighbour on the current line
+                        if (x>0 && imgArray[currPos-1]!=0) tag=mergeTags(parent, tag, objID[currPos-1]);
+                        
+                        if (tag==0){
+                            currID++;
+                            if (currID==parent.length){
+                                parent=grow(parent);
+                                count=grow(count);
+                                boolean[] tmp=new boolean[2*atEdge.length];
+                                System.arraycopy(atEdge, 0, tmp, 0, atEdge.length);
+                                atEdge=tmp;
                             }
+                            parent[currID]=currID;
+                            tag=currID;
                         }
+                        objID[currPos]=tag;
+                        count[tag]++;
                         
                         //Check if the current particle is touching an edge
-                        if(x==0 || y==0 || x==width-1 || y==height-1 || (nbSlices!=1 && (z==1 || z==nbSlices))) IDisAtEdge[minID]=true;
+                        if(x==0 || y==0 || x==width-1 || y==height-1 || (nbSlices!=1 && (z==1 || z==nbSlices))) atEdge[tag]=true;
+                        
+                        //A pixel is on the surface if one of its 6 neighbours (4 in 2D) is not thresholded
+                        int surfPix=0;
+                        if (x>0 && imgArray[currPos-1]!=0) surfPix++;
+                        if (x<width-1 && imgArray[currPos+1]!=0) surfPix++;
+                        if (y>0 && imgArray[currPos-width]!=0) surfPix++;
+                        if (y<height-1 && imgArray[currPos+width]!=0) surfPix++;
+                        if (nbSlices>1){
+                            if (z>1 && imgArray[currPos-sliceSize]!=0) surfPix++;
+                            if (z<nbSlices && imgArray[currPos+sliceSize]!=0) surfPix++;
+                        }
+                        isSurf[currPos]=(surfPix!=6 && nbSlices>1) || (surfPix!=4 && nbSlices==1);
                     }
                     currPos++;
                 }
             }
-            IJ.showStatus("Step 2/3: Connecting structures");
-            IJ.showProgress(z, nbSlices);
+            IJ.showStatus("Step 1/2: Finding structures");
+            IJ.showProgress(progress.incrementAndGet(), nbSlices);
         }
-        IJ.showStatus("");
-        
-        int newCurrID=0;
-        
-        //Renumbering of all the found objects and update of their respective number of pixels while filtering based on the number of pixels
-        for (int i=1; i<IDcount.length; i++){
-            if ((IDcount[i]!=0 && IDcount[i]>=minSize && IDcount[i]<=maxSize)&& (!exclude || !(exclude && IDisAtEdge[i]))){
-                newCurrID++;
-                int nbPix=IDcount[i];
-                replaceID(i, newCurrID);
-                IDcount[newCurrID]=nbPix;
-            }else{
-                replaceID(i,0);
+        slab.nbTags=currID;
+        slab.parent=parent;
+        slab.count=count;
+        slab.atEdge=atEdge;
+    }
+    
+    /** Second pass of the connexity analysis over one slab: replaces each tag by its final object ID,
+     * and sums, per object, the coordinates and intensity-weighted coordinates of its voxels.
+     * @param slab the slab to renumber.
+     * @param newID the final object ID for each tag, 0 if the object has been filtered out.
+     * @param stackRedir the stack intensities should be read from, or null if not redirected.
+     * @param progress number of slices already processed by all threads.
+     */
+    private void renumberSlab(Slab slab, int[] newID, ImageStack stackRedir, AtomicInteger progress){
+        int sliceSize=width*height;
+        //Only the range of objects present in the slab is allocated
+        int minID=Integer.MAX_VALUE, maxID=0;
+        for (int tag=1; tag<=slab.nbTags; tag++){
+            int id=newID[slab.tagOffset+tag];
+            if (id!=0){
+                minID=Math.min(minID, id);
+                maxID=Math.max(maxID, id);
             }
-            IJ.showStatus("Step 3/3: Renumbering structures");
-            IJ.showProgress(i, currID);
         }
-        IJ.showStatus("");
+        if (maxID==0) minID=1;
+        //sums[7*(ID-minID)+0..2]: x, y, z; sums[7*(ID-minID)+3]: intensity; sums[7*(ID-minID)+4..6]: intensity-weighted x, y, z
+        double[] sums=new double[7*(maxID-minID+1)];
+        int[] surfCount=new int[maxID-minID+1];
         
-        if (redirect) prepareImgArrayForRedirect();
-        if (showMaskedImg) buildImg(imgArray, null, "Masked image for "+title, false, false, false, 0, 0).show();
-        
-        nbObj=newCurrID;
-        foundObjects=true;
+        for (int z=slab.zStart; z<=slab.zEnd; z++){
+            ImageProcessor ipRedir=stackRedir==null?null:stackRedir.getProcessor(z);
+            int currPos=(z-1)*sliceSize;
+            for (int y=0; y<height; y++){
+                for (int x=0; x<width; x++){
+                    if (imgArray[currPos]!=0){
+                        int id=newID[slab.tagOffset+objID[currPos]];
+                        objID[currPos]=id;
+                        if (ipRedir!=null) imgArray[currPos]=id==0?0:ipRedir.getPixel(x, y);
+                        if (id!=0){
+                            int val=imgArray[currPos];
+                            int index=7*(id-minID);
+                            sums[index]+=x;
+                            sums[index+1]+=y;
+                            sums[index+2]+=z;
+                            sums[index+3]+=val;
+                            sums[index+4]+=(double) x*val;
+                            sums[index+5]+=(double) y*val;
+                            sums[index+6]+=(double) z*val;
+                            if (isSurf[currPos]) surfCount[id-minID]++;
+                        }
+                    }
+                    currPos++;
+                }
+            }
+            IJ.showStatus("Step 2/2: Renumbering structures");
+            IJ.showProgress(progress.incrementAndGet(), nbSlices);
+        }
+        slab.minID=minID;
+        slab.maxID=maxID;
+        slab.sums=sums;
+        slab.surfCount=surfCount;
     }
     
     /** Generates the objects list.
@@ -469,15 +623,8 @@ public class Counter3D {
     /** Generates and fills the "centreOfMass" array.
      */
     private void populateCentreOfMass(){
-        if (!getObjects) getObjects();
-        centreOfMass=new float[obj.size()][3];
-        
-        for (int i=0; i<obj.size(); i++){
-            Object3D currObj=(Object3D) obj.get(i);
-            float [] tmp=currObj.c_mass;
-            for (int j=0; j<3; j++) centreOfMass[i][j]=tmp[j];
-        }
-        getCentreOfMass=true;
+        //The centres of mass are computed while renumbering the objects
+        if (!foundObjects) findObjects();
     }
     
     /**
@@ -517,15 +664,8 @@ public class Counter3D {
     /** Generates and fills the "centroid" array.
      */
     private void populateCentroid(){
-        if (!getObjects) getObjects();
-        centroid=new float[obj.size()][3];
-        
-        for (int i=0; i<obj.size(); i++){
-            Object3D currObj=(Object3D) obj.get(i);
-            float [] tmp=currObj.centroid;
-            for (int j=0; j<3; j++) centroid[i][j]=tmp[j];
-        }
-        getCentroid=true;
+        //The centroids are computed while renumbering the objects
+        if (!foundObjects) findObjects();
     }
     
     /**
@@ -565,7 +705,7 @@ public class Counter3D {
     /** Generates and fills the "surface" array.
      */
     private void populateSurfList(){
-        if (!getObjects) getObjects();
+        if (!foundObjects) findObjects();
         
         surfList=new int[length];
         for (int i=0; i<length; i++) surfList[i]=isSurf[i]?objID[i]:0;
@@ -686,26 +826,6 @@ public class Counter3D {
         }
     }
     
-    private void prepareImgArrayForRedirect(){
-        int index=0;
-        ImagePlus imgRedir=WindowManager.getImage(Prefs.get("3D-OC-Options_redirectTo.string", "none"));
-        title=title+" redirect to "+imgRedir.getTitle();
-        for (int i=1; i<=nbSlices; i++){
-            imgRedir.setSlice(i);
-            for (int j=0; j<height; j++){
-                for (int k=0; k<width; k++){
-                    if (objID[index]!=0){
-                        imgArray[index]=imgRedir.getProcessor().getPixel(k, j);
-                    }else{
-                        imgArray[index]=0;
-                    }
-                    index++;
-                }
-            }
-        }
-        if (closeImg) imgRedir.close();
-    }
-    
     /** Returns an ResultsTable containing statistics on objects:</P>
      * Volume and Surface: number of pixel forming the structures and at its surface respectively.</P>
      * StdDev, Median, IntDen, Min and Max: standard deviation, median, sum, minimum and maximum of all intensities for the current object.</P>
@@ -827,62 +947,64 @@ public class Counter3D {
         }
     }
     
-    /** Returns the minimum anterior tag among the 13 previous pixels (4 pixels in 2D).
-     * @param initialValue: value to which the 13 (or 4) retrieved values should be compared to
-     * @param x coordinate of the current pixel.
-     * @param y coordinate of the current pixel.
-     * @param z coordinate of the current pixel.
-     * @return the minimum found anterior tag as an integer.
+    /** Returns the root of a tag in a union-find table, halving the path on the way.
+     * @param parent the union-find table.
+     * @param tag the tag to look for.
+     * @return the smallest tag of the set the tag belongs to.
      */
-    private int minAntTag(int initialValue, int x, int y, int z){
-        int min=initialValue;
-        int currPos;
-
-        for (int neigbY=y-1; neigbY<=y+1; neigbY++){
-            for (int neigbX=x-1; neigbX<=x+1; neigbX++){
-                //Following line is important otherwise objects might be linked from one side of the stack to the other !!!
-                if (neigbX>=0 && neigbX<width && neigbY>=0 && neigbY<height && z-1>=1 && z-1<=nbSlices){
-                    currPos=offset(neigbX, neigbY, z-1);
-                    if (imgArray[currPos]!=0) min=Math.min(min, objID[currPos]);
-                }
-            }
-        }
-
-        for (int neigbX=x-1; neigbX<=x+1; neigbX++){
-            //Following line is important otherwise objects might be linked from one side of the stack to the other !!!
-            if (neigbX>=0 && neigbX<width && y-1>=0 && y-1<height && z>=1 && z<=nbSlices){
-                currPos=offset(neigbX, y-1, z);
-                if (imgArray[currPos]!=0) min=Math.min(min, objID[currPos]);
-            }
+    private static int find(int[] parent, int tag){
+        while (parent[tag]!=tag){
+            parent[tag]=parent[parent[tag]];
+            tag=parent[tag];
         }
-
-        //Following line is important otherwise objects might be linked from one side of the stack to the other !!!
-        if (x-1>=0 && x-1<width && y>=0 && y<height && z>=1 && z<=nbSlices ){
-            currPos=offset(x-1, y, z);
-            if (imgArray[currPos]!=0 && x>=1 && y>=0 && z>=1) min=Math.min(min, objID[currPos]);
+        return tag;
+    }
+    
+    /** Merges the sets of two tags of a union-find table, the root of the new set being the smallest one.
+     * @param parent the union-find table.
+     * @param tag1 first tag.
+     * @param tag2 second tag.
+     * @return the root of the merged set.
+     */
+    private static int union(int[] parent, int tag1, int tag2){
+        int root1=find(parent, tag1);
+        int root2=find(parent, tag2);
+        if (root1<root2){
+            parent[root2]=root1;
+            return root1;
         }
-
-        return min;
+        parent[root1]=root2;
+        return root2;
     }
     
-    /** Replaces one object ID by another within the objID array.
-     * @param old value to be replaced.
-     * @param new value to be replaced by. </P>
-     * NB: the arrays carrying the number of pixels/surface pixels carrying those IDs will also be updated.
+    /** Merges the tag found on a neighbour with the tag already attributed to the current pixel, if any.
+     * @param parent the union-find table.
+     * @param currTag the tag of the current pixel, 0 if not attributed yet.
+     * @param neigbTag the tag of the neighbour.
+     * @return the tag to attribute to the current pixel.
      */
-    private void replaceID(int oldVal, int newVal){
-        if (oldVal!=newVal){
-            int nbFoundPix=0;
-            for (int i=0; i<objID.length; i++){
-                if (objID[i]==oldVal){
-                    objID[i]=newVal;
-                    nbFoundPix++;
-                }
-                if (nbFoundPix==IDcount[oldVal]) i=objID.length;
-            }
-            IDcount[oldVal]=0;
-            IDcount[newVal]+=nbFoundPix;
-         }
+    private static int mergeTags(int[] parent, int currTag, int neigbTag){
+        if (currTag==0 || currTag==neigbTag) return neigbTag;
+        return union(parent, currTag, neigbTag);
+    }
+    
+    /** Doubles the length of an integer array, keeping its content.
+     */
+    private static int[] grow(int[] array){
+        int[] tmp=new int[2*array.length];
+        System.arraycopy(array, 0, tmp, 0, array.length);
+        return tmp;
+    }
+    
+    /** Starts the threads and waits for all of them to finish.
+     */
+    private static void startAndJoin(Thread[] threads){
+        for (int i=0; i<threads.length; i++) threads[i].start();
+        try{
+            for (int i=0; i<threads.length; i++) threads[i].join();
+        }catch (InterruptedException e){
+            throw new RuntimeException(e);
+        }
     }
     
     /** Generates the ImagePlus based on Counter3D object width, height and number of slices, the input array and title.
@@ -958,4 +1080,25 @@ public class Counter3D {
         img.setDisplayRange(min, max);
         return img;
     }
+    
+    /** Part of the stack processed by one thread during the connexity analysis.
+     */
+    private static class Slab{
+        /**First and last slices of the slab (1-based, inclusive)*/
+        final int zStart, zEnd;
+        /**Number of tags attributed within the slab, and offset of those tags in the merged table*/
+        int nbTags, tagOffset;
+        /**Union-find table, number of pixels and edge flag for each tag of the slab*/
+        int[] parent, count;
+        boolean[] atEdge;
+        /**Range of the objects found in the slab, their sums and number of surface pixels, see renumberSlab*/
+        int minID, maxID;
+        double[] sums;
+        int[] surfCount;
+        
+        Slab(int zStart, int zEnd){
+            this.zStart=zStart;
+            this.zEnd=zEnd;
+        }
+    }
 }
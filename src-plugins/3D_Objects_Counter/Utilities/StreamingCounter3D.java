@@ -0,0 +1,462 @@
+/*
+ * StreamingCounter3D.java
+ *
+ * Copyright (C) 2007 Fabrice P. Cordelieres
+ *
+ * License:
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package Utilities;
+
+import ij.*;
+import ij.io.*;
+import ij.measure.*;
+import ij.process.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Slice-bounded version of Counter3D, for stacks that do not fit in memory (typically virtual stacks).
+ * The stack is read once, slice by slice: only three intensity planes, two tag planes and the table of
+ * equivalences between tags are kept in memory. An object is measured as soon as the current slice does
+ * not touch it anymore, so its statistics are appended to the results table while the stack is still
+ * being read, and its voxels are never stored.
+ * <p>
+ * Objects are numbered in the order they are completed, i.e. by their last slice, and only the statistics
+ * that can be accumulated voxel by voxel are available (no median, no distances to the surface).
+ * The objects map can optionally be written to a directory, one TIFF file per slice, and opened back as a
+ * virtual stack.
+ *
+ * @author Fabrice P. Cordelieres, fabrice.cordelieres@gmail.com
+ */
+public class StreamingCounter3D {
+    int thr=0;
+    int width=1, height=1, nbSlices=1;
+    Calibration cal;
+    String title="img";
+    int minSize, maxSize, nbObj=0;
+    boolean exclude=false;
+    ImageStack stack;
+
+    /**Directory the objects map should be written to, null if not requested*/
+    String objMapDir=null;
+    /**Scratch file holding the tags of all slices, needed to write the objects map*/
+    File tagFile;
+    FileChannel tagChannel;
+
+    /**Union-find table over the tags, and final ID of each root (0 if filtered out)*/
+    int[] parent=new int[1024], finalID=new int[1024];
+    int nbTags=0;
+    /**Statistics of the objects still being read, indexed by their root tag*/
+    HashMap<Integer, ObjectStats> active=new HashMap<Integer, ObjectStats>();
+
+    ResultsTable rt=new ResultsTable();
+    boolean foundObjects=false;
+
+    /**
+     * Creates a new instance of StreamingCounter3D.
+     *
+     * @param img specifies the image to analyse, usually backed by a virtual stack.
+     * @param thr specifies the threshold value (should be an Integer).
+     * @param min specifies the MIN size threshold to be used (should be an Integer).
+     * @param max specifies the MAX size threshold to be used (should be an Integer).
+     * @param exclude specifies if the objects on the edges should be excluded (should be a boolean).
+     */
+    public StreamingCounter3D(ImagePlus img, int thr, int min, int max, boolean exclude) {
+        width=img.getWidth();
+        height=img.getHeight();
+        stack=img.getStack();
+        nbSlices=stack.getSize();
+        title=img.getTitle();
+        cal=img.getCalibration();
+        this.thr=thr;
+        minSize=min;
+        maxSize=max;
+        this.exclude=exclude;
+
+        int depth=img.getBitDepth();
+        if (depth!=8 && depth!=16) throw new IllegalArgumentException("StreamingCounter3D class expects 8- or 16-bits images only");
+    }
+
+    /**
+     * Requests the objects map to be written, as one TIFF file per slice, in the provided directory.
+     * Should be called before the objects are searched.
+     * @param dir the directory to write the objects map to, or null not to write it.
+     */
+    public void setObjMapDirectory(String dir){
+        objMapDir=dir;
+    }
+
+    /** Reads the stack slice by slice, and measures each object as soon as it is complete.
+     * @return false if the objects map could not be written, in which case the objects are searched again on the next call.
+     */
+    public boolean findObjects() {
+        if (foundObjects) return true;
+        //Start from scratch, a previous call may have failed half-way
+        nbObj=0;
+        nbTags=0;
+        Arrays.fill(finalID, 0);
+        active.clear();
+        rt.reset();
+
+        int sliceSize=width*height;
+        int[] prevImg=null, currImg=null, nextImg=readSlice(1);
+        int[] prevTags=new int[sliceSize], currTags=new int[sliceSize];
+        HashSet<Integer> alive=new HashSet<Integer>();
+
+        try{
+            if (objMapDir!=null){
+                tagFile=File.createTempFile("3D-OC-", ".tags");
+                tagFile.deleteOnExit();
+                tagChannel=new RandomAccessFile(tagFile, "rw").getChannel();
+            }
+            ByteBuffer buffer=tagChannel==null?null:ByteBuffer.allocateDirect(4*sliceSize);
+
+            for (int z=1; z<=nbSlices; z++){
+                prevImg=currImg;
+                currImg=nextImg;
+                nextImg=z<nbSlices?readSlice(z+1):null;
+                int[] tmp=prevTags;
+                prevTags=currTags;
+                currTags=tmp;
+
+                int currPos=0;
+                for (int y=0; y<height; y++){
+                    for (int x=0; x<width; x++){
+                        currTags[currPos]=0;
+                        int val=currImg[currPos];
+                        if (val!=0){
+                            int tag=0;
+                            //Anterior neighbours: previous slice, previous line, current line
+                            if (prevImg!=null){
+                                for (int neigbY=Math.max(0, y-1); neigbY<=Math.min(height-1, y+1); neigbY++){
+                                    for (int neigbX=Math.max(0, x-1); neigbX<=Math.min(width-1, x+1); neigbX++){
+                                        int pos=neigbX+neigbY*width;
+                                        if (prevImg[pos]!=0) tag=mergeTags(tag, prevTags[pos]);
+                                    }
+                                }
+                            }
+                            if (y>0){
+                                for (int neigbX=Math.max(0, x-1); neigbX<=Math.min(width-1, x+1); neigbX++){
+                                    int pos=currPos-width+neigbX-x;
+                                    if (currImg[pos]!=0) tag=mergeTags(tag, currTags[pos]);
+                                }
+                            }
+                            if (x>0 && currImg[currPos-1]!=0) tag=mergeTags(tag, currTags[currPos-1]);
+                            if (tag==0) tag=newTag();
+                            currTags[currPos]=tag;
+
+                            //A voxel is on the surface if one of its 6 neighbours (4 in 2D) is not thresholded
+                            int surfPix=0;
+                            if (x>0 && currImg[currPos-1]!=0) surfPix++;
+                            if (x<width-1 && currImg[currPos+1]!=0) surfPix++;
+                            if (y>0 && currImg[currPos-width]!=0) surfPix++;
+                            if (y<height-1 && currImg[currPos+width]!=0) surfPix++;
+                            if (nbSlices>1){
+                                if (prevImg!=null && prevImg[currPos]!=0) surfPix++;
+                                if (nextImg!=null && nextImg[currPos]!=0) surfPix++;
+                            }
+                            boolean isSurf=(surfPix!=6 && nbSlices>1) || (surfPix!=4 && nbSlices==1);
+                            boolean atEdge=x==0 || y==0 || x==width-1 || y==height-1 || (nbSlices!=1 && (z==1 || z==nbSlices));
+
+                            active.get(find(tag)).addVoxel(x, y, z, val, isSurf, atEdge);
+                        }
+                        currPos++;
+                    }
+                }
+
+                if (tagChannel!=null){
+                    buffer.clear();
+                    buffer.asIntBuffer().put(currTags);
+                    buffer.limit(4*sliceSize);
+                    while (buffer.hasRemaining()) tagChannel.write(buffer);
+                }
+
+                //Objects not present on the current slice are complete, as well as all objects once the last slice is read
+                alive.clear();
+                if (z<nbSlices) for (int i=0; i<sliceSize; i++) if (currTags[i]!=0) alive.add(find(currTags[i]));
+                ArrayList<Integer> complete=new ArrayList<Integer>();
+                for (Integer root: active.keySet()) if (!alive.contains(root)) complete.add(root);
+                Collections.sort(complete);
+                for (Integer root: complete) completeObject(root);
+
+                IJ.showStatus("Finding structures: "+nbObj+" objects found");
+                IJ.showProgress(z, nbSlices);
+            }
+
+            if (tagChannel!=null) writeObjMap(buffer);
+            foundObjects=true;
+        }catch (IOException e){
+            IJ.error("3D Objects Counter", "Could not write the objects map:\n"+e.getMessage());
+        }finally{
+            if (tagChannel!=null){
+                try{
+                    tagChannel.close();
+                }catch (IOException e){}
+                tagChannel=null;
+            }
+            if (tagFile!=null){
+                tagFile.delete();
+                tagFile=null;
+            }
+            IJ.showStatus("");
+        }
+        return foundObjects;
+    }
+
+    /**
+     * Returns the objects map, if it was requested with setObjMapDirectory.
+     *
+     * @return an ImagePlus backed by a virtual stack containing all found objects, each one carrying pixel value equal to its ID, or null if the map was not written.
+     */
+    public ImagePlus getObjMap(){
+        if (!foundObjects) findObjects();
+        if (objMapDir==null) return null;
+        ImageStack map=null;
+        for (int z=1; z<=nbSlices; z++){
+            if (map==null){
+                map=new VirtualStack(width, height, null, objMapDir);
+                ((VirtualStack) map).setBitDepth(nbObj<65536?16:32);
+            }
+            ((VirtualStack) map).addSlice(getObjMapFileName(z));
+        }
+        ImagePlus img=new ImagePlus("Objects map of "+title, map);
+        img.setCalibration(cal);
+        img.setDisplayRange(0, nbObj);
+        return img;
+    }
+
+    /**
+     * Returns the number of objects found.
+     */
+    public int getNbObj(){
+        if (!foundObjects) findObjects();
+        return nbObj;
+    }
+
+    /**
+     * Returns the statistics of all objects, in the order they have been completed.
+     */
+    public ResultsTable getStatistics(){
+        if (!foundObjects) findObjects();
+        return rt;
+    }
+
+    /** Shows the ResultsTable containing statistics on objects, see Counter3D.showStatistics.
+     * @param newRT should be false if the result window is to be named "Results", allowing use of "Analyze/Distribution" and "Analyze/Summarize". If true, the window will be named "Statistics for "+image title.
+     */
+    public void showStatistics(boolean newRT){
+        if (!foundObjects) findObjects();
+        if (newRT){
+            rt.show("Statistics for "+title);
+        }else{
+            ResultsTable.getResultsTable().reset();
+            rt.show("Results");
+        }
+    }
+
+    /** Returns a summary containing the image name and the number of retrieved objects including the set filter size and threshold.
+     */
+    public void showSummary(){
+        IJ.log(title+": "+nbObj+" objects detected (Size filter set to "+minSize+"-"+maxSize+" voxels, threshold set to: "+thr+", slice by slice analysis).");
+    }
+
+    /** Reads one slice of the stack, setting to zero pixels below the threshold.
+     */
+    private int[] readSlice(int z){
+        ImageProcessor ip=stack.getProcessor(z);
+        int[] slice=new int[width*height];
+        for (int i=0; i<slice.length; i++){
+            int val=ip.get(i);
+            slice[i]=val<thr?0:val;
+        }
+        return slice;
+    }
+
+    /** Filters, numbers and measures an object once all its voxels have been read.
+     */
+    private void completeObject(Integer root){
+        ObjectStats obj=active.remove(root);
+        if (obj.size>=minSize && obj.size<=maxSize && !(exclude && obj.atEdge)){
+            nbObj++;
+            finalID[root]=nbObj;
+            obj.addTo(rt);
+        }
+    }
+
+    /** Writes the objects map, one TIFF file per slice, reading back the tags from the scratch file.
+     */
+    private void writeObjMap(ByteBuffer buffer) throws IOException{
+        int sliceSize=width*height;
+        int[] tags=new int[sliceSize];
+        tagChannel.position(0);
+        for (int z=1; z<=nbSlices; z++){
+            buffer.clear();
+            while (buffer.hasRemaining() && tagChannel.read(buffer)>=0);
+            buffer.flip();
+            buffer.asIntBuffer().get(tags);
+
+            ImageProcessor ip=nbObj<65536?(ImageProcessor) new ShortProcessor(width, height):new FloatProcessor(width, height);
+            for (int i=0; i<sliceSize; i++) if (tags[i]!=0) ip.setf(i, finalID[find(tags[i])]);
+            ImagePlus slice=new ImagePlus(getObjMapFileName(z), ip);
+            slice.setCalibration(cal);
+            if (!new FileSaver(slice).saveAsTiff(objMapDir+File.separator+getObjMapFileName(z))) throw new IOException("could not save slice "+z);
+            IJ.showStatus("Writing the objects map...");
+            IJ.showProgress(z, nbSlices);
+        }
+    }
+
+    private String getObjMapFileName(int z){
+        String nb="0000"+z;
+        return "Objects map of "+title+"-"+nb.substring(nb.length()-5)+".tif";
+    }
+
+    /** Attributes a new tag, with its own set in the union-find table.
+     */
+    private int newTag(){
+        nbTags++;
+        if (nbTags==parent.length){
+            int[] tmp=new int[2*parent.length];
+            System.arraycopy(parent, 0, tmp, 0, parent.length);
+            parent=tmp;
+            tmp=new int[2*finalID.length];
+            System.arraycopy(finalID, 0, tmp, 0, finalID.length);
+            finalID=tmp;
+        }
+        parent[nbTags]=nbTags;
+        active.put(nbTags, new ObjectStats());
+        return nbTags;
+    }
+
+    /** Returns the root of a tag, halving the path on the way.
+     */
+    private int find(int tag){
+        while (parent[tag]!=tag){
+            parent[tag]=parent[parent[tag]];
+            tag=parent[tag];
+        }
+        return tag;
+    }
+
+    /** Merges the tag found on a neighbour with the tag already attributed to the current voxel, if any.
+     * When two objects are merged, the smallest root is kept and the statistics are merged as well.
+     * @return the tag to attribute to the current voxel.
+     */
+    private int mergeTags(int currTag, int neigbTag){
+        if (currTag==0 || currTag==neigbTag) return neigbTag;
+        int root1=find(currTag);
+        int root2=find(neigbTag);
+        if (root1==root2) return root1;
+        if (root2<root1){
+            int tmp=root1;
+            root1=root2;
+            root2=tmp;
+        }
+        parent[root2]=root1;
+        active.get(root1).merge(active.remove(root2));
+        return root1;
+    }
+
+    /** Statistics of one object, accumulated voxel by voxel.
+     */
+    private class ObjectStats{
+        int size=0, surfSize=0;
+        int min=Integer.MAX_VALUE, max=Integer.MIN_VALUE;
+        double intDen=0, sumSq=0;
+        double[] sum=new double[3], weightedSum=new double[3];
+        int[] boundTL={Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE};
+        int[] boundBR={Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+        boolean atEdge=false;
+
+        void addVoxel(int x, int y, int z, int val, boolean isSurf, boolean isAtEdge){
+            size++;
+            if (isSurf) surfSize++;
+            atEdge|=isAtEdge;
+            min=Math.min(min, val);
+            max=Math.max(max, val);
+            intDen+=val;
+            sumSq+=(double) val*val;
+            int[] coord={x, y, z};
+            for (int i=0; i<3; i++){
+                sum[i]+=coord[i];
+                weightedSum[i]+=(double) coord[i]*val;
+                boundTL[i]=Math.min(boundTL[i], coord[i]);
+                boundBR[i]=Math.max(boundBR[i], coord[i]);
+            }
+        }
+
+        void merge(ObjectStats other){
+            size+=other.size;
+            surfSize+=other.surfSize;
+            atEdge|=other.atEdge;
+            min=Math.min(min, other.min);
+            max=Math.max(max, other.max);
+            intDen+=other.intDen;
+            sumSq+=other.sumSq;
+            for (int i=0; i<3; i++){
+                sum[i]+=other.sum[i];
+                weightedSum[i]+=other.weightedSum[i];
+                boundTL[i]=Math.min(boundTL[i], other.boundTL[i]);
+                boundBR[i]=Math.max(boundBR[i], other.boundBR[i]);
+            }
+        }
+
+        /** Appends the statistics as a new row, honouring the 3D-OC options as Counter3D.showStatistics does.
+         */
+        void addTo(ResultsTable rt){
+            float calXYZ=(float) (cal.pixelWidth*cal.pixelHeight*cal.pixelDepth);
+            String unit=cal.getUnit();
+            double mean=intDen/size;
+            double SD=size==1?0:Math.sqrt(Math.max(0, (sumSq-size*mean*mean)/(size-1)));
+
+            rt.incrementCounter();
+            int i=rt.getCounter()-1;
+            if (Prefs.get("3D-OC-Options_volume.boolean", true)) rt.setValue("Volume ("+unit+"^3)", i, size*calXYZ);
+            if (Prefs.get("3D-OC-Options_objVox.boolean", true)) rt.setValue("Nb of obj. voxels", i, size);
+            if (Prefs.get("3D-OC-Options_surfVox.boolean", true)) rt.setValue("Nb of surf. voxels", i, surfSize);
+            if (Prefs.get("3D-OC-Options_IntDens.boolean", true)) rt.setValue("IntDen", i, intDen);
+            if (Prefs.get("3D-OC-Options_mean.boolean", true)) rt.setValue("Mean", i, mean);
+            if (Prefs.get("3D-OC-Options_stdDev.boolean", true)) rt.setValue("StdDev", i, SD);
+            if (Prefs.get("3D-OC-Options_min.boolean", true)) rt.setValue("Min", i, min);
+            if (Prefs.get("3D-OC-Options_max.boolean", true)) rt.setValue("Max", i, max);
+
+            if (Prefs.get("3D-OC-Options_centroid.boolean", true)){
+                rt.setValue("X", i, sum[0]/size);
+                rt.setValue("Y", i, sum[1]/size);
+                if (nbSlices!=1) rt.setValue("Z", i, sum[2]/size);
+            }
+
+            if (Prefs.get("3D-OC-Options_COM.boolean", true)){
+                rt.setValue("XM", i, weightedSum[0]/intDen);
+                rt.setValue("YM", i, weightedSum[1]/intDen);
+                if (nbSlices!=1) rt.setValue("ZM", i, weightedSum[2]/intDen);
+            }
+
+            if (Prefs.get("3D-OC-Options_BB.boolean", true)){
+                rt.setValue("BX", i, boundTL[0]);
+                rt.setValue("BY", i, boundTL[1]);
+                if (nbSlices!=1) rt.setValue("BZ", i, boundTL[2]);
+
+                rt.setValue("B-width", i, boundBR[0]-boundTL[0]+1);
+                rt.setValue("B-height", i, boundBR[1]-boundTL[1]+1);
+                if (nbSlices!=1) rt.setValue("B-depth", i, boundBR[2]-boundTL[2]+1);
+            }
+        }
+    }
+}
@@ -26,6 +26,7 @@ import ij.*;
 import ij.ImagePlus.*;
 import ij.process.*;
 import ij.gui.*;
+import ij.io.DirectoryChooser;
 import ij.util.*;
 import java.awt.*;
 import java.util.*;
@@ -46,7 +47,7 @@ public class _3D_objects_counter implements PlugIn, AdjustmentListener, FocusLis
     double min, max;
     String title, redirectTo;
     int thr, minSize, maxSize, dotSize, fontSize;
-    boolean excludeOnEdges, showObj, showSurf, showCentro, showCOM, showNb, whiteNb, newRT, showStat, showMaskedImg, closeImg, showSummary, redirect;
+    boolean excludeOnEdges, showObj, showSurf, showCentro, showCOM, showNb, whiteNb, newRT, showStat, showMaskedImg, closeImg, showSummary, redirect, isVirtual, streaming;
     Vector sliders, values;
     
     public void run(String arg) {
@@ -69,6 +70,7 @@ public class _3D_objects_counter implements PlugIn, AdjustmentListener, FocusLis
         nbSlices=imp.getStackSize();
         length=height*width*nbSlices;
         title=imp.getTitle();
+        isVirtual=imp.getStack().isVirtual();
         
         min=Math.pow(2, imp.getBitDepth());
         max=0;
@@ -146,6 +148,10 @@ public class _3D_objects_counter implements PlugIn, AdjustmentListener, FocusLis
         gd.addMessage("Results tables to show: ");
         gd.addCheckbox("Statistics", showStat);
         gd.addCheckbox("Summary", showSummary);
+        if (isVirtual){
+            gd.addMessage("Virtual stack: ");
+            gd.addCheckbox("Slice_by_slice analysis (low memory)", true);
+        }
         
         if (redirect) gd.addMessage("\nRedirection:\nImage used as a mask: "+this.title+"\nMeasures will be done on: "+this.redirectTo+(showMaskedImg?"\nMasked image will be shown":"")+".");
         if (closeImg) gd.addMessage("\nCaution:\nImage(s) will be closed during the processing\n(see 3D-OC options to change this setting).");
@@ -169,6 +175,7 @@ public class _3D_objects_counter implements PlugIn, AdjustmentListener, FocusLis
         showCOM=gd.getNextBoolean();
         showStat=gd.getNextBoolean();
         showSummary=gd.getNextBoolean();
+        streaming=isVirtual && gd.getNextBoolean();
 
         Prefs.set("3D-OC_minSize.double", minSize);
         Prefs.set("3D-OC_excludeOnEdges.boolean", excludeOnEdges);
@@ -183,6 +190,13 @@ public class _3D_objects_counter implements PlugIn, AdjustmentListener, FocusLis
         ip.resetThreshold();
         imp.updateAndDraw();
         
+        newRT=Prefs.get("3D-OC-Options_newRT.boolean", true);
+        
+        if (streaming){
+            runStreaming();
+            return;
+        }
+        
         Counter3D OC=new Counter3D(imp, thr, minSize, maxSize, excludeOnEdges, redirect);
         
         dotSize=(int) Prefs.get("3D-OC-Options_dotSize.double", 5);
@@ -195,12 +209,30 @@ public class _3D_objects_counter implements PlugIn, AdjustmentListener, FocusLis
         if (showCentro){OC.getCentroidMap(showNb, whiteNb, dotSize, fontSize).show(); IJ.run("Fire");}
         if (showCOM){OC.getCentreOfMassMap(showNb, whiteNb, dotSize, fontSize).show(); IJ.run("Fire");}
         
-        newRT=Prefs.get("3D-OC-Options_newRT.boolean", true);
-            
         if (showStat) OC.showStatistics(newRT);
         
         if (showSummary) OC.showSummary();
-}
+    }
+    
+    /** Analyses the virtual stack slice by slice: only the objects map, the statistics and the summary are available,
+     * the objects map being written to a directory chosen by the user.
+     */
+    private void runStreaming(){
+        if (showSurf || showCentro || showCOM) IJ.log("Surfaces, centroids and centres of mass maps are not available in slice by slice analysis.");
+        if (redirect) IJ.log("Redirection canceled: not available in slice by slice analysis.");
+        
+        StreamingCounter3D OC=new StreamingCounter3D(imp, thr, minSize, maxSize, excludeOnEdges);
+        if (showObj){
+            String dir=new DirectoryChooser("Directory to save the objects map to").getDirectory();
+            if (dir==null) return;
+            OC.setObjMapDirectory(dir);
+        }
+        if (!OC.findObjects()) return;
+        
+        if (showObj){OC.getObjMap().show(); IJ.run("Fire");}
+        if (showStat) OC.showStatistics(newRT);
+        if (showSummary) OC.showSummary();
+    }
 
     public void adjustmentValueChanged(AdjustmentEvent e) {
         updateImg();
@@ -177,6 +177,13 @@ public class AnalyzeSkeleton_ implements PlugInFilter
 
 	/** debugging flag */
 	private static final boolean debug = false;
+
+	/** use the packed voxel-state traversal engine */
+	private boolean usePackedEngine = true;
+	/** packed voxel-state traversal engine (kept between runs) */
+	private PackedGraphBuilder packedBuilder = null;
+	/** number of threads used to analyze and prune the trees */
+	private int numThreads = Runtime.getRuntime().availableProcessors();
 	
 	/* -----------------------------------------------------------------------*/
 	/**
@@ -319,9 +326,6 @@ public class AnalyzeSkeleton_ implements PlugInFilter
 		this.depth = this.imRef.getStackSize();
 		this.inputImage = this.imRef.getStack();
 		
-		// initialize visit flags
-		resetVisited();
-		
 		// Tag skeleton, differentiate trees and visit them
 		processSkeleton(this.inputImage);
 		
@@ -330,8 +334,6 @@ public class AnalyzeSkeleton_ implements PlugInFilter
 		{
 			if(pruneCycles(this.inputImage, this.originalImage, AnalyzeSkeleton_.pruneIndex))
 			{
-				// initialize visit flags
-				resetVisited();
 				// Recalculate analysis over the new image
 				bPruneCycles = false;
 				processSkeleton(this.inputImage);
@@ -339,7 +341,14 @@ public class AnalyzeSkeleton_ implements PlugInFilter
 		}
 		
 		// Calculate triple points (junctions with exactly 3 branches)
-		calculateTripleAndQuadruplePoints();
+		if(this.packedBuilder != null)
+		{
+			this.packedBuilder.calculateTripleAndQuadruplePoints();
+			this.numberOfTriplePoints = this.packedBuilder.numberOfTriplePoints;
+			this.numberOfQuadruplePoints = this.packedBuilder.numberOfQuadruplePoints;
+		}
+		else
+			calculateTripleAndQuadruplePoints();
 		
 		// Return the analysis results
 		return assembleResults();
@@ -356,6 +365,31 @@ public class AnalyzeSkeleton_ implements PlugInFilter
 		return run(NONE, null, true, false);
 	}
 
+	/**
+	 * Select the engine used to tag and visit the skeleton. The packed engine
+	 * (default) keeps the voxel state in primitive arrays and is much lighter
+	 * on memory for big skeletons; both engines give the same results.
+	 * <p>
+	 * @param usePackedEngine true to use the packed engine, false to use the
+	 * original one
+	 */
+	public void setUsePackedEngine(boolean usePackedEngine)
+	{
+		this.usePackedEngine = usePackedEngine;
+	}
+
+	/**
+	 * Set the number of threads used to analyze and prune the trees
+	 * (independent skeletons) of the image. The results do not depend on it.
+	 * <p>
+	 * @param numThreads number of threads (all available cores by default)
+	 */
+	public void setNumThreads(int numThreads)
+	{
+		this.numThreads = Math.max(1, numThreads);
+		this.packedBuilder = null;
+	}
+
 	// ---------------------------------------------------------------------------
 	/**
 	 * Calculate the neighborhood size based on the calibration of the image.
@@ -393,6 +427,16 @@ public class AnalyzeSkeleton_ implements PlugInFilter
 	 */
 	public void processSkeleton(ImageStack inputImage2) 
 	{
+		if(this.usePackedEngine && PackedGraphBuilder.canProcess(this.width, this.height, this.depth))
+		{
+			processSkeletonPacked(inputImage2);
+			return;
+		}
+		this.packedBuilder = null;
+		
+		// initialize visit flags
+		resetVisited();
+		
 		// Initialize  global lists of points
 		this.listOfEndPoints = new ArrayList<Point>();
 		this.listOfJunctionVoxels = new ArrayList<Point>();
@@ -442,6 +486,61 @@ public class AnalyzeSkeleton_ implements PlugInFilter
 		
 	} // end method processSkeleton
 
+	// ---------------------------------------------------------------------------
+	/**
+	 * Process skeleton with the packed voxel-state engine: tag image, mark 
+	 * trees and visit them, and take over the resulting lists and graphs.
+	 * 
+	 * @param inputImage2 input skeleton image to process
+	 */
+	private void processSkeletonPacked(ImageStack inputImage2) 
+	{
+		if(this.packedBuilder == null)
+		{
+			final Calibration cal = this.imRef.getCalibration();
+			this.packedBuilder = new PackedGraphBuilder(this.width, this.height, this.depth, 
+					cal.pixelWidth, cal.pixelHeight, cal.pixelDepth, this.numThreads);
+		}
+		final PackedGraphBuilder builder = this.packedBuilder;
+		builder.process(inputImage2);
+		
+		this.visited = null;
+		this.taggedImage = builder.getTaggedImage(inputImage2);
+		
+		this.listOfEndPoints = builder.listOfEndPoints;
+		this.listOfJunctionVoxels = builder.listOfJunctionVoxels;
+		this.listOfSlabVoxels = builder.listOfSlabVoxels;
+		this.listOfStartingSlabVoxels = builder.listOfStartingSlabVoxels;
+		this.totalNumberOfEndPoints = this.listOfEndPoints.size();
+		this.totalNumberOfJunctionVoxels = this.listOfJunctionVoxels.size();
+		this.totalNumberOfSlabs = this.listOfSlabVoxels.size();
+		
+		this.numOfTrees = builder.numOfTrees;
+		this.numberOfBranches = builder.numberOfBranches;
+		this.numberOfEndPoints = builder.numberOfEndPoints;
+		this.numberOfJunctionVoxels = builder.numberOfJunctionVoxels;
+		this.numberOfJunctions = builder.numberOfJunctions;
+		this.numberOfSlabs = builder.numberOfSlabs;
+		this.numberOfTriplePoints = builder.numberOfTriplePoints;
+		this.numberOfQuadruplePoints = builder.numberOfQuadruplePoints;
+		this.averageBranchLength = builder.averageBranchLength;
+		this.maximumBranchLength = builder.maximumBranchLength;
+		this.startingSlabTree = builder.startingSlabTree;
+		this.junctionVertex = builder.junctionVertex;
+		this.graph = builder.graph;
+		
+		// Only used by the original engine
+		this.endPointsTree = null;
+		this.junctionVoxelTree = null;
+		this.listOfSingleJunctions = null;
+		
+		// Show tags image.
+		if(!bPruneCycles && !silent)
+		{
+			displayTagImage(taggedImage);
+		}
+	} // end method processSkeletonPacked
+
 	// -----------------------------------------------------------------------
 	/**
 	 * Prune cycles from tagged image and update it.
@@ -452,89 +551,126 @@ public class AnalyzeSkeleton_ implements PlugInFilter
 	 * @return true if the input image was pruned or false if there were no cycles
 	 */
 	private boolean pruneCycles(
-			ImageStack inputImage, 
+			final ImageStack inputImage, 
 			final ImageStack originalImage, 
 			final int pruningMode) 
 	{
-		boolean pruned = false;
+		// Trees are pruned independently (each one only removes its own voxels)
+		final boolean[] pruned = new boolean[this.numOfTrees];
 		
-		for(int iTree = 0 ; iTree < this.numOfTrees; iTree ++)
+		int[] trees = this.packedBuilder != null ? this.packedBuilder.treeOrder : null;
+		if(trees == null)
 		{
-			// For circular trees we just remove one slab
-			if(this.startingSlabTree[iTree].size() == 1)
+			trees = new int[this.numOfTrees];
+			for(int iTree = 0 ; iTree < this.numOfTrees; iTree ++)
+				trees[iTree] = iTree;
+		}
+		
+		TreeTasks.run(trees, this.numThreads, new TreeTasks.Task() {
+			public void run(final int iTree)
 			{
-				setPixel(inputImage, this.startingSlabTree[iTree].get(0),(byte) 0);
-				pruned = true;
+				pruned[iTree] = pruneCycles(iTree, inputImage, originalImage, pruningMode);
 			}
-			else // For the rest, we do depth-first search to detect the cycles
-			{
-				// DFS
-				ArrayList <Edge> backEdges = this.graph[iTree].depthFirstSearch();
+		});
+		
+		for(int iTree = 0 ; iTree < this.numOfTrees; iTree ++)
+			if(pruned[iTree])
+				return true;
+		return false;
+	}// end method pruneCycles
+	
+	// -----------------------------------------------------------------------
+	/**
+	 * Prune cycles of a tree from the input image.
+	 * 
+	 * @param iTree tree index
+	 * @param inputImage input skeleton image
+	 * @param originalImage original gray-scale image
+	 * @param pruningMode (SHORTEST_BRANCH, LOWEST_INTENSITY_VOXEL, LOWEST_INTENSITY_BRANCH)
+	 * @return true if the tree was pruned or false if it had no cycles
+	 */
+	private boolean pruneCycles(
+			final int iTree,
+			final ImageStack inputImage, 
+			final ImageStack originalImage, 
+			final int pruningMode) 
+	{
+		boolean pruned = false;
+		
+		// For circular trees we just remove one slab
+		if(this.startingSlabTree[iTree].size() == 1)
+		{
+			setPixel(inputImage, this.startingSlabTree[iTree].get(0),(byte) 0);
+			pruned = true;
+		}
+		else // For the rest, we do depth-first search to detect the cycles
+		{
+			// DFS
+			ArrayList <Edge> backEdges = this.graph[iTree].depthFirstSearch();
 
-				if(debug)
+			if(debug)
+			{
+				IJ.log( " --------------------------- ");
+				final String[] s = new String[]{"UNDEFINED", "TREE" , "BACK"};
+				for(final Edge e : this.graph[iTree].getEdges())
 				{
-					IJ.log( " --------------------------- ");
-					final String[] s = new String[]{"UNDEFINED", "TREE" , "BACK"};
-					for(final Edge e : this.graph[iTree].getEdges())
-					{
-						IJ.log(" edge " + e.getV1().getPoints().get(0) + " - " + e.getV2().getPoints().get(0) + " : " + s[e.getType()+1]);
-					}
+					IJ.log(" edge " + e.getV1().getPoints().get(0) + " - " + e.getV2().getPoints().get(0) + " : " + s[e.getType()+1]);
 				}
+			}
 
-				// If DFS returned backEdges, we need to delete the loops
-				if(backEdges.size() > 0)
+			// If DFS returned backEdges, we need to delete the loops
+			if(backEdges.size() > 0)
+			{
+				// Find all edges of each loop (backtracking the predecessors)
+				for(final Edge e : backEdges)
 				{
-					// Find all edges of each loop (backtracking the predecessors)
-					for(final Edge e : backEdges)
-					{
-						ArrayList<Edge> loopEdges = new ArrayList<Edge>();
-						loopEdges.add(e);
+					ArrayList<Edge> loopEdges = new ArrayList<Edge>();
+					loopEdges.add(e);
 
-						Edge minEdge = e;
+					Edge minEdge = e;
 
-						// backtracking (starting at the vertex with higher order index
-						final Vertex finalLoopVertex = e.getV1().getVisitOrder() < e.getV2().getVisitOrder() ? e.getV1() : e.getV2();
+					// backtracking (starting at the vertex with higher order index
+					final Vertex finalLoopVertex = e.getV1().getVisitOrder() < e.getV2().getVisitOrder() ? e.getV1() : e.getV2();
 
-						Vertex backtrackVertex = e.getV1().getVisitOrder() < e.getV2().getVisitOrder() ? e.getV2() : e.getV1();
+					Vertex backtrackVertex = e.getV1().getVisitOrder() < e.getV2().getVisitOrder() ? e.getV2() : e.getV1();
 
-						// backtrack until reaching final loop vertex
-						while(!finalLoopVertex.equals(backtrackVertex))
-						{
-							// Extract predecessor
-							final Edge pre = backtrackVertex.getPredecessor();
-							// Update shortest loop edge if necessary
-							if(pruningMode == AnalyzeSkeleton_.SHORTEST_BRANCH && 
-									pre.getSlabs().size() < minEdge.getSlabs().size())
-								minEdge = pre;
-							// Add to loop edge list
-							loopEdges.add(pre);
-							// Extract predecessor
-							backtrackVertex = pre.getV1().equals(backtrackVertex) ? pre.getV2() : pre.getV1(); 
-						}
-						
-						// Prune cycle
-						if(pruningMode == AnalyzeSkeleton_.SHORTEST_BRANCH)
-						{
-							// Remove middle slab from the shortest loop edge
-							Point removeCoords = null;
-							if(minEdge.getSlabs().size() > 0)
-								removeCoords = minEdge.getSlabs().get(minEdge.getSlabs().size()/2);
-							else 
-								removeCoords = minEdge.getV1().getPoints().get(0);
-							setPixel(inputImage, removeCoords,(byte) 0);
-						}
-						else if (pruningMode == AnalyzeSkeleton_.LOWEST_INTENSITY_VOXEL)
-						{
-							removeLowestIntensityVoxel(loopEdges, inputImage, originalImage);
-						}
-						else if(pruningMode == AnalyzeSkeleton_.LOWEST_INTENSITY_BRANCH)
-						{
-							cutLowestIntensityBranch(loopEdges, inputImage, originalImage);
-						}
-					}// endfor backEdges
+					// backtrack until reaching final loop vertex
+					while(!finalLoopVertex.equals(backtrackVertex))
+					{
+						// Extract predecessor
+						final Edge pre = backtrackVertex.getPredecessor();
+						// Update shortest loop edge if necessary
+						if(pruningMode == AnalyzeSkeleton_.SHORTEST_BRANCH && 
+								pre.getSlabs().size() < minEdge.getSlabs().size())
+							minEdge = pre;
+						// Add to loop edge list
+						loopEdges.add(pre);
+						// Extract predecessor
+						backtrackVertex = pre.getV1().equals(backtrackVertex) ? pre.getV2() : pre.getV1(); 
+					}
+					
+					// Prune cycle
+					if(pruningMode == AnalyzeSkeleton_.SHORTEST_BRANCH)
+					{
+						// Remove middle slab from the shortest loop edge
+						Point removeCoords = null;
+						if(minEdge.getSlabs().size() > 0)
+							removeCoords = minEdge.getSlabs().get(minEdge.getSlabs().size()/2);
+						else 
+							removeCoords = minEdge.getV1().getPoints().get(0);
+						setPixel(inputImage, removeCoords,(byte) 0);
+					}
+					else if (pruningMode == AnalyzeSkeleton_.LOWEST_INTENSITY_VOXEL)
+					{
+						removeLowestIntensityVoxel(loopEdges, inputImage, originalImage);
+					}
+					else if(pruningMode == AnalyzeSkeleton_.LOWEST_INTENSITY_BRANCH)
+					{
+						cutLowestIntensityBranch(loopEdges, inputImage, originalImage);
+					}
+				}// endfor backEdges
 
-					pruned = true;
-				}
+				pruned = true;
 			}
 		}
 		
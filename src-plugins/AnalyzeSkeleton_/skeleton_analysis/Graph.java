@@ -70,6 +70,21 @@ public class Graph
 		}
 	}// end method addEdge
 	
+	// --------------------------------------------------------------------------
+	/**
+	 * Add an edge that is known not to be in the graph yet. Unlike
+	 * {@link #addEdge(Edge)}, the list of edges is not searched, so building
+	 * big graphs stays linear in the number of edges.
+	 * @param e new edge
+	 */
+	void appendEdge(Edge e)
+	{
+		e.getV1().setBranch(e);
+		if(! e.getV1().equals(e.getV2()))
+			e.getV2().setBranch(e);
+		this.edges.add(e);
+	}// end method appendEdge
+	
 	// --------------------------------------------------------------------------
 	/**
 	 * Add vertex to the graph.
@@ -86,6 +101,17 @@ public class Graph
 			return true;
 		}
 	}// end method addVertex
+	// --------------------------------------------------------------------------
+	/**
+	 * Add a vertex that is known not to be in the graph yet (the list of
+	 * vertices is not searched).
+	 * @param v new vertex
+	 */
+	void appendVertex(Vertex v)
+	{
+		this.vertices.add(v);
+	}// end method appendVertex
+	
 	// --------------------------------------------------------------------------
 	/**
 	 * Get list of vertices in the graph.
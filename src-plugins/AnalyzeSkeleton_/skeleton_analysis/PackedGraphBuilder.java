@@ -0,0 +1,1144 @@
+package skeleton_analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+/**
+ * AnalyzeSkeleton_ plugin for ImageJ(C) and Fiji.
+ * Copyright (C) 2008-2010 Ignacio Arganda-Carreras
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ */
+
+/**
+ * Traversal engine of {@link AnalyzeSkeleton_} working on packed voxel state.
+ * <p>
+ * The voxel tags (end point, junction, slab) are stored in one byte array per
+ * slice, the visit flags in a bit set, and the skeleton is traversed using
+ * linear voxel indices (x + y * width + z * width * height) instead of
+ * {@link Point} objects. Points are only created once per skeleton voxel, for
+ * the lists and the {@link Graph} handed back to the plugin, and they are
+ * shared between those lists and the graph edges and vertices.
+ * <p>
+ * The visit order is exactly the one of the original implementation, so the
+ * resulting graphs and measurements (and thus the {@link SkeletonResult}) are
+ * the same.
+ * <p>
+ * Once the trees are marked, they are independent: their junctions are
+ * grouped and their branches visited concurrently, every tree writing only
+ * its own entries of the result arrays. The results therefore do not depend
+ * on the number of threads.
+ */
+class PackedGraphBuilder
+{
+	/** working image width */
+	private final int width;
+	/** working image height */
+	private final int height;
+	/** working image depth */
+	private final int depth;
+	/** number of voxels per slice */
+	private final int sliceSize;
+
+	/** voxel calibration */
+	private final double pixelWidth, pixelHeight, pixelDepth;
+
+	/** x- offset of each of the 26 neighbors, in visit order */
+	private final int[] dx = new int[26];
+	/** y- offset of each of the 26 neighbors */
+	private final int[] dy = new int[26];
+	/** z- offset of each of the 26 neighbors */
+	private final int[] dz = new int[26];
+	/** linear offset of each of the 26 neighbors */
+	private final int[] neighborOffset = new int[26];
+	/** offset of each of the 26 neighbors inside its slice */
+	private final int[] sliceOffset = new int[26];
+
+	/** skeleton tags, one array per slice */
+	private byte[][] tags = null;
+	/** visit flags (one bit per voxel, updated atomically by the tree threads) */
+	private AtomicLongArray visited = null;
+
+	/** linear indices of the end points (in tagging order) */
+	private IntList endPointIndices = null;
+	/** linear indices of the junction voxels (in tagging order) */
+	private IntList junctionIndices = null;
+	/** linear indices of the slab voxels (in tagging order) */
+	private IntList slabIndices = null;
+	/** lookup of the position of an end point in its list */
+	private IndexMap endPointMap = null;
+	/** lookup of the position of a junction voxel in its list */
+	private IndexMap junctionMap = null;
+	/** lookup of the position of a slab voxel in its list */
+	private IndexMap slabMap = null;
+
+	/** tree (1-based) of every end point */
+	private int[] endPointTree = null;
+	/** tree (1-based) of every junction voxel */
+	private int[] junctionTree = null;
+	/** vertex of every junction voxel */
+	private Vertex[] junctionVoxelVertex = null;
+	/** end points of every tree (positions in the list of end points) */
+	private int[][] endPointsTree = null;
+	/** junction voxels of every tree (positions in the list of junction voxels) */
+	private int[][] junctionVoxelTree = null;
+	/** linear index of the voxel where every circular tree starts */
+	private int[] startingSlab = null;
+	/** tree indices, from the biggest tree to the smallest */
+	int[] treeOrder = null;
+
+	/** number of threads used to process the trees */
+	private final int numThreads;
+
+	// Results, with the same meaning as the fields of AnalyzeSkeleton_
+	/** list of end point coordinates in the entire image */
+	ArrayList <Point> listOfEndPoints = null;
+	/** list of junction coordinates in the entire image */
+	ArrayList <Point> listOfJunctionVoxels = null;
+	/** list of slab coordinates in the entire image */
+	ArrayList <Point> listOfSlabVoxels = null;
+	/** list of slab coordinates where circular trees start */
+	ArrayList <Point> listOfStartingSlabVoxels = null;
+	/** list of special slab coordinates where circular tree starts (per tree) */
+	ArrayList <Point> startingSlabTree [] = null;
+	/** number of trees (skeletons) in the image */
+	int numOfTrees = 0;
+	/** number of branches for every specific tree */
+	int[] numberOfBranches = null;
+	/** number of end points voxels of every tree */
+	int[] numberOfEndPoints = null;
+	/** number of junctions voxels of every tree*/
+	int[] numberOfJunctionVoxels = null;
+	/** number of slab voxels of every specific tree */
+	int[] numberOfSlabs = null;
+	/** number of junctions of every specific tree*/
+	int[] numberOfJunctions = null;
+	/** number of triple points in every tree */
+	int[] numberOfTriplePoints = null;
+	/** number of quadruple points in every tree */
+	int[] numberOfQuadruplePoints = null;
+	/** average branch length */
+	double[] averageBranchLength = null;
+	/** maximum branch length */
+	double[] maximumBranchLength = null;
+	/** array of junction vertex per tree */
+	Vertex[][] junctionVertex = null;
+	/** array of graphs (one per tree) */
+	Graph[] graph = null;
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Create a graph builder for images of the given size and calibration.
+	 *
+	 * @param width image width
+	 * @param height image height
+	 * @param depth image depth
+	 * @param pixelWidth voxel width
+	 * @param pixelHeight voxel height
+	 * @param pixelDepth voxel depth
+	 * @param numThreads number of threads used to process the trees
+	 */
+	PackedGraphBuilder(
+			final int width,
+			final int height,
+			final int depth,
+			final double pixelWidth,
+			final double pixelHeight,
+			final double pixelDepth,
+			final int numThreads)
+	{
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.sliceSize = width * height;
+		this.pixelWidth = pixelWidth;
+		this.pixelHeight = pixelHeight;
+		this.pixelDepth = pixelDepth;
+		this.numThreads = numThreads;
+
+		// Neighbor order of AnalyzeSkeleton_.getNextUnvisitedVoxel: its "break"
+		// only leaves the z- loop, so the last (x, y) column with a candidate
+		// wins. Scanning the columns backwards and taking the first candidate 
+		// gives the same voxel.
+		int n = 0;
+		for(int x = 1; x > -2; x--)
+			for(int y = 1; y > -2; y--)
+				for(int z = -1; z < 2; z++)
+				{
+					if(x == 0 && y == 0 && z == 0)
+						continue;
+					this.dx[n] = x;
+					this.dy[n] = y;
+					this.dz[n] = z;
+					this.sliceOffset[n] = x + y * width;
+					this.neighborOffset[n] = this.sliceOffset[n] + z * this.sliceSize;
+					n++;
+				}
+	}
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Check if the voxels of an image can be addressed by linear indices.
+	 *
+	 * @param width image width
+	 * @param height image height
+	 * @param depth image depth
+	 * @return true if the image has less than 2^31 voxels
+	 */
+	static boolean canProcess(final int width, final int height, final int depth)
+	{
+		return (long) width * height * depth < Integer.MAX_VALUE;
+	}
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Tag skeleton, differentiate trees, group junctions and visit the trees
+	 * building their graphs.
+	 *
+	 * @param inputImage skeleton image (8-bit)
+	 */
+	void process(final ImageStack inputImage)
+	{
+		tagImage(inputImage);
+		markTrees();
+		divideVoxelsByTrees();
+
+		this.junctionVoxelVertex = new Vertex[this.junctionIndices.size()];
+		TreeTasks.run(this.treeOrder, this.numThreads, new TreeTasks.Task() {
+			public void run(final int iTree)
+			{
+				groupJunctions(iTree);
+				new TreeVisitor(iTree).visitSkeleton();
+			}
+		});
+
+		// Release the lookup structures that are not needed anymore
+		this.endPointTree = null;
+		this.junctionTree = null;
+		this.endPointsTree = null;
+		this.junctionVoxelTree = null;
+	}
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Get the tagged skeleton as an image stack. The slices share the pixel
+	 * arrays of this engine.
+	 *
+	 * @param inputImage skeleton image (for the slice labels and color model)
+	 * @return tagged skeleton image
+	 */
+	ImageStack getTaggedImage(final ImageStack inputImage)
+	{
+		final ImageStack taggedImage = new ImageStack(this.width, this.height, inputImage.getColorModel());
+		for(int z = 0; z < this.depth; z++)
+			taggedImage.addSlice(inputImage.getSliceLabel(z+1),
+					new ByteProcessor(this.width, this.height, this.tags[z], null));
+		return taggedImage;
+	}
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Tag skeleton dividing the voxels between end points, junctions and slabs.
+	 * The lists of voxels are filled in the same order as in the plugin.
+	 *
+	 * @param inputImage skeleton image to be tagged
+	 */
+	private void tagImage(final ImageStack inputImage)
+	{
+		final byte[][] input = new byte[this.depth][];
+		for(int z = 0; z < this.depth; z++)
+			input[z] = (byte[]) inputImage.getPixels(z + 1);
+
+		this.tags = new byte[this.depth][this.sliceSize];
+		this.visited = new AtomicLongArray((int) (((long) this.sliceSize * this.depth + 63) >> 6));
+		this.endPointIndices = new IntList();
+		this.junctionIndices = new IntList();
+		this.slabIndices = new IntList();
+
+		for(int z = 0; z < this.depth; z++)
+		{
+			final byte[] slice = input[z];
+			final byte[] tagSlice = this.tags[z];
+			for(int x = 0; x < this.width; x++)
+				for(int y = 0; y < this.height; y++)
+				{
+					final int i = x + y * this.width;
+					if(slice[i] == 0)
+						continue;
+
+					// count non-zero neighbors
+					int numOfNeighbors = 0;
+					final int z0 = Math.max(z - 1, 0), z1 = Math.min(z + 1, this.depth - 1);
+					final int y0 = Math.max(y - 1, 0), y1 = Math.min(y + 1, this.height - 1);
+					final int x0 = Math.max(x - 1, 0), x1 = Math.min(x + 1, this.width - 1);
+					for(int k = z0; k <= z1; k++)
+					{
+						final byte[] s = input[k];
+						for(int j = y0; j <= y1; j++)
+							for(int l = x0 + j * this.width, end = x1 + j * this.width; l <= end; l++)
+								if(s[l] != 0)
+									numOfNeighbors++;
+					}
+					// the voxel itself was counted
+					numOfNeighbors--;
+
+					final int index = i + z * this.sliceSize;
+					if(numOfNeighbors < 2)
+					{
+						tagSlice[i] = AnalyzeSkeleton_.END_POINT;
+						this.endPointIndices.add(index);
+					}
+					else if(numOfNeighbors > 2)
+					{
+						tagSlice[i] = AnalyzeSkeleton_.JUNCTION;
+						this.junctionIndices.add(index);
+					}
+					else
+					{
+						tagSlice[i] = AnalyzeSkeleton_.SLAB;
+						this.slabIndices.add(index);
+					}
+				}
+		}
+
+		this.endPointMap = new IndexMap(this.endPointIndices);
+		this.junctionMap = new IndexMap(this.junctionIndices);
+		this.slabMap = new IndexMap(this.slabIndices);
+
+		this.listOfEndPoints = createPoints(this.endPointIndices);
+		this.listOfJunctionVoxels = createPoints(this.junctionIndices);
+		this.listOfSlabVoxels = createPoints(this.slabIndices);
+		this.listOfStartingSlabVoxels = new ArrayList<Point>();
+	}// end method tagImage
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Color the different trees in the skeleton, recording the tree of every
+	 * end point and junction voxel.
+	 */
+	@SuppressWarnings("unchecked")
+	private void markTrees()
+	{
+		this.endPointTree = new int[this.endPointIndices.size()];
+		this.junctionTree = new int[this.junctionIndices.size()];
+		final IntList startingSlabs = new IntList();
+		final IntList startingSlabColors = new IntList();
+		final IntList treeSizes = new IntList();
+
+		this.numOfTrees = 0;
+		int color = 0;
+
+		// Visit trees starting at end points
+		for(int i = 0; i < this.endPointIndices.size(); i++)
+		{
+			final int endPoint = this.endPointIndices.get(i);
+			if(isVisited(endPoint))
+				continue;
+			color++;
+			treeSizes.add(visitTree(endPoint, color) + 1);
+			this.numOfTrees++;
+		}
+
+		// Visit trees starting at junction points
+		// (some circular trees do not have end points)
+		for(int i = 0; i < this.junctionIndices.size(); i++)
+		{
+			final int junction = this.junctionIndices.get(i);
+			if(isVisited(junction))
+				continue;
+			color++;
+			final int numOfVoxels = visitTree(junction, color);
+			if(numOfVoxels == 0)
+			{
+				color--; // the color was not used
+				continue;
+			}
+			treeSizes.add(numOfVoxels + 1);
+			this.numOfTrees++;
+		}
+
+		// Check for unvisited slab voxels
+		// (just in case there are circular trees without junctions)
+		for(int i = 0; i < this.slabIndices.size(); i++)
+		{
+			final int slab = this.slabIndices.get(i);
+			if(isVisited(slab))
+				continue;
+
+			// Mark that voxel as the start point of the circular skeleton
+			this.listOfStartingSlabVoxels.add(this.listOfSlabVoxels.get(i));
+			startingSlabs.add(slab);
+
+			color++;
+			startingSlabColors.add(color);
+			final int numOfVoxels = visitTree(slab, color);
+			if(numOfVoxels == 0)
+			{
+				color--; // the color was not used
+				continue;
+			}
+			treeSizes.add(numOfVoxels + 1);
+			this.numOfTrees++;
+		}
+
+		// Assign starting slabs to their trees
+		this.startingSlab = new int[this.numOfTrees];
+		this.startingSlabTree = (ArrayList<Point>[]) new ArrayList<?>[this.numOfTrees];
+		for(int i = 0; i < this.numOfTrees; i++)
+			this.startingSlabTree[i] = new ArrayList<Point>();
+		for(int i = 0; i < startingSlabs.size(); i++)
+		{
+			final int iTree = startingSlabColors.get(i) - 1;
+			this.startingSlab[iTree] = startingSlabs.get(i);
+			this.startingSlabTree[iTree].add(this.listOfStartingSlabVoxels.get(i));
+		}
+
+		// Process the big trees first, so they do not end up last on a thread
+		final long[] order = new long[this.numOfTrees];
+		for(int i = 0; i < this.numOfTrees; i++)
+			order[i] = ((long) (Integer.MAX_VALUE - treeSizes.get(i)) << 32) | i;
+		Arrays.sort(order);
+		this.treeOrder = new int[this.numOfTrees];
+		for(int i = 0; i < this.numOfTrees; i++)
+			this.treeOrder[i] = (int) order[i];
+
+		resetVisited();
+	}// end method markTrees
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Visit tree marking the voxels with a reference tree color.
+	 *
+	 * @param startingPoint starting voxel (linear index)
+	 * @param color reference tree color
+	 * @return number of voxels in the tree
+	 */
+	private int visitTree(final int startingPoint, final int color)
+	{
+		if(isVisited(startingPoint))
+			return 0;
+
+		int numOfVoxels = 0;
+		setTree(startingPoint, color);
+		setVisited(startingPoint);
+
+		final IntList toRevisit = new IntList();
+		if(getTag(startingPoint) == AnalyzeSkeleton_.JUNCTION)
+			toRevisit.add(startingPoint);
+
+		int nextPoint = getNextUnvisitedVoxel(startingPoint, false);
+
+		while(nextPoint >= 0 || !toRevisit.isEmpty())
+		{
+			if(nextPoint >= 0)
+			{
+				numOfVoxels++;
+				setTree(nextPoint, color);
+				setVisited(nextPoint);
+
+				// If it is a junction, add it to the revisit list
+				if(getTag(nextPoint) == AnalyzeSkeleton_.JUNCTION)
+					toRevisit.add(nextPoint);
+
+				nextPoint = getNextUnvisitedVoxel(nextPoint, false);
+			}
+			else // revisit list
+			{
+				// Maintain junction in the list until there is no more branches
+				nextPoint = getNextUnvisitedVoxel(toRevisit.first(), false);
+				if(nextPoint < 0)
+					toRevisit.removeFirst();
+			}
+		}
+		return numOfVoxels;
+	}// end method visitTree
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Record the tree of an end point or junction voxel.
+	 *
+	 * @param index voxel linear index
+	 * @param color tree color
+	 */
+	private void setTree(final int index, final int color)
+	{
+		final byte tag = getTag(index);
+		if(tag == AnalyzeSkeleton_.END_POINT)
+			this.endPointTree[this.endPointMap.get(index)] = color;
+		else if(tag == AnalyzeSkeleton_.JUNCTION)
+			this.junctionTree[this.junctionMap.get(index)] = color;
+	}
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Divide the end points and junction voxels in the corresponding trees,
+	 * and ask memory for the tree measures.
+	 */
+	private void divideVoxelsByTrees()
+	{
+		this.numberOfBranches = new int[this.numOfTrees];
+		this.numberOfEndPoints = new int[this.numOfTrees];
+		this.numberOfJunctionVoxels = new int[this.numOfTrees];
+		this.numberOfJunctions = new int[this.numOfTrees];
+		this.numberOfSlabs = new int[this.numOfTrees];
+		this.numberOfTriplePoints = new int[this.numOfTrees];
+		this.numberOfQuadruplePoints = new int[this.numOfTrees];
+		this.averageBranchLength = new double[this.numOfTrees];
+		this.maximumBranchLength = new double[this.numOfTrees];
+		this.junctionVertex = new Vertex[this.numOfTrees][];
+		this.graph = new Graph[this.numOfTrees];
+
+		this.endPointsTree = divide(this.endPointTree, this.numberOfEndPoints);
+		this.junctionVoxelTree = divide(this.junctionTree, this.numberOfJunctionVoxels);
+	}
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Group list positions by tree, keeping their order.
+	 *
+	 * @param tree tree (1-based) of every list element
+	 * @param count output number of elements per tree
+	 * @return list positions of every tree
+	 */
+	private int[][] divide(final int[] tree, final int[] count)
+	{
+		for(int i = 0; i < tree.length; i++)
+			count[tree[i] - 1]++;
+		final int[][] lists = new int[this.numOfTrees][];
+		for(int iTree = 0; iTree < this.numOfTrees; iTree++)
+			lists[iTree] = new int[count[iTree]];
+		final int[] n = new int[this.numOfTrees];
+		for(int i = 0; i < tree.length; i++)
+		{
+			final int iTree = tree[i] - 1;
+			lists[iTree][n[iTree]++] = i;
+		}
+		return lists;
+	}
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Group neighbor junction voxels of a tree into junction vertices.
+	 *
+	 * @param iTree tree index
+	 */
+	private void groupJunctions(final int iTree)
+	{
+		final IntList group = new IntList();
+		final IntList toRevisit = new IntList();
+		final ArrayList<Vertex> vertices = new ArrayList<Vertex>();
+
+		for(final int i : this.junctionVoxelTree[iTree])
+		{
+			final int startingPoint = this.junctionIndices.get(i);
+			if(isVisited(startingPoint))
+				continue;
+
+			// Look for neighbor junctions and add them to the new group
+			group.clear();
+			toRevisit.clear();
+			group.add(startingPoint);
+			setVisited(startingPoint);
+			toRevisit.add(startingPoint);
+
+			int nextPoint = getNextUnvisitedVoxel(startingPoint, true);
+			while(nextPoint >= 0 || !toRevisit.isEmpty())
+			{
+				if(nextPoint >= 0)
+				{
+					group.add(nextPoint);
+					setVisited(nextPoint);
+					toRevisit.add(nextPoint);
+					nextPoint = getNextUnvisitedVoxel(nextPoint, true);
+				}
+				else
+				{
+					nextPoint = getNextUnvisitedVoxel(toRevisit.first(), true);
+					if(nextPoint < 0)
+						toRevisit.removeFirst();
+				}
+			}
+
+			final Vertex v = new Vertex();
+			for(int j = 0; j < group.size(); j++)
+			{
+				final int junction = this.junctionMap.get(group.get(j));
+				v.addPoint(this.listOfJunctionVoxels.get(junction));
+				this.junctionVoxelVertex[junction] = v;
+			}
+			vertices.add(v);
+		}
+		this.numberOfJunctions[iTree] = vertices.size();
+		this.junctionVertex[iTree] = vertices.toArray(new Vertex[vertices.size()]);
+
+		// Only the junction voxels of the tree were marked
+		for(final int i : this.junctionVoxelTree[iTree])
+			clearVisited(this.junctionIndices.get(i));
+	}// end method groupJunctions
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Visit of the branches of a single tree. The auxiliary state of the visit
+	 * is kept here, so several trees can be visited at the same time.
+	 */
+	private class TreeVisitor
+	{
+		/** index of the visited tree */
+		private final int iTree;
+		/** auxiliary final point (linear index, -1 if none) */
+		private int auxPoint = -1;
+		/** auxiliary list of slabs */
+		private ArrayList<Point> slabList = null;
+		/** auxiliary final vertex */
+		private Vertex auxFinalVertex = null;
+		/** true if the last visited branch created a new final vertex */
+		private boolean auxFinalVertexIsNew = false;
+		/** true if the last visited branch ended at a junction */
+		private boolean auxFinalVertexIsJunction = false;
+
+		TreeVisitor(final int iTree)
+		{
+			this.iTree = iTree;
+		}
+
+		/* -----------------------------------------------------------------------*/
+		/**
+		 * Visit skeleton starting at end-points, junctions and slab of circular
+		 * skeletons, and record measurements.
+		 */
+		void visitSkeleton()
+		{
+			final Graph g = new Graph();
+			graph[this.iTree] = g;
+			// Add all junction vertices
+			for(final Vertex v : junctionVertex[this.iTree])
+				g.appendVertex(v);
+
+			double branchLength = 0;
+			maximumBranchLength[this.iTree] = 0;
+			numberOfSlabs[this.iTree] = 0;
+
+			// Visit branches starting at end points
+			final int[] endPoints = endPointsTree[this.iTree];
+			for(int i = 0; i < endPoints.length; i++)
+			{
+				final int endPoint = endPointIndices.get(endPoints[i]);
+				if(isVisited(endPoint))
+					continue;
+
+				// Initial vertex
+				final Vertex v1 = new Vertex();
+				v1.addPoint(listOfEndPoints.get(endPoints[i]));
+				g.appendVertex(v1);
+				if(i == 0)
+					g.setRoot(v1);
+
+				this.slabList = new ArrayList<Point>();
+				final double length = visitBranch(endPoint);
+
+				// If length is 0, it means the tree is formed by only one voxel.
+				if(length == 0)
+					continue;
+
+				// Add branch to graph (junction vertices are already there)
+				if(this.auxFinalVertexIsNew)
+					g.appendVertex(this.auxFinalVertex);
+				else if(!this.auxFinalVertexIsJunction)
+					g.addVertex(this.auxFinalVertex);
+				g.appendEdge(new Edge(v1, this.auxFinalVertex, this.slabList, length));
+
+				numberOfBranches[this.iTree]++;
+				branchLength += length;
+				if(length > maximumBranchLength[this.iTree])
+					maximumBranchLength[this.iTree] = length;
+			}
+
+			// If there is no end points, set the first junction as root.
+			if(numberOfEndPoints[this.iTree] == 0 && numberOfJunctionVoxels[this.iTree] > 0)
+				g.setRoot(junctionVertex[this.iTree][0]);
+
+			// Now visit branches starting at junctions
+			for(final Vertex initialVertex : junctionVertex[this.iTree])
+			{
+				for(final Point p : initialVertex.getPoints())
+				{
+					final int junctionCoord = getIndex(p);
+					setVisited(junctionCoord);
+
+					int nextPoint = getNextUnvisitedVoxel(junctionCoord, false);
+					while(nextPoint >= 0)
+					{
+						// Do not count adjacent junctions
+						if(getTag(nextPoint) != AnalyzeSkeleton_.JUNCTION)
+						{
+							this.slabList = new ArrayList<Point>();
+							this.slabList.add(getPoint(nextPoint));
+
+							double length = calculateDistance(junctionCoord, nextPoint);
+							this.auxPoint = -1;
+							length += visitBranch(nextPoint);
+							branchLength += length;
+
+							if(length != 0)
+							{
+								if(this.auxPoint < 0)
+									this.auxPoint = nextPoint;
+
+								numberOfBranches[this.iTree]++;
+
+								// If the final point is a slab, then we add the path to the
+								// neighbor junction voxel not belonging to the initial vertex
+								// (unless it is a self loop)
+								if(getTag(this.auxPoint) == AnalyzeSkeleton_.SLAB)
+								{
+									final int aux = this.auxPoint;
+									this.auxPoint = getVisitedJunctionNeighbor(aux, initialVertex);
+									if(this.auxPoint < 0)
+									{
+										// Inner loop
+										this.auxFinalVertex = initialVertex;
+										this.auxPoint = aux;
+									}
+									else
+										this.auxFinalVertex = junctionVoxelVertex[junctionMap.get(this.auxPoint)];
+									length += calculateDistance(this.auxPoint, aux);
+								}
+
+								if(length > maximumBranchLength[this.iTree])
+									maximumBranchLength[this.iTree] = length;
+
+								g.appendEdge(new Edge(initialVertex, this.auxFinalVertex, this.slabList, length));
+							}
+						}
+						else
+							setVisited(nextPoint);
+
+						nextPoint = getNextUnvisitedVoxel(junctionCoord, false);
+					}
+				}
+			}
+
+			// Finally visit branches starting at slabs (special case for circular trees)
+			if(startingSlabTree[this.iTree].size() == 1)
+			{
+				final int startCoord = startingSlab[this.iTree];
+
+				// Create circular graph (only one vertex)
+				final Vertex v1 = new Vertex();
+				v1.addPoint(startingSlabTree[this.iTree].get(0));
+				g.appendVertex(v1);
+
+				this.slabList = new ArrayList<Point>();
+				this.slabList.add(startingSlabTree[this.iTree].get(0));
+				numberOfSlabs[this.iTree]++;
+
+				// visit branch until finding visited voxel.
+				final double length = visitBranch(startCoord);
+				if(length != 0)
+				{
+					numberOfBranches[this.iTree]++;
+					branchLength += length;
+					if(length > maximumBranchLength[this.iTree])
+						maximumBranchLength[this.iTree] = length;
+				}
+
+				// Create circular edge
+				g.appendEdge(new Edge(v1, v1, this.slabList, length));
+			}
+
+			if(numberOfBranches[this.iTree] == 0)
+				return;
+			averageBranchLength[this.iTree] = branchLength / numberOfBranches[this.iTree];
+		}// end method visitSkeleton
+
+		/* -----------------------------------------------------------------------*/
+		/**
+		 * Visit a branch and calculate length in a specific tree.
+		 *
+		 * @param startingPoint starting voxel (linear index)
+		 * @return branch length
+		 */
+		private double visitBranch(final int startingPoint)
+		{
+			double length = 0;
+			this.auxFinalVertexIsNew = false;
+			this.auxFinalVertexIsJunction = false;
+
+			setVisited(startingPoint);
+
+			int nextPoint = getNextUnvisitedVoxel(startingPoint, false);
+			if(nextPoint < 0)
+				return 0;
+
+			int previousPoint = startingPoint;
+
+			// We visit the branch until we find an end point or a junction
+			while(nextPoint >= 0 && getTag(nextPoint) == AnalyzeSkeleton_.SLAB)
+			{
+				numberOfSlabs[this.iTree]++;
+				this.slabList.add(listOfSlabVoxels.get(slabMap.get(nextPoint)));
+				length += calculateDistance(previousPoint, nextPoint);
+				setVisited(nextPoint);
+				previousPoint = nextPoint;
+				nextPoint = getNextUnvisitedVoxel(previousPoint, false);
+			}
+
+			if(nextPoint >= 0)
+			{
+				length += calculateDistance(previousPoint, nextPoint);
+				setVisited(nextPoint);
+
+				// Mark final vertex
+				final byte tag = getTag(nextPoint);
+				if(tag == AnalyzeSkeleton_.END_POINT)
+				{
+					this.auxFinalVertex = new Vertex();
+					this.auxFinalVertex.addPoint(listOfEndPoints.get(endPointMap.get(nextPoint)));
+					this.auxFinalVertexIsNew = true;
+				}
+				else if(tag == AnalyzeSkeleton_.JUNCTION)
+				{
+					this.auxFinalVertex = junctionVoxelVertex[junctionMap.get(nextPoint)];
+					this.auxFinalVertexIsJunction = true;
+				}
+				this.auxPoint = nextPoint;
+			}
+			else
+				this.auxPoint = previousPoint;
+
+			return length;
+		}// end method visitBranch
+	}// end class TreeVisitor
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Calculate number of triple and quadruple points in the skeleton. Triple and
+	 * quadruple points are junctions with exactly 3 and 4 branches respectively.
+	 */
+	void calculateTripleAndQuadruplePoints()
+	{
+		TreeTasks.run(this.treeOrder, this.numThreads, new TreeTasks.Task() {
+			public void run(final int iTree)
+			{
+				calculateTripleAndQuadruplePoints(iTree);
+			}
+		});
+	}
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Calculate number of triple and quadruple points of a tree.
+	 *
+	 * @param iTree tree index
+	 */
+	private void calculateTripleAndQuadruplePoints(final int iTree)
+	{
+		for(final Vertex v : this.junctionVertex[iTree])
+		{
+			// Count the number of slab and end-points neighbors of every voxel in the group
+			int nBranch = 0;
+			for(final Point p : v.getPoints())
+			{
+				final int index = getIndex(p);
+				for(int k = 0; k < 26; k++)
+				{
+					if(!isInside(p.x, p.y, p.z, k))
+						continue;
+					final byte tag = getTag(index + this.neighborOffset[k]);
+					if(tag == AnalyzeSkeleton_.SLAB || tag == AnalyzeSkeleton_.END_POINT)
+						nBranch++;
+				}
+			}
+			if(nBranch == 3)
+				this.numberOfTriplePoints[iTree]++;
+			else if(nBranch == 4)
+				this.numberOfQuadruplePoints[iTree]++;
+		}
+	}// end method calculateTripleAndQuadruplePoints
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Get next unvisited neighbor voxel.
+	 *
+	 * @param index voxel linear index
+	 * @param junctionsOnly only look for junction voxels
+	 * @return linear index of the first unvisited neighbor, or -1 if all
+	 * neighbors are visited
+	 */
+	private int getNextUnvisitedVoxel(final int index, final boolean junctionsOnly)
+	{
+		final int z = index / this.sliceSize;
+		final int xy = index - z * this.sliceSize;
+		final int y = xy / this.width;
+		final int x = xy - y * this.width;
+		final boolean border = x == 0 || y == 0 || z == 0
+			|| x == this.width - 1 || y == this.height - 1 || z == this.depth - 1;
+
+		for(int k = 0; k < 26; k++)
+		{
+			if(border && !isInside(x, y, z, k))
+				continue;
+			final byte tag = this.tags[z + this.dz[k]][xy + this.sliceOffset[k]];
+			if(tag == 0 || (junctionsOnly && tag != AnalyzeSkeleton_.JUNCTION))
+				continue;
+			final int neighbor = index + this.neighborOffset[k];
+			if(!isVisited(neighbor))
+				return neighbor;
+		}
+		return -1;
+	}// end method getNextUnvisitedVoxel
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Get next visited junction neighbor voxel excluding the ones belonging
+	 * to a given vertex.
+	 *
+	 * @param index voxel linear index
+	 * @param exclude exclusion vertex
+	 * @return linear index of the neighbor or -1 if there is none
+	 */
+	private int getVisitedJunctionNeighbor(final int index, final Vertex exclude)
+	{
+		final Point p = getPoint(index);
+		for(int k = 0; k < 26; k++)
+		{
+			if(!isInside(p.x, p.y, p.z, k))
+				continue;
+			final int neighbor = index + this.neighborOffset[k];
+			if(getTag(neighbor) == AnalyzeSkeleton_.JUNCTION
+				&& isVisited(neighbor)
+				&& this.junctionVoxelVertex[this.junctionMap.get(neighbor)] != exclude)
+				return neighbor;
+		}
+		return -1;
+	}// end method getVisitedJunctionNeighbor
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Calculate distance between two voxels in 3D.
+	 *
+	 * @param index1 first voxel linear index
+	 * @param index2 second voxel linear index
+	 * @return distance (in the corresponding units)
+	 */
+	private double calculateDistance(final int index1, final int index2)
+	{
+		final int z1 = index1 / this.sliceSize, z2 = index2 / this.sliceSize;
+		final int xy1 = index1 - z1 * this.sliceSize, xy2 = index2 - z2 * this.sliceSize;
+		final int y1 = xy1 / this.width, y2 = xy2 / this.width;
+		final int x1 = xy1 - y1 * this.width, x2 = xy2 - y2 * this.width;
+
+		// Same expression as AnalyzeSkeleton_.calculateDistance
+		return Math.sqrt(  Math.pow( (x1 - x2) * this.pixelWidth, 2)
+		          + Math.pow( (y1 - y2) * this.pixelHeight, 2)
+		          + Math.pow( (z1 - z2) * this.pixelDepth, 2));
+	}
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Check if a neighbor of a voxel is inside the image.
+	 *
+	 * @param x x- voxel coordinate
+	 * @param y y- voxel coordinate
+	 * @param z z- voxel coordinate
+	 * @param k neighbor number
+	 * @return true if the neighbor is inside the image
+	 */
+	private boolean isInside(final int x, final int y, final int z, final int k)
+	{
+		final int nx = x + this.dx[k], ny = y + this.dy[k], nz = z + this.dz[k];
+		return nx >= 0 && nx < this.width && ny >= 0 && ny < this.height && nz >= 0 && nz < this.depth;
+	}
+
+	/** @return tag of the voxel with the given linear index */
+	private byte getTag(final int index)
+	{
+		final int z = index / this.sliceSize;
+		return this.tags[z][index - z * this.sliceSize];
+	}
+
+	/** @return linear index of a point */
+	private int getIndex(final Point p)
+	{
+		return p.x + p.y * this.width + p.z * this.sliceSize;
+	}
+
+	/** @return the point of the skeleton voxel with the given linear index */
+	private Point getPoint(final int index)
+	{
+		final byte tag = getTag(index);
+		if(tag == AnalyzeSkeleton_.SLAB)
+			return this.listOfSlabVoxels.get(this.slabMap.get(index));
+		if(tag == AnalyzeSkeleton_.JUNCTION)
+			return this.listOfJunctionVoxels.get(this.junctionMap.get(index));
+		return this.listOfEndPoints.get(this.endPointMap.get(index));
+	}
+
+	/** @return true if the voxel with the given linear index was visited */
+	private boolean isVisited(final int index)
+	{
+		return (this.visited.get(index >>> 6) & (1L << index)) != 0;
+	}
+
+	/** Mark the voxel with the given linear index as visited. */
+	private void setVisited(final int index)
+	{
+		final int i = index >>> 6;
+		final long bit = 1L << index;
+		long word;
+		do
+		{
+			word = this.visited.get(i);
+			if((word & bit) != 0)
+				return;
+		}
+		while(!this.visited.compareAndSet(i, word, word | bit));
+	}
+
+	/** Mark the voxel with the given linear index as unvisited. */
+	private void clearVisited(final int index)
+	{
+		final int i = index >>> 6;
+		final long bit = 1L << index;
+		long word;
+		do
+		{
+			word = this.visited.get(i);
+			if((word & bit) == 0)
+				return;
+		}
+		while(!this.visited.compareAndSet(i, word, word & ~bit));
+	}
+
+	/** Mark all voxels as unvisited. */
+	private void resetVisited()
+	{
+		this.visited = new AtomicLongArray(this.visited.length());
+	}
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Create the points of a list of voxels.
+	 *
+	 * @param indices linear indices of the voxels
+	 * @return list of points
+	 */
+	private ArrayList<Point> createPoints(final IntList indices)
+	{
+		final ArrayList<Point> points = new ArrayList<Point>(indices.size());
+		for(int i = 0; i < indices.size(); i++)
+		{
+			final int index = indices.get(i);
+			final int z = index / this.sliceSize;
+			final int xy = index - z * this.sliceSize;
+			final int y = xy / this.width;
+			points.add(new Point(xy - y * this.width, y, z));
+		}
+		return points;
+	}
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Growable list of ints that can also be used as a FIFO queue.
+	 */
+	static class IntList
+	{
+		private int[] data = new int[16];
+		private int first = 0;
+		private int size = 0;
+
+		void add(final int value)
+		{
+			if(this.size == this.data.length)
+			{
+				final int[] newData = new int[this.size * 2];
+				System.arraycopy(this.data, 0, newData, 0, this.size);
+				this.data = newData;
+			}
+			this.data[this.size++] = value;
+		}
+
+		int get(final int i)
+		{
+			return this.data[this.first + i];
+		}
+
+		int size()
+		{
+			return this.size - this.first;
+		}
+
+		boolean isEmpty()
+		{
+			return this.size == this.first;
+		}
+
+		int first()
+		{
+			return this.data[this.first];
+		}
+
+		void removeFirst()
+		{
+			this.first++;
+			if(this.first == this.size)
+				clear();
+		}
+
+		void clear()
+		{
+			this.first = 0;
+			this.size = 0;
+		}
+	}
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Map from the linear indices of a list of voxels to their positions in
+	 * the list, using binary search on the sorted indices.
+	 */
+	static class IndexMap
+	{
+		private final int[] keys;
+		private final int[] positions;
+
+		IndexMap(final IntList list)
+		{
+			final int n = list.size();
+			final long[] pairs = new long[n];
+			for(int i = 0; i < n; i++)
+				pairs[i] = ((long) list.get(i) << 32) | i;
+			Arrays.sort(pairs);
+			this.keys = new int[n];
+			this.positions = new int[n];
+			for(int i = 0; i < n; i++)
+			{
+				this.keys[i] = (int) (pairs[i] >>> 32);
+				this.positions[i] = (int) pairs[i];
+			}
+		}
+
+		/** @return position of the index in the list, or -1 if it is not there */
+		int get(final int index)
+		{
+			final int i = Arrays.binarySearch(this.keys, index);
+			return i < 0 ? -1 : this.positions[i];
+		}
+	}
+}// end class PackedGraphBuilder
@@ -0,0 +1,109 @@
+package skeleton_analysis;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AnalyzeSkeleton_ plugin for ImageJ(C) and Fiji.
+ * Copyright (C) 2008-2010 Ignacio Arganda-Carreras
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ */
+
+/**
+ * Run a task on every skeleton tree using several threads. The threads take
+ * the next unprocessed tree from a shared counter whenever they are done with
+ * one, so a few big trees do not keep the other threads waiting.
+ */
+class TreeTasks
+{
+	/**
+	 * Work to be done on a single tree. It must only modify data belonging to
+	 * that tree.
+	 */
+	interface Task
+	{
+		/**
+		 * Process one tree.
+		 * @param iTree tree index
+		 */
+		void run(int iTree);
+	}
+
+	// -----------------------------------------------------------------------
+	/**
+	 * Run a task on the given trees and wait for all of them to finish.
+	 *
+	 * @param trees tree indices, in the order they should be handed out
+	 * @param numThreads maximum number of threads
+	 * @param task work to be done on every tree
+	 */
+	static void run(final int[] trees, final int numThreads, final Task task)
+	{
+		final int nThreads = Math.min(numThreads, trees.length);
+		if(nThreads <= 1)
+		{
+			for(final int iTree : trees)
+				task.run(iTree);
+			return;
+		}
+
+		final AtomicInteger next = new AtomicInteger(0);
+		final Throwable[] failure = new Throwable[1];
+		final Thread[] threads = new Thread[nThreads];
+		for(int i = 0; i < nThreads; i++)
+		{
+			threads[i] = new Thread() {
+				public void run()
+				{
+					try
+					{
+						for(int k = next.getAndIncrement(); k < trees.length; k = next.getAndIncrement())
+							task.run(trees[k]);
+					}
+					catch(Throwable t)
+					{
+						synchronized(failure)
+						{
+							if(failure[0] == null)
+								failure[0] = t;
+						}
+						// stop the other threads
+						next.set(trees.length);
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		try
+		{
+			for(final Thread thread : threads)
+				thread.join();
+		}
+		catch(InterruptedException e)
+		{
+			next.set(trees.length);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+
+		if(failure[0] instanceof RuntimeException)
+			throw (RuntimeException) failure[0];
+		if(failure[0] instanceof Error)
+			throw (Error) failure[0];
+		if(failure[0] != null)
+			throw new RuntimeException(failure[0]);
+	}
+}// end class TreeTasks
@@ -3,12 +3,14 @@ import ij.process.*;
 import ij.gui.*;
 import ij.plugin.filter.*;
 import ij.plugin.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // AutoLocalThreshold segmentation 
 // Following the guidelines at http://pacific.mpi-cbg.de/wiki/index.php/PlugIn_Design_Guidelines
 // ImageJ plugin by G. Landini at bham. ac. uk
 // 1.0  15/Apr/2009
 //1.1  01/Jun/2009
+//1.2  square windows from running sums and sliding histograms, slices in parallel
                 
 public class Auto_Local_Threshold implements PlugIn {
         /** Ask for parameters and then execute.*/
@@ -29,7 +31,7 @@ public class Auto_Local_Threshold implements PlugIn {
 		 // 2 - Ask for parameters:
 		GenericDialog gd = new GenericDialog("Auto Local Threshold");
 		String [] methods={"Try all", "Bernsen",  "Mean", "Median", "MidGrey", "Niblack", "Sauvola"};
-		gd.addMessage("Auto Local Threshold v1.1");
+		gd.addMessage("Auto Local Threshold v1.2");
 		gd.addChoice("Method", methods, methods[0]);
 		gd.addNumericField ("Radius",  15, 0);
 		gd.addMessage ("Special paramters (if different from default)");
@@ -85,10 +87,7 @@ public class Auto_Local_Threshold implements PlugIn {
 					imp2 = new ImagePlus("Auto Threshold", tstack);
 					imp2.updateAndDraw();
 
-					for (int k=1; k<ml;k++){
-						imp2.setSlice(k);
-						Object[] result = exec(imp2, methods[k], radius, par1, par2, doIwhite );
-					 }
+					tryAll(tstack, methods, radius, par1, par2, doIwhite);
 					//if (doItAnyway){
 					CanvasResizer cr= new CanvasResizer();
 					stackNew = cr.expandStack(tstack, (xe+2), (ye+18), 1, 1);
@@ -109,11 +108,7 @@ public class Auto_Local_Threshold implements PlugIn {
 				imp2 = new ImagePlus("Auto Threshold", tstack);
 				imp2.updateAndDraw();
 
-				for (int k=1; k<ml;k++){
-					imp2.setSlice(k);
-					//IJ.log("analyzing slice with "+methods[k]);
-					Object[] result = exec(imp2, methods[k], radius, par1, par2, doIwhite );
-				}
+				tryAll(tstack, methods, radius, par1, par2, doIwhite);
 				//imp2.setSlice(1);
 				CanvasResizer cr= new CanvasResizer();
 				stackNew = cr.expandStack(tstack, (xe+2), (ye+18), 1, 1);
@@ -129,13 +124,28 @@ public class Auto_Local_Threshold implements PlugIn {
 //				if (doIstackHistogram) {// one global histogram
 //					Object[] result = exec(imp, myMethod, noWhite, noBlack, doIwhite, doIset, doIlog, doIstackHistogram );
 //				}
-//				else{ // slice by slice
-					for (int k=1; k<=stackSize; k++){
-						imp.setSlice(k);
-						Object[] result = exec(imp, myMethod, radius, par1, par2, doIwhite );
+//				else{ // slice by slice, in parallel
+					ImageStack stack = imp.getStack();
+					if (stack.isVirtual()) {
+						for (int k=1; k<=stackSize; k++){
+							imp.setSlice(k);
+							Object[] result = exec(imp, myMethod, radius, par1, par2, doIwhite );
+						}
+					}
+					else {
+						ImageProcessor[] ips = new ImageProcessor[stackSize];
+						String[] sliceMethods = new String[stackSize];
+						for (int k=1; k<=stackSize; k++){
+							ips[k-1] = stack.getProcessor(k);
+							sliceMethods[k-1] = myMethod;
+						}
+						IJ.showStatus("Thresholding...");
+						exec(ips, sliceMethods, radius, par1, par2, doIwhite);
 					}
 //				}
 				imp.setSlice(1);
+				imp.updateAndDraw();
+				imp.getProcessor().setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
 			}
 			else { //just one slice
 				Object[] result = exec(imp, myMethod, radius, par1, par2, doIwhite );
@@ -146,6 +156,18 @@ public class Auto_Local_Threshold implements PlugIn {
 	}
 	//IJ.showStatus(IJ.d2s((System.currentTimeMillis()-start)/1000.0, 2)+" seconds");
 
+	// Thresholds the slices of the "Try all" stack, one method per slice
+	void tryAll(ImageStack tstack, String[] methods, int radius,  double par1, double par2, boolean doIwhite) {
+		int n = methods.length-1;
+		ImageProcessor[] ips = new ImageProcessor[n];
+		String[] sliceMethods = new String[n];
+		for (int k=1; k<=n; k++){
+			ips[k-1] = tstack.getProcessor(k);
+			sliceMethods[k-1] = methods[k];
+		}
+		exec(ips, sliceMethods, radius, par1, par2, doIwhite);
+	}
+
 
 	/** Execute the plugin functionality: duplicate and scale the given image.
 	* @return an Object[] array with the name and the scaled ImagePlus.
@@ -168,32 +190,36 @@ public class Auto_Local_Threshold implements PlugIn {
 			    Undo.setup(Undo.FILTER, imp);
 		}
 		// Apply the selected algorithm
+		threshold(ip, myMethod, radius, par1, par2, doIwhite);
+		//IJ.showProgress((double)(255-i)/255);
+		imp.updateAndDraw();
+		imp.getProcessor().setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+		// 2 - Return the threshold and the image
+		return new Object[] {imp};
+	}
+
+	void threshold(ImageProcessor ip, String myMethod, int radius,  double par1, double par2, boolean doIwhite ) {
 		if(myMethod.equals("Bernsen")){
-			Bernsen(imp,  radius, par1, par2, doIwhite);
+			Bernsen(ip,  radius, par1, par2, doIwhite);
 		}
 		else if(myMethod.equals("Mean")){
-			Mean(imp, radius, par1, par2, doIwhite);
+			Mean(ip, radius, par1, par2, doIwhite);
 		}
 		else if(myMethod.equals("Median")){
-			Median(imp, radius, par1, par2, doIwhite);
+			Median(ip, radius, par1, par2, doIwhite);
 		}
 		else if(myMethod.equals("MidGrey")){
-			MidGrey(imp, radius, par1, par2, doIwhite);
+			MidGrey(ip, radius, par1, par2, doIwhite);
 		}
 		else if(myMethod.equals("Niblack")){
-			Niblack (imp, radius, par1, par2, doIwhite); 
+			Niblack (ip, radius, par1, par2, doIwhite); 
 		}
 		else if(myMethod.equals("Sauvola")){
-			Sauvola(imp, radius, par1, par2, doIwhite);
+			Sauvola(ip, radius, par1, par2, doIwhite);
 		}
-		//IJ.showProgress((double)(255-i)/255);
-		imp.updateAndDraw();
-		imp.getProcessor().setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
-		// 2 - Return the threshold and the image
-		return new Object[] {imp};
 	}
 
-	void Bernsen(ImagePlus imp, int radius,  double par1, double par2, boolean doIwhite ) {
+	void Bernsen(ImageProcessor ip, int radius,  double par1, double par2, boolean doIwhite ) {
 		// Bernsen recommends WIN_SIZE = 31 and CONTRAST_THRESHOLD = 15.
 		//  1) Bernsen J. (1986) "Dynamic Thresholding of Grey-Level Images" 
 		//    Proc. of the 8th Int. Conf. on Pattern Recognition, pp. 1251-1255
@@ -202,9 +228,7 @@ public class Auto_Local_Threshold implements PlugIn {
 		//   Electronic Imaging, 13(1): 146-165 
 		//  http://citeseer.ist.psu.edu/sezgin04survey.html
 		// Ported to ImageJ plugin from E Celebi's fourier_0.8 routines
-		// This version uses a circular local window, instead of a rectagular one
-		ImagePlus Maximp, Minimp;
-		ImageProcessor ip=imp.getProcessor(), ipMax, ipMin;
+		// This version uses a square local window of side 2*radius+1
 		int contrast_threshold=15;
 		int local_contrast;
 		int mid_gray;
@@ -226,18 +250,10 @@ public class Auto_Local_Threshold implements PlugIn {
 			backg =  (byte) 0xff;
 		}
 
-		Maximp=duplicateImage(ip);
-		ipMax=Maximp.getProcessor();
-		RankFilters rf=new RankFilters();
-		rf.rank(ipMax, radius, rf.MAX);// Maximum
-		//Maximp.show();
-		Minimp=duplicateImage(ip);
-		ipMin=Minimp.getProcessor();
-		rf.rank(ipMin, radius, rf.MIN); //Minimum
-		//Minimp.show();
 		byte[] pixels = (byte [])ip.getPixels();
-		byte[] max = (byte [])ipMax.getPixels();
-		byte[] min = (byte [])ipMin.getPixels();
+		byte[] max = new byte[pixels.length];
+		byte[] min = new byte[pixels.length];
+		localMinMax(pixels, ip.getWidth(), ip.getHeight(), radius, min, max);
 
 		for (int i=0; i<pixels.length; i++) {
 			local_contrast = (int)((max[i]&0xff) -(min[i]&0xff));
@@ -248,15 +264,12 @@ public class Auto_Local_Threshold implements PlugIn {
 			else
 				pixels[i] = (temp >= mid_gray ) ? object : backg;
 		}    
-		//imp.updateAndDraw();
 		return;
 	}
 
-	void Mean(ImagePlus imp, int radius,  double par1, double par2, boolean doIwhite ) {
+	void Mean(ImageProcessor ip, int radius,  double par1, double par2, boolean doIwhite ) {
 		// See: Image Processing Learning Resourches HIPR2
 		// http://homepages.inf.ed.ac.uk/rbf/HIPR2/adpthrsh.htm
-		ImagePlus Meanimp;
-		ImageProcessor ip=imp.getProcessor(), ipMean;
 		int c_value = 0;
 		byte object;
 		byte backg;
@@ -275,28 +288,18 @@ public class Auto_Local_Threshold implements PlugIn {
 			backg =  (byte) 0xff;
 		}
 
-		Meanimp=duplicateImage(ip);
-		ImageConverter ic = new ImageConverter(Meanimp);
-		ic.convertToGray32();
-
-		ipMean=Meanimp.getProcessor();
-		RankFilters rf=new RankFilters();
-		rf.rank(ipMean, radius, rf.MEAN);// Mean
-		//Meanimp.show();
 		byte[] pixels = (byte []) ip.getPixels();
-		float[] mean = (float []) ipMean.getPixels();
+		float[] mean = new float[pixels.length];
+		localMeanVariance(pixels, ip.getWidth(), ip.getHeight(), radius, mean, null);
 
 		for (int i=0; i<pixels.length; i++) 
 			pixels[i] = ( (int)(pixels[i] &0xff) > (int)( mean[i]  - c_value)) ? object : backg;
-		//imp.updateAndDraw();
 		return;
 	}
 
-	void Median(ImagePlus imp, int radius,  double par1, double par2, boolean doIwhite ) {
+	void Median(ImageProcessor ip, int radius,  double par1, double par2, boolean doIwhite ) {
 		// See: Image Processing Learning Resourches HIPR2
 		// http://homepages.inf.ed.ac.uk/rbf/HIPR2/adpthrsh.htm
-		ImagePlus Medianimp;
-		ImageProcessor ip=imp.getProcessor(), ipMedian;
 		int c_value = 0;
 		byte object;
 		byte backg;
@@ -315,27 +318,19 @@ public class Auto_Local_Threshold implements PlugIn {
 			backg =  (byte) 0xff;
 		}
 
-		Medianimp=duplicateImage(ip);
-		ipMedian=Medianimp.getProcessor();
-		RankFilters rf=new RankFilters();
-		rf.rank(ipMedian, radius, rf.MEDIAN);
-		//Medianimp.show();
 		byte[] pixels = (byte []) ip.getPixels();
-		byte[] median = (byte []) ipMedian.getPixels();
+		byte[] median = new byte[pixels.length];
+		localMedian(pixels, ip.getWidth(), ip.getHeight(), radius, median);
 
 		for (int i=0; i<pixels.length; i++) 
 			pixels[i] = ( (int)(pixels[i] &0xff) > (int)( (median[i]  &0xff) - c_value)) ? object : backg;
-		//imp.updateAndDraw();
 		return;
 	}
 
-	void MidGrey(ImagePlus imp, int radius,  double par1, double par2, boolean doIwhite ) {
+	void MidGrey(ImageProcessor ip, int radius,  double par1, double par2, boolean doIwhite ) {
 		// See: Image Processing Learning Resourches HIPR2
 		// http://homepages.inf.ed.ac.uk/rbf/HIPR2/adpthrsh.htm
-		ImagePlus Maximp, Minimp;
-		ImageProcessor ip=imp.getProcessor(), ipMax, ipMin;
 		int c_value =0;
-		int mid_gray;
 		byte object;
 		byte backg;
 
@@ -353,35 +348,24 @@ public class Auto_Local_Threshold implements PlugIn {
 			backg =  (byte) 0xff;
 		}
 
-		Maximp=duplicateImage(ip);
-		ipMax=Maximp.getProcessor();
-		RankFilters rf=new RankFilters();
-		rf.rank(ipMax, radius, rf.MAX);// Maximum
-		//Maximp.show();
-		Minimp=duplicateImage(ip);
-		ipMin=Minimp.getProcessor();
-		rf.rank(ipMin, radius, rf.MIN); //Minimum
-		//Minimp.show();
 		byte[] pixels = (byte [])ip.getPixels();
-		byte[] max = (byte [])ipMax.getPixels();
-		byte[] min = (byte [])ipMin.getPixels();
+		byte[] max = new byte[pixels.length];
+		byte[] min = new byte[pixels.length];
+		localMinMax(pixels, ip.getWidth(), ip.getHeight(), radius, min, max);
 
 		for (int i=0; i<pixels.length; i++) {
 				pixels[i] = ( (int)(pixels[i] &0xff) > (int)(((max[i]&0xff) +(min[i]&0xff))/2)+c_value ) ? object : backg;
 		}    
-		//imp.updateAndDraw();
 		return;
 	}
 
-	void Niblack(ImagePlus imp, int radius,  double par1, double par2, boolean doIwhite  ) {
+	void Niblack(ImageProcessor ip, int radius,  double par1, double par2, boolean doIwhite  ) {
 		// Niblack recommends K_VALUE = -0.2 for images with black foreground 
 		// objects, and K_VALUE = +0.2 for images with white foreground objects.
 		//  Niblack W. (1986) "An introduction to Digital Image Processing" Prentice-Hall.
 		// Ported to ImageJ plugin from E Celebi's fourier_0.8 routines
-		// This version uses a circular local window, instead of a rectagular one
+		// This version uses a square local window of side 2*radius+1
 
-		ImagePlus Meanimp, Varimp;
-		ImageProcessor ip=imp.getProcessor(), ipMean, ipVar;
 		double k_value;
 		byte object;
 		byte backg ;
@@ -402,41 +386,25 @@ public class Auto_Local_Threshold implements PlugIn {
 			k_value= par1;
 		}
 
-		Meanimp=duplicateImage(ip);
-		ImageConverter ic = new ImageConverter(Meanimp);
-		ic.convertToGray32();
-
-		ipMean=Meanimp.getProcessor();
-		RankFilters rf=new RankFilters();
-		rf.rank(ipMean, radius, rf.MEAN);// Mean
-		//Meanimp.show();
-		Varimp=duplicateImage(ip);
-		ic = new ImageConverter(Varimp);
-		ic.convertToGray32();
-		ipVar=Varimp.getProcessor();
-		rf.rank(ipVar, radius, rf.VARIANCE); //Variance
-		//Varimp.show();
 		byte[] pixels = (byte []) ip.getPixels();
-		float[] mean = (float []) ipMean.getPixels();
-		float[] var = (float []) ipVar.getPixels();
+		float[] mean = new float[pixels.length];
+		float[] var = new float[pixels.length];
+		localMeanVariance(pixels, ip.getWidth(), ip.getHeight(), radius, mean, var);
 
 		for (int i=0; i<pixels.length; i++) 
 			pixels[i] = ( (int)(pixels[i] &0xff) > (int)( mean[i] + k_value * Math.sqrt ( var[i] ))) ? object : backg;
-		//imp.updateAndDraw();
 		return;
 	}
 
-	void Sauvola(ImagePlus imp, int radius,  double par1, double par2, boolean doIwhite) {
+	void Sauvola(ImageProcessor ip, int radius,  double par1, double par2, boolean doIwhite) {
 		// Sauvola recommends K_VALUE = 0.5 and R_VALUE = 128.
 		// This is a modification of Niblack's thresholding method.
 		// Sauvola J. and Pietaksinen M. (2000) "Adaptive Document Image Binarization"
 		// Pattern Recognition, 33(2): 225-236
 		// http://www.ee.oulu.fi/mvg/publications/show_pdf.php?ID=24
 		// Ported to ImageJ plugin from E Celebi's fourier_0.8 routines
-		// This version uses a circular local window, instead of a rectagular one
+		// This version uses a square local window of side 2*radius+1
 
-		ImagePlus Meanimp, Varimp;
-		ImageProcessor ip=imp.getProcessor(), ipMean, ipVar;
 		double k_value = 0.5;
 		double r_value = 128;
 		byte object;
@@ -461,38 +429,205 @@ public class Auto_Local_Threshold implements PlugIn {
 			backg =  (byte) 0xff;
 		}
 
-		Meanimp=duplicateImage(ip);
-		ImageConverter ic = new ImageConverter(Meanimp);
-		ic.convertToGray32();
-
-		ipMean=Meanimp.getProcessor();
-		RankFilters rf=new RankFilters();
-		rf.rank(ipMean, radius, rf.MEAN);// Mean
-		//Meanimp.show();
-		Varimp=duplicateImage(ip);
-		ic = new ImageConverter(Varimp);
-		ic.convertToGray32();
-		ipVar=Varimp.getProcessor();
-		rf.rank(ipVar, radius, rf.VARIANCE); //Variance
-		//Varimp.show();
 		byte[] pixels = (byte []) ip.getPixels();
-		float[] mean = (float []) ipMean.getPixels();
-		float[] var = (float []) ipVar.getPixels();
+		float[] mean = new float[pixels.length];
+		float[] var = new float[pixels.length];
+		localMeanVariance(pixels, ip.getWidth(), ip.getHeight(), radius, mean, var);
 
 		for (int i=0; i<pixels.length; i++) 
 			pixels[i] = ( (int)(pixels[i] &0xff) > (int)( mean[i] * (1.0+ k_value *(( Math.sqrt ( var[i] )/r_value)-1.0)))) ? object : backg;
-		//imp.updateAndDraw();
 		return;
 	}
 
-	private ImagePlus duplicateImage(ImageProcessor iProcessor){
-		int w=iProcessor.getWidth();
-		int h=iProcessor.getHeight();
-		ImagePlus iPlus=NewImage.createByteImage("Image", w, h, 1, NewImage.FILL_BLACK);
-		ImageProcessor imageProcessor=iPlus.getProcessor();
-		imageProcessor.copyBits(iProcessor, 0,0, Blitter.COPY);
-		return iPlus;
-	} 
+	// Local mean and variance in the (2*radius+1)^2 window around each pixel,
+	// pixels outside the image are left out. This is the summed-area table
+	// approach, but only one row of the table is kept: the column sums over
+	// the window rows are updated from row to row by adding the entering and
+	// subtracting the leaving row, and the prefix sums of the column sums
+	// along the row give the window sums. So the cost per pixel does not
+	// depend on the radius. var may be null.
+	static void localMeanVariance(byte[] pixels, int w, int h, int radius, float[] mean, float[] var) {
+		long[] colSum = new long[w];
+		long[] colSum2 = new long[w];
+		long[] prefix = new long[w+1];
+		long[] prefix2 = new long[w+1];
+
+		for (int y=0; y<Math.min(radius, h); y++)
+			addRow(pixels, w, y, 1, colSum, colSum2);
+		for (int y=0; y<h; y++){
+			if (y+radius<h)
+				addRow(pixels, w, y+radius, 1, colSum, colSum2);
+			if (y-radius-1>=0)
+				addRow(pixels, w, y-radius-1, -1, colSum, colSum2);
+			int rows = Math.min(h-1, y+radius) - Math.max(0, y-radius) + 1;
+
+			for (int x=0; x<w; x++){
+				prefix[x+1] = prefix[x] + colSum[x];
+				prefix2[x+1] = prefix2[x] + colSum2[x];
+			}
+			for (int x=0; x<w; x++){
+				int x0 = Math.max(0, x-radius);
+				int x1 = Math.min(w, x+radius+1);
+				double n = rows * (x1-x0);
+				double m = (prefix[x1] - prefix[x0]) / n;
+				mean[y*w+x] = (float) m;
+				if (var!=null)
+					var[y*w+x] = (float) Math.max(0, (prefix2[x1] - prefix2[x0]) / n - m * m);
+			}
+		}
+	}
 
-}
+	private static void addRow(byte[] pixels, int w, int y, int sign, long[] colSum, long[] colSum2) {
+		for (int x=0, i=y*w; x<w; x++, i++){
+			int v = pixels[i] & 0xff;
+			colSum[x] += sign * v;
+			colSum2[x] += sign * v * v;
+		}
+	}
+
+	// Local median in the (2*radius+1)^2 window around each pixel, pixels
+	// outside the image are left out. Uses sliding histograms (Perreault and
+	// Hebert, 2007): one histogram per column holds the window rows and is
+	// updated by one pixel per row, and the window histogram moves along the
+	// row by adding the entering and subtracting the leaving column
+	// histogram, so the cost per pixel does not depend on the radius.
+	static void localMedian(byte[] pixels, int w, int h, int radius, byte[] median) {
+		int[] colHist = new int[w*256];
+		int[] hist = new int[256];
+
+		for (int y=0; y<Math.min(radius, h); y++)
+			for (int x=0; x<w; x++)
+				colHist[x*256 + (pixels[y*w+x]&0xff)]++;
+		for (int y=0; y<h; y++){
+			if (y+radius<h)
+				for (int x=0, i=(y+radius)*w; x<w; x++, i++)
+					colHist[x*256 + (pixels[i]&0xff)]++;
+			if (y-radius-1>=0)
+				for (int x=0, i=(y-radius-1)*w; x<w; x++, i++)
+					colHist[x*256 + (pixels[i]&0xff)]--;
+			int rows = Math.min(h-1, y+radius) - Math.max(0, y-radius) + 1;
+
+			java.util.Arrays.fill(hist, 0);
+			for (int x=0; x<Math.min(radius, w); x++)
+				addHistogram(colHist, x, 1, hist);
+			for (int x=0; x<w; x++){
+				if (x+radius<w)
+					addHistogram(colHist, x+radius, 1, hist);
+				if (x-radius-1>=0)
+					addHistogram(colHist, x-radius-1, -1, hist);
+				int n = rows * (Math.min(w-1, x+radius) - Math.max(0, x-radius) + 1);
+
+				int v=0, sum=hist[0];
+				while (sum <= n/2) sum += hist[++v];
+				median[y*w+x] = (byte) v;
+			}
+		}
+	}
+
+	// Local minimum and maximum in the (2*radius+1)^2 window around each
+	// pixel, pixels outside the image are left out. The square window is
+	// separable, so rows and then columns are filtered with the van
+	// Herk/Gil-Werman algorithm, which takes 3 comparisons per pixel
+	// whatever the radius. The maximum is the minimum of the inverted image.
+	static void localMinMax(byte[] pixels, int w, int h, int radius, byte[] min, byte[] max) {
+		int[] values = new int[w*h];
+		for (int i=0; i<values.length; i++)
+			values[i] = pixels[i]&0xff;
+		localMin(values, w, h, radius);
+		for (int i=0; i<values.length; i++)
+			min[i] = (byte) values[i];
+
+		for (int i=0; i<values.length; i++)
+			values[i] = 255 - (pixels[i]&0xff);
+		localMin(values, w, h, radius);
+		for (int i=0; i<values.length; i++)
+			max[i] = (byte) (255 - values[i]);
+	}
+
+	private static void localMin(int[] values, int w, int h, int radius) {
+		final int inf = 256;
+		int length = 2*radius+1;
+
+		// rows
+		int[] g = new int[w+2*radius];
+		int[] hh = new int[w+2*radius];
+		for (int y=0; y<h; y++){
+			java.util.Arrays.fill(g, 0, radius, inf);
+			System.arraycopy(values, y*w, g, radius, w);
+			java.util.Arrays.fill(g, radius+w, w+2*radius, inf);
+			blockMin(g, hh, w+2*radius, length, 1);
+			for (int x=0; x<w; x++)
+				values[y*w+x] = Math.min(hh[x], g[x+length-1]);
+		}
+
+		// columns, in strips of 64 so that whole row segments are read
+		int strip = 64;
+		int m = h+2*radius;
+		g = new int[m*strip];
+		hh = new int[m*strip];
+		for (int x0=0; x0<w; x0+=strip){
+			int sw = Math.min(strip, w-x0);
+			for (int j=0; j<m; j++){
+				int y = j-radius;
+				if (y<0 || y>=h)
+					java.util.Arrays.fill(g, j*strip, j*strip+sw, inf);
+				else
+					System.arraycopy(values, y*w+x0, g, j*strip, sw);
+			}
+			blockMin(g, hh, m, length, strip);
+			for (int y=0; y<h; y++)
+				for (int x=0; x<sw; x++)
+					values[y*w+x0+x] = Math.min(hh[y*strip+x], g[(y+length-1)*strip+x]);
+		}
+	}
+
+	// Turns g into the running minimum from the start of each block of length
+	// elements, and sets h to the running minimum from the end of the block.
+	// Each element consists of stride values, which are handled independently.
+	private static void blockMin(int[] g, int[] h, int n, int length, int stride) {
+		for (int b=0; b<n; b+=length){
+			int e = Math.min(b+length, n);
+			System.arraycopy(g, (e-1)*stride, h, (e-1)*stride, stride);
+			for (int j=e-2; j>=b; j--)
+				for (int k=0, i=j*stride; k<stride; k++, i++)
+					h[i] = Math.min(g[i], h[i+stride]);
+			for (int j=b+1; j<e; j++)
+				for (int k=0, i=j*stride; k<stride; k++, i++)
+					if (g[i-stride]<g[i])
+						g[i] = g[i-stride];
+		}
+	}
+
+	private static void addHistogram(int[] colHist, int x, int sign, int[] hist) {
+		int offset = x*256;
+		if (sign>0)
+			for (int v=0; v<256; v++)
+				hist[v] += colHist[offset+v];
+		else
+			for (int v=0; v<256; v++)
+				hist[v] -= colHist[offset+v];
+	}
 
+	// Thresholds the processors with their respective methods, several of
+	// them at the same time.
+	void exec(final ImageProcessor[] ips, final String[] methods, final int radius, final double par1, final double par2, final boolean doIwhite) {
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = new Thread[Math.min(ips.length, Runtime.getRuntime().availableProcessors())];
+		for (int t=0; t<threads.length; t++){
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i=ai.getAndIncrement(); i<ips.length; i=ai.getAndIncrement())
+						threshold(ips[i], methods[i], radius, par1, par2, doIwhite);
+				}
+			};
+			threads[t].start();
+		}
+		try {
+			for (int t=0; t<threads.length; t++)
+				threads[t].join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -28,6 +28,7 @@ import java.awt.Toolkit;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionListener;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
@@ -198,8 +199,6 @@ public class Directionality_ implements PlugIn {
 
 	/* STD FIELDS */
 	
-	/** FloatProcessor to convert source ImageProcessor to. */
-	private FloatProcessor fip;
 	/** Fourier filters are stored as a stack */
 	protected ImageStack filters;
 	/** Polar coordinates, stored as a FloatProcessor. */
@@ -210,7 +209,6 @@ public class Directionality_ implements PlugIn {
 	/** The directionality histogram, one array per processor (3 in the case of a ColorProcessor).*/
 	protected ArrayList<double[]> histograms;
 	
-	private FloatProcessor padded_square_block; 
 	private float[] window_pixels;
 	/** Store fit results when fit method is called. */
 	protected ArrayList<double[]> params_from_fit;
@@ -218,8 +216,6 @@ public class Directionality_ implements PlugIn {
 	protected double[] goodness_of_fit;
 	/** Store a String representing the fitting function. */
 	protected String fit_string;
-	/** Used to pass the slice we are currently analyzing. */
-	private int slice_index;
 	/** This stack stores the orientation map. */
 	ImageStack orientation_map;
 	
@@ -367,44 +363,92 @@ public class Directionality_ implements PlugIn {
 		}
 
 		// Prepare result holder
-		int n_slices = imp.getStackSize();
-		histograms = new ArrayList<double[]>(n_slices * imp.getNChannels()); 
+		final ImageStack stack = imp.getStack();
+		final int n_slices = imp.getStackSize();
+		final int n_channels = stack.getProcessor(1).getNChannels();
+		final int n_jobs = n_slices * n_channels;
+		final double[][] results = new double[n_jobs][];
+		final ColorProcessor[] maps = build_orientation_map ? new ColorProcessor[n_jobs] : null;
+		
+		// Distribute the slices over threads; each thread keeps its own buffers
+		final AtomicInteger next_slice = new AtomicInteger(0);
+		final Throwable[] failure = new Throwable[1];
+		final Thread[] threads = new Thread[Math.max(1, Math.min(n_slices, Runtime.getRuntime().availableProcessors()))];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					final AnalysisBuffers buffers = new AnalysisBuffers();
+					try {
+						for (int i = next_slice.getAndIncrement(); i < n_slices; i = next_slice.getAndIncrement()) {
+							final ImageProcessor ip = stack.getProcessor(i+1);
+							for (int channel_number = 0; channel_number < n_channels; channel_number++) {
+								final int job = i * n_channels + channel_number;
+								buffers.slice_index = i;
+								buffers.orientation = null;
+								
+								// Convert to float processor
+								buffers.fip = ip.toFloat(channel_number, buffers.fip);
+								
+								// Dispatch to specialized method
+								double[] dir = null;
+								switch (method) {
+								case FOURIER_COMPONENTS:
+									dir = fourier_component(buffers.fip, buffers);
+									break;
+								case LOCAL_GRADIENT_ORIENTATION:
+									dir = local_gradient_orientation(buffers.fip, buffers);
+									break;
+								}
+								
+								// Normalize directionality
+								double sum = dir[0];
+								for (int j = 1; j < dir.length; j++) {
+									sum += dir[j];
+								}
+								for (int j = 0; j < dir.length; j++) {
+									dir[j] = dir[j] / sum;
+								}
+								
+								results[job] = dir;
+								if (build_orientation_map) {
+									maps[job] = buffers.orientation;
+								}
+							}
+						}
+					} catch (Throwable e) {
+						synchronized (failure) {
+							if (failure[0] == null) failure[0] = e;
+						}
+						// make the other threads stop as well
+						next_slice.set(n_slices);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		try {
+			for (int t = 0; t < threads.length; t++) {
+				threads[t].join();
+			}
+		} catch (InterruptedException e) {
+			next_slice.set(n_slices);
+			Thread.currentThread().interrupt();
+			return;
+		}
+		if (failure[0] != null) {
+			throw new RuntimeException("Directionality analysis failed", failure[0]);
+		}
+		
+		// Collect the results in slice order
+		histograms = new ArrayList<double[]>(n_jobs); 
 		if (build_orientation_map) {
 			orientation_map = new ImageStack(imp.getWidth(), imp.getHeight());
 		}
-		
-		
-		// Loop over each slice
-		ImageProcessor ip = null;
-		double[] dir = null;
-		for (int i = 0; i < n_slices; i++) {
-			slice_index = i;
-			ip = imp.getStack().getProcessor(i+1);
-			for (int channel_number = 0; channel_number < ip.getNChannels(); channel_number++) {
-				
-				// Convert to float processor
-				fip = ip.toFloat(channel_number, fip);
-				
-				// Dispatch to specialized method
-				switch (method) {
-				case FOURIER_COMPONENTS:
-					dir = fourier_component(fip);
-					break;
-				case LOCAL_GRADIENT_ORIENTATION:
-					dir = local_gradient_orientation(fip);
-					break;
-				}
-				
-				// Normalize directionality
-				double sum = dir[0];
-				for (int j = 1; j < dir.length; j++) {
-					sum += dir[i];
-				}
-				for (int j = 0; j < dir.length; j++) {
-					dir[i] = dir[i] / sum;
-				}
-				
-				histograms.add( dir );
+		final String[] names = build_orientation_map ? makeNames() : null;
+		for (int job = 0; job < n_jobs; job++) {
+			histograms.add(results[job]);
+			if (build_orientation_map) {
+				orientation_map.addSlice(names[job / n_channels], maps[job]);
 			}
 		}
 	}
@@ -886,6 +930,40 @@ public class Directionality_ implements PlugIn {
 	 */
 	
 	
+	/**
+	 * Buffers used by one analysis thread. They are created once per thread
+	 * and reused for all the slices this thread analyzes; the filters, window and
+	 * polar coordinates are only read during the analysis, and shared by all threads.
+	 */
+	private final class AnalysisBuffers {
+		/** FloatProcessor to convert source ImageProcessor to. */
+		FloatProcessor fip;
+		/** The slice we are currently analyzing. */
+		int slice_index;
+		/** The orientation map of the current slice, if it is built. */
+		ColorProcessor orientation;
+		
+		/** FFT of the windowed and padded square block; the FHT keeps its tables from block to block. */
+		FHT fft;
+		/** Copy of the FFT, filtered and transformed back to build the orientation map. */
+		FHT filtered;
+		float[] block;
+		float[] pspectrum;
+		
+		/** Makes sure the Fourier buffers exist, they depend on the image size. */
+		final void initFourier() {
+			if (null != fft && fft.getWidth() == pad_size && block.length == small_side * small_side) {
+				return;
+			}
+			fft = new FHT(new FloatProcessor(pad_size, pad_size));
+			fft.setShowProgress(false);
+			filtered = null;
+			block = new float[small_side * small_side];
+			pspectrum = new float[pad_size * pad_size];
+		}
+	}
+	
+	
 	
 	
 	
@@ -971,7 +1049,6 @@ public class Directionality_ implements PlugIn {
 		// Computes power of 2 image dimension
 		pad_size = 2;
         while(pad_size<small_side) pad_size *= 2;
-		padded_square_block = new FloatProcessor(pad_size, pad_size);
 		
 		// Prepare windowing
 		window = getBlackmanProcessor(small_side, small_side);
@@ -998,10 +1075,10 @@ public class Directionality_ implements PlugIn {
 	 * We use the square of the norm, so that the histogram calculated with this method
 	 * has the same dimension that with the Fourier method.
 	 * 
-	 * @see #fourier_component(FloatProcessor)
+	 * @see #fourier_component(FloatProcessor, AnalysisBuffers)
 	 *  
 	 */
-	private final double[] local_gradient_orientation(final FloatProcessor ip) {
+	private final double[] local_gradient_orientation(final FloatProcessor ip, final AnalysisBuffers buffers) {
 		double[] dir = new double[nbins]; // histo with #bins
 		final double[] norm_dir = new double[nbins]; // histo from -pi to pi;
 		final FloatProcessor grad_x = (FloatProcessor) ip.duplicate();
@@ -1085,7 +1162,7 @@ public class Directionality_ implements PlugIn {
 			}
 			final byte[] B = (byte[]) ip.convertToByte(true).getPixels();
 			cp.setHSB(H, S, B);
-			orientation_map.addSlice(makeNames()[slice_index], cp);
+			buffers.orientation = cp;
 		}
 		
 		return dir;
@@ -1100,18 +1177,23 @@ public class Directionality_ implements PlugIn {
 	 * <p>
 	 * We return the results as a double array, containing the amount of orientation for each angles
 	 * specified in the {@link #bins} field. 
-	 * @see {@link #local_gradient_orientation(FloatProcessor)}
+	 * @see {@link #local_gradient_orientation(FloatProcessor, AnalysisBuffers)}
 	 */
-	private final double[] fourier_component(FloatProcessor ip) {
+	private final double[] fourier_component(final FloatProcessor ip, final AnalysisBuffers buffers) {
 		final Roi original_square = new Roi((pad_size-small_side)/2, (pad_size-small_side)/2, small_side, small_side); 
 		final Roi top_corner = new Roi(0, 0, small_side, small_side);
 		
-		float[] fpx, spectrum_px;
+		float[] fpx;
 		final double[] dir = new double[nbins];
-		ImageProcessor square_block;
-		Roi square_roi;
-		FHT fft, pspectrum;		
-		FloatProcessor small_pspectrum;
+		final int offset = (pad_size-small_side)/2;
+		
+		buffers.initFourier();
+		final FHT fft = buffers.fft;
+		final float[] fft_px = (float[]) fft.getPixels();
+		final float[] block_pixels = buffers.block;
+		final float[] spectrum_px = buffers.pspectrum;
+		final float[] ip_px = (float[]) ip.getPixels();
+		final int ip_width = ip.getWidth();
 		
 		ImageStack spectra = null;
 		if (debug) {
@@ -1132,47 +1214,48 @@ public class Directionality_ implements PlugIn {
 			
 			for (int iy = 0; iy<npady; iy++) {
 				
-				// Extract a square block from the image
-				square_roi = new Roi( ix*step, iy*step, small_side, small_side );
-				ip.setRoi(square_roi);
-				square_block = ip.crop();
-				
-				// Window the block
-				float[] block_pixels = (float[]) square_block.getPixels();
-				for (int i = 0; i < block_pixels.length; i++) {
-					block_pixels[i] *= window_pixels[i]; 
+				// Extract a square block from the image, and window it
+				for (int y = 0; y < small_side; y++) {
+					final int src = (iy*step + y) * ip_width + ix*step;
+					for (int x = 0; x < small_side; x++) {
+						final int i = y * small_side + x;
+						block_pixels[i] = ip_px[src + x] * window_pixels[i];
+					}
 				}
 				
 				// Pad the block with a power of 2 size
-				padded_square_block.setValue(0.0);
-				padded_square_block.fill();
-				padded_square_block.insert(square_block, (pad_size-small_side)/2, (pad_size-small_side)/2);
+				java.util.Arrays.fill(fft_px, 0f);
+				for (int y = 0; y < small_side; y++) {
+					System.arraycopy(block_pixels, y * small_side, fft_px, (y + offset) * pad_size + offset, small_side);
+				}
 				
 				// Computes its FFT
-				fft = new FHT(padded_square_block);
-				fft.setShowProgress(false);
 				fft.transform();
 				fft.swapQuadrants();
 				
-				// Get a centered power spectrum with right size
-				pspectrum = fft.conjugateMultiply(fft);
-				pspectrum .setRoi(original_square);
-				small_pspectrum = (FloatProcessor) pspectrum.crop();
-				spectrum_px = (float[]) pspectrum.getPixels(); //small_pspectrum.getPixels(); 
+				// Get a centered power spectrum
+				powerSpectrum(fft_px, spectrum_px, pad_size);
 				
 				if (debug) {
-					spectra.addSlice("block nbr "+(ix+1)*(iy+1), displayLog(small_pspectrum));
+					final FloatProcessor pspectrum = new FloatProcessor(pad_size, pad_size, spectrum_px.clone(), null);
+					pspectrum.setRoi(original_square);
+					spectra.addSlice("block nbr "+(ix+1)*(iy+1), displayLog((FloatProcessor) pspectrum.crop()));
 				}
 
 				// For orientation map
 				float[] weights = null, sini = null, cosi = null;
-				FHT tmp;
+				FHT tmp = null;
 				float[] tmp_px; 
 				double sangle, cangle;
 				if (build_orientation_map) {
 					weights = new float[fft.getPixelCount()];
 					sini 	= new float[fft.getPixelCount()];
 					cosi 	= new float[fft.getPixelCount()];
+					if (null == buffers.filtered) {
+						buffers.filtered = new FHT(new FloatProcessor(pad_size, pad_size));
+						buffers.filtered.setShowProgress(false);
+					}
+					tmp = buffers.filtered;
 				}
 				
 				// Loop over all bins
@@ -1184,9 +1267,8 @@ public class Directionality_ implements PlugIn {
 					// Loop over all pixels
 					if (build_orientation_map) {
 						
-						tmp = fft.getCopy();
-						tmp.setShowProgress(false);
 						tmp_px = (float[]) tmp.getPixels();
+						System.arraycopy(fft_px, 0, tmp_px, 0, fft_px.length);
 						for (int i = 0; i < spectrum_px.length; i++) {
 							// Computes angular density
 							dir[bin] += spectrum_px[i] * fpx[i]; // will sum out with every block
@@ -1261,17 +1343,36 @@ public class Directionality_ implements PlugIn {
 					(byte[]) big_saturation.getPixels(), 
 					(byte[]) big_brightness.getPixels()
 					);
-			orientation_map.addSlice(makeNames()[slice_index], cp);
+			buffers.orientation = cp;
 		}
 
 		
 		if (debug) {
-			new ImagePlus("Log10 power FFT of "+makeNames()[slice_index], spectra).show();
+			new ImagePlus("Log10 power FFT of "+makeNames()[buffers.slice_index], spectra).show();
 		}
 		
 		return dir;		
 	}
 	
+	/**
+	 * Computes the power spectrum of a Fourier-Hartley transform into a given array, 
+	 * the same way {@link FHT#conjugateMultiply(FHT)} of the transform with itself does,
+	 * but without allocating new arrays.
+	 */
+	private static final void powerSpectrum(final float[] h, final float[] spectrum, final int maxN) {
+		int rowMod, colMod;
+		double h2e, h2o;
+		for (int r = 0; r < maxN; r++) {
+			rowMod = (maxN - r) % maxN;
+			for (int c = 0; c < maxN; c++) {
+				colMod = (maxN - c) % maxN;
+				h2e = (h[r * maxN + c] + h[rowMod * maxN + colMod]) / 2;
+				h2o = (h[r * maxN + c] - h[rowMod * maxN + colMod]) / 2;
+				spectrum[r * maxN + c] = (float) (h[r * maxN + c] * h2e - h[rowMod * maxN + colMod] * h2o);
+			}
+		}
+	}
+	
 	/**
 	 * This method generates the angular filters used by the Fourier analysis. It reads the fields {@link #nbins},
 	 * {@link #bin_start} to determine how many individual angle filter to generate, and {@link #pad_size}
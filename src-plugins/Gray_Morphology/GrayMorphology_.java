@@ -97,7 +97,7 @@ public class GrayMorphology_ implements PlugInFilter, Constants {
                 return DONE;
             }
             else {
-                return DOES_8G+DOES_STACKS;
+                return DOES_8G+DOES_16+DOES_32+DOES_STACKS;
             }
         }
     }
@@ -232,7 +232,7 @@ public class GrayMorphology_ implements PlugInFilter, Constants {
 	        	doOptions(ip, mp, morphoptions);
 	         } // end if
 	         else if (!isLineRoi) {
-            	ImageProcessor ipmask = getMask((ByteProcessor)ip,r);
+            	ImageProcessor ipmask = ip.crop();
             	doOptions(ipmask, mp, morphoptions);
             	ip.insert(ipmask,r.x,r.y);
 	         } // end if
@@ -243,6 +243,16 @@ public class GrayMorphology_ implements PlugInFilter, Constants {
     }
 
     private void doOptions(ImageProcessor ip, MorphoProcessor mp, int morphoptions){
+        boolean isByte=ip instanceof ByteProcessor;
+        if (!isByte) {
+            // 16-bit and float images are only handled by the line decomposition
+            if (!LineMorphoProcessor.isFlat(se)) {
+                IJ.error("Gray Morphology", "16-bit and float images need a structure element\nwith all values 255");
+                return;
+            }
+            if (morphoptions<FERODE) morphoptions+=FERODE;
+        }
+        boolean isLine=isByte && ((se.getType()==HLINE) || (se.getType()==VLINE));
         switch (morphoptions) {
         
         case ERODE: {
@@ -261,7 +271,7 @@ public class GrayMorphology_ implements PlugInFilter, Constants {
         }
         
         case FERODE: {
-        	if ((se.getType()==HLINE) || (se.getType()==VLINE)) {
+        	if (isLine) {
         		mp.LineErode(ip);}
         	else {
         		mp.fastErode(ip);
@@ -269,7 +279,7 @@ public class GrayMorphology_ implements PlugInFilter, Constants {
             break;
         }
         case FDILATE:{
-        	if ((se.getType()==HLINE) || (se.getType()==VLINE)) {
+        	if (isLine) {
             	mp.LineDilate(ip);}
         	else {
         		mp.fastDilate(ip);
@@ -277,7 +287,7 @@ public class GrayMorphology_ implements PlugInFilter, Constants {
             break;
         }
         case FOPEN:{
-        	if ((se.getType()==HLINE) || (se.getType()==VLINE)) {
+        	if (isLine) {
         		mp.LineErode(ip);
         		mp.LineDilate(ip);
             }
@@ -287,7 +297,7 @@ public class GrayMorphology_ implements PlugInFilter, Constants {
             break;
         }
         case FCLOSE:{
-        	if ((se.getType()==HLINE) || (se.getType()==VLINE)) {
+        	if (isLine) {
             	mp.LineDilate(ip);
             	mp.LineErode(ip);
             	}
@@ -0,0 +1,515 @@
+/*
+ * LineMorphoProcessor.java
+ *
+ *      This library is free software; you can redistribute it and/or
+ *      modify it under the terms of the GNU Lesser General Public
+ *      License as published by the Free Software Foundation; either
+ *      version 2.1 of the License, or (at your option) any later version.
+ *
+ *      This library is distributed in the hope that it will be useful,
+ *      but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *      MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *       Lesser General Public License for more details.
+ *
+ *      You should have received a copy of the GNU Lesser General Public
+ *      License along with this library; if not, write to the Free Software
+ *      Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package mmorpho;
+
+import ij.process.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Flat gray level erosion and dilation for 8-bit, 16-bit and float images.
+ *
+ * The StructureElement is decomposed into line segments, and the erosion by
+ * a line segment is done with the van Herk/Gil-Werman algorithm, which takes
+ * 3 comparisons per pixel whatever the length of the line:
+ * <ul>
+ * <li>rectangles (and lines) are eroded separably by a horizontal and a
+ * vertical line,</li>
+ * <li>diamonds are eroded by two diagonal lines followed by one or two
+ * 5 pixel crosses,</li>
+ * <li>all other elements (circles, free forms) are split into the horizontal
+ * runs of their rows; the erosion is the minimum of the shifted erosions by
+ * these runs, where the rows are eroded once per distinct run length.</li>
+ * </ul>
+ * Dilation is done as erosion of the negated image.
+ *
+ * The neighbourhood of a pixel is the same as in MorphoProcessor.erode(),
+ * pixels outside the image are ignored. Rows are processed in parallel.
+ */
+public class LineMorphoProcessor implements Constants {
+    private static final float INF=Float.POSITIVE_INFINITY;
+
+    // the horizontal runs: row offset, offset of the first pixel, length
+    private int[] runY, runX, runLength;
+    // distinct run lengths in increasing order
+    private int[] lengths;
+    // largest horizontal offset of a run pixel
+    private int maxOffset;
+    // whether the element is a rectangle containing the origin
+    private boolean rectangle;
+    // radius of the element if it is a diamond centered at the origin, -1 otherwise
+    private int diamond=-1;
+    private int numThreads=Runtime.getRuntime().availableProcessors();
+
+    /** Creates a new instance of LineMorphoProcessor
+     * @param se a flat StructureElement, see isFlat()
+     */
+    public LineMorphoProcessor(StructureElement se) {
+        if (!isFlat(se))
+            throw new IllegalArgumentException("Only flat structure elements are supported");
+
+        int[][] pg=se.getVect();
+        // order the pixels by row, then by column
+        int[][] pts=new int[pg.length][];
+        for (int g=0; g<pg.length; g++)
+            pts[g]=new int[] {pg[g][0], pg[g][1]};
+        Arrays.sort(pts, new Comparator<int[]>() {
+            public int compare(int[] a, int[] b) {
+                return a[0]!=b[0] ? a[0]-b[0] : a[1]-b[1];
+            }
+        });
+
+        ArrayList<int[]> runs=new ArrayList<int[]>();
+        int[] run=null;
+        int radius=0;
+        for (int g=0; g<pts.length; g++) {
+            if (run!=null && run[0]==pts[g][0] && run[1]+run[2]==pts[g][1]) {
+                run[2]++;
+            } else {
+                run=new int[] {pts[g][0], pts[g][1], 1};
+                runs.add(run);
+            }
+            radius=Math.max(radius, Math.abs(pts[g][0])+Math.abs(pts[g][1]));
+        }
+        // all pixels are within the radius, so the count tells whether it is the full diamond
+        if (radius>0 && pts.length==2*radius*radius+2*radius+1)
+            diamond=radius;
+
+        int n=runs.size();
+        runY=new int[n];
+        runX=new int[n];
+        runLength=new int[n];
+        TreeSet<Integer> distinct=new TreeSet<Integer>();
+        maxOffset=0;
+        for (int i=0; i<n; i++) {
+            run=runs.get(i);
+            runY[i]=run[0];
+            runX[i]=run[1];
+            runLength[i]=run[2];
+            distinct.add(run[2]);
+            maxOffset=Math.max(maxOffset, Math.max(Math.abs(run[1]), Math.abs(run[1]+run[2]-1)));
+        }
+        lengths=new int[distinct.size()];
+        int i=0;
+        for (Integer l: distinct)
+            lengths[i++]=l.intValue();
+
+        // separable erosion is only exact at the image borders if the
+        // rectangle contains the origin
+        rectangle=runY[0]<=0 && runY[n-1]>=0 && runX[0]<=0 && runX[0]+runLength[0]>0;
+        for (i=1; i<n && rectangle; i++)
+            if (runY[i]!=runY[i-1]+1 || runX[i]!=runX[0] || runLength[i]!=runLength[0])
+                rectangle=false;
+    }
+
+    /** Checks whether a StructureElement is flat, i.e. all its pixels have
+     * the same weight, which is what the built-in shapes create.
+     */
+    public static boolean isFlat(StructureElement se) {
+        int[][] pg=se.getVect();
+        if (pg.length==0) return false;
+        for (int g=0; g<pg.length; g++)
+            if (pg[g][2]!=255) return false;
+        return true;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads=Math.max(1, numThreads);
+    }
+
+    /** Performs gray level erosion */
+    public void erode(ImageProcessor ip) {
+        float[] pixels=toFloat(ip);
+        erode(pixels, ip.getWidth(), ip.getHeight());
+        fromFloat(pixels, ip);
+    }
+
+    /** Performs gray level dilation */
+    public void dilate(ImageProcessor ip) {
+        float[] pixels=toFloat(ip);
+        dilate(pixels, ip.getWidth(), ip.getHeight());
+        fromFloat(pixels, ip);
+    }
+
+    /** Performs gray level erosion followed by gray level dilation */
+    public void open(ImageProcessor ip) {
+        float[] pixels=toFloat(ip);
+        erode(pixels, ip.getWidth(), ip.getHeight());
+        dilate(pixels, ip.getWidth(), ip.getHeight());
+        fromFloat(pixels, ip);
+    }
+
+    /** Performs gray level dilation followed by gray level erosion */
+    public void close(ImageProcessor ip) {
+        float[] pixels=toFloat(ip);
+        dilate(pixels, ip.getWidth(), ip.getHeight());
+        erode(pixels, ip.getWidth(), ip.getHeight());
+        fromFloat(pixels, ip);
+    }
+
+    /** Performs gray level dilation in place
+     * @param pixels the image, row by row
+     */
+    public void dilate(float[] pixels, int width, int height) {
+        negate(pixels);
+        erode(pixels, width, height);
+        negate(pixels);
+    }
+
+    /** Performs gray level erosion in place
+     * @param pixels the image, row by row
+     */
+    public void erode(float[] pixels, int width, int height) {
+        if (rectangle) {
+            erodeRows(pixels, width, height, runX[0], runLength[0]);
+            erodeColumns(pixels, width, height, runY[0], runY.length);
+        } else if (diamond>0) {
+            erodeDiamond(pixels, width, height);
+        } else {
+            erodeRuns(pixels, width, height);
+        }
+    }
+
+    /* Erosion by the horizontal runs of the element */
+    private void erodeRuns(final float[] pixels, final int width, final int height) {
+        // row erosions by a line of the current length starting at
+        // each of the offsets -maxOffset .. width+maxOffset-1
+        final int span=width+2*maxOffset;
+        final float[][] eroded={new float[span*height], new float[span*height]};
+        final float[] result=new float[pixels.length];
+        Arrays.fill(result, INF);
+
+        Thread[] threads=newThreads();
+        for (int l=0; l<lengths.length; l++) {
+            final int length=lengths[l];
+            final int step=l==0 ? length : length-lengths[l-1];
+            final float[] previous=eroded[(l+1)%2];
+            final float[] current=eroded[l%2];
+
+            final AtomicInteger ai=new AtomicInteger(0);
+            for (int t=0; t<threads.length; t++) {
+                threads[t]=new Thread() {
+                    public void run() {
+                        float[] g=null, h=null;
+                        for (int y=ai.getAndIncrement(); y<height; y=ai.getAndIncrement()) {
+                            int o=y*span;
+                            if (step<length-step) {
+                                // the line is covered by two lines of the previous length
+                                for (int s=0; s<span; s++) {
+                                    float a=previous[o+s];
+                                    float b=s+step<span ? previous[o+s+step] : INF;
+                                    current[o+s]=a<b ? a : b;
+                                }
+                            } else {
+                                if (g==null) {
+                                    g=new float[span+length];
+                                    h=new float[span+length];
+                                }
+                                lineMin(pixels, y*width, width, -maxOffset, length, current, o, span, g, h);
+                            }
+                        }
+                    }
+                };
+            }
+            startAndJoin(threads);
+
+            // combine the runs of that length
+            final AtomicInteger ai2=new AtomicInteger(0);
+            for (int t=0; t<threads.length; t++) {
+                threads[t]=new Thread() {
+                    public void run() {
+                        for (int y=ai2.getAndIncrement(); y<height; y=ai2.getAndIncrement()) {
+                            int out=y*width;
+                            for (int r=0; r<runY.length; r++) {
+                                int sy=y+runY[r];
+                                if (runLength[r]!=length || sy<0 || sy>=height) continue;
+                                int in=sy*span+runX[r]+maxOffset;
+                                for (int x=0; x<width; x++) {
+                                    float v=current[in+x];
+                                    if (v<result[out+x]) result[out+x]=v;
+                                }
+                            }
+                        }
+                    }
+                };
+            }
+            startAndJoin(threads);
+        }
+
+        System.arraycopy(result, 0, pixels, 0, pixels.length);
+    }
+
+    /* Erosion by a diamond of radius R, which is the union of the pixels with
+     * even and with odd distance from the center. The even ones of radius 2m
+     * are the sum of two diagonal lines of length m+1, adding a 5 pixel cross
+     * increases the radius by one. So the diamond is
+     * lines(R-1) + cross for odd R, and lines(R-2) + cross + cross for even R.
+     * The intermediate results are computed on the image padded by R, so
+     * that the result is exact at the borders as well.
+     */
+    private void erodeDiamond(float[] pixels, int width, int height) {
+        final int pad=diamond;
+        final int pw=width+2*pad;
+        final int ph=height+2*pad;
+        final float[] padded=new float[pw*ph];
+        Arrays.fill(padded, INF);
+        for (int y=0; y<height; y++)
+            System.arraycopy(pixels, y*width, padded, (y+pad)*pw+pad, width);
+
+        int lineRadius=(diamond%2==1) ? diamond-1 : diamond-2;
+        if (lineRadius>0) {
+            erodeDiagonals(padded, pw, ph, lineRadius/2, true);
+            erodeDiagonals(padded, pw, ph, lineRadius/2, false);
+        }
+        float[] work=new float[padded.length];
+        erodeCross(padded, work, pw, ph);
+        if (diamond%2==0) {
+            erodeCross(work, padded, pw, ph);
+            work=padded;
+        }
+
+        for (int y=0; y<height; y++)
+            System.arraycopy(work, (y+pad)*pw+pad, pixels, y*width, width);
+    }
+
+    /* Erodes along all diagonals (or anti-diagonals) by the line of the
+     * given radius centered at the pixel
+     */
+    private void erodeDiagonals(final float[] pixels, final int width, final int height, final int radius, final boolean down) {
+        final int length=2*radius+1;
+        final int numLines=width+height-1;
+        final int n=Math.min(width, height);
+        final AtomicInteger ai=new AtomicInteger(0);
+        Thread[] threads=newThreads();
+        for (int t=0; t<threads.length; t++) {
+            threads[t]=new Thread() {
+                public void run() {
+                    float[] line=new float[n];
+                    float[] eroded=new float[n];
+                    float[] g=new float[n+length];
+                    float[] h=new float[n+length];
+                    for (int d=ai.getAndIncrement(); d<numLines; d=ai.getAndIncrement()) {
+                        // the line starts in the top row or in the first (last) column
+                        int x0, y0;
+                        if (down) {
+                            x0=Math.max(0, d-height+1);
+                            y0=Math.max(0, height-1-d);
+                        } else {
+                            x0=Math.min(width-1, d);
+                            y0=Math.max(0, d-width+1);
+                        }
+                        int step=down ? width+1 : width-1;
+                        int count=down ? Math.min(width-x0, height-y0) : Math.min(x0+1, height-y0);
+                        int start=y0*width+x0;
+                        for (int i=0, j=start; i<count; i++, j+=step)
+                            line[i]=pixels[j];
+                        lineMin(line, 0, count, -radius, length, eroded, 0, count, g, h);
+                        for (int i=0, j=start; i<count; i++, j+=step)
+                            pixels[j]=eroded[i];
+                    }
+                }
+            };
+        }
+        startAndJoin(threads);
+    }
+
+    /* Erosion by the 5 pixel cross */
+    private void erodeCross(final float[] src, final float[] dst, final int width, final int height) {
+        final AtomicInteger ai=new AtomicInteger(0);
+        Thread[] threads=newThreads();
+        for (int t=0; t<threads.length; t++) {
+            threads[t]=new Thread() {
+                public void run() {
+                    for (int y=ai.getAndIncrement(); y<height; y=ai.getAndIncrement()) {
+                        int o=y*width;
+                        for (int x=0; x<width; x++) {
+                            float v=src[o+x];
+                            if (x>0 && src[o+x-1]<v) v=src[o+x-1];
+                            if (x<width-1 && src[o+x+1]<v) v=src[o+x+1];
+                            if (y>0 && src[o-width+x]<v) v=src[o-width+x];
+                            if (y<height-1 && src[o+width+x]<v) v=src[o+width+x];
+                            dst[o+x]=v;
+                        }
+                    }
+                }
+            };
+        }
+        startAndJoin(threads);
+    }
+
+    /* Erodes every row by the horizontal line of the given length,
+     * starting at offset x0
+     */
+    private void erodeRows(final float[] pixels, final int width, final int height, final int x0, final int length) {
+        if (length==1 && x0==0) return;
+        final AtomicInteger ai=new AtomicInteger(0);
+        Thread[] threads=newThreads();
+        for (int t=0; t<threads.length; t++) {
+            threads[t]=new Thread() {
+                public void run() {
+                    float[] row=new float[width];
+                    float[] g=new float[width+length];
+                    float[] h=new float[width+length];
+                    for (int y=ai.getAndIncrement(); y<height; y=ai.getAndIncrement()) {
+                        System.arraycopy(pixels, y*width, row, 0, width);
+                        lineMin(row, 0, width, x0, length, pixels, y*width, width, g, h);
+                    }
+                }
+            };
+        }
+        startAndJoin(threads);
+    }
+
+    /* Erodes every column by the vertical line of the given length,
+     * starting at offset y0. The columns are processed in strips so that
+     * whole row segments are read at a time.
+     */
+    private void erodeColumns(final float[] pixels, final int width, final int height, final int y0, final int length) {
+        if (length==1 && y0==0) return;
+        final int strip=64;
+        final int m=height+length-1;
+        final int numStrips=(width+strip-1)/strip;
+        final AtomicInteger ai=new AtomicInteger(0);
+        Thread[] threads=newThreads();
+        for (int t=0; t<threads.length; t++) {
+            threads[t]=new Thread() {
+                public void run() {
+                    float[] g=new float[m*strip];
+                    float[] h=new float[m*strip];
+                    for (int s=ai.getAndIncrement(); s<numStrips; s=ai.getAndIncrement()) {
+                        int x0=s*strip;
+                        int w=Math.min(strip, width-x0);
+                        // forward and backward minimum within the blocks of length rows
+                        for (int b=0; b<m; b+=length) {
+                            int e=Math.min(b+length, m);
+                            for (int j=b; j<e; j++) {
+                                int y=j+y0;
+                                int o=j*strip;
+                                boolean inside=y>=0 && y<height;
+                                for (int x=0; x<w; x++) {
+                                    float v=inside ? pixels[y*width+x0+x] : INF;
+                                    g[o+x]=(j==b || v<g[o-strip+x]) ? v : g[o-strip+x];
+                                }
+                            }
+                            for (int j=e-1; j>=b; j--) {
+                                int y=j+y0;
+                                int o=j*strip;
+                                boolean inside=y>=0 && y<height;
+                                for (int x=0; x<w; x++) {
+                                    float v=inside ? pixels[y*width+x0+x] : INF;
+                                    h[o+x]=(j==e-1 || v<h[o+strip+x]) ? v : h[o+strip+x];
+                                }
+                            }
+                        }
+                        for (int y=0; y<height; y++) {
+                            int o1=y*strip;
+                            int o2=(y+length-1)*strip;
+                            int out=y*width+x0;
+                            for (int x=0; x<w; x++)
+                                pixels[out+x]=h[o1+x]<g[o2+x] ? h[o1+x] : g[o2+x];
+                        }
+                    }
+                }
+            };
+        }
+        startAndJoin(threads);
+    }
+
+    /* van Herk/Gil-Werman minimum filter of a line:
+     * dst[dstOffset+i] = min(src[srcOffset+start+i .. srcOffset+start+i+length-1])
+     * for i=0..count-1, pixels outside 0..n-1 are ignored.
+     * g and h are work arrays of at least count+length-1 elements.
+     */
+    private static void lineMin(float[] src, int srcOffset, int n, int start, int length,
+            float[] dst, int dstOffset, int count, float[] g, float[] h) {
+        int m=count+length-1;
+        // g holds the line itself first
+        int first=Math.max(0, Math.min(m, -start));
+        int last=Math.max(first, Math.min(m, n-start));
+        Arrays.fill(g, 0, first, INF);
+        System.arraycopy(src, srcOffset+start+first, g, first, last-first);
+        Arrays.fill(g, last, m, INF);
+
+        for (int b=0; b<m; b+=length) {
+            int e=Math.min(b+length, m);
+            h[e-1]=g[e-1];
+            for (int j=e-2; j>=b; j--)
+                h[j]=g[j]<h[j+1] ? g[j] : h[j+1];
+            for (int j=b+1; j<e; j++)
+                if (g[j-1]<g[j]) g[j]=g[j-1];
+        }
+        for (int i=0; i<count; i++) {
+            float a=h[i], b=g[i+length-1];
+            dst[dstOffset+i]=a<b ? a : b;
+        }
+    }
+
+    private static void negate(float[] pixels) {
+        for (int i=0; i<pixels.length; i++)
+            pixels[i]=-pixels[i];
+    }
+
+    private static float[] toFloat(ImageProcessor ip) {
+        Object pixels=ip.getPixels();
+        if (pixels instanceof float[])
+            return (float[])((float[])pixels).clone();
+        int n=ip.getWidth()*ip.getHeight();
+        float[] f=new float[n];
+        if (pixels instanceof byte[]) {
+            byte[] b=(byte[])pixels;
+            for (int i=0; i<n; i++) f[i]=b[i]&0xFF;
+        } else if (pixels instanceof short[]) {
+            short[] s=(short[])pixels;
+            for (int i=0; i<n; i++) f[i]=s[i]&0xFFFF;
+        } else
+            throw new IllegalArgumentException("Only 8-bit, 16-bit and float images are supported");
+        return f;
+    }
+
+    /* Writes the result back; pixels with no neighbour inside the image get
+     * the extreme value of the pixel type
+     */
+    private static void fromFloat(float[] f, ImageProcessor ip) {
+        Object pixels=ip.getPixels();
+        int n=f.length;
+        if (pixels instanceof float[]) {
+            System.arraycopy(f, 0, pixels, 0, n);
+        } else if (pixels instanceof byte[]) {
+            byte[] b=(byte[])pixels;
+            for (int i=0; i<n; i++) b[i]=(byte)Math.max(0, Math.min(255, (int)f[i]));
+        } else {
+            short[] s=(short[])pixels;
+            for (int i=0; i<n; i++) s[i]=(short)Math.max(0, Math.min(65535, (int)f[i]));
+        }
+    }
+
+    private Thread[] newThreads() {
+        return new Thread[numThreads];
+    }
+
+    private static void startAndJoin(Thread[] threads) {
+        for (int t=0; t<threads.length; t++)
+            threads[t].start();
+        try {
+            for (int t=0; t<threads.length; t++)
+                threads[t].join();
+        } catch (InterruptedException ie) {
+            throw new RuntimeException(ie);
+        }
+    }
+}
@@ -23,6 +23,8 @@ public class MorphoProcessor implements Constants {
     private StructureElement se, minus_se, plus_se; //, down_se, up_se;
     private LocalHistogram bh,p_h,m_h;
     private int[][]pg,pg_plus,pg_minus;
+    // line decomposition of flat structure elements, null otherwise
+    private LineMorphoProcessor lmp;
     int width, height;
 
     /** Creates a new instance of MorphoProcessor */
@@ -38,6 +40,8 @@ public class MorphoProcessor implements Constants {
         pg=se.getVect();
         pg_plus=plus_se.getVect();
         pg_minus=minus_se.getVect();
+        if (LineMorphoProcessor.isFlat(se))
+            lmp=new LineMorphoProcessor(se);
     }
     
     
@@ -65,8 +69,15 @@ public class MorphoProcessor implements Constants {
      */
     
     
-    /** Performs gray level erosion */
+    /** Performs gray level erosion
+     *  flat structure elements are decomposed into lines, which works
+     *  for 8-bit, 16-bit and float images
+     */
     public void fastErode(ImageProcessor ip) {
+        if (lmp!=null) {
+            lmp.erode(ip);
+            return;
+        }
         int width = ip.getWidth();
         int height = ip.getHeight();
         int  min = -32767;//,k=0,x=0,y=0;
@@ -122,8 +133,15 @@ public class MorphoProcessor implements Constants {
         System.arraycopy(newpix, 0, pixels, 0, pixels.length);
     }
     
-    /** Performs gray level dilation */
+    /** Performs gray level dilation
+     *  flat structure elements are decomposed into lines, which works
+     *  for 8-bit, 16-bit and float images
+     */
     public void fastDilate(ImageProcessor ip) {
+        if (lmp!=null) {
+            lmp.dilate(ip);
+            return;
+        }
         int width = ip.getWidth();
         int height = ip.getHeight();
         int  max = 32767;//,k=0,x=0,y=0;
@@ -445,6 +463,10 @@ public class MorphoProcessor implements Constants {
     
     
     public void fopen(ImageProcessor ip){
+        if (lmp!=null) {
+            lmp.open(ip);
+            return;
+        }
         int width = ip.getWidth();
         int height = ip.getHeight();
         int  min = -32767;//,k=0,x=0,y=0;
@@ -623,6 +645,10 @@ public class MorphoProcessor implements Constants {
      */
     
     public void fclose(ImageProcessor ip){
+        if (lmp!=null) {
+            lmp.close(ip);
+            return;
+        }
         
         //fastDilate(ip,se);
         //fastErode(ip,se);
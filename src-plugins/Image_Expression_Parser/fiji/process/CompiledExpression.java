@@ -0,0 +1,438 @@
+package fiji.process;
+
+import java.util.List;
+
+import org.nfunk.jep.ASTConstant;
+import org.nfunk.jep.ASTFunNode;
+import org.nfunk.jep.ASTVarNode;
+import org.nfunk.jep.Node;
+import org.nfunk.jep.Variable;
+
+/**
+ * A JEP expression tree, compiled once into a flat register program that can be
+ * evaluated over blocks of pixels.
+ * <p>
+ * Every register is a primitive <code>float[]</code> holding one value per pixel of
+ * the current block. The first registers hold the input images, in the order of the
+ * variable list given to {@link #compile(Node, List)}, followed by the constants of the
+ * expression and by the temporary registers needed to evaluate it. Each instruction
+ * is applied to a whole block in a tight loop, instead of walking the JEP tree
+ * once per pixel.
+ * <p>
+ * A register file, as returned by {@link #createRegisters(int)}, is not thread-safe:
+ * each thread must use its own.
+ */
+public class CompiledExpression {
+
+	/*
+	 * OPCODES
+	 */
+
+	private static final int ADD 	= 0;
+	private static final int SUB 	= 1;
+	private static final int MUL 	= 2;
+	private static final int DIV 	= 3;
+	private static final int MOD 	= 4;
+	private static final int POW 	= 5;
+	private static final int NEG 	= 6;
+	private static final int GT 	= 7;
+	private static final int LT 	= 8;
+	private static final int GE 	= 9;
+	private static final int LE 	= 10;
+	private static final int EQ 	= 11;
+	private static final int NE 	= 12;
+	private static final int AND 	= 13;
+	private static final int OR 	= 14;
+	private static final int NOT 	= 15;
+	private static final int IF 	= 16;
+	private static final int SIN 	= 17;
+	private static final int COS 	= 18;
+	private static final int TAN 	= 19;
+	private static final int ASIN 	= 20;
+	private static final int ACOS 	= 21;
+	private static final int ATAN 	= 22;
+	private static final int ATAN2 	= 23;
+	private static final int SINH 	= 24;
+	private static final int COSH 	= 25;
+	private static final int TANH 	= 26;
+	private static final int ASINH 	= 27;
+	private static final int ACOSH 	= 28;
+	private static final int ATANH 	= 29;
+	private static final int LOG 	= 30;
+	private static final int LN 	= 31;
+	private static final int EXP 	= 32;
+	private static final int SQRT 	= 33;
+	private static final int ABS 	= 34;
+	private static final int ROUND 	= 35;
+	private static final int FLOOR 	= 36;
+	private static final int CEIL 	= 37;
+
+	/** Number of ints used to store one instruction: opcode, destination and up to 3 sources. */
+	private static final int INSTRUCTION_SIZE = 5;
+
+	/** The flat program, {@link #INSTRUCTION_SIZE} ints per instruction. */
+	private final int[] code;
+	/** The constant values, stored in the registers following the variable registers. */
+	private final float[] constants;
+	/** Number of input variables. */
+	private final int n_variables;
+	/** Total number of registers needed to run the program. */
+	private final int n_registers;
+	/** Index of the register holding the result after {@link #evaluate(float[][], int)}. */
+	private final int result_register;
+
+	private CompiledExpression(int[] code, float[] constants, int n_variables, int n_registers, int result_register) {
+		this.code = code;
+		this.constants = constants;
+		this.n_variables = n_variables;
+		this.n_registers = n_registers;
+		this.result_register = result_register;
+	}
+
+	/*
+	 * PUBLIC METHODS
+	 */
+
+	/**
+	 * Compile the parsed expression whose root is given in argument.
+	 *
+	 * @param top_node  the root of the tree, as returned by {@link org.nfunk.jep.JEP#getTopNode()}
+	 * @param variables  the image variables; their order dictates the order of the input registers
+	 * @return  the compiled expression, or <code>null</code> if the expression uses a function or
+	 * an operator this compiler does not handle. In the latter case, the expression must be
+	 * evaluated by the JEP parser itself.
+	 */
+	public static CompiledExpression compile(final Node top_node, final List<String> variables) {
+		final Compiler compiler = new Compiler(variables);
+		final int result = compiler.compile(top_node, 0);
+		if (result == -1)
+			return null;
+		return compiler.build(result);
+	}
+
+	/**
+	 * Allocate a register file able to process blocks of at most <code>block_size</code> pixels.
+	 * The constant registers are filled here, once and for all. The variable registers
+	 * (the first {@link #getNumVariables()} ones) must be filled by the caller before each
+	 * call to {@link #evaluate(float[][], int)}.
+	 */
+	public float[][] createRegisters(final int block_size) {
+		final float[][] registers = new float[n_registers][block_size];
+		for (int i = 0; i < constants.length; i++)
+			java.util.Arrays.fill(registers[n_variables + i], constants[i]);
+		return registers;
+	}
+
+	/**
+	 * Run the program over the first <code>length</code> pixels of the register file given.
+	 * @return  the register holding the result
+	 */
+	public float[] evaluate(final float[][] registers, final int length) {
+		for (int pc = 0; pc < code.length; pc += INSTRUCTION_SIZE) {
+			final float[] d = registers[code[pc+1]];
+			final float[] a = registers[code[pc+2]];
+			final float[] b = code[pc+3] < 0 ? null : registers[code[pc+3]];
+			final float[] c = code[pc+4] < 0 ? null : registers[code[pc+4]];
+			switch (code[pc]) {
+			case ADD:
+				for (int i = 0; i < length; i++) d[i] = a[i] + b[i];
+				break;
+			case SUB:
+				for (int i = 0; i < length; i++) d[i] = a[i] - b[i];
+				break;
+			case MUL:
+				for (int i = 0; i < length; i++) d[i] = a[i] * b[i];
+				break;
+			case DIV:
+				for (int i = 0; i < length; i++) d[i] = a[i] / b[i];
+				break;
+			case MOD:
+				for (int i = 0; i < length; i++) d[i] = a[i] % b[i];
+				break;
+			case POW:
+				for (int i = 0; i < length; i++) d[i] = (float) Math.pow(a[i], b[i]);
+				break;
+			case NEG:
+				for (int i = 0; i < length; i++) d[i] = -a[i];
+				break;
+			case GT:
+				for (int i = 0; i < length; i++) d[i] = a[i] > b[i] ? 1 : 0;
+				break;
+			case LT:
+				for (int i = 0; i < length; i++) d[i] = a[i] < b[i] ? 1 : 0;
+				break;
+			case GE:
+				for (int i = 0; i < length; i++) d[i] = a[i] >= b[i] ? 1 : 0;
+				break;
+			case LE:
+				for (int i = 0; i < length; i++) d[i] = a[i] <= b[i] ? 1 : 0;
+				break;
+			case EQ:
+				for (int i = 0; i < length; i++) d[i] = a[i] == b[i] ? 1 : 0;
+				break;
+			case NE:
+				for (int i = 0; i < length; i++) d[i] = a[i] != b[i] ? 1 : 0;
+				break;
+			case AND:
+				for (int i = 0; i < length; i++) d[i] = (a[i] != 0 && b[i] != 0) ? 1 : 0;
+				break;
+			case OR:
+				for (int i = 0; i < length; i++) d[i] = (a[i] != 0 || b[i] != 0) ? 1 : 0;
+				break;
+			case NOT:
+				for (int i = 0; i < length; i++) d[i] = a[i] == 0 ? 1 : 0;
+				break;
+			case IF:
+				for (int i = 0; i < length; i++) d[i] = a[i] > 0 ? b[i] : c[i];
+				break;
+			case SIN:
+				for (int i = 0; i < length; i++) d[i] = (float) Math.sin(a[i]);
+				break;
+			case COS:
+				for (int i = 0; i < length; i++) d[i] = (float) Math.cos(a[i]);
+				break;
+			case TAN:
+				for (int i = 0; i < length; i++) d[i] = (float) Math.tan(a[i]);
+				break;
+			case ASIN:
+				for (int i = 0; i < length; i++) d[i] = (float) Math.asin(a[i]);
+				break;
+			case ACOS:
+				for (int i = 0; i < length; i++) d[i] = (float) Math.acos(a[i]);
+				break;
+			case ATAN:
+				for (int i = 0; i < length; i++) d[i] = (float) Math.atan(a[i]);
+				break;
+			case ATAN2:
+				for (int i = 0; i < length; i++) d[i] = (float) Math.atan2(a[i], b[i]);
+				break;
+			case SINH:
+				for (int i = 0; i < length; i++) d[i] = (float) Math.sinh(a[i]);
+				break;
+			case COSH:
+				for (int i = 0; i < length; i++) d[i] = (float) Math.cosh(a[i]);
+				break;
+			case TANH:
+				for (int i = 0; i < length; i++) d[i] = (float) Math.tanh(a[i]);
+				break;
+			case ASINH:
+				for (int i = 0; i < length; i++) d[i] = (float) Math.log(a[i] + Math.sqrt(a[i] * (double) a[i] + 1));
+				break;
+			case ACOSH:
+				for (int i = 0; i < length; i++) d[i] = (float) Math.log(a[i] + Math.sqrt(a[i] * (double) a[i] - 1));
+				break;
+			case ATANH:
+				for (int i = 0; i < length; i++) d[i] = (float) (0.5 * Math.log((1.0 + a[i]) / (1.0 - a[i])));
+				break;
+			case LOG:
+				for (int i = 0; i < length; i++) d[i] = (float) Math.log10(a[i]);
+				break;
+			case LN:
+				for (int i = 0; i < length; i++) d[i] = (float) Math.log(a[i]);
+				break;
+			case EXP:
+				for (int i = 0; i < length; i++) d[i] = (float) Math.exp(a[i]);
+				break;
+			case SQRT:
+				for (int i = 0; i < length; i++) d[i] = (float) Math.sqrt(a[i]);
+				break;
+			case ABS:
+				for (int i = 0; i < length; i++) d[i] = Math.abs(a[i]);
+				break;
+			case ROUND:
+				for (int i = 0; i < length; i++) d[i] = (float) Math.rint(a[i]);
+				break;
+			case FLOOR:
+				for (int i = 0; i < length; i++) d[i] = (float) Math.floor(a[i]);
+				break;
+			case CEIL:
+				for (int i = 0; i < length; i++) d[i] = (float) Math.ceil(a[i]);
+				break;
+			}
+		}
+		return registers[result_register];
+	}
+
+	/**
+	 * Return the number of input variables. The register <code>i</code> must be filled
+	 * with the pixel values of the <code>i</code>-th variable given to {@link #compile(Node, List)}.
+	 */
+	public int getNumVariables() {
+		return n_variables;
+	}
+
+	/**
+	 * Return the number of instructions in the compiled program.
+	 */
+	public int getNumInstructions() {
+		return code.length / INSTRUCTION_SIZE;
+	}
+
+	/*
+	 * INNER CLASS
+	 */
+
+	/**
+	 * Walk the JEP tree and emit the instructions. Temporary registers are allocated as
+	 * a stack: a node compiled at depth <code>d</code> writes its result to the temporary
+	 * register <code>d</code>, and its children use the registers <code>d</code>,
+	 * <code>d+1</code>, ...
+	 */
+	private static class Compiler {
+
+		private final List<String> variables;
+		private final java.util.ArrayList<Float> constants = new java.util.ArrayList<Float>();
+		private final java.util.ArrayList<int[]> instructions = new java.util.ArrayList<int[]>();
+		private int max_depth = 0;
+
+		private Compiler(final List<String> variables) {
+			this.variables = variables;
+		}
+
+		/**
+		 * Emit the instructions for the given node, and return the register holding its value,
+		 * or -1 if the node is not supported. Temporary registers are encoded as <code>-2-depth</code>
+		 * until {@link #build(int)} knows how many constants there are.
+		 */
+		private int compile(final Node node, final int depth) {
+			if (node instanceof ASTConstant) {
+				final Object value = ((ASTConstant) node).getValue();
+				if (!(value instanceof Number))
+					return -1;
+				return addConstant(((Number) value).floatValue());
+			}
+
+			if (node instanceof ASTVarNode) {
+				final ASTVarNode var_node = (ASTVarNode) node;
+				final int index = variables.indexOf(var_node.getName());
+				if (index >= 0)
+					return index;
+				final Variable var = var_node.getVar();
+				if (null != var && var.isConstant() && var.getValue() instanceof Number)
+					return addConstant(((Number) var.getValue()).floatValue());
+				return -1;
+			}
+
+			if (!(node instanceof ASTFunNode))
+				return -1;
+			final ASTFunNode fun_node = (ASTFunNode) node;
+			final String name = fun_node.isOperator() ? fun_node.getOperator().getName() : fun_node.getName();
+			final int n_children = node.jjtGetNumChildren();
+
+			// Variable number of arguments, folded left to right
+			if ( "+".equals(name) || "*".equals(name) || "sum".equals(name) ) {
+				if (n_children < 1)
+					return -1;
+				final int op = "*".equals(name) ? MUL : ADD;
+				int accumulator = compile(node.jjtGetChild(0), depth);
+				if (accumulator == -1)
+					return -1;
+				for (int i = 1; i < n_children; i++) {
+					final int operand = compile(node.jjtGetChild(i), depth+1);
+					if (operand == -1)
+						return -1;
+					accumulator = emit(op, depth, accumulator, operand, -1);
+				}
+				return accumulator;
+			}
+
+			final int op = getOpcode(name, n_children);
+			if (op < 0)
+				return -1;
+			final int[] sources = new int[] { -1, -1, -1 };
+			for (int i = 0; i < n_children; i++) {
+				sources[i] = compile(node.jjtGetChild(i), depth+i);
+				if (sources[i] == -1)
+					return -1;
+			}
+			return emit(op, depth, sources[0], sources[1], sources[2]);
+		}
+
+		private int emit(final int op, final int depth, final int a, final int b, final int c) {
+			max_depth = Math.max(max_depth, depth+1);
+			final int destination = -2 - depth;
+			instructions.add(new int[] { op, destination, a, b, c });
+			return destination;
+		}
+
+		private int addConstant(final float value) {
+			constants.add(value);
+			// constants are stored after the variables
+			return variables.size() + constants.size() - 1;
+		}
+
+		/**
+		 * Map a JEP operator or function name to an opcode. Return -1 if unknown, or if the
+		 * number of arguments does not match the one we implement.
+		 */
+		private static int getOpcode(final String name, final int n_children) {
+			if (n_children == 1) {
+				if ("UMinus".equals(name)) 	return NEG;
+				if ("!".equals(name)) 		return NOT;
+				if ("sin".equals(name)) 	return SIN;
+				if ("cos".equals(name)) 	return COS;
+				if ("tan".equals(name)) 	return TAN;
+				if ("asin".equals(name)) 	return ASIN;
+				if ("acos".equals(name)) 	return ACOS;
+				if ("atan".equals(name)) 	return ATAN;
+				if ("sinh".equals(name)) 	return SINH;
+				if ("cosh".equals(name)) 	return COSH;
+				if ("tanh".equals(name)) 	return TANH;
+				if ("asinh".equals(name)) 	return ASINH;
+				if ("acosh".equals(name)) 	return ACOSH;
+				if ("atanh".equals(name)) 	return ATANH;
+				if ("log".equals(name)) 	return LOG;
+				if ("ln".equals(name)) 		return LN;
+				if ("exp".equals(name)) 	return EXP;
+				if ("sqrt".equals(name)) 	return SQRT;
+				if ("abs".equals(name)) 	return ABS;
+				if ("round".equals(name)) 	return ROUND;
+				if ("floor".equals(name)) 	return FLOOR;
+				if ("ceil".equals(name)) 	return CEIL;
+			} else if (n_children == 2) {
+				if ("-".equals(name)) 		return SUB;
+				if ("/".equals(name)) 		return DIV;
+				if ("%".equals(name) || "mod".equals(name)) return MOD;
+				if ("^".equals(name) || "pow".equals(name)) return POW;
+				if (">".equals(name)) 		return GT;
+				if ("<".equals(name)) 		return LT;
+				if (">=".equals(name)) 		return GE;
+				if ("<=".equals(name)) 		return LE;
+				if ("==".equals(name)) 		return EQ;
+				if ("!=".equals(name)) 		return NE;
+				if ("&&".equals(name)) 		return AND;
+				if ("||".equals(name)) 		return OR;
+				if ("atan2".equals(name)) 	return ATAN2;
+			} else if (n_children == 3) {
+				if ("if".equals(name)) 		return IF;
+			}
+			return -1;
+		}
+
+		/**
+		 * Resolve the temporary registers now that the number of constants is known, and
+		 * build the final program.
+		 */
+		private CompiledExpression build(final int result) {
+			final int first_temporary = variables.size() + constants.size();
+			final int[] code = new int[instructions.size() * INSTRUCTION_SIZE];
+			for (int i = 0; i < instructions.size(); i++) {
+				final int[] instruction = instructions.get(i);
+				code[i*INSTRUCTION_SIZE] = instruction[0];
+				for (int j = 1; j < INSTRUCTION_SIZE; j++)
+					code[i*INSTRUCTION_SIZE + j] = resolve(instruction[j], first_temporary);
+			}
+			final float[] constant_values = new float[constants.size()];
+			for (int i = 0; i < constant_values.length; i++)
+				constant_values[i] = constants.get(i);
+			return new CompiledExpression(code, constant_values, variables.size(),
+					first_temporary + max_depth, resolve(result, first_temporary));
+		}
+
+		private static int resolve(final int register, final int first_temporary) {
+			if (register <= -2)
+				return first_temporary + (-2 - register);
+			return register;
+		}
+	}
+}
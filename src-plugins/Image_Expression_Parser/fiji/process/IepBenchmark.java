@@ -0,0 +1,130 @@
+package fiji.process;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import mpicbg.imglib.container.array.ArrayContainerFactory;
+import mpicbg.imglib.container.imageplus.ImagePlusContainerFactory;
+import mpicbg.imglib.cursor.Cursor;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.type.numeric.FloatType;
+
+/**
+ * Compares the time taken by the JEP interpreter and by the compiled engine of
+ * {@link Image_Expression_Parser} to evaluate a few expressions over random images,
+ * and checks that both give the same result. The timings are printed to stdout.
+ * <p>
+ * Optional command-line parameters: the width, height and depth of the images
+ * (default 512 x 512 x 32), followed by the number of threads to use for the
+ * compiled engine (default: all available cores).
+ */
+public class IepBenchmark {
+
+	private static final String[] EXPRESSIONS = new String[] {
+		"(A-B)/(A+B)",
+		"sqrt(A^2 + B^2)",
+		"if(A > B, log(A+1), exp(-B/255))",
+		"sin(2*pi*A/255) * cos(B) + abs(A-B) % 7"
+	};
+
+	private static final int N_RUNS = 3;
+
+	public static void main(String[] args) {
+		int[] dims = new int[] { 512, 512, 32 };
+		for (int i = 0; i < Math.min(args.length, 3); i++) {
+			dims[i] = Integer.parseInt(args[i]);
+		}
+		int n_threads = Runtime.getRuntime().availableProcessors();
+		if (args.length > 3) {
+			n_threads = Integer.parseInt(args[3]);
+		}
+
+		System.out.println("Images: "+dims[0]+" x "+dims[1]+" x "+dims[2]+", compiled engine uses "+n_threads+" threads.");
+		System.out.println("container\texpression\tinterpreted (ms)\tcompiled (ms)\tspeedup\tmax difference");
+
+		// Compatible containers
+		run("imageplus", createRandomImage(dims, new ImagePlusContainerFactory(), 1),
+				createRandomImage(dims, new ImagePlusContainerFactory(), 2), n_threads);
+		// Incompatible containers: positions are set through localizable cursors
+		run("array", createRandomImage(dims, new ArrayContainerFactory(), 1),
+				createRandomImage(dims, new ArrayContainerFactory(), 2), n_threads);
+	}
+
+	private static void run(final String container_name, final Image<FloatType> img_a, final Image<FloatType> img_b, final int n_threads) {
+		final HashMap<String, Image<FloatType>> map = new HashMap<String, Image<FloatType>>(2);
+		map.put("A", img_a);
+		map.put("B", img_b);
+
+		final Image_Expression_Parser<FloatType> iep = new Image_Expression_Parser<FloatType>();
+		iep.setImageMap(map);
+		iep.setNumThreads(n_threads);
+
+		for (String expression : EXPRESSIONS) {
+			iep.setExpression(expression);
+
+			iep.setUseCompiledEngine(false);
+			long interpreted_time = Long.MAX_VALUE;
+			Image<FloatType> interpreted = null;
+			for (int i = 0; i < N_RUNS; i++) {
+				long start = System.currentTimeMillis();
+				iep.exec();
+				interpreted_time = Math.min(interpreted_time, System.currentTimeMillis() - start);
+				interpreted = iep.getResult();
+			}
+
+			iep.setUseCompiledEngine(true);
+			long compiled_time = Long.MAX_VALUE;
+			Image<FloatType> compiled = null;
+			for (int i = 0; i < N_RUNS; i++) {
+				long start = System.currentTimeMillis();
+				iep.exec();
+				compiled_time = Math.min(compiled_time, System.currentTimeMillis() - start);
+				compiled = iep.getResult();
+			}
+
+			if (null == interpreted || null == compiled) {
+				System.out.println(container_name+"\t"+expression+"\tfailed: "+iep.getErrorMessage());
+				continue;
+			}
+			System.out.println(container_name+"\t"+expression+"\t"+interpreted_time+"\t"+compiled_time+"\t"
+					+String.format("%.1f", interpreted_time / (double) Math.max(1, compiled_time))
+					+"\t"+maxRelativeDifference(interpreted, compiled));
+		}
+	}
+
+	private static Image<FloatType> createRandomImage(final int[] dims, final mpicbg.imglib.container.ContainerFactory factory, final long seed) {
+		final Image<FloatType> img = new ImageFactory<FloatType>(new FloatType(), factory).createImage(dims);
+		final Random random = new Random(seed);
+		final Cursor<FloatType> cursor = img.createCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.getType().set(1 + 254 * random.nextFloat());
+		}
+		cursor.close();
+		return img;
+	}
+
+	/**
+	 * The compiled engine computes in single precision while JEP uses doubles, so
+	 * we report the relative difference.
+	 */
+	private static float maxRelativeDifference(final Image<FloatType> img1, final Image<FloatType> img2) {
+		final Cursor<FloatType> c1 = img1.createCursor();
+		final Cursor<FloatType> c2 = img2.createCursor();
+		float max = 0;
+		while (c1.hasNext()) {
+			c1.fwd();
+			c2.fwd();
+			final float v1 = c1.getType().get();
+			final float v2 = c2.getType().get();
+			if (Float.isNaN(v1) && Float.isNaN(v2)) {
+				continue;
+			}
+			max = Math.max(max, Math.abs(v1 - v2) / Math.max(1, Math.abs(v1)));
+		}
+		c1.close();
+		c2.close();
+		return max;
+	}
+}
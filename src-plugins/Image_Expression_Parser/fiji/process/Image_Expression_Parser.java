@@ -6,9 +6,11 @@ import ij.plugin.PlugIn;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -20,6 +22,7 @@ import mpicbg.imglib.image.Image;
 import mpicbg.imglib.image.ImageFactory;
 import mpicbg.imglib.image.ImagePlusAdapter;
 import mpicbg.imglib.image.display.imagej.ImageJFunctions;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
 import mpicbg.imglib.type.NumericType;
 import mpicbg.imglib.type.numeric.FloatType;
 
@@ -37,6 +40,13 @@ public class Image_Expression_Parser<T extends NumericType<T>> implements PlugIn
 	protected Image<FloatType> result = null;
 	/** If an error occurred, an error message is put here	 */
 	protected String error_message = "";
+	/** If true, the expression is compiled and evaluated in parallel when possible; 
+	 * if false, JEP evaluates it pixel by pixel */
+	protected boolean use_compiled_engine = true;
+	/** Number of threads used by the compiled engine */
+	protected int number_of_threads = Runtime.getRuntime().availableProcessors();
+	/** Number of pixels processed at once by one thread of the compiled engine */
+	protected static final int BLOCK_SIZE = 4096;
 	
 	/*
 	 * RUN METHOD
@@ -125,7 +135,7 @@ public class Image_Expression_Parser<T extends NumericType<T>> implements PlugIn
 		final JEP parser = new JEP(false, false, false, new DoubleNumberFactory());
 		parser.addStandardConstants();
 		parser.addStandardFunctions();
-		Set<String> variables = image_map.keySet();
+		final List<String> variables = new ArrayList<String>(image_map.keySet());
 		for (String var : variables) {
 			parser.addVariable(var, null);
 		}
@@ -155,6 +165,111 @@ public class Image_Expression_Parser<T extends NumericType<T>> implements PlugIn
 			compatible_containers = false;
 		}
 
+		// Compile the expression if we can, otherwise let JEP interpret it
+		CompiledExpression program = null;
+		if (use_compiled_engine) {
+			program = CompiledExpression.compile(parser.getTopNode(), variables);
+		}
+		if (null != program) {
+			evaluateCompiled(program, variables, result_im, compatible_containers);
+		} else {
+			evaluateInterpreted(parser, variables, result_im, compatible_containers);
+		}
+		
+		// Done!
+		error_message = "";
+		result = result_im;	
+	}
+	
+	
+	
+	/*
+	 * SETTERS AND GETTERS 
+	 */
+	
+
+	/**
+	 * Return the result of the last evaluation of the expression over the images given.
+	 * Is <code>null</code> if {@link #exec()} was not called before.
+	 */
+	public Image<FloatType> getResult()  {
+		return this.result;
+	}
+	
+	/**
+	 * If an error occurred during the call of {@link #exec()}, an error message can be read here. 
+	 */
+	public String getErrorMessage() {
+		return this.error_message;
+	}
+	
+	/**
+	 * Set the expression to evaluate.
+	 */
+	public void setExpression(String _expression) {
+		this.expression = _expression;
+	}
+	
+	public String getExpression() {
+		return this.expression;
+	}
+	
+	public void setImageMap(Map<String, Image<T>> im) {
+		this.image_map = im;
+	}
+	
+	public Map<String, Image<T>> getImageMap() {
+		return this.image_map;
+	}
+	
+	/**
+	 * Set whether the expression should be compiled and evaluated on several threads
+	 * (the default), or interpreted by JEP pixel by pixel. Expressions using functions
+	 * the compiler does not handle are always interpreted.
+	 */
+	public void setUseCompiledEngine(boolean use) {
+		this.use_compiled_engine = use;
+	}
+	
+	public boolean getUseCompiledEngine() {
+		return this.use_compiled_engine;
+	}
+	
+	/**
+	 * Set the number of threads used by the compiled engine. 
+	 */
+	public void setNumThreads(int n_threads) {
+		this.number_of_threads = Math.max(1, n_threads);
+	}
+	
+	public int getNumThreads() {
+		return this.number_of_threads;
+	}
+	
+	
+	/*
+	 * PRIVATE METHODS
+	 */
+	
+	/**
+	 * Launch and display the GUI. Returns a reference to it that can be used
+	 * to retrieve settings.
+	 */
+	private IepGui displayGUI() {
+		IepGui gui = new IepGui();
+		gui.setLocationRelativeTo(null);
+		gui.setVisible(true);
+		ImagePlus.addImageListener(gui);
+		gui.addActionListener(this);
+		return gui;
+	}
+
+	/**
+	 * Evaluate the expression by letting the JEP parser walk its tree once per pixel.
+	 * This is the slow path, used when the expression cannot be compiled.
+	 */
+	private void evaluateInterpreted(final JEP parser, final List<String> variables, final Image<FloatType> result_im, final boolean compatible_containers) {
+		Iterator<String> it;
 		if (compatible_containers) {
 			// Optimized cursors
 		
@@ -227,69 +342,105 @@ public class Image_Expression_Parser<T extends NumericType<T>> implements PlugIn
 			}
 			
 		}
-		
-		// Done!
-		error_message = "";
-		result = result_im;	
 	}
-	
-	
-	
-	/*
-	 * SETTERS AND GETTERS 
-	 */
-	
 
 	/**
-	 * Return the result of the last evaluation of the expression over the images given.
-	 * Is <code>null</code> if {@link #exec()} was not called before.
-	 */
-	public Image<FloatType> getResult()  {
-		return this.result;
-	}
-	
-	/**
-	 * If an error occurred during the call of {@link #exec()}, an error message can be read here. 
-	 */
-	public String getErrorMessage() {
-		return this.error_message;
-	}
-	
-	/**
-	 * Set the expression to evaluate.
+	 * Evaluate the compiled expression over the whole image. The pixels are split in
+	 * as many contiguous ranges as there are threads; each thread walks its range by
+	 * blocks of {@link #BLOCK_SIZE} pixels, copying the input values in its registers,
+	 * running the program over the block and copying the result back.
 	 */
-	public void setExpression(String _expression) {
-		this.expression = _expression;
-	}
-	
-	public String getExpression() {
-		return this.expression;
-	}
-	
-	public void setImageMap(Map<String, Image<T>> im) {
-		this.image_map = im;
-	}
-	
-	public Map<String, Image<T>> getImageMap() {
-		return this.image_map;
-	}
-	
-	
-	/*
-	 * PRIVATE METHODS
-	 */
-	
-	/**
-	 * Launch and display the GUI. Returns a reference to it that can be used
-	 * to retrieve settings.
-	 */
-	private IepGui displayGUI() {
-		IepGui gui = new IepGui();
-		gui.setLocationRelativeTo(null);
-		gui.setVisible(true);
-		ImagePlus.addImageListener(gui);
-		gui.addActionListener(this);
-		return gui;
+	private void evaluateCompiled(final CompiledExpression program, final List<String> variables, final Image<FloatType> result_im, final boolean compatible_containers) {
+		final int n_pixels = result_im.getNumPixels();
+		final int n_threads = Math.max(1, Math.min(number_of_threads, (n_pixels + BLOCK_SIZE - 1) / BLOCK_SIZE));
+		final int range_size = (n_pixels + n_threads - 1) / n_threads;
+		final int n_variables = variables.size();
+		
+		final Thread[] threads = SimpleMultiThreading.newThreads(n_threads);
+		for (int ithread = 0; ithread < threads.length; ithread++) {
+			final int range_start = ithread * range_size;
+			final int range_end = Math.min(n_pixels, range_start + range_size);
+			
+			threads[ithread] = new Thread("Image Expression Parser thread "+ithread) {
+				public void run() {
+					if (range_start >= range_end) {
+						return;
+					}
+					final float[][] registers = program.createRegisters(BLOCK_SIZE);
+					
+					if (compatible_containers) {
+						// Optimized cursors: they all iterate the same way
+						final ArrayList<Cursor<T>> cursors = new ArrayList<Cursor<T>>(n_variables);
+						for (String var : variables) {
+							Cursor<T> cursor = image_map.get(var).createCursor();
+							if (range_start > 0) { cursor.fwd(range_start); }
+							cursors.add(cursor);
+						}
+						final Cursor<FloatType> result_cursor = result_im.createCursor();
+						if (range_start > 0) { result_cursor.fwd(range_start); }
+						
+						for (int block_start = range_start; block_start < range_end; block_start += BLOCK_SIZE) {
+							final int length = Math.min(BLOCK_SIZE, range_end - block_start);
+							for (int v = 0; v < n_variables; v++) {
+								final Cursor<T> cursor = cursors.get(v);
+								final float[] register = registers[v];
+								for (int i = 0; i < length; i++) {
+									cursor.fwd();
+									register[i] = cursor.getType().getReal();
+								}
+							}
+							final float[] values = program.evaluate(registers, length);
+							for (int i = 0; i < length; i++) {
+								result_cursor.fwd();
+								result_cursor.getType().set(values[i]);
+							}
+						}
+						
+						for (Cursor<T> cursor : cursors) {
+							cursor.close();
+						}
+						result_cursor.close();
+						
+					} else {
+						// Non-optimized cursors: the output cursor dictates its position to the other ones
+						final ArrayList<LocalizableByDimCursor<T>> cursors = new ArrayList<LocalizableByDimCursor<T>>(n_variables);
+						for (String var : variables) {
+							cursors.add(image_map.get(var).createLocalizableByDimCursor());
+						}
+						final LocalizableCursor<FloatType> result_cursor = result_im.createLocalizableCursor();
+						final LocalizableCursor<FloatType> position_cursor = result_im.createLocalizableCursor();
+						if (range_start > 0) { 
+							result_cursor.fwd(range_start);
+							position_cursor.fwd(range_start);
+						}
+						
+						for (int block_start = range_start; block_start < range_end; block_start += BLOCK_SIZE) {
+							final int length = Math.min(BLOCK_SIZE, range_end - block_start);
+							for (int i = 0; i < length; i++) {
+								position_cursor.fwd();
+								for (int v = 0; v < n_variables; v++) {
+									final LocalizableByDimCursor<T> cursor = cursors.get(v);
+									cursor.setPosition(position_cursor);
+									registers[v][i] = cursor.getType().getReal();
+								}
+							}
+							final float[] values = program.evaluate(registers, length);
+							for (int i = 0; i < length; i++) {
+								result_cursor.fwd();
+								result_cursor.getType().set(values[i]);
+							}
+						}
+						
+						for (LocalizableByDimCursor<T> cursor : cursors) {
+							cursor.close();
+						}
+						result_cursor.close();
+						position_cursor.close();
+					}
+				}
+			};
+		}
+		SimpleMultiThreading.startAndJoin(threads);
 	}
 
 	/**
@@ -0,0 +1,114 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/* Float stack used by LocalThicknessPipeline for its intermediate results.
+
+The slices are either kept in memory or, when the stack does not fit, spilled
+to a memory-mapped scratch file (one mapping per slice), so that only the parts
+being worked on need to be resident.  Reads and writes of different slices or
+of disjoint parts of a slice may be done from several threads at once.
+
+
+ License:
+	Copyright (c) 2007, OptiNav, Inc.
+	All rights reserved.
+
+	Redistribution and use in source and binary forms, with or without
+	modification, are permitted provided that the following conditions
+	are met:
+
+		Redistributions of source code must retain the above copyright
+	notice, this list of conditions and the following disclaimer.
+		Redistributions in binary form must reproduce the above copyright
+	notice, this list of conditions and the following disclaimer in the
+	documentation and/or other materials provided with the distribution.
+		Neither the name of OptiNav, Inc. nor the names of its contributors
+	may be used to endorse or promote products derived from this software
+	without specific prior written permission.
+
+	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+	"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+	LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+	A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+	CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+	EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+	PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+	PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+	LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+	NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+*/
+public class FloatSliceStore {
+	public final int w,h,d;
+	float[][] slices;
+	FloatBuffer[] mapped;
+	RandomAccessFile raf;
+	File file;
+
+	//Keep the slices in memory if directory is null, otherwise use a scratch
+	//file in directory.
+	public FloatSliceStore(int w, int h, int d, File directory) throws IOException {
+		this.w = w;
+		this.h = h;
+		this.d = d;
+		int wh = w*h;
+		if(directory == null){
+			slices = new float[d][];
+			for(int k = 0; k < d; k++)slices[k] = new float[wh];
+			return;
+		}
+		file = File.createTempFile("LocalThickness", ".raw", directory);
+		file.deleteOnExit();
+		raf = new RandomAccessFile(file, "rw");
+		long sliceBytes = 4L*wh;
+		raf.setLength(sliceBytes*d);
+		FileChannel channel = raf.getChannel();
+		mapped = new FloatBuffer[d];
+		for(int k = 0; k < d; k++){
+			mapped[k] = channel.map(FileChannel.MapMode.READ_WRITE, sliceBytes*k, sliceBytes)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+	}
+	public boolean isMapped() {
+		return mapped != null;
+	}
+	//Copy length values of slice k, starting at offset, to dst.
+	public void read(int k, int offset, float[] dst, int dstOffset, int length) {
+		if(slices != null){
+			System.arraycopy(slices[k], offset, dst, dstOffset, length);
+		}else{
+			FloatBuffer buffer = mapped[k].duplicate();
+			buffer.position(offset);
+			buffer.get(dst, dstOffset, length);
+		}
+	}
+	//Copy length values from src to slice k, starting at offset.
+	public void write(int k, int offset, float[] src, int srcOffset, int length) {
+		if(slices != null){
+			System.arraycopy(src, srcOffset, slices[k], offset, length);
+		}else{
+			FloatBuffer buffer = mapped[k].duplicate();
+			buffer.position(offset);
+			buffer.put(src, srcOffset, length);
+		}
+	}
+	//Release the slices and delete the scratch file, if any.
+	public void close() {
+		slices = null;
+		mapped = null;
+		if(raf != null){
+			try{
+				raf.close();
+			}catch(IOException e){
+				//nothing to do, the file is deleted on exit anyway
+			}
+			raf = null;
+			file.delete();
+		}
+	}
+}
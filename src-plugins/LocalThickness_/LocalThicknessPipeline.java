@@ -0,0 +1,587 @@
+import ij.*;
+import ij.io.FileSaver;
+import ij.process.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+/* Complete local thickness calculation (EDT_S1D, Distance_Ridge,
+Local_Thickness_Parallel and Clean_Up_Local_Thickness) fused in a single pass
+with bounded memory.  The results are identical to running the four plugins
+one after the other.
+
+Only one intermediate float stack is used, for the distance map.  It is kept in
+memory when there is room for it, and otherwise spilled to a memory-mapped
+scratch file (see FloatSliceStore).  The steps are:
+	1. EDT transformations 1 and 2, slice by slice.
+	2. EDT transformation 3, in bands of rows through all the slices.
+	3. Distance ridge, slice by slice.  The ridge points are kept in lists, one
+	   per slice, which are much smaller than a stack.
+	4. Local thickness and clean-up, in overlapping blocks of slices (the clean-up
+	   looks two slices away), written directly to the result stack.
+
+The result stack is only kept in memory when it is small.  Otherwise, or when an
+output directory is given, every finished slice is written to that directory as
+a TIFF file, and the result is a virtual stack of these files.
+
+
+ License:
+	Copyright (c) 2007, OptiNav, Inc.
+	All rights reserved.
+
+	Redistribution and use in source and binary forms, with or without
+	modification, are permitted provided that the following conditions
+	are met:
+
+		Redistributions of source code must retain the above copyright
+	notice, this list of conditions and the following disclaimer.
+		Redistributions in binary form must reproduce the above copyright
+	notice, this list of conditions and the following disclaimer in the
+	documentation and/or other materials provided with the distribution.
+		Neither the name of OptiNav, Inc. nor the names of its contributors
+	may be used to endorse or promote products derived from this software
+	without specific prior written permission.
+
+	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+	"AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+	LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+	A PARTICULAR PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+	CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+	EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+	PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+	PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+	LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+	NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+*/
+public class LocalThicknessPipeline {
+	public int thresh = 128;
+	public boolean inverse;
+	public int nThreads = Runtime.getRuntime().availableProcessors();
+	//Directory for the scratch file; null for the system temporary directory.
+	public File scratchDirectory;
+	//Bytes available for the intermediate data; 0 to use half of the free memory.
+	public long memoryLimit;
+	//Directory the result slices are written to; null to keep the result in
+	//memory if it takes less than a quarter of the free memory, and to write it
+	//to a new directory in the scratch directory otherwise.
+	public File outputDirectory;
+	//Prefix of the names of the result slice files.
+	public String title = "LocThk";
+	//Set by run(): the largest distance and the largest distance ridge value.
+	public float distMax, sMax;
+
+	int w,h,d,wh;
+	FloatSliceStore store;
+	int[][] ridgeXY;
+	float[][] ridgeR;
+	File resultDirectory;
+	float[][] resultSlices;
+	IOException writeError;
+
+	//Compute the cleaned-up local thickness of an 8-bit stack.
+	public ImageStack run(ImageStack stack) throws IOException {
+		w = stack.getWidth();
+		h = stack.getHeight();
+		d = stack.getSize();
+		wh = w*h;
+		if(nThreads < 1)nThreads = 1;
+		long stackBytes = 4L*wh*d;
+		Runtime runtime = Runtime.getRuntime();
+		long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		long budget = memoryLimit;
+		if(budget <= 0)budget = free/2;
+		boolean spill = stackBytes > budget;
+		File directory = scratchDirectory;
+		if(directory == null)directory = new File(System.getProperty("java.io.tmpdir"));
+		resultDirectory = outputDirectory;
+		if(resultDirectory == null && stackBytes > free/4){
+			//Too large for the heap, next to the intermediate data
+			resultDirectory = File.createTempFile(title, "", directory);
+			resultDirectory.delete();
+			IJ.log("Local Thickness: writing the result to "+resultDirectory);
+		}
+		if(resultDirectory != null && !resultDirectory.isDirectory() && !resultDirectory.mkdirs())
+			throw new IOException("cannot create "+resultDirectory);
+		store = new FloatSliceStore(w, h, d, spill ? directory : null);
+		try{
+			IJ.showStatus("EDT transformations 1 and 2");
+			distanceTransformXY(stack);
+			IJ.showStatus("EDT transformation 3");
+			BitSet occurs = distanceTransformZ(budget);
+			IJ.showStatus("Distance Ridge");
+			distanceRidge(occurs);
+		}finally{
+			store.close();
+			store = null;
+		}
+		resultSlices = resultDirectory == null ? new float[d][] : null;
+		writeError = null;
+		localThickness(budget);
+		ridgeXY = null;
+		ridgeR = null;
+		if(writeError != null)throw writeError;
+		ImageStack result;
+		if(resultDirectory == null){
+			result = new ImageStack(w, h);
+			for(int k = 0; k < d; k++)result.addSlice(null, resultSlices[k]);
+		}else{
+			VirtualStack virtualStack = new VirtualStack(w, h, null, resultDirectory.getPath());
+			virtualStack.setBitDepth(32);
+			for(int k = 0; k < d; k++)virtualStack.addSlice(getSliceFileName(k));
+			result = virtualStack;
+		}
+		resultSlices = null;
+		IJ.showProgress(1.0);
+		IJ.showStatus("Local Thickness complete");
+		return result;
+	}
+	//EDT transformations 1 and 2 of EDT_S1D, which only involve single slices.
+	void distanceTransformXY(final ImageStack stack) {
+		Thread[] threads = new Thread[nThreads];
+		for(int t = 0; t < nThreads; t++){
+			final int thread = t;
+			threads[t] = new Thread(){
+				public void run(){
+					int n = Math.max(w, Math.max(h, d));
+					int noResult = 3*(n+1)*(n+1);
+					boolean[] background = new boolean[n];
+					int[] tempInt = new int[n];
+					int[] tempS = new int[n];
+					float[] sk = new float[wh];
+					byte[] dk;
+					boolean nonempty;
+					int test, min, delta;
+					for(int k = thread; k < d; k+=nThreads){
+						IJ.showProgress(k/(1.*d));
+						synchronized(stack){
+							dk = (byte[])stack.getPixels(k+1);
+						}
+						//Transformation 1.  Use sk to store g.
+						for(int j = 0; j < h; j++){
+							for (int i = 0; i < w; i++){
+								background[i] = ((dk[i+w*j]&255) < thresh)^inverse;
+							}
+							for (int i = 0; i < w; i++){
+								min = noResult;
+								for (int x = i; x < w; x++){
+									if(background[x]){
+										test = i - x;
+										test *= test;
+										min = test;
+										break;
+									}
+								}
+								for (int x = i-1; x >=0 ; x--){
+									if(background[x]){
+										test = i - x;
+										test *= test;
+										if(test < min)min = test;
+										break;
+									}
+								}
+								sk[i+w*j] = min;
+							}
+						}
+						//Transformation 2.  g (in sk) -> h (in sk)
+						for (int i = 0; i < w; i++){
+							nonempty = false;
+							for (int j = 0; j < h; j++){
+								tempS[j] = (int)sk[i+w*j];
+								if(tempS[j] >0)nonempty = true;
+							}
+							if(nonempty){
+								for (int j = 0; j < h; j++){
+									min = noResult;
+									delta = j;
+									for(int y = 0; y < h; y++){
+										test = tempS[y] + delta*delta--;
+										if(test < min)min = test;
+									}
+									tempInt[j] = min;
+								}
+								for (int j = 0; j < h; j++){
+									sk[i+w*j] = tempInt[j];
+								}
+							}
+						}
+						store.write(k, 0, sk, 0, wh);
+					}
+				}
+			};
+		}
+		startAndJoin(threads);
+	}
+	//EDT transformation 3 of EDT_S1D, followed by the square root.  Background
+	//points are the ones that are 0 after transformation 2.  Returns the set of
+	//the (rounded) squared distances that occur.
+	BitSet distanceTransformZ(long budget) {
+		//Each thread reads bands of rows through all the slices
+		long rowBytes = 4L*w*d;
+		final int bandRows = (int)Math.max(1, Math.min(h, budget/(2*nThreads*rowBytes)));
+		final int nBands = (h + bandRows - 1)/bandRows;
+		final float[] threadDistMax = new float[nThreads];
+		final BitSet[] threadOccurs = new BitSet[nThreads];
+		Thread[] threads = new Thread[nThreads];
+		for(int t = 0; t < nThreads; t++){
+			final int thread = t;
+			threads[t] = new Thread(){
+				public void run(){
+					int n = Math.max(w, Math.max(h, d));
+					int noResult = 3*(n+1)*(n+1);
+					int[] tempS = new int[n];
+					float[][] band = new float[d][w*bandRows];
+					BitSet occurs = new BitSet();
+					float distMax = 0;
+					boolean nonempty;
+					int zStart,zStop,zBegin,zEnd;
+					int test, min, delta;
+					for(int b = thread; b < nBands; b+=nThreads){
+						IJ.showProgress(b/(1.*nBands));
+						int j0 = b*bandRows;
+						int size = w*(Math.min(h, j0 + bandRows) - j0);
+						for(int k = 0; k < d; k++)store.read(k, w*j0, band[k], 0, size);
+						for(int ind = 0; ind < size; ind++){
+							nonempty = false;
+							for(int k = 0; k < d; k++){
+								tempS[k] = (int)band[k][ind];
+								if(tempS[k] >0)nonempty = true;
+							}
+							if(nonempty){
+								zStart = 0;
+								while((zStart < (d-1))&&(tempS[zStart] == 0))zStart++;
+								if(zStart > 0)zStart--;
+								zStop = d-1;
+								while((zStop > 0)&&(tempS[zStop] == 0))zStop--;
+								if(zStop < (d-1))zStop++;
+
+								for(int k = 0; k < d; k++){
+									//Limit to the non-background to save time,
+									if(tempS[k] > 0){
+										min = noResult;
+										zBegin = zStart;
+										zEnd = zStop;
+										if(zBegin > k)zBegin = k;
+										if(zEnd < k)zEnd = k;
+										delta = k - zBegin;
+										for (int z = zBegin; z <= zEnd; z++){
+											test = tempS[z] + delta*delta--;
+											if(test < min)min = test;
+										}
+										float dist = (float)Math.sqrt((float)min);
+										band[k][ind] = dist;
+										if(dist > distMax)distMax = dist;
+										occurs.set((int)(dist*dist + 0.5f));
+									}
+								}
+							}
+						}
+						for(int k = 0; k < d; k++)store.write(k, w*j0, band[k], 0, size);
+					}
+					threadDistMax[thread] = distMax;
+					threadOccurs[thread] = occurs;
+				}
+			};
+		}
+		startAndJoin(threads);
+		BitSet occurs = new BitSet();
+		//background
+		occurs.set(0);
+		distMax = 0;
+		for(int t = 0; t < nThreads; t++){
+			if(threadDistMax[t] > distMax)distMax = threadDistMax[t];
+			occurs.or(threadOccurs[t]);
+		}
+		return occurs;
+	}
+	//Distance_Ridge, storing the ridge points of each slice in lists.
+	void distanceRidge(BitSet occurs) {
+		int rSqMax = (int)(distMax*distMax + 0.5f)+1;
+		int numRadii = occurs.cardinality();
+		//Make an index of the distance-squared values
+		final int[] distSqIndex = new int[rSqMax];
+		int[] distSqValues = new int[numRadii];
+		int indDS = 0;
+		for(int i = occurs.nextSetBit(0); i >= 0; i = occurs.nextSetBit(i+1)){
+			distSqIndex[i] = indDS;
+			distSqValues[indDS++] = i;
+		}
+		IJ.showStatus("Distance Ridge: creating search templates");
+		final int[][] rSqTemplate = new Distance_Ridge().createTemplate(distSqValues);
+		ridgeXY = new int[d][];
+		ridgeR = new float[d][];
+		final int nChunks = Math.min(nThreads, d);
+		Thread[] threads = new Thread[nChunks];
+		for(int t = 0; t < nChunks; t++){
+			//Contiguous slices, to read every slice of the distance map only once
+			final int kFirst = t*d/nChunks;
+			final int kLast = (t+1)*d/nChunks;
+			threads[t] = new Thread(){
+				public void run(){
+					float[][] s = new float[3][];
+					int[] xy = new int[wh];
+					float[] r = new float[wh];
+					float[] prev = null, cur = new float[wh], next, spare = null;
+					if(kFirst > 0){
+						prev = new float[wh];
+						store.read(kFirst-1, 0, prev, 0, wh);
+					}
+					store.read(kFirst, 0, cur, 0, wh);
+					int k1,j1,i1,dz,dy,dx;
+					boolean notRidgePoint;
+					float[] sk1;
+					float[] sk;
+					int sk0Sq,sk0SqInd,sk1Sq;
+					int numCompZ,numCompY,numCompX,numComp;
+					for(int k = kFirst; k < kLast; k++){
+						IJ.showProgress(k/(1.*d));
+						//Window of slices k-1, k, k+1
+						next = null;
+						if(k+1 < d){
+							next = (spare != null) ? spare : new float[wh];
+							store.read(k+1, 0, next, 0, wh);
+						}
+						s[0] = prev;
+						s[1] = cur;
+						s[2] = next;
+						sk = s[1];
+						int nr = 0;
+						for (int j = 0; j < h; j++){
+							for (int i = 0; i < w; i++){
+								int ind = i + w*j;
+								if(sk[ind] > 0){
+									notRidgePoint = false;
+									sk0Sq = (int)(sk[ind]*sk[ind] + 0.5f);
+									sk0SqInd = distSqIndex[sk0Sq];
+									for (dz = -1; dz <= 1; dz++){
+										k1 = k + dz;
+										if((k1 >= 0)&&(k1 < d)){
+											sk1 = s[dz+1];
+											if(dz == 0){
+												numCompZ = 0;
+											}else{
+												numCompZ = 1;
+											}
+											for (dy = -1; dy <= 1; dy++){
+												j1 = j + dy;
+												if((j1 >= 0)&&(j1 < h)){
+													if(dy == 0){
+														numCompY = 0;
+													}else{
+														numCompY = 1;
+													}
+													for (dx = -1; dx <= 1; dx++){
+														i1 = i + dx;
+														if((i1 >= 0)&&(i1 < w)){
+															if(dx == 0){
+																numCompX = 0;
+															}else{
+																numCompX = 1;
+															}
+															numComp = numCompX + numCompY + numCompZ;
+															if(numComp > 0){
+																sk1Sq = (int)(sk1[i1+w*j1]*sk1[i1+w*j1] + 0.5f);
+																	if(sk1Sq >= rSqTemplate[numComp-1][sk0SqInd])
+																		notRidgePoint = true;
+															}
+														}//if in grid for i1
+														if(notRidgePoint)break;
+													}//dx
+												}//if in grid for j1
+												if(notRidgePoint)break;
+											}//dy
+										}//if in grid for k1
+										if(notRidgePoint)break;
+									}//dz
+									if(!notRidgePoint){
+										xy[nr] = ind;
+										r[nr++] = sk[ind];
+									}
+								}//if not in background
+							}//i
+						}//j
+						ridgeXY[k] = new int[nr];
+						ridgeR[k] = new float[nr];
+						System.arraycopy(xy, 0, ridgeXY[k], 0, nr);
+						System.arraycopy(r, 0, ridgeR[k], 0, nr);
+						spare = prev;
+						prev = cur;
+						cur = next;
+					}//k
+				}
+			};
+		}
+		startAndJoin(threads);
+		sMax = 0;
+		for(int k = 0; k < d; k++){
+			float[] rRidgeK = ridgeR[k];
+			for(int iR = 0; iR < rRidgeK.length; iR++){
+				if(rRidgeK[iR] > sMax)sMax = rRidgeK[iR];
+			}
+		}
+	}
+	//Local_Thickness_Parallel followed by Clean_Up_Local_Thickness, in blocks
+	//of slices.  The clean-up of a slice uses the local thickness of the two
+	//slices on either side, so the blocks overlap by two slices.
+	void localThickness(long budget) {
+		int rIntMax = (int)sMax;
+		if(rIntMax < sMax)rIntMax++;
+		final int rMax = rIntMax;
+		//Local thickness and flags of the block and its borders
+		int blockSlices = (int)Math.min(d, Math.max(1, budget/(8L*wh) - 4));
+		for(int z0 = 0; z0 < d; z0 += blockSlices){
+			IJ.showStatus("Local Thickness: slices "+(z0+1)+"-"+Math.min(d, z0+blockSlices)+"/"+d);
+			final int z1 = Math.min(d, z0 + blockSlices);
+			final int lo = Math.max(0, z0-2);
+			final int hi = Math.min(d, z1+2);
+			final int zStart = z0;
+			final float[][] s = new float[hi-lo][];
+			final float[][] sNew = new float[hi-lo][];
+			for(int k = lo; k < hi; k++){
+				s[k-lo] = new float[wh];
+				sNew[k-lo] = new float[wh];
+			}
+			//Each thread updates its own slices from all the ridge points whose
+			//sphere reaches them, so no locking is needed
+			Thread[] threads = new Thread[nThreads];
+			for(int t = 0; t < nThreads; t++){
+				final int thread = t;
+				threads[t] = new Thread(){
+					public void run(){
+						int i,j;
+						float r;
+						int rInt,ind1;
+						int iStart,iStop,jStart,jStop;
+						int r1SquaredK,r1SquaredJK,r1Squared;
+						int rSquared;
+						int[] xyRidgeK;
+						float[] rRidgeK;
+						for(int k1 = lo + thread; k1 < hi; k1+=nThreads){
+							float[] sk1 = s[k1-lo];
+							int kStart = Math.max(0, k1 - rMax);
+							int kStop = Math.min(d-1, k1 + rMax);
+							for(int k = kStart; k <= kStop; k++){
+								xyRidgeK = ridgeXY[k];
+								rRidgeK = ridgeR[k];
+								r1SquaredK = (k1 - k)*(k1 - k);
+								for (int iR = 0; iR < xyRidgeK.length; iR++){
+									r = rRidgeK[iR];
+									rSquared = (int)(r*r + 0.5f);
+									if(r1SquaredK > rSquared)continue;
+									rInt = (int)r;
+									if(rInt < r)rInt++;
+									if((k1 < k - rInt)||(k1 > k + rInt))continue;
+									i = xyRidgeK[iR]%w;
+									j = xyRidgeK[iR]/w;
+									iStart = i - rInt;
+									if(iStart < 0)iStart = 0;
+									iStop = i + rInt;
+									if(iStop >= w) iStop = w-1;
+									jStart = j - rInt;
+									if(jStart < 0)jStart = 0;
+									jStop = j + rInt;
+									if(jStop >= h) jStop = h-1;
+									for(int j1 = jStart; j1 <= jStop; j1++){
+										r1SquaredJK = r1SquaredK + (j1 - j)*(j1 - j);
+										if(r1SquaredJK <= rSquared){
+											for(int i1 = iStart; i1 <= iStop; i1++){
+												r1Squared = r1SquaredJK + (i1 - i)*(i1 - i);
+												if(r1Squared <= rSquared){
+													ind1 = i1 + w*j1;
+													if(rSquared > sk1[ind1])sk1[ind1] = rSquared;
+												}//if within shere of DR point
+											}//i1
+										}//if k and j components within sphere of DR point
+									}//j1
+								}//iR
+							}//k
+							//Fix the square values and apply factor of 2
+							for(int ind = 0; ind < wh; ind++){
+								sk1[ind] = (float)(2*Math.sqrt(sk1[ind]));
+							}
+						}//k1
+					}
+				};
+			}
+			startAndJoin(threads);
+			//Clean-up on the block, as if it were the whole stack.  The borders
+			//are the same as in the whole stack where it matters.
+			final Clean_Up_Local_Thickness cleanUp = new Clean_Up_Local_Thickness();
+			cleanUp.w = w;
+			cleanUp.h = h;
+			cleanUp.d = hi - lo;
+			cleanUp.s = s;
+			cleanUp.sNew = sNew;
+			final int fStart = Math.max(lo, z0-1);
+			final int fStop = Math.min(hi, z1+1);
+			for(int t = 0; t < nThreads; t++){
+				final int thread = t;
+				threads[t] = new Thread(){
+					public void run(){
+						for(int k = fStart + thread; k < fStop; k+=nThreads){
+							float[] sNewK = sNew[k-lo];
+							for (int j = 0; j < h; j++){
+								for (int i = 0; i < w; i++){
+									sNewK[i + w*j] = cleanUp.setFlag(i,j,k-lo);
+								}//i
+							}//j
+						}//k
+					}
+				};
+			}
+			startAndJoin(threads);
+			for(int t = 0; t < nThreads; t++){
+				final int thread = t;
+				threads[t] = new Thread(){
+					public void run(){
+						for(int k = zStart + thread; k < z1; k+=nThreads){
+							float[] sNewK = sNew[k-lo];
+							float[] outK = new float[wh];
+							for (int j = 0; j < h; j++){
+								for (int i = 0; i < w; i++){
+									int ind = i + w*j;
+									float value = sNewK[ind];
+									if(value == -1){
+										value = -cleanUp.averageInteriorNeighbors(i,j,k-lo);
+									}
+									outK[ind] = Math.abs(value);
+								}//i
+							}//j
+							putSlice(k, outK);
+						}//k
+					}
+				};
+			}
+			startAndJoin(threads);
+			IJ.showProgress(z1/(1.*d));
+		}
+	}
+	//Store a finished slice of the result, in memory or in the output directory.
+	void putSlice(int k, float[] pixels) {
+		if(resultDirectory == null){
+			resultSlices[k] = pixels;
+			return;
+		}
+		if(writeError != null)return;
+		String path = new File(resultDirectory, getSliceFileName(k)).getPath();
+		if(!new FileSaver(new ImagePlus(null, new FloatProcessor(w, h, pixels, null))).saveAsTiff(path))
+			writeError = new IOException("could not save "+path);
+	}
+	String getSliceFileName(int k) {
+		String nb = "0000"+(k+1);
+		return title+"-"+nb.substring(nb.length()-5)+".tif";
+	}
+	static void startAndJoin(Thread[] threads) {
+		for(int thread = 0; thread < threads.length; thread++){
+			threads[thread].start();
+		}
+		try{
+			for(int thread = 0; thread < threads.length; thread++){
+				threads[thread].join();
+			}
+		}catch(InterruptedException ie){
+			IJ.error("A thread was interrupted .");
+		}
+	}
+}
@@ -3,9 +3,12 @@ import ij.plugin.filter.PlugInFilter;
 import ij.process.*;
 import ij.gui.*;
 import java.awt.*;
+import java.io.File;
+import java.io.IOException;
 
 /* Bob Dougherty 8/10/2007
 Perform all of the steps for the local thickness calculaton
+(fused in LocalThicknessPipeline, to keep the memory use bounded)
 
 
  License:
@@ -42,6 +45,7 @@ public class Local_Thickness_Driver implements  PlugInFilter {
 	private ImagePlus imp;
 	public int thresh;
 	public boolean inverse;
+	public String outputDirectory;
 
 	public int setup(String arg, ImagePlus imp) {
  		this.imp = imp;
@@ -51,24 +55,23 @@ public class Local_Thickness_Driver implements  PlugInFilter {
 		String title = stripExtension(imp.getTitle());
 		imp.unlock();
 		if(!getScale())return;
-		if(inverse){
-			IJ.run("Geometry to Distance Map", "threshold="+thresh+" inverse");
-		}else{
-			IJ.run("Geometry to Distance Map", "threshold="+thresh);
+		//All the steps in one pass, without the intermediate images
+		LocalThicknessPipeline pipeline = new LocalThicknessPipeline();
+		pipeline.thresh = thresh;
+		pipeline.inverse = inverse;
+		pipeline.title = title+"_LocThk";
+		if(!outputDirectory.equals(""))pipeline.outputDirectory = new File(outputDirectory);
+		ImageStack stack;
+		try{
+			stack = pipeline.run(imp.getStack());
+		}catch(IOException e){
+			IJ.error("Local Thickness", "Could not write the scratch file or the result: "+e.getMessage());
+			return;
 		}
-		ImagePlus impDM = WindowManager.getCurrentImage();
-		IJ.run("Distance Map to Distance Ridge");
-		ImagePlus impDR = WindowManager.getCurrentImage();	
-		impDM.hide();
-		impDM.flush();
-		WindowManager.setTempCurrentImage(impDR);
-		IJ.run("Distance Ridge to Local Thickness");
-		ImagePlus impLT = WindowManager.getCurrentImage();	
-		IJ.run("Local Thickness to Cleaned-Up Local Thickness");
-		ImagePlus impLTC = WindowManager.getCurrentImage();
-		impLT.hide();
-		impLT.flush();
-		impLTC.setTitle(title+"_LocThk");
+		ImagePlus impLTC = new ImagePlus(title+"_LocThk",stack);
+		impLTC.getProcessor().setMinAndMax(0,2*pipeline.sMax);
+		impLTC.show();
+		IJ.run("Fire");
 		IJ.showProgress(1.0);
 		IJ.showStatus("Done");
 	}
@@ -84,15 +87,19 @@ public class Local_Thickness_Driver implements  PlugInFilter {
 	boolean getScale() {
 		thresh = (int)Prefs.get("edtS1.thresh", 128);
 		inverse = Prefs.get("edtS1.inverse", false);
+		outputDirectory = Prefs.get("edtS1.outputDirectory", "");
 		GenericDialog gd = new GenericDialog("EDT...", IJ.getInstance());
 		gd.addNumericField("Threshold (1 to 255; value < thresh is background)", thresh, 0);
        	gd.addCheckbox("Inverse case (background when value >= thresh)",inverse);
+		gd.addStringField("Output directory (empty to keep small results in memory)", outputDirectory, 30);
 		gd.showDialog();
 		if (gd.wasCanceled())return false;
 		thresh = (int)gd.getNextNumber();
       	inverse = gd.getNextBoolean();
+		outputDirectory = gd.getNextString().trim();
 		Prefs.set("edtS1.thresh", thresh);
 		Prefs.set("edtS1.inverse", inverse);
+		Prefs.set("edtS1.outputDirectory", outputDirectory);
 		return true;
 	}
 }
\ No newline at end of file
@@ -19,8 +19,6 @@ package Skeletonize3D_;
  * 
  */
 
-import java.util.ArrayList;
-
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -60,6 +58,23 @@ public class Skeletonize3D_ implements PlugInFilter
 	/** working image stack*/
 	private ImageStack inputImage = null;
 	
+	/** number of threads used to collect the simple border points */
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	/** memoized simple point states, 2 bits per neighbor configuration */
+	private int[] simplePointTable = null;
+	
+	/** neighbor configuration bits of the 7 neighbors (weights 128 to 2) of every octant for the Euler LUT */
+	private static final int[][] EULER_OCTANT_MASKS = createEulerOctantMasks(new int[][] {
+		{24, 25, 15, 16, 21, 22, 12},  // SWU
+		{26, 23, 17, 14, 25, 22, 16},  // SEU
+		{18, 21,  9, 12, 19, 22, 10},  // NWU
+		{20, 23, 19, 22, 11, 14, 10},  // NEU
+		{ 6, 15,  7, 16,  3, 12,  4},  // SWB
+		{ 8,  7, 17, 16,  5,  4, 14},  // SEB
+		{ 0,  9,  3, 12,  1, 10,  4},  // NWB
+		{ 2,  1, 11, 10,  5,  4, 14}   // NEB
+	});
+	
 	/* -----------------------------------------------------------------------*/
 	/**
 	 * This method is called once when the filter is loaded.
@@ -140,6 +155,15 @@ public class Skeletonize3D_ implements PlugInFilter
 	/* -----------------------------------------------------------------------*/
 	/**
 	 * Post processing for computing thinning.
+	 * <p>
+	 * The 26-neighborhood of a voxel is encoded as an int (one bit per 
+	 * neighbor, see {@link #getNeighborConfiguration}), and whether a 
+	 * configuration is a simple point is memoized in a table of 2 bits per
+	 * configuration. The simple border points of every subiteration are 
+	 * collected in parallel on slabs of slices (the image is not modified 
+	 * during that step), and then re-checked sequentially in the same order
+	 * as a single-threaded scan, so the result does not depend on the number
+	 * of threads.
 	 * 
 	 * @param outputImage output image stack
 	 */
@@ -148,12 +172,26 @@ public class Skeletonize3D_ implements PlugInFilter
 		//IJ.write("Compute Thin Image Start");
 		IJ.showStatus("Computing thin image ...");
 		
-		ArrayList <int[]> simpleBorderPoints = new ArrayList<int[]>();
+		this.width = outputImage.getWidth();
+		this.height = outputImage.getHeight();
+		this.depth = outputImage.getSize();
+		
+		final byte[][] pixels = new byte[this.depth][];
+		for (int z = 0; z < this.depth; z++)
+			pixels[z] = (byte[]) outputImage.getPixels(z + 1);
 		
 		// Prepare Euler LUT [Lee94]
-		int eulerLUT[] = new int[256]; 
+		final int eulerLUT[] = new int[256]; 
 		fillEulerLUT( eulerLUT );
 		
+		// Simple point states of all the 2^26 neighborhood configurations
+		this.simplePointTable = new int[1 << 22];
+		
+		// Divide the slices in slabs, one per thread
+		final int nSlabs = Math.max(1, Math.min(this.numThreads, this.depth));
+		final int[][] simpleBorderPoints = new int[nSlabs][];
+		final int[] numberOfPoints = new int[nSlabs];
+		
 		int iter = 1;
 		
 		// Loop through the image several times until there is no change.
@@ -165,298 +203,252 @@ public class Skeletonize3D_ implements PlugInFilter
 			{
 				IJ.showStatus("Thinning iteration " + iter + " (" + currentBorder +"/6 borders) ...");
 				
-				// Loop through the image.				 
-				for (int z = 0; z < depth; z++)
+				// Collect the simple border points of every slab
+				final int border = currentBorder;
+				final Thread[] threads = new Thread[nSlabs];
+				for (int i = 0; i < nSlabs; i++)
 				{
-					for (int y = 0; y < height; y++)
-					{
-						for (int x = 0; x < width; x++)						
+					final int slab = i;
+					threads[i] = new Thread() {
+						public void run()
 						{
-							// check if point is foreground
-					        if ( getPixel(outputImage, x, y, z) != 1 )
-					        {
-					          continue;         // current point is already background 
-					        }
-					        // check 6-neighbors if point is a border point of type currentBorder
-					        boolean isBorderPoint = false;
-					        // North
-					        if( currentBorder == 1 && N(outputImage, x, y, z) <= 0 )
-					          isBorderPoint = true;
-					        // South
-					        if( currentBorder == 2 && S(outputImage, x, y, z) <= 0 )
-					          isBorderPoint = true;
-					        // East
-					        if( currentBorder == 3 && E(outputImage, x, y, z) <= 0 )
-					          isBorderPoint = true;
-					        // West
-					        if( currentBorder == 4 && W(outputImage, x, y, z) <= 0 )
-					          isBorderPoint = true;
-					        // Up
-					        if( currentBorder == 5 && U(outputImage, x, y, z) <= 0 )
-					          isBorderPoint = true;
-					        // Bottom
-					        if( currentBorder == 6 && B(outputImage, x, y, z) <= 0 )
-					          isBorderPoint = true;
-					        
-					        if( !isBorderPoint )
-					        {
-					          continue;         // current point is not deletable
-					        }
-					        
-					        // check if point is the end of an arc
-					        int numberOfNeighbors = -1;   // -1 and not 0 because the center pixel will be counted as well
-					        byte[] neighbor = getNeighborhood(outputImage, x, y, z);
-					        for( int i = 0; i < 27; i++ ) // i =  0..26
-					        {					        	
-					          if( neighbor[i] == 1 )
-					            numberOfNeighbors++;
-					        }
-
-					        if( numberOfNeighbors == 1 )
-					        {
-					          continue;         // current point is not deletable
-					        }
-					        
-					        // Check if point is Euler invariant
-					        if( !isEulerInvariant( getNeighborhood(outputImage, x, y, z), eulerLUT ) )
-					        {
-					          continue;         // current point is not deletable
-					        }
-					        // Check if point is simple (deletion does not change connectivity in the 3x3x3 neighborhood)
-					        if( !isSimplePoint(getNeighborhood(outputImage, x, y, z) ) )
-					        {
-					          continue;         // current point is not deletable
-					        }
-					        // add all simple border points to a list for sequential re-checking
-					        int[] index = new int[3];
-					        index[0] = x;
-					        index[1] = y;
-					        index[2] = z;
-					        simpleBorderPoints.add(index);
+							final int zStart = slab * depth / nSlabs;
+							final int zEnd = (slab + 1) * depth / nSlabs;
+							simpleBorderPoints[slab] = collectSimpleBorderPoints(pixels, border, 
+									zStart, zEnd, eulerLUT, simpleBorderPoints[slab], numberOfPoints, slab);
 						}
-					}					
-					IJ.showProgress(z, this.depth);				
-				}							
+					};
+				}
+				startAndJoin(threads);
 				
 				// sequential re-checking to preserve connectivity when
 				// deleting in a parallel way
 				boolean noChange = true;
-				int[] index = null;
-				for(int i = 0; 	i < simpleBorderPoints.size() ; i++)
+				for (int slab = 0; slab < nSlabs; slab++)
 				{
-					index = simpleBorderPoints.get(i);
-					// 1. Set simple border point to 0
-					setPixel( outputImage, index[0], index[1], index[2], (byte) 0);
-					
-					// 2. Check if neighborhood is still connected
-					if( !isSimplePoint( getNeighborhood(outputImage, index[0], index[1], index[2]) ) )
-					{
-						// we cannot delete current point, so reset
-						setPixel( outputImage, index[0], index[1], index[2], (byte) 1);
-					}
-					else
+					final int[] points = simpleBorderPoints[slab];
+					for (int i = 0; i < 2 * numberOfPoints[slab]; i += 2)
 					{
-						noChange = false;
+						final int z = points[i];
+						final int xy = points[i + 1];
+						final int y = xy / this.width;
+						final int x = xy - y * this.width;
+						// 1. Set simple border point to 0
+						pixels[z][xy] = 0;
+						
+						// 2. Check if neighborhood is still connected
+						if( !isSimplePoint( getNeighborConfiguration(pixels, x, y, z) ) )
+						{
+							// we cannot delete current point, so reset
+							pixels[z][xy] = 1;
+						}
+						else
+						{
+							noChange = false;
+						}
 					}
 				}
 				if( noChange )
 					unchangedBorders++;
-
-				//IJ.write("# simple border points = " + simpleBorderPoints.size());
-				/*
-				if(index != null)
-					IJ.write("# last point = [" + index[0] + ", " + index[1] + "," +  index[2]+ "]");
-				else 
-					IJ.write("# last point = [0, 0, 0]");
-					*/
-				simpleBorderPoints.clear();
-				//IJ.write("# simple border points = " + simpleBorderPoints.size() + "\n");
-							
+				
+				IJ.showProgress(currentBorder, 6);
 			} // end currentBorder for loop
 			
 			// Progress bar iterations
 			iter++;
 		}
+		
+		this.simplePointTable = null;
 
 		//IJ.write("Compute Thin Image End");
 		IJ.showStatus("Computed thin image.");
-	} /* end computeThinImage */	
-	
-	/* -----------------------------------------------------------------------*/
-	/**
-	 * Get neighborhood of a pixel in a 3D image (0 border conditions) 
-	 * 
-	 * @param image 3D image (ImageStack)
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding 27-pixels neighborhood (0 if out of image)
-	 */
-	private byte[] getNeighborhood(ImageStack image, int x, int y, int z)
-	{
-		byte[] neighborhood = new byte[27];
-		
-		neighborhood[ 0] = getPixel(image, x-1, y-1, z-1);
-		neighborhood[ 1] = getPixel(image, x  , y-1, z-1);
-		neighborhood[ 2] = getPixel(image, x+1, y-1, z-1);
-		
-		neighborhood[ 3] = getPixel(image, x-1, y,   z-1);
-		neighborhood[ 4] = getPixel(image, x,   y,   z-1);
-		neighborhood[ 5] = getPixel(image, x+1, y,   z-1);
-		
-		neighborhood[ 6] = getPixel(image, x-1, y+1, z-1);
-		neighborhood[ 7] = getPixel(image, x,   y+1, z-1);
-		neighborhood[ 8] = getPixel(image, x+1, y+1, z-1);
-		
-		neighborhood[ 9] = getPixel(image, x-1, y-1, z  );
-		neighborhood[10] = getPixel(image, x,   y-1, z  );
-		neighborhood[11] = getPixel(image, x+1, y-1, z  );
-		
-		neighborhood[12] = getPixel(image, x-1, y,   z  );
-		neighborhood[13] = getPixel(image, x,   y,   z  );
-		neighborhood[14] = getPixel(image, x+1, y,   z  );
-		
-		neighborhood[15] = getPixel(image, x-1, y+1, z  );
-		neighborhood[16] = getPixel(image, x,   y+1, z  );
-		neighborhood[17] = getPixel(image, x+1, y+1, z  );
-		
-		neighborhood[18] = getPixel(image, x-1, y-1, z+1);
-		neighborhood[19] = getPixel(image, x,   y-1, z+1);
-		neighborhood[20] = getPixel(image, x+1, y-1, z+1);
-		
-		neighborhood[21] = getPixel(image, x-1, y,   z+1);
-		neighborhood[22] = getPixel(image, x,   y,   z+1);
-		neighborhood[23] = getPixel(image, x+1, y,   z+1);
-		
-		neighborhood[24] = getPixel(image, x-1, y+1, z+1);
-		neighborhood[25] = getPixel(image, x,   y+1, z+1);
-		neighborhood[26] = getPixel(image, x+1, y+1, z+1);
-		
-		return neighborhood;
-	} /* end getNeighborhood */
-	
-	/* -----------------------------------------------------------------------*/
-	/**
-	 * Get pixel in 3D image (0 border conditions) 
-	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding pixel (0 if out of image)
-	 */
-	private byte getPixel(ImageStack image, int x, int y, int z)
-	{
-		if(x >= 0 && x < this.width && y >= 0 && y < this.height && z >= 0 && z < this.depth)
-			return ((byte[]) image.getPixels(z + 1))[x + y * this.width];
-		else return 0;
-	} /* end getPixel */
-	
-	/* -----------------------------------------------------------------------*/
-	/**
-	 * Set pixel in 3D image 
-	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @param value pixel value
-	 */
-	private void setPixel(ImageStack image, int x, int y, int z, byte value)
-	{
-		if(x >= 0 && x < this.width && y >= 0 && y < this.height && z >= 0 && z < this.depth)
-			((byte[]) image.getPixels(z + 1))[x + y * this.width] = value;
-	} /* end getPixel */
+	} /* end computeThinImage */
 	
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * North neighborhood (0 border conditions) 
+	 * Set the number of threads used to collect the simple border points.
+	 * The result of the thinning does not depend on it.
 	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding north pixel
+	 * @param numThreads number of threads (all available cores by default)
 	 */
-	private byte N(ImageStack image, int x, int y, int z)
+	public void setNumThreads(int numThreads)
 	{
-		return getPixel(image, x, y-1, z);
-	} /* end N */
+		this.numThreads = Math.max(1, numThreads);
+	} /* end setNumThreads */
 	
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * South neighborhood (0 border conditions) 
+	 * Collect the simple border points of type currentBorder in a range of
+	 * slices, in scan order (z, y, x).
 	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding south pixel
-	 */
-	private byte S(ImageStack image, int x, int y, int z)
-	{
-		return getPixel(image, x, y+1, z);
-	} /* end S */
-	
-	/* -----------------------------------------------------------------------*/
-	/**
-	 * East neighborhood (0 border conditions) 
-	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding east pixel
+	 * @param pixels image slices
+	 * @param currentBorder border type (1..6: N, S, E, W, U, B)
+	 * @param zStart first slice of the range
+	 * @param zEnd last slice of the range (exclusive)
+	 * @param eulerLUT Euler LUT
+	 * @param points array to reuse for the points (can be null)
+	 * @param numberOfPoints output number of points, stored at index slab
+	 * @param slab slab index
+	 * @return (z, x + y * width) pairs of the simple border points
 	 */
-	private byte E(ImageStack image, int x, int y, int z)
+	private int[] collectSimpleBorderPoints(
+			final byte[][] pixels, 
+			final int currentBorder, 
+			final int zStart, 
+			final int zEnd, 
+			final int[] eulerLUT, 
+			int[] points, 
+			final int[] numberOfPoints,
+			final int slab)
 	{
-		return getPixel(image, x+1, y, z);
-	} /* end E */
+		if (points == null)
+			points = new int[1024];
+		int n = 0;
+		
+		for (int z = zStart; z < zEnd; z++)
+		{
+			final byte[] slice = pixels[z];
+			for (int y = 0; y < this.height; y++)
+			{
+				for (int x = 0; x < this.width; x++)						
+				{
+					final int xy = x + y * this.width;
+					// check if point is foreground
+					if ( slice[xy] != 1 )
+						continue;         // current point is already background 
+					
+					// check 6-neighbor if point is a border point of type currentBorder
+					final byte neighbor;
+					switch (currentBorder)
+					{
+						case 1:  // North
+							neighbor = y > 0 ? slice[xy - this.width] : 0;
+							break;
+						case 2:  // South
+							neighbor = y < this.height - 1 ? slice[xy + this.width] : 0;
+							break;
+						case 3:  // East
+							neighbor = x < this.width - 1 ? slice[xy + 1] : 0;
+							break;
+						case 4:  // West
+							neighbor = x > 0 ? slice[xy - 1] : 0;
+							break;
+						case 5:  // Up
+							neighbor = z < this.depth - 1 ? pixels[z + 1][xy] : 0;
+							break;
+						default: // Bottom
+							neighbor = z > 0 ? pixels[z - 1][xy] : 0;
+					}
+					if( neighbor > 0 )
+						continue;         // current point is not deletable
+					
+					final int configuration = getNeighborConfiguration(pixels, x, y, z);
+					
+					// check if point is the end of an arc
+					if( Integer.bitCount(configuration) == 1 )
+						continue;         // current point is not deletable
+					
+					// Check if point is Euler invariant
+					if( !isEulerInvariant( configuration, eulerLUT ) )
+						continue;         // current point is not deletable
+					
+					// Check if point is simple (deletion does not change connectivity in the 3x3x3 neighborhood)
+					if( !isSimplePoint( configuration ) )
+						continue;         // current point is not deletable
+					
+					// add all simple border points to a list for sequential re-checking
+					if (2 * n + 2 > points.length)
+					{
+						final int[] newPoints = new int[2 * points.length];
+						System.arraycopy(points, 0, newPoints, 0, 2 * n);
+						points = newPoints;
+					}
+					points[2 * n] = z;
+					points[2 * n + 1] = xy;
+					n++;
+				}
+			}
+		}
+		
+		numberOfPoints[slab] = n;
+		return points;
+	} /* end collectSimpleBorderPoints */
 	
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * West neighborhood (0 border conditions) 
+	 * Start threads and wait for all of them to finish.
 	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding west pixel
+	 * @param threads threads to run
 	 */
-	private byte W(ImageStack image, int x, int y, int z)
+	private static void startAndJoin(Thread[] threads)
 	{
-		return getPixel(image, x-1, y, z);
-	} /* end W */
+		for (int i = 0; i < threads.length; i++)
+			threads[i].start();
+		try
+		{
+			for (int i = 0; i < threads.length; i++)
+				threads[i].join();
+		}
+		catch (InterruptedException e)
+		{
+			throw new RuntimeException(e);
+		}
+	} /* end startAndJoin */	
 	
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * Up neighborhood (0 border conditions) 
+	 * Get the 26-neighborhood of a voxel in a 3D image (0 border conditions)
+	 * encoded as an int: bit i is set if the neighbor i of the 27-pixels 
+	 * neighborhood (x fastest, then y, then z) is 1, for i = 0..12, and bit 
+	 * i-1 for i = 14..26. The center voxel is not included.
 	 * 
-	 * @param image 3D image
+	 * @param pixels image slices
 	 * @param x x- coordinate
 	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding up pixel
+	 * @param z z- coordinate
+	 * @return neighbor configuration
 	 */
-	private byte U(ImageStack image, int x, int y, int z)
+	private int getNeighborConfiguration(byte[][] pixels, int x, int y, int z)
 	{
-		return getPixel(image, x, y, z+1);
-	} /* end U */
+		int configuration = 0;
+		int bit = 1;
+		for (int k = z - 1; k <= z + 1; k++)
+		{
+			final byte[] slice = k >= 0 && k < this.depth ? pixels[k] : null;
+			for (int j = y - 1; j <= y + 1; j++)
+			{
+				final boolean inside = slice != null && j >= 0 && j < this.height;
+				for (int i = x - 1; i <= x + 1; i++)
+				{
+					if (i == x && j == y && k == z)
+						continue;
+					if (inside && i >= 0 && i < this.width && slice[i + j * this.width] == 1)
+						configuration |= bit;
+					bit <<= 1;
+				}
+			}
+		}
+		return configuration;
+	} /* end getNeighborConfiguration */
 	
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * Bottom neighborhood (0 border conditions) 
+	 * Decode a neighbor configuration into a 27-pixels neighborhood (the center
+	 * is set to 1).
 	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding bottom pixel
+	 * @param configuration neighbor configuration
+	 * @return corresponding 27-pixels neighborhood
 	 */
-	private byte B(ImageStack image, int x, int y, int z)
+	private static byte[] getNeighborhood(int configuration)
 	{
-		return getPixel(image, x, y, z-1);
-	} /* end N */
+		final byte[] neighborhood = new byte[27];
+		for (int i = 0; i < 13; i++)
+			neighborhood[i] = (byte) ((configuration >>> i) & 1);
+		neighborhood[13] = 1;
+		for (int i = 14; i < 27; i++)
+			neighborhood[i] = (byte) ((configuration >>> (i - 1)) & 1);
+		return neighborhood;
+	} /* end getNeighborhood */
 	
 	/* -----------------------------------------------------------------------*/
 	/**
@@ -600,6 +592,29 @@ public class Skeletonize3D_ implements PlugInFilter
 		LUT[255] = -1;
 	}
 
+	/**
+	 * Convert the 27-pixels neighborhood indices of the octants to neighbor 
+	 * configuration bits.
+	 * 
+	 * @param octants neighborhood indices of every octant
+	 * @return configuration bit masks of every octant
+	 */
+	private static int[][] createEulerOctantMasks(int[][] octants)
+	{
+		final int[][] masks = new int[octants.length][];
+		for (int i = 0; i < octants.length; i++)
+		{
+			masks[i] = new int[octants[i].length];
+			for (int j = 0; j < octants[i].length; j++)
+			{
+				final int index = octants[i][j];
+				masks[i][j] = 1 << (index < 13 ? index : index - 1);
+			}
+		}
+		return masks;
+	}
+	
+	/* -----------------------------------------------------------------------*/
 	/**
 	 * Check if a point is Euler invariant
 	 * 
@@ -754,6 +769,56 @@ public class Skeletonize3D_ implements PlugInFilter
 			return false;
 		}
 	
+	/**
+	 * Check if a point is Euler invariant
+	 * 
+	 * @param configuration neighbor configuration of the point
+	 * @param LUT Euler LUT
+	 * @return true or false if the point is Euler invariant or not
+	 */
+	private static boolean isEulerInvariant(int configuration, int [] LUT)
+	{
+		// Calculate Euler characteristic for each octant and sum up
+		int eulerChar = 0;
+		for (int octant = 0; octant < 8; octant++)
+		{
+			final int[] masks = EULER_OCTANT_MASKS[octant];
+			int n = 1;
+			for (int i = 0; i < 7; i++)
+				if ((configuration & masks[i]) != 0)
+					n |= 128 >> i;
+			eulerChar += LUT[n];
+		}
+		return eulerChar == 0;
+	}
+	
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Check if a neighbor configuration is a Simple Point, looking the answer
+	 * up in the memoized table first.
+	 * <p>
+	 * The table is filled by several threads without locking: each int holds 
+	 * the state (0 unknown, 2 not simple, 3 simple) of 16 configurations, and
+	 * a concurrent update can at worst reset some states to unknown, in which
+	 * case they are computed again.
+	 * 
+	 * @param configuration neighbor configuration of the point
+	 * @return true or false if the point is simple or not
+	 */
+	private boolean isSimplePoint(int configuration)
+	{
+		final int[] table = this.simplePointTable;
+		final int index = configuration >>> 4;
+		final int shift = (configuration & 15) << 1;
+		final int state = (table[index] >>> shift) & 3;
+		if (state != 0)
+			return state == 3;
+		
+		final boolean simple = isSimplePoint(getNeighborhood(configuration));
+		table[index] |= (simple ? 3 : 2) << shift;
+		return simple;
+	}
+	
 	/* -----------------------------------------------------------------------*/
 	/**
 	 * Check if current point is a Simple Point.
@@ -1,5 +1,6 @@
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 
 import ij.gui.GenericDialog;
 import ij.gui.Roi;
@@ -16,6 +17,8 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /*
  * The Statistical Region Merging algorithm is described in
  *
@@ -28,29 +31,57 @@ public class SRM_ implements PlugInFilter {
 
 	public int setup(String arg, ImagePlus image) {
 		this.image = image;
-		return DOES_8G | NO_CHANGES;
+		return DOES_8G | DOES_16 | DOES_32 | NO_CHANGES;
 	}
 
 	public void run(ImageProcessor ip) {
-		// TODO: implement 3D version, let user choose
+		boolean isStack = image.getStackSize() > 1;
+		boolean isFloat = ip instanceof FloatProcessor;
 
 		GenericDialog gd = new GenericDialog("SRM");
 		gd.addNumericField("Q", Q, 2);
+		if (isFloat)
+			gd.addNumericField("Levels (float images)", floatLevels, 0);
 		gd.addCheckbox("showAverages", true);
+		if (isStack)
+			gd.addCheckbox("3D", true);
 		gd.showDialog();
 
 		if (gd.wasCanceled())
 			return;
 
 		Q = (float)gd.getNextNumber();
+		if (isFloat)
+			floatLevels = Math.max(2, (int)gd.getNextNumber());
 		boolean showAverages = gd.getNextBoolean();
-		srm2D(ip, showAverages).show();
+		ImagePlus result;
+		if (isStack && gd.getNextBoolean())
+			result = srm3D(showAverages);
+		else
+			result = srm2D(ip, showAverages);
+		if (result != null)
+			result.show();
 	}
 
-	final float g = 256; // number of different intensity values
+	/*
+	 * The number of different intensity values: 256 for 8-bit images,
+	 * the range of the intensities for 16-bit images.
+	 *
+	 * Float images have no natural intensity unit, so they are treated
+	 * as if their range was quantized into floatLevels levels: g is
+	 * floatLevels, and the differences are measured in units of one
+	 * level, i.e. range / (floatLevels - 1).  That way, multiplying a
+	 * float image by a constant does not change the segmentation, and a
+	 * float copy of an 8-bit image using the full range segments like
+	 * the 8-bit image with the default of 256 levels.
+	 */
+	float g = 256;
+	protected int floatLevels = 256;
 	protected float Q = 25; //25; // complexity of the assumed distributions
 	protected float delta;
 
+	protected int numThreads = Runtime.getRuntime().availableProcessors();
+
 	/*
 	 * The predicate: is the difference of the averages of the two
 	 * regions R and R' smaller than
@@ -67,8 +98,9 @@ public class SRM_ implements PlugInFilter {
 	protected float factor, logDelta;
 
 	/*
-	 * For performance reasons, these are held in w * h arrays
+	 * For performance reasons, these are held in w * h (* d) arrays
 	 */
+	float[] pixel;
 	float[] average;
 	int[] count;
 	int[] regionIndex; // if < 0, it is -1 - actual_regionIndex
@@ -81,31 +113,136 @@ public class SRM_ implements PlugInFilter {
 	 * In that order, it is tested if the regions these two pixels belong
 	 * to (by construction, the regions must be distinct) should be merged.
 	 *
-	 * For efficiency, we do it by bucket sorting, because there are only
-	 * g + 1 possible differences.
-	 *
-	 * After sorting, for each difference the pixel pair with the largest
-	 * index is stored in neighborBuckets[difference], and every
-	 * nextNeighbor[index] points to the pixel pair with the same
-	 * difference and the next smaller index (or -1 if there is none).
-	 *
 	 * The pixel pairs are identified by
 	 *
-	 *     2 * (x + (w - 1) * y) + direction
+	 *     dimensions * index + direction
 	 *
-	 * where direction = 0 means "right neighbor", and direction = 1 means
-	 * " lower neighbor".  (We do not need "left" or "up", as the order
-	 * within the pair is not important.)
+	 * where direction = 0 means "right neighbor", direction = 1 means
+	 * "lower neighbor" and direction = 2 means "neighbor in the next
+	 * slice".  (We do not need "left", "up" or "previous slice", as the
+	 * order within the pair is not important.)  That makes 6-connectivity
+	 * in 3D.
 	 *
-	 * In n dimensions, it must be n * pixel_count, and "direction"
-	 * specifies the Cartesian unit vector (axis) determining the neighbor.
+	 * Each pair gets an integer sort key: the intensity difference for
+	 * integer images, and the bit pattern of the (non-negative) difference
+	 * for float images, which sorts the same way.  The pairs are then
+	 * sorted by a stable radix sort (counting sort for 8-bit and 16-bit
+	 * images), so pairs with the same difference stay in the order of
+	 * their identifiers.
+	 *
+	 * After sorting, neighbors holds the neighborCount valid pairs.
 	 */
-	int[] nextNeighbor, neighborBucket;
+	int dimensions;
+	int[] neighborOffset;
+	int[] neighbors;
+	int neighborCount;
+	boolean floatKeys;
 
 	protected ImagePlus srm2D(ImageProcessor ip, boolean showAverages) {
 		int w = ip.getWidth(), h = ip.getHeight();
+		if (!checkSize(w, h, 1))
+			return null;
+
+		pixel = new float[w * h];
+		getPixels(ip, pixel, 0);
+		srm(w, h, 1, ip instanceof FloatProcessor,
+				ip instanceof ByteProcessor);
+
+		ImageStack result = getResult(w, h, 1, showAverages);
+		String title = image.getTitle() + " (SRM Q=" + Q + ")";
+		return new ImagePlus(title, result.getProcessor(1));
+	}
+
+	protected ImagePlus srm3D(boolean showAverages) {
+		ImageStack stack = image.getStack();
+		int w = stack.getWidth(), h = stack.getHeight();
+		int d = stack.getSize();
+		if (!checkSize(w, h, d))
+			return null;
+
+		pixel = new float[w * h * d];
+		ImageProcessor ip = null;
+		for (int k = 0; k < d; k++) {
+			ip = stack.getProcessor(k + 1);
+			getPixels(ip, pixel, k * w * h);
+		}
+		srm(w, h, d, ip instanceof FloatProcessor,
+				ip instanceof ByteProcessor);
+
+		ImageStack result = getResult(w, h, d, showAverages);
+		String title = image.getTitle() + " (SRM 3D Q=" + Q + ")";
+		ImagePlus imp = new ImagePlus(title, result);
+		imp.setCalibration(image.getCalibration());
+		return imp;
+	}
+
+	/*
+	 * The pixel pairs are identified by int values and their sort keys
+	 * are held in an int array, so there can be at most
+	 * Integer.MAX_VALUE pairs.
+	 */
+	static long getPairCount(int w, int h, int d) {
+		return (long)w * h * d * (d > 1 ? 3 : 2);
+	}
+
+	boolean checkSize(int w, int h, int d) {
+		long pairs = getPairCount(w, h, d);
+		if (pairs <= Integer.MAX_VALUE)
+			return true;
+		IJ.error("SRM", "The image is too large: it has " + pairs
+			+ " pixel pairs, but at most " + Integer.MAX_VALUE
+			+ " are supported." + (d > 1 ?
+				"\nTry to segment the slices separately." :
+				""));
+		return false;
+	}
+
+	void getPixels(ImageProcessor ip, float[] pixel, int offset) {
+		int n = ip.getWidth() * ip.getHeight();
+		Object pixels = ip.getPixels();
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[])pixels;
+			for (int i = 0; i < n; i++)
+				pixel[offset + i] = p[i] & 0xff;
+		}
+		else if (pixels instanceof short[]) {
+			short[] p = (short[])pixels;
+			for (int i = 0; i < n; i++)
+				pixel[offset + i] = p[i] & 0xffff;
+		}
+		else
+			System.arraycopy((float[])pixels, 0, pixel, offset, n);
+	}
+
+	void srm(int w, int h, int d, boolean isFloat, boolean isByte) {
+		if (getPairCount(w, h, d) > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many pixel pairs: "
+				+ getPairCount(w, h, d));
+		int n = w * h * d;
+		floatKeys = isFloat;
+
+		// size of one intensity level in the units of the data
+		float scale = 1;
+		if (isByte)
+			g = 256;
+		else {
+			float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+			for (int i = 0; i < n; i++) {
+				if (pixel[i] < min)
+					min = pixel[i];
+				if (pixel[i] > max)
+					max = pixel[i];
+			}
+			if (isFloat) {
+				g = Math.max(2, floatLevels);
+				if (max > min)
+					scale = (max - min) / (g - 1);
+			}
+			else
+				g = max - min + 1;
+		}
 
-		delta = 1f / (6 * w * h);
+		delta = 1f / (6f * n);
 		/*
 		 * This would be the non-relaxed formula:
 		 *
@@ -113,18 +250,28 @@ public class SRM_ implements PlugInFilter {
 		 *
 		 * The paper claims that this is more prone to oversegmenting.
 		 */
-		factor = g * g / 2 / Q;
-		logDelta = 2f * (float)Math.log(6 * w * h);
+		factor = g * g * scale * scale / 2 / Q;
+		logDelta = 2f * (float)Math.log(6.0 * n);
+
+		initializeRegions();
+		initializeNeighbors(w, h, d);
+		mergeAllNeighbors();
+	}
 
-		byte[] pixel = (byte[])ip.getPixels();
-		initializeRegions2D(pixel, ip.getWidth(), ip.getHeight());
-		initializeNeighbors2D(pixel, w, h);
-		mergeAllNeighbors2D(w);
+	ImageStack getResult(int w, int h, int d, boolean showAverages) {
+		int sliceSize = w * h;
+		ImageStack stack = new ImageStack(w, h);
 
 		if (showAverages) {
 			for (int i = 0; i < average.length; i++)
 				average[i] = average[getRegionIndex(i)];
-			ip = new FloatProcessor(w, h, average, null);
+			for (int k = 0; k < d; k++) {
+				float[] slice = new float[sliceSize];
+				System.arraycopy(average, k * sliceSize,
+						slice, 0, sliceSize);
+				stack.addSlice("", new FloatProcessor(w, h,
+							slice, null));
+			}
 		}
 		else {
 			int regionCount = consolidateRegions();
@@ -134,65 +281,200 @@ public class SRM_ implements PlugInFilter {
 					IJ.showMessage("Found " + regionCount
 						+ " regions, which does not fit"
 						+ " in 16-bit.");
-				short[] pixel16 = new short[w * h];
-				for (int i = 0; i < pixel16.length; i++)
-					pixel16[i] = (short)regionIndex[i];
-				ip = new ShortProcessor(w, h, pixel16, null);
+				for (int k = 0; k < d; k++) {
+					short[] pixel16 = new short[sliceSize];
+					for (int i = 0; i < sliceSize; i++)
+						pixel16[i] = (short)regionIndex[
+							k * sliceSize + i];
+					stack.addSlice("", new ShortProcessor(w, h,
+								pixel16, null));
+				}
 			}
 			else {
-				pixel = new byte[w * h];
-				for (int i = 0; i < pixel.length; i++)
-					pixel[i] = (byte)regionIndex[i];
-				ip = new ByteProcessor(w, h, pixel, null);
+				for (int k = 0; k < d; k++) {
+					byte[] pixel8 = new byte[sliceSize];
+					for (int i = 0; i < sliceSize; i++)
+						pixel8[i] = (byte)regionIndex[
+							k * sliceSize + i];
+					stack.addSlice("", new ByteProcessor(w, h,
+								pixel8, null));
+				}
 			}
 		}
 
-		String title = image.getTitle() + " (SRM Q=" + Q + ")";
-		return new ImagePlus(title, ip);
+		return stack;
 	}
 
-	void initializeRegions2D(byte[] pixel, int w, int h) {
-		average = new float[w * h];
-		count = new int[w * h];
-		regionIndex = new int[w * h];
+	void initializeRegions() {
+		average = new float[pixel.length];
+		count = new int[pixel.length];
+		regionIndex = new int[pixel.length];
 
 		for (int i = 0; i < average.length; i++) {
-			average[i] = pixel[i] & 0xff;
+			average[i] = pixel[i];
 			count[i] = 1;
 			regionIndex[i] = i;
 		}
 	}
 
-	protected void addNeighborPair(int neighborIndex,
-			byte[] pixel, int i1, int i2) {
-		int difference = Math.abs((pixel[i1] & 0xff)
-				- (pixel[i2] & 0xff));
-		nextNeighbor[neighborIndex] = neighborBucket[difference];
-		neighborBucket[difference] = neighborIndex;
+	/*
+	 * Computes the sort keys of all pixel pairs, -1 for the pairs that do
+	 * not exist because the pixel is at the border.  This is done in
+	 * parallel, each thread taking slabs of rows at a time.
+	 */
+	int[] getKeys(final int w, final int h, final int d) {
+		final int[] key = new int[dimensions * pixel.length];
+		final int rows = h * d;
+		final int rowsPerSlab = Math.max(1, (1 << 14) / w);
+		final AtomicInteger ai = new AtomicInteger(0);
+		startAndJoin(Math.max(1, Math.min(numThreads, rows / rowsPerSlab)),
+				new Runnable() {
+			public void run() {
+				for (int row = ai.getAndAdd(rowsPerSlab); row < rows;
+						row = ai.getAndAdd(rowsPerSlab)) {
+					int end = Math.min(rows, row + rowsPerSlab);
+					for (int r = row; r < end; r++)
+						getKeys(key, r, w, h, d);
+				}
+			}
+		});
+		return key;
+	}
+
+	final void getKeys(int[] key, int row, int w, int h, int d) {
+		int j = row % h, k = row / h;
+		for (int i = 0; i < w; i++) {
+			int index = i + w * row;
+			int neighborIndex = dimensions * index;
+			key[neighborIndex] = i < w - 1 ?
+				getKey(index, index + 1) : -1;
+			key[neighborIndex + 1] = j < h - 1 ?
+				getKey(index, index + w) : -1;
+			if (dimensions > 2)
+				key[neighborIndex + 2] = k < d - 1 ?
+					getKey(index, index + w * h) : -1;
+		}
 	}
 
-	void initializeNeighbors2D(byte[] pixel, int w, int h) {
-		nextNeighbor = new int[2 * w * h];
+	final int getKey(int i1, int i2) {
+		float difference = Math.abs(pixel[i1] - pixel[i2]);
+		return floatKeys ? Float.floatToIntBits(difference) :
+			(int)difference;
+	}
 
-		// bucket sort
-		neighborBucket = new int[256];
-		Arrays.fill(neighborBucket, -1);
+	/*
+	 * Sorts the pixel pairs by a stable least-significant-digit radix
+	 * sort with 16-bit digits, with a counting sort for each digit.
+	 * Every pass is done in parallel: the pairs are split into one
+	 * contiguous slab per thread, each thread counts the digits of its
+	 * slab, and then moves its pairs to their place; the places are
+	 * assigned in slab order, which keeps the sort stable.
+	 */
+	void initializeNeighbors(int w, int h, int d) {
+		dimensions = d > 1 ? 3 : 2;
+		neighborOffset = new int[] { 1, w, w * h };
+		final int total = dimensions * pixel.length;
+
+		final int[] key = getKeys(w, h, d);
+
+		final int threads = Math.max(1, Math.min(numThreads,
+					total / (1 << 16)));
+		final int[][] histogram = new int[threads][];
+
+		// find out how many digits the keys have
+		int maxKey = 0;
+		for (int i = 0; i < total; i++)
+			if (key[i] > maxKey)
+				maxKey = key[i];
+		int bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(maxKey));
+
+		final AtomicInteger ai = new AtomicInteger(0);
+		int[] source = null;
+		int[] target = null;
+		int sourceCount = total;
+		for (int shift = 0; shift < bits; shift += 16) {
+			final int radix = 1 << Math.min(16, bits - shift);
+			final int mask = radix - 1;
+			final int digitShift = shift;
+			final int[] from = source;
+			final int[] to = target != null ? target :
+				new int[total];
+			final int count = sourceCount;
+
+			// count the digits per slab
+			ai.set(0);
+			startAndJoin(threads, new Runnable() {
+				public void run() {
+					int t = ai.getAndIncrement();
+					int[] histo = new int[radix];
+					for (int i = getStart(t, threads, count);
+							i < getStart(t + 1,
+								threads, count);
+							i++) {
+						int k = key[from == null ?
+							i : from[i]];
+						if (k >= 0)
+							histo[(k >>> digitShift)
+								& mask]++;
+					}
+					histogram[t] = histo;
+				}
+			});
+
+			// turn the counts into the first place per slab and digit
+			int place = 0;
+			for (int digit = 0; digit < radix; digit++)
+				for (int t = 0; t < threads; t++) {
+					int c = histogram[t][digit];
+					histogram[t][digit] = place;
+					place += c;
+				}
+			sourceCount = place;
+
+			ai.set(0);
+			startAndJoin(threads, new Runnable() {
+				public void run() {
+					int t = ai.getAndIncrement();
+					int[] histo = histogram[t];
+					for (int i = getStart(t, threads, count);
+							i < getStart(t + 1,
+								threads, count);
+							i++) {
+						int neighborIndex = from == null ?
+							i : from[i];
+						int k = key[neighborIndex];
+						if (k >= 0)
+							to[histo[(k >>> digitShift)
+								& mask]++] =
+								neighborIndex;
+					}
+				}
+			});
+
+			target = source;
+			source = to;
+		}
 
-		for (int j = h - 1; j >= 0; j--)
-			for (int i = w - 1; i >= 0; i--) {
-				int index = i + w * j;
-				int neighborIndex = 2 * index;
+		neighbors = source;
+		neighborCount = sourceCount;
+	}
 
-				// vertical
-				if (j < h - 1)
-					addNeighborPair(neighborIndex + 1,
-						pixel, index, index + w);
+	final static int getStart(int slab, int slabs, int total) {
+		return (int)((long)total * slab / slabs);
+	}
 
-				// horizontal
-				if (i < w - 1)
-					addNeighborPair(neighborIndex,
-						pixel, index, index + 1);
-			}
+	static void startAndJoin(int count, Runnable runnable) {
+		Thread[] threads = new Thread[count];
+		for (int t = 0; t < count; t++) {
+			threads[t] = new Thread(runnable);
+			threads[t].start();
+		}
+		try {
+			for (int t = 0; t < count; t++)
+				threads[t].join();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	// recursively find out the region index for this pixel
@@ -223,22 +505,18 @@ public class SRM_ implements PlugInFilter {
 				+ ((log2 + logDelta) / count[i2]));
 	}
 
-	void mergeAllNeighbors2D(int w) {
-		for (int i = 0; i < neighborBucket.length; i++) {
-			int neighborIndex = neighborBucket[i];
-			while (neighborIndex >= 0) {
-				int i1 = neighborIndex / 2;
-				int i2 = i1
-					+ (0 == (neighborIndex & 1) ? 1 : w);
-
-				i1 = getRegionIndex(i1);
-				i2 = getRegionIndex(i2);
+	void mergeAllNeighbors() {
+		for (int k = 0; k < neighborCount; k++) {
+			int neighborIndex = neighbors[k];
+			int i1 = neighborIndex / dimensions;
+			int i2 = i1 + neighborOffset[neighborIndex
+				- i1 * dimensions];
 
-				if (predicate(i1, i2))
-					mergeRegions(i1, i2);
+			i1 = getRegionIndex(i1);
+			i2 = getRegionIndex(i2);
 
-				neighborIndex = nextNeighbor[neighborIndex];
-			}
+			if (predicate(i1, i2))
+				mergeRegions(i1, i2);
 		}
 	}
 
@@ -30,6 +30,7 @@ import static stitching.CommonFunctions.getPixelMinRGB;
 
 import java.awt.Rectangle;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.PrintWriter;
 
@@ -47,9 +48,13 @@ import ij.plugin.PlugIn;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.WindowManager;
+import ij.io.FileSaver;
 import ij.plugin.ZProjector;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 import ij.ImageStack;
 
 import stitching.CommonFunctions;
@@ -58,6 +63,7 @@ import stitching.ImageInformation;
 import stitching.OverlapProperties;
 import stitching.Point2D;
 import stitching.Point3D;
+import stitching.TileCache;
 import stitching.model.*;
 
 import static stitching.CommonFunctions.colorList;
@@ -72,6 +78,10 @@ public class Stitch_Image_Collection implements PlugIn
 	public double alpha, thresholdR, thresholdDisplacementRelative, thresholdDisplacementAbsolute;
 	public String rgbOrder;
 	
+	// if set, the fused image is written block by block into this directory instead of being kept in memory
+	public String outputDirectory = null;
+	public int blockSize = 0;
+	
 	public static String fileNameStatic = "TileConfiguration.txt";
 	public static boolean computeOverlapStatic = true;
 	public static String handleRGBStatic = colorList[colorList.length - 1];
@@ -82,6 +92,8 @@ public class Stitch_Image_Collection implements PlugIn
 	public static double thresholdDisplacementRelativeStatic = 2.5;
 	public static double thresholdDisplacementAbsoluteStatic = 3.5;
 	public static boolean previewOnlyStatic = false;
+	public static String outputDirectoryStatic = "";
+	public static int blockSizeStatic = 0;
 
 	
 	public void run(String arg0)
@@ -99,6 +111,8 @@ public class Stitch_Image_Collection implements PlugIn
 		gd.addNumericField("Max/Avg Displacement Threshold", thresholdDisplacementRelativeStatic, 2);		
 		gd.addNumericField("Absolute Avg Displacement Threshold", thresholdDisplacementAbsoluteStatic, 2);		
 		gd.addCheckbox("Create_only_Preview", previewOnlyStatic);
+		gd.addDirectoryField("Fuse_into_directory (leave empty to fuse in memory)", outputDirectoryStatic, 50);
+		gd.addNumericField("Block_size (0 = automatic)", blockSizeStatic, 0);
 		gd.addMessage("");
 		gd.addMessage("This Plugin is developed by Stephan Preibisch\n" + myURL);
 
@@ -138,6 +152,12 @@ public class Stitch_Image_Collection implements PlugIn
 		boolean previewOnly = gd.getNextBoolean();
 		previewOnlyStatic = previewOnly;
 		
+		this.outputDirectory = gd.getNextString().trim();
+		outputDirectoryStatic = outputDirectory;
+		
+		this.blockSize = (int)Math.round(gd.getNextNumber());
+		blockSizeStatic = blockSize;
+		
 		work(fileName, previewOnly, computeOverlap, fusionMethod, handleRGB);		
 	}
 	
@@ -156,6 +176,8 @@ public class Stitch_Image_Collection implements PlugIn
 		this.thresholdDisplacementAbsolute = gridLayout.thresholdDisplacementAbsolute;
 		this.dim = gridLayout.dim;
 		this.rgbOrder = gridLayout.rgbOrder;
+		this.outputDirectory = gridLayout.outputDirectory;
+		this.blockSize = gridLayout.blockSize;
 		
 		return work(gridLayout.imageInformationList, createPreview, computeOverlap, gridLayout.fusionMethod, gridLayout.handleRGB, fileName);
 	}
@@ -213,12 +235,30 @@ public class Stitch_Image_Collection implements PlugIn
 			IJ.log("(" + new Date(System.currentTimeMillis()) + "): Size of bounding box for output image: " + max[0] + ", " + max[1]);
 		
 		// fuse the images
-		ImagePlus fused = fuseImages(newImageInformationList, max, "Stitched Image", fusionMethod, rgbOrder, dim, alpha);
-		fused.show();
+		final ImagePlus fused;
+		if (isFusingToDisk())
+		{
+			if (!fuseImagesToDisk(newImageInformationList, max, "Stitched Image", fusionMethod, rgbOrder, dim, alpha, outputDirectory, blockSize))
+			{
+				IJ.log("(" + new Date(System.currentTimeMillis()) + "): Stitching failed, the fused image could not be written to " + outputDirectory);
+				return null;
+			}
+			fused = null;
+		}
+		else
+		{
+			fused = fuseImages(newImageInformationList, max, "Stitched Image", fusionMethod, rgbOrder, dim, alpha);
+			fused.show();
+		}
 		IJ.log("(" + new Date(System.currentTimeMillis()) + "): Finished Stitching.");
 		return fused;
 	}
 	
+	protected boolean isFusingToDisk()
+	{
+		return outputDirectory != null && outputDirectory.length() > 0;
+	}
+	
 	protected void writeOutputConfiguration( String fileName, ArrayList<ImageInformation> imageInformationList )
 	{
 		try
@@ -256,14 +296,7 @@ public class Stitch_Image_Collection implements PlugIn
 	public static ImagePlus fuseImages(final ArrayList<ImageInformation> imageInformationList, final float[] max, final String name, final String fusionMethod, 
 									   final String rgbOrder, final int dim, final double alpha)
 	{
-		final int type;
-
-		if (fusionMethod.equals("Min. Intensity")) type = MIN;
-		else if (fusionMethod.equals("Linear Blending")) type = LIN_BLEND;
-		else if (fusionMethod.equals("Max. Intensity")) type = MAX;
-		else if (fusionMethod.equals("Red-Cyan Overlay") && imageInformationList.size() == 2) type = RED_CYAN;
-		else if (fusionMethod.equals("None")) type = CommonFunctions.NONE;
-		else type = AVG; // fusionMethod.equals("Average")
+		final int type = getFusionType(fusionMethod, imageInformationList.size());
 		
 		if (type == AVG)
 			IJ.log("Average Fusion started.");
@@ -314,6 +347,9 @@ public class Stitch_Image_Collection implements PlugIn
 		}
 		catch (Exception e){};
 	
+		// every tile is loaded once, the cache only keeps the last one
+		final TileCache tileCache = new TileCache(rgbOrder, 0);
+
 		if (type == CommonFunctions.NONE || type == MAX || type == RED_CYAN)
 		{
 			int count = 0;
@@ -322,14 +358,9 @@ public class Stitch_Image_Collection implements PlugIn
 			for (ImageInformation iI : imageInformationList)
 			{
 				// load the image to paint
-				final ImagePlus imp;
-				
-				if (iI.imp == null)
-					imp = CommonFunctions.loadImage("", iI.imageName, rgbOrder);
-				else
-					imp = iI.imp;
+				final ImagePlus imp = tileCache.getTile(iI);
 
-				cal = updateCalibration( cal, iI.imp.getCalibration() );
+				cal = updateCalibration( cal, imp.getCalibration() );
 				
 				final Object[] imageStack1 = imp.getStack().getImageArray();
 				final int w1 = imp.getStack().getWidth();
@@ -488,12 +519,9 @@ public class Stitch_Image_Collection implements PlugIn
 	        // load the images
 	        for (ImageInformation iI : imageInformationList)
 	        {
-				if (iI.imp == null)
-					iI.tmp = CommonFunctions.loadImage("", iI.imageName, rgbOrder);
-				else
-					iI.tmp = iI.imp;		
+				iI.tmp = tileCache.getTile(iI);
 				
-				cal = updateCalibration( cal, iI.imp.getCalibration() );
+				cal = updateCalibration( cal, iI.tmp.getCalibration() );
 				
 				iI.imageStack = iI.tmp.getStack().getImageArray();
 				iI.w = iI.tmp.getStack().getWidth();
@@ -671,6 +699,7 @@ public class Stitch_Image_Collection implements PlugIn
 				iI.imageStack = null;	        	
 	        }
 		}
+		tileCache.clear();
 		
 		if (imageType == ImagePlus.GRAY32)
 			fusedImp.getProcessor().setMinAndMax(minmax[0], minmax[1]);
@@ -685,6 +714,362 @@ public class Stitch_Image_Collection implements PlugIn
 	}
 	
 	
+	protected static int getFusionType(final String fusionMethod, final int numImages)
+	{
+		if (fusionMethod.equals("Min. Intensity")) return MIN;
+		else if (fusionMethod.equals("Linear Blending")) return LIN_BLEND;
+		else if (fusionMethod.equals("Max. Intensity")) return MAX;
+		else if (fusionMethod.equals("Red-Cyan Overlay") && numImages == 2) return RED_CYAN;
+		else if (fusionMethod.equals("None")) return CommonFunctions.NONE;
+		else return AVG; // fusionMethod.equals("Average")
+	}
+	
+	/**
+	 * Fuses the tiles without ever holding the whole fused image in memory.
+	 * The output is computed in blocks of blockSize pixels per dimension, in
+	 * parallel; for each block only the tiles intersecting it are loaded
+	 * (through a size-limited {@link TileCache}, so neighboring blocks share
+	 * them), and each finished block is written right away as a TIFF file
+	 * into the output directory. The directory also gets a layout file
+	 * (TileConfiguration.txt) with the position of every block, so that the
+	 * blocks can be opened again as an image collection.
+	 * 
+	 * Supports the same fusion methods as
+	 * {@link #fuseImages(ArrayList, float[], String, String, String, int, double)}
+	 * except for the Red-Cyan Overlay, and gives the same pixel values (for
+	 * the Max. Intensity of 32-bit tiles, this means that negative values are
+	 * clamped to 0, the background of the fused image).
+	 * 
+	 * @param imageInformationList the tiles, at their final positions
+	 * @param max the size of the fused image
+	 * @param name the name of the fused image
+	 * @param fusionMethod fusion method (@see stitching.CommonFunctions.methodListCollection)
+	 * @param rgbOrder how to load RGB tiles (@see stitching.CommonFunctions.rgbTypes)
+	 * @param dim the dimensionality
+	 * @param alpha the exponent of the linear blending weights
+	 * @param outputDirectory where to write the blocks and the layout file
+	 * @param blockSize the size of the blocks, 0 for a default size
+	 * @return true if all blocks have been written
+	 */
+	public static boolean fuseImagesToDisk(final ArrayList<ImageInformation> imageInformationList, final float[] max, final String name, final String fusionMethod, 
+										   final String rgbOrder, final int dim, final double alpha, final String outputDirectory, int blockSize)
+	{
+		final int type = getFusionType(fusionMethod, imageInformationList.size());
+		
+		if (type == RED_CYAN)
+		{
+			IJ.error("Red-Cyan Overlay cannot be fused into a directory.");
+			return false;
+		}
+		
+		final int imageType = imageInformationList.get(0).imageType; 
+		final int bytesPerPixel;
+		if (imageType == ImagePlus.GRAY8) bytesPerPixel = 1;
+		else if (imageType == ImagePlus.GRAY16) bytesPerPixel = 2;
+		else if (imageType == ImagePlus.GRAY32 || imageType == ImagePlus.COLOR_RGB) bytesPerPixel = 4;
+		else
+		{
+			IJ.error("Unsupported/Unknown Image Type: " + imageType);
+			return false;
+		}
+		
+		final File directory = new File(outputDirectory);
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			IJ.error("Cannot create output directory " + outputDirectory);
+			return false;
+		}
+
+		if (blockSize <= 0)
+			blockSize = dim == 3 ? 256 : 1024;
+		
+		final int imgW = Math.round(max[0]);
+		final int imgH = Math.round(max[1]);
+		final int imgD = dim == 3 ? Math.round(max[2]) : 1;
+		final int bs = blockSize;
+		final int bsZ = dim == 3 ? blockSize : 1;
+		
+		final int numBlocksX = (imgW + bs - 1) / bs;
+		final int numBlocksY = (imgH + bs - 1) / bs;
+		final int numBlocksZ = (imgD + bsZ - 1) / bsZ;
+		final int numBlocks = numBlocksX * numBlocksY * numBlocksZ;
+		
+		IJ.log("(" + new Date(System.currentTimeMillis()) + "): Fusing " + fusionMethod + " into " + numBlocks + " blocks of " + bs + (dim == 3 ? "x" + bs + "x" + bs : "x" + bs) + " pixels in " + directory.getAbsolutePath());
+
+		// half of the free memory for the tiles, a quarter for the blocks being computed
+		final Runtime runtime = Runtime.getRuntime();
+		final long freeMemory = runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
+		final long blockBytes = (long)bs * bs * bsZ * bytesPerPixel;
+		
+		final int numThreads = (int)Math.max(1, Math.min(Math.min(runtime.availableProcessors(), numBlocks), freeMemory / 4 / blockBytes));
+		final TileCache tileCache = new TileCache(rgbOrder, freeMemory / 2);
+		
+		final String[] blockNames = new String[numBlocks];
+		final AtomicInteger ai = new AtomicInteger(0);
+		final AtomicInteger progress = new AtomicInteger(0);
+		final AtomicInteger failed = new AtomicInteger(0);
+		final Thread[] threads = CommonFunctions.newThreads(numThreads);
+
+		for (int ithread = 0; ithread < threads.length; ++ithread)
+			threads[ithread] = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					final ImageInformation[] tiles = new ImageInformation[imageInformationList.size()];
+					final ImagePlus[] tileImps = new ImagePlus[imageInformationList.size()];
+
+					// the blocks are numbered x first, so that consecutive blocks share their tiles
+					for (int b = ai.getAndIncrement(); b < numBlocks; b = ai.getAndIncrement())
+					{
+						final int[] start = new int[3];
+						final int[] end = new int[3];
+						start[0] = (b % numBlocksX) * bs;
+						start[1] = ((b / numBlocksX) % numBlocksY) * bs;
+						start[2] = (b / numBlocksX / numBlocksY) * bsZ;
+						end[0] = Math.min(start[0] + bs, imgW);
+						end[1] = Math.min(start[1] + bs, imgH);
+						end[2] = Math.min(start[2] + bsZ, imgD);
+						
+						// load the tiles intersecting this block
+						int numTiles = 0;
+						for (final ImageInformation iI : imageInformationList)
+						{
+							boolean intersects = true;
+							for (int d = 0; d < dim && intersects; d++)
+								if (Math.round(iI.position[d]) >= end[d] || Math.round(iI.position[d] + iI.size[d]) <= start[d])
+									intersects = false;
+							
+							if (!intersects)
+								continue;
+							
+							final ImagePlus imp = tileCache.getTile(iI);
+							if (imp == null)
+							{
+								IJ.log("Cannot load " + iI.imageName + " ignoring.");
+								continue;
+							}
+							
+							tiles[numTiles] = iI;
+							tileImps[numTiles++] = imp;
+						}
+						
+						final ImageStack stack = fuseBlock(tiles, tileImps, numTiles, start, end, type, imageType, dim, alpha);
+
+						final ImagePlus block = new ImagePlus(name, stack);
+						if (numTiles > 0)
+							block.setCalibration(tileImps[0].getCalibration());
+						
+						String blockName = "block_" + (start[0] / bs) + "_" + (start[1] / bs);
+						if (dim == 3)
+							blockName += "_" + (start[2] / bsZ);
+						blockName = new File(directory, blockName + ".tif").getAbsolutePath();
+
+						final FileSaver saver = new FileSaver(block);
+						if (stack.getSize() > 1 ? saver.saveAsTiffStack(blockName) : saver.saveAsTiff(blockName))
+						{
+							blockNames[b] = blockName;
+						}
+						else
+						{
+							IJ.log("Cannot write " + blockName);
+							failed.incrementAndGet();
+						}
+						
+						IJ.showProgress(progress.incrementAndGet(), numBlocks);
+					}
+				}
+			});
+		
+		CommonFunctions.startAndJoin(threads);
+		tileCache.clear();
+		
+		// write where the blocks go
+		final PrintWriter out = Stitch_Image_Grid.openFileWrite(new File(directory, "TileConfiguration.txt").getAbsolutePath());
+		if (out == null)
+			return false;
+		
+		out.println("# Define the number of dimensions we are working on");
+		out.println("dim = " + dim);
+		out.println("");
+		out.println("# Define the image coordinates");
+
+		for (int b = 0; b < numBlocks; b++)
+		{
+			if (blockNames[b] == null)
+				continue;
+			
+			final int x = (b % numBlocksX) * bs;
+			final int y = ((b / numBlocksX) % numBlocksY) * bs;
+			final int z = (b / numBlocksX / numBlocksY) * bsZ;
+			
+			if (dim == 3)
+				out.println(blockNames[b] + "; ; (" + x + ", " + y + ", " + z + ")");
+			else
+				out.println(blockNames[b] + "; ; (" + x + ", " + y + ")");
+		}
+		
+		out.close();
+		
+		return failed.get() == 0;
+	}
+	
+	/**
+	 * Computes one block of the fused image.
+	 * 
+	 * @param tiles the tiles intersecting the block
+	 * @param tileImps the images of these tiles
+	 * @param numTiles the number of tiles
+	 * @param start the first pixel of the block in the fused image
+	 * @param end the pixel after the last one of the block in the fused image
+	 * @param type the fusion type (@see stitching.CommonFunctions)
+	 * @param imageType the ImagePlus type of the tiles and the block
+	 * @param dim the dimensionality
+	 * @param alpha the exponent of the linear blending weights
+	 * @return the block
+	 */
+	final private static ImageStack fuseBlock(final ImageInformation[] tiles, final ImagePlus[] tileImps, final int numTiles, final int[] start, final int[] end, 
+											  final int type, final int imageType, final int dim, final double alpha)
+	{
+		final int blockW = end[0] - start[0];
+		final int blockH = end[1] - start[1];
+		final int blockD = end[2] - start[2];
+		
+		final Object[][] imageStacks = new Object[numTiles][];
+		final int[][] offset = new int[numTiles][3];
+		final int[][] size = new int[numTiles][3];
+		
+		for (int t = 0; t < numTiles; t++)
+		{
+			imageStacks[t] = tileImps[t].getStack().getImageArray();
+			size[t][0] = tileImps[t].getStack().getWidth();
+			size[t][1] = tileImps[t].getStack().getHeight();
+			size[t][2] = tileImps[t].getStack().getSize();
+			
+			for (int d = 0; d < dim; d++)
+				offset[t][d] = Math.round(tiles[t].position[d]);
+		}
+
+		final ImageInformation[] indices = new ImageInformation[numTiles];
+		final int[] tileIndices = new int[numTiles];
+		final float[] pixels = new float[numTiles];
+		final int[][] rgbPixels = new int[numTiles][3];
+		final float[] weights = new float[numTiles];
+		final int[] tmp = new int[numTiles];
+		final int[] pos = new int[3];
+		final int[] finalRGBPixel = new int[3];
+		
+		final ImageStack stack = new ImageStack(blockW, blockH);
+		
+		for (int z = 0; z < blockD; z++)
+		{
+			final ImageProcessor ip;
+			if (imageType == ImagePlus.GRAY8) ip = new ByteProcessor(blockW, blockH);
+			else if (imageType == ImagePlus.GRAY16) ip = new ShortProcessor(blockW, blockH);
+			else if (imageType == ImagePlus.GRAY32) ip = new FloatProcessor(blockW, blockH);
+			else ip = new ColorProcessor(blockW, blockH);
+			
+			pos[2] = start[2] + z;
+
+			for (int y = 0; y < blockH; y++)
+			{
+				pos[1] = start[1] + y;
+				
+				for (int x = 0; x < blockW; x++)
+				{
+					pos[0] = start[0] + x;
+					
+					// check which images are needed for this coordinate
+					int num = 0;
+					for (int t = 0; t < numTiles; t++)
+					{
+						boolean isInside = true;
+						for (int d = 0; d < dim && isInside; d++)
+							if (pos[d] < offset[t][d] || pos[d] >= offset[t][d] + size[t][d])
+								isInside = false;
+						
+						if (isInside)
+						{
+							indices[num] = tiles[t];
+							tileIndices[num++] = t;
+						}
+					}
+					
+					if (num == 0)
+						continue;
+					
+					// get the pixel values of all images that contribute
+					for (int i = 0; i < num; i++)
+					{
+						final int t = tileIndices[i];
+						final int localZ = dim == 3 ? pos[2] - offset[t][2] : 0;
+						
+						if (imageType == ImagePlus.COLOR_RGB)
+							rgbPixels[i] = getPixelMinRGB(imageStacks[t], size[t][0], size[t][1], size[t][2], pos[0] - offset[t][0], pos[1] - offset[t][1], localZ, 0);
+						else
+							pixels[i] = getPixelMin(imageType, imageStacks[t], size[t][0], size[t][1], size[t][2], pos[0] - offset[t][0], pos[1] - offset[t][1], localZ, 0);
+					}
+					
+					// compute the final value for the pixel
+					if (imageType == ImagePlus.COLOR_RGB)
+					{
+						for (int c = 0; c < 3; c++)
+						{
+							if (type == MIN)
+								finalRGBPixel[c] = getMin(rgbPixels, c, num);
+							else if (type == MAX)
+								finalRGBPixel[c] = getMax(rgbPixels, c, num);
+							else if (type == AVG)
+								finalRGBPixel[c] = avg(rgbPixels, c, num);
+							else if (type == CommonFunctions.NONE)
+								finalRGBPixel[c] = rgbPixels[num - 1][c];
+						}
+						
+						if (type == LIN_BLEND)
+						{
+							computeLinearWeights(indices, num, pos, weights, tmp, alpha);
+							for (int c = 0; c < 3; c++)
+								finalRGBPixel[c] = avg(rgbPixels, c, weights, num);
+						}
+						
+						ip.putPixel(x, y, finalRGBPixel);
+					}
+					else
+					{
+						final float finalPixel;
+						
+						if (type == MIN)
+							finalPixel = getMin(pixels, num);
+						else if (type == MAX)
+							// fuseImages() paints the tiles into a black image, so like
+							// there, negative values of 32-bit tiles are clamped to 0
+							finalPixel = Math.max(getMax(pixels, num), 0);
+						else if (type == AVG)
+							finalPixel = avg(pixels, num);
+						else if (type == CommonFunctions.NONE)
+							finalPixel = pixels[num - 1];
+						else // Linear Blending
+						{
+							computeLinearWeights(indices, num, pos, weights, tmp, alpha);
+							finalPixel = avg(pixels, weights, num);
+						}
+						
+						if (imageType == ImagePlus.GRAY8 || imageType == ImagePlus.GRAY16)
+							ip.putPixel(x, y, (int) (finalPixel + 0.5));
+						else
+							ip.putPixelValue(x, y, finalPixel);
+					}
+				}
+			}
+			
+			stack.addSlice("", ip);
+		}
+		
+		if (imageType == ImagePlus.GRAY32)
+			stack.getProcessor(1).resetMinAndMax();
+		
+		return stack;
+	}
+	
 	protected static Calibration updateCalibration( Calibration cal, Calibration newOne )
 	{
 		if ( cal == null )
@@ -873,6 +1258,34 @@ public class Stitch_Image_Collection implements PlugIn
 		return min;
 	}
 
+	final private static int getMax(final int[][] values, final int channel, final int num)
+	{
+		if (num == 0)
+			return 0;
+
+		int max = Integer.MIN_VALUE;		
+		
+		for (int i = 0; i < num; i++)
+			if (values[i][channel] > max)
+				max = values[i][channel];
+		
+		return max;
+	}
+
+	final private static float getMax(final float[] values, final int num)
+	{
+		if (num == 0)
+			return 0;
+
+		float max = values[0];
+		
+		for (int i = 0; i < num; i++)
+			if (values[i] > max)
+				max = values[i];
+		
+		return max;
+	}
+
 	final private static int getImagesAtCoordinate(final ArrayList<ImageInformation> imageInformationList, final ImageInformation indices[], final int[] pos)
 	{
 		int num = 0;
@@ -1073,7 +1486,7 @@ public class Stitch_Image_Collection implements PlugIn
 			
 			try
 			{
-				tc.optimize( 10, 10000, 200 );
+				tc.optimizeTranslations( 10000, 0.0001 );
 	
 				double avgError = tc.getAvgError();
 				double maxError = tc.getMaxError();				
@@ -1127,120 +1540,179 @@ public class Stitch_Image_Collection implements PlugIn
 	}
 	
 	/**
-	 * Compute phase correlation between overlapping tiles
+	 * Compute phase correlation between overlapping tiles. The pairs are
+	 * processed concurrently by as many threads as there are cores, but only
+	 * as many as fit into the free memory at once. Tiles that are not open
+	 * are loaded through a size-limited cache, so that a tile is not loaded
+	 * again for each of its neighbors.
 	 * 
 	 * @param overlappingTiles list of overlapping tiles
 	 * @param handleRGB RGB mode (@see stitching.CommonFunctions.colorList)
 	 */
-	private void computePhaseCorrelations(final ArrayList<OverlapProperties> overlappingTiles, String handleRGB)
+	private void computePhaseCorrelations(final ArrayList<OverlapProperties> overlappingTiles, final String handleRGB)
 	{
-		for (final OverlapProperties o : overlappingTiles)
+		if (overlappingTiles.size() == 0)
+			return;
+		
+		if (dim != 2 && dim != 3)
 		{
-			final ImagePlus imp1, imp2;
+			IJ.error("Dimensionality of images: " + dim  + " is not supported yet.");
+			return;
+		}
+		
+		final Runtime runtime = Runtime.getRuntime();
+		final long freeMemory = runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
+		
+		// half of the free memory for the pairs being processed, a quarter for the tiles
+		long pairBytes = 1;
+		for (final OverlapProperties o : overlappingTiles)
+			pairBytes = Math.max(pairBytes, estimatePhaseCorrelationMemory(o));
 
-			if (o.i1.imp == null)
+		final int numThreads = (int)Math.max(1, Math.min(Math.min(runtime.availableProcessors(), overlappingTiles.size()), freeMemory / 2 / pairBytes));
+		final TileCache tileCache = new TileCache(rgbOrder, freeMemory / 4);
+		
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = CommonFunctions.newThreads(numThreads);
+
+		for (int ithread = 0; ithread < threads.length; ++ithread)
+			threads[ithread] = new Thread(new Runnable()
 			{
-				imp1 = CommonFunctions.loadImage("", o.i1.imageName, rgbOrder);
-				o.i1.closeAtEnd = true;
-			}
+				public void run()
+				{
+					for (int i = ai.getAndIncrement(); i < overlappingTiles.size(); i = ai.getAndIncrement())
+						computePhaseCorrelation(overlappingTiles.get(i), handleRGB, tileCache);
+				}
+			});
+		
+		CommonFunctions.startAndJoin(threads);
+		tileCache.clear();
+
+		for (final OverlapProperties o : overlappingTiles)
+		{
+			if (dim == 3)
+				IJ.log(o.i1.id + " overlaps " + o.i2.id + ": " + o.R + " translation: " + o.translation3D);
 			else
-				imp1 = o.i1.imp;
+				IJ.log(o.i1.id + " overlaps " + o.i2.id + ": " + o.R + " translation: " + o.translation2D);
+		}
+	}
+	
+	/**
+	 * Estimate how much memory computing the phase correlation of a pair
+	 * takes: about 8 float copies of the overlapping part (at most the size of
+	 * the tiles), extended for the windowing and zero-padded for the FFT.
+	 * 
+	 * @param o the pair of tiles
+	 * @return the number of bytes
+	 */
+	private long estimatePhaseCorrelationMemory(final OverlapProperties o)
+	{
+		double size = 1;
+		for (int d = 0; d < dim; d++)
+			size *= 1.5 * Math.max(o.i1.size[d], o.i2.size[d]);
 
-			if (o.i2.imp == null)
-			{
-				imp2 = CommonFunctions.loadImage("", o.i2.imageName, rgbOrder);
-				o.i2.closeAtEnd = true;
-			}
+		return 8 * 4 * (long)size;
+	}
+	
+	/**
+	 * Compute phase correlation between two overlapping tiles. Works on
+	 * views of the tiles, so several pairs sharing a tile can be computed at
+	 * the same time.
+	 * 
+	 * @param o the pair of tiles, where the result is stored
+	 * @param handleRGB RGB mode (@see stitching.CommonFunctions.colorList)
+	 * @param tileCache where to get the tiles which are not open from
+	 */
+	private void computePhaseCorrelation(final OverlapProperties o, final String handleRGB, final TileCache tileCache)
+	{
+		final ImagePlus tile1 = tileCache.getTile(o.i1);
+		final ImagePlus tile2 = tileCache.getTile(o.i2);
+		
+		if (tile1 == null || tile2 == null)
+		{
+			o.R = -1;
+			if (dim == 3)
+				o.translation3D = new Point3D(0, 0, 0);
 			else
-			{
-				imp2 = o.i2.imp;
-			}
-			
+				o.translation2D = new Point2D(0, 0);
+			return;
+		}
+		
+		if (dim == 3)
+		{
+			// the stitching only reads the stacks, so they can be shared
+			final ImagePlus imp1 = new ImagePlus(tile1.getTitle(), tile1.getStack());
+			final ImagePlus imp2 = new ImagePlus(tile2.getTitle(), tile2.getStack());
+
 			// where do we overlap?
 			setROI(imp1, o.i1, o.i2);
 			setROI(imp2, o.i2, o.i1);
 			
-			//imp1.show();
-			//imp2.show();
+			final Stitching_3D stitch = new Stitching_3D();
+			stitch.checkPeaks = 5;
+			stitch.coregister = false;
+			stitch.fusedImageName = "Fused " + imp1.getTitle() + " " + imp2.getTitle();
+			stitch.fuseImages = false;
+			stitch.handleRGB1 = handleRGB;
+			stitch.handleRGB2 = handleRGB;				
+			stitch.imgStack1 = imp1.getTitle();				
+			stitch.imgStack2 = imp2.getTitle();
+			stitch.imp1 = imp1;
+			stitch.imp2 = imp2;
+			stitch.doLogging = false;
+			stitch.computeOverlap = true;
 			
-			if (dim == 3)
+			try
 			{
-				final Stitching_3D stitch = new Stitching_3D();
-				stitch.checkPeaks = 5;
-				stitch.coregister = false;
-				stitch.fusedImageName = "Fused " + imp1.getTitle() + " " + imp2.getTitle();
-				stitch.fuseImages = false;
-				stitch.handleRGB1 = handleRGB;
-				stitch.handleRGB2 = handleRGB;				
-				stitch.imgStack1 = imp1.getTitle();				
-				stitch.imgStack2 = imp2.getTitle();
-				stitch.imp1 = imp1;
-				stitch.imp2 = imp2;
-				stitch.doLogging = false;
-				stitch.computeOverlap = true;
+				stitch.work();
 				
-				try
-				{
-					stitch.work();
-					
-					o.R = stitch.getCrossCorrelationResult().R;
-					o.translation3D = stitch.getTranslation();
-				}
-				catch (Exception e)
-				{
-					o.R = -1;
-					o.translation3D = new Point3D(0,0,0);
-				}
-								
-				IJ.log(o.i1.id + " overlaps " + o.i2.id + ": " + o.R + " translation: " + o.translation3D);
+				o.R = stitch.getCrossCorrelationResult().R;
+				o.translation3D = stitch.getTranslation();
 			}
-			else if (dim == 2)
+			catch (Exception e)
 			{
-				final Stitching_2D stitch = new Stitching_2D();
-				stitch.checkPeaks = 5;
-				stitch.fusedImageName = "Fused " + imp1.getTitle() + " " + imp2.getTitle();
-				stitch.fuseImages = false;
-				stitch.handleRGB1 = handleRGB;
-				stitch.handleRGB2 = handleRGB;
-				stitch.image1 = imp1.getTitle();
-				stitch.image2 = imp2.getTitle();
-				
-				//final ImagePlus imp1b =  new ImagePlus("Imp1 B", imp1.getProcessor().duplicate());
-				final ImageProcessor ip1 = imp1.getProcessor().duplicate();
-				IJ.run(imp1, "Enhance Contrast", "saturated=0.1 normalize");				
-				stitch.imp1 = imp1;
-				
-				//final ImagePlus imp2b = new ImagePlus("Imp2 B", imp2.getProcessor().duplicate());
-				
-				final ImageProcessor ip2 = imp2.getProcessor().duplicate();
-				IJ.run(imp2, "Enhance Contrast", "saturated=0.1 normalize");				
-				stitch.imp2 = imp2;
-				
-				stitch.doLogging = false;
-				stitch.computeOverlap = true;
-				
-				try
-				{
-					stitch.work();
-					
-					o.R = stitch.getCrossCorrelationResult().R;
-					o.translation2D = stitch.getTranslation();
-				}
-				catch (Exception e)
-				{
-					o.R = -1;
-					o.translation2D = new Point2D(0, 0);
-				}
+				o.R = -1;
+				o.translation3D = new Point3D(0,0,0);
+			}
+		}
+		else
+		{
+			// the contrast is normalized for every pair, so work on copies
+			final ImagePlus imp1 = new ImagePlus(tile1.getTitle(), tile1.getProcessor().duplicate());
+			final ImagePlus imp2 = new ImagePlus(tile2.getTitle(), tile2.getProcessor().duplicate());
+
+			// where do we overlap?
+			setROI(imp1, o.i1, o.i2);
+			setROI(imp2, o.i2, o.i1);
+			
+			final Stitching_2D stitch = new Stitching_2D();
+			stitch.checkPeaks = 5;
+			stitch.fusedImageName = "Fused " + imp1.getTitle() + " " + imp2.getTitle();
+			stitch.fuseImages = false;
+			stitch.handleRGB1 = handleRGB;
+			stitch.handleRGB2 = handleRGB;
+			stitch.image1 = imp1.getTitle();
+			stitch.image2 = imp2.getTitle();
+			
+			IJ.run(imp1, "Enhance Contrast", "saturated=0.1 normalize");				
+			stitch.imp1 = imp1;
+			
+			IJ.run(imp2, "Enhance Contrast", "saturated=0.1 normalize");				
+			stitch.imp2 = imp2;
+			
+			stitch.doLogging = false;
+			stitch.computeOverlap = true;
+			
+			try
+			{
+				stitch.work();
 				
-				imp1.setProcessor(imp1.getTitle(), ip1);
-				imp2.setProcessor(imp2.getTitle(), ip2);
-								
-				IJ.log(o.i1.id + " overlaps " + o.i2.id + ": " + o.R + " translation: " + o.translation2D);
+				o.R = stitch.getCrossCorrelationResult().R;
+				o.translation2D = stitch.getTranslation();
 			}
-			else 
+			catch (Exception e)
 			{
-				IJ.error("Dimensionality of images: " + dim  + " is not supported yet.");
-				return;
+				o.R = -1;
+				o.translation2D = new Point2D(0, 0);
 			}
 		}
 	}
@@ -1364,8 +1836,13 @@ public class Stitch_Image_Collection implements PlugIn
 				}
 			}
 			
-			if (fusionMethod.equals(methodListCollection[MAX]) && iI.closeAtEnd)
+			if (iI.closeAtEnd)
+			{
+				// do not keep all tiles in memory, the phase correlation and the
+				// fusion load them again through a TileCache when needed
 				iI.imp.close();
+				iI.imp = null;
+			}
 		}
 		
 		for (int i = 0; i < imageInformationList.size();)
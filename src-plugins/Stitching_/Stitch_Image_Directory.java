@@ -61,6 +61,8 @@ public class Stitch_Image_Directory implements PlugIn
 	public static double thresholdRStatic = 0.3;
 	public static double thresholdDisplacementRelativeStatic = 2.5;
 	public static double thresholdDisplacementAbsoluteStatic = 3.5;
+	public static String outputDirectoryStatic = "";
+	public static int blockSizeStatic = 0;
 	
 	public void run(String arg0)
 	{
@@ -78,6 +80,8 @@ public class Stitch_Image_Directory implements PlugIn
 		gd.addNumericField("regression_threshold", thresholdRStatic, 2);
 		gd.addNumericField("max/avg_displacement_threshold", thresholdDisplacementRelativeStatic, 2);		
 		gd.addNumericField("absolute_displacement_threshold", thresholdDisplacementAbsoluteStatic, 2);		
+		gd.addDirectoryField("fuse_into_directory (leave empty to fuse in memory)", outputDirectoryStatic, 50);
+		gd.addNumericField("block_size (0 = automatic)", blockSizeStatic, 0);
 		gd.addMessage("");
 		gd.addMessage("This Plugin is developed by Stephan Preibisch\n" + myURL);
 
@@ -114,6 +118,12 @@ public class Stitch_Image_Directory implements PlugIn
 		gridLayout.thresholdDisplacementAbsolute = gd.getNextNumber();
 		thresholdDisplacementAbsoluteStatic = gridLayout.thresholdDisplacementAbsolute;
 		
+		gridLayout.outputDirectory = gd.getNextString().trim();
+		outputDirectoryStatic = gridLayout.outputDirectory;
+		
+		gridLayout.blockSize = (int)Math.round(gd.getNextNumber());
+		blockSizeStatic = gridLayout.blockSize;
+		
 		// get all files from the directory
 		File dir = new File(imageDir);
 		if ( !dir.isDirectory() )
@@ -75,6 +75,8 @@ public class Stitch_Image_Grid implements PlugIn
 	public static double thresholdDisplacementAbsoluteStatic = 3.5;
 	public static boolean previewOnlyStatic = false;
 	public static boolean computeOverlapStatic = true;
+	public static String outputDirectoryStatic = "";
+	public static int blockSizeStatic = 0;
 	
 	public void run(String arg0)
 	{
@@ -102,6 +104,8 @@ public class Stitch_Image_Grid implements PlugIn
 		gd.addNumericField("absolute_displacement_threshold", thresholdDisplacementAbsoluteStatic, 2);		
 		gd.addCheckbox("create_only_preview", previewOnlyStatic);
 		gd.addCheckbox("compute_overlap (otherwise use the coordinates given in the layout file)", computeOverlapStatic );
+		gd.addDirectoryField("fuse_into_directory (leave empty to fuse in memory)", outputDirectoryStatic, 50);
+		gd.addNumericField("block_size (0 = automatic)", blockSizeStatic, 0);
 		gd.addMessage("");
 		gd.addMessage("This Plugin is developed by Stephan Preibisch\n" + myURL);
 
@@ -170,6 +174,12 @@ public class Stitch_Image_Grid implements PlugIn
 		boolean computeOverlap = gd.getNextBoolean();
 		computeOverlapStatic = computeOverlap;
 		
+		gridLayout.outputDirectory = gd.getNextString().trim();
+		outputDirectoryStatic = gridLayout.outputDirectory;
+		
+		gridLayout.blockSize = (int)Math.round(gd.getNextNumber());
+		blockSizeStatic = gridLayout.blockSize;
+		
 		stitchImageGrid(filenames, directory, gridLayout, handleRGB, 
 				fusionMethod, output, overlap, startX, startY, startI, 
 				writeOnlyOutput, previewOnly, computeOverlap);
@@ -29,6 +29,8 @@ import ij.gui.MultiLineLabel;
 import ij.io.FileSaver;
 import ij.plugin.PlugIn;
 
+import java.io.File;
+
 /**
  * Plugin class to stitch a sequence of grid of images (fixed X/Y configuration)
  * 
@@ -59,6 +61,8 @@ public class Stitch_Image_Grid_Sequence implements PlugIn
 	public static double thresholdDisplacementAbsoluteStatic = 3.5;
 	public static boolean previewOnlyStatic = false;
 	public static boolean computeOverlapStatic = true;
+	public static boolean fuseIntoBlocksStatic = false;
+	public static int blockSizeStatic = 0;
 
 	public void run(String arg0) 
 	{
@@ -90,6 +94,8 @@ public class Stitch_Image_Grid_Sequence implements PlugIn
 		gd.addNumericField("absolute_displacement_threshold", thresholdDisplacementAbsoluteStatic, 2);		
 		gd.addCheckbox("create_only_preview", previewOnlyStatic);
 		gd.addCheckbox("compute_overlap (otherwise use the coordinates given in the layout file)", computeOverlapStatic );
+		gd.addCheckbox("fuse_into_blocks (one subdirectory of the output directory per section)", fuseIntoBlocksStatic );
+		gd.addNumericField("block_size (0 = automatic)", blockSizeStatic, 0);
 		gd.addMessage("");
 		gd.addMessage("This Plugin is maintained by Ignacio Arganda-Carreras\n" + myURL);
 
@@ -163,6 +169,15 @@ public class Stitch_Image_Grid_Sequence implements PlugIn
 		boolean computeOverlap = gd.getNextBoolean();
 		computeOverlapStatic = computeOverlap;
 		
+		boolean fuseIntoBlocks = gd.getNextBoolean();
+		fuseIntoBlocksStatic = fuseIntoBlocks;
+		
+		gridLayout.blockSize = (int)Math.round(gd.getNextNumber());
+		blockSizeStatic = gridLayout.blockSize;
+		
+		if (fuseIntoBlocks)
+			gridLayout.outputDirectory = outputDirectory;
+		
 		stitchImageGridSequence(gridSizeZStatic, filenames, inputDirectory, gridLayout, handleRGB, 
 				fusionMethod, outputFileName, outputDirectory, overlap, startX, startY, startZ, startI, 
 				writeOnlyOutput, previewOnly, computeOverlap);
@@ -172,6 +187,9 @@ public class Stitch_Image_Grid_Sequence implements PlugIn
 	/**
 	 * Stitch sequence of image grids (all grids must have the same X/Y configuration)
 	 * 
+	 * If gridLayout.outputDirectory is set, every section is fused into blocks
+	 * in its own subdirectory of it instead of being saved as a single image.
+	 * 
 	 * @param nSections
 	 * @param filenames
 	 * @param inputDirectory
@@ -227,16 +245,31 @@ public class Stitch_Image_Grid_Sequence implements PlugIn
 		
 		final int gridSize = gridLayout.sizeX + gridLayout.sizeY;
 		
+		final String blockDirectory = gridLayout.outputDirectory;
+		final boolean fuseIntoBlocks = blockDirectory != null && blockDirectory.length() > 0;
+		
 		for(int z = 0; z < nSections; z++)
 		{
 			final int zs = z + startZ;
 			final String file = filenames.replace(replaceZ, Stitch_Image_Grid.getLeadingZeros(numZValues, zs));
 			final String outTileConfName = outputFileName.replace(replaceZ, Stitch_Image_Grid.getLeadingZeros(numZValues, zs)); 
 			
+			if (fuseIntoBlocks)
+				gridLayout.outputDirectory = new File(blockDirectory, "Stitched Image_" 
+						+ Stitch_Image_Grid.getLeadingZeros(numZValues, zs)).getPath();
+			
 			final ImagePlus fusedImage = 
 				Stitch_Image_Grid.stitchImageGrid(file, inputDirectory, gridLayout, handleRGB, fusionMethod, 
 					outTileConfName, overlap, startX, startY, startI, writeOnlyOutput, previewOnly, computeOverlap);
 			
+			// the blocks are written by the stitching already, there is no image to save
+			if (fuseIntoBlocks && !writeOnlyOutput && !previewOnly)
+			{
+				IJ.log("Fused into " + gridLayout.outputDirectory);
+				startI += gridSize;
+				continue;
+			}
+			
 			if (fusedImage == null)
 				return;
 			
@@ -31,4 +31,6 @@ public class GridLayout
 	public double thresholdR = 0.3;
 	public double thresholdDisplacementRelative = 2.5;
 	public double thresholdDisplacementAbsolute = 3.5;
+	public String outputDirectory = null;
+	public int blockSize = 0;
 }
@@ -0,0 +1,112 @@
+/**
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * An execption is the FFT implementation of Dave Hale which we use as a library,
+ * wich is released under the terms of the Common Public License - v1.0, which is
+ * available at http://www.eclipse.org/legal/cpl-v10.html
+ *
+ * @author Stephan Preibisch
+ */
+package stitching;
+
+import ij.ImagePlus;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-limited cache of the tiles of a collection which are not kept open
+ * (ImageInformation.imp is null), so that a tile is loaded once for all the
+ * pairs it is part of, as long as these pairs are processed close together.
+ * When the cached tiles take more than the given number of bytes, the least
+ * recently used ones are dropped. Can be used from several threads at once,
+ * the same tile is never loaded by two threads at the same time.
+ */
+public class TileCache
+{
+	final String rgbOrder;
+	final long maxBytes;
+	long bytes = 0;
+
+	final LinkedHashMap<ImageInformation, ImagePlus> tiles = new LinkedHashMap<ImageInformation, ImagePlus>(16, 0.75f, true);
+
+	public TileCache(final String rgbOrder, final long maxBytes)
+	{
+		this.rgbOrder = rgbOrder;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the image of a tile: the open one if there is one, otherwise
+	 * the cached one, loading it if needed.
+	 *
+	 * @param iI the tile
+	 * @return the image, or null if it could not be loaded
+	 */
+	public ImagePlus getTile(final ImageInformation iI)
+	{
+		if (iI.imp != null)
+			return iI.imp;
+
+		synchronized (iI)
+		{
+			synchronized (this)
+			{
+				final ImagePlus imp = tiles.get(iI);
+				if (imp != null)
+					return imp;
+			}
+
+			final ImagePlus imp = CommonFunctions.loadImage("", iI.imageName, rgbOrder);
+			iI.closeAtEnd = true;
+
+			if (imp != null)
+				put(iI, imp);
+
+			return imp;
+		}
+	}
+
+	protected synchronized void put(final ImageInformation iI, final ImagePlus imp)
+	{
+		tiles.put(iI, imp);
+		bytes += getSizeInBytes(imp);
+
+		// drop the least recently used tiles, but never the one just loaded;
+		// threads still working on a dropped tile keep their reference to it
+		final Iterator<Map.Entry<ImageInformation, ImagePlus>> it = tiles.entrySet().iterator();
+		while (bytes > maxBytes && tiles.size() > 1)
+		{
+			final ImagePlus eldest = it.next().getValue();
+			it.remove();
+			bytes -= getSizeInBytes(eldest);
+		}
+	}
+
+	/**
+	 * Removes all tiles from the cache.
+	 */
+	public synchronized void clear()
+	{
+		tiles.clear();
+		bytes = 0;
+	}
+
+	public static long getSizeInBytes(final ImagePlus imp)
+	{
+		final int bytesPerPixel = imp.getBitDepth() == 24 ? 4 : Math.max(1, imp.getBitDepth() / 8);
+		return (long)imp.getWidth() * imp.getHeight() * imp.getStackSize() * bytesPerPixel;
+	}
+}
@@ -58,8 +58,10 @@ public class ErrorStatistic
 		var += tmp * tmp / ( double )( values.size() - 1 );
 		std = Math.sqrt( var );
 		
-		sortedValues.add( new_value );
-		Collections.sort( sortedValues );
+		// insert at the sorted position instead of sorting all values again
+		int index = Collections.binarySearch( sortedValues, new_value );
+		if ( index < 0 ) index = -index - 1;
+		sortedValues.add( index, new_value );
 		
 		if ( sortedValues.size() % 2 == 0 )
 		{
@@ -25,6 +25,7 @@ package stitching.model;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.IdentityHashMap;
 
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
@@ -56,6 +57,7 @@ public class TileConfiguration
 	private double maxError = 0.0;
 	private double error = Double.MAX_VALUE;
 	private Tile worstTile = null;
+	private ErrorStatistic observer = null;
 	
 	public TileConfiguration()
 	{
@@ -71,6 +73,11 @@ public class TileConfiguration
 	final public Tile getWorstError() {	return worstTile; }
 	final public double getAvgError() {	return error; }
 	
+	/**
+	 * The average displacement after each iteration of the last optimization.
+	 */
+	final public ErrorStatistic getErrorStatistic() { return observer; }
+	
 	/**
 	 * Add a single tile.
 	 * 
@@ -132,7 +139,7 @@ public class TileConfiguration
 			int maxIterations,
 			int maxPlateauwidth ) throws NotEnoughDataPointsException 
 	{
-		ErrorStatistic observer = new ErrorStatistic();
+		observer = new ErrorStatistic();
 		
 		int i = 0;
 		
@@ -164,5 +171,283 @@ public class TileConfiguration
 		IJ.log( "  minimal displacement: " + decimalFormat.format( minError ) + "px" );
 		IJ.log( "  maximal displacement: " + decimalFormat.format( maxError ) + "px" );
 	}
-
+	
+	/**
+	 * Minimize the displacement of all correspondence pairs of all tiles in
+	 * one global least-squares solve.  Requires all tiles to have
+	 * {@link TranslationModel2D}s or all to have {@link TranslationModel3D}s.
+	 * 
+	 * For translations, the iterative {@link #optimize(float, int, int)}
+	 * performs Gauss-Seidel steps on a linear system whose matrix is the
+	 * weighted Laplacian of the tile-adjacency graph, which converges slowly
+	 * for thousands of tiles.  Here, this sparse system is built once and
+	 * solved by Jacobi-preconditioned conjugate gradients for all dimensions
+	 * at once, starting from the current models.  Fixed tiles and
+	 * correspondences to tiles that are not part of this configuration are
+	 * treated as constants.
+	 * 
+	 * The average displacement after each iteration is available through
+	 * {@link #getErrorStatistic()}.
+	 * 
+	 * @param maxIterations stop after that many iterations even if the
+	 *   solution has not converged
+	 * @param precision convergence is reached if no tile would move by more
+	 *   than this (in world units) in a further Jacobi step
+	 */
+	public void optimizeTranslations(
+			int maxIterations,
+			double precision ) throws NotEnoughDataPointsException
+	{
+		final int numTiles = tiles.size();
+		if ( numTiles == 0 ) return;
+		
+		final float[][] translations = new float[ numTiles ][];
+		for ( int i = 0; i < numTiles; ++i )
+		{
+			final Model model = tiles.get( i ).getModel();
+			translations[ i ] = getTranslation( model );
+			if ( translations[ i ] == null || translations[ i ].length != translations[ 0 ].length )
+				throw new IllegalArgumentException( "Tile " + i + " does not have the same kind of translation model as the first tile: " + model );
+		}
+		final int n = translations[ 0 ].length;
+		
+		// bring all world coordinates up to date, the fixed tiles keep them
+		for ( final Tile t : tiles )
+			t.update();
+		
+		// number the tiles to be optimized, the unknowns
+		final int[] unknown = new int[ numTiles ];
+		int numUnknowns = 0;
+		for ( int i = 0; i < numTiles; ++i )
+			unknown[ i ] = fixedTiles.contains( tiles.get( i ) ) ? -1 : numUnknowns++;
+		
+		// every point is the local point p1 of a match of the tile it belongs to
+		final IdentityHashMap< Point, Integer > owner = new IdentityHashMap< Point, Integer >();
+		int numMatches = 0;
+		for ( int i = 0; i < numTiles; ++i )
+			for ( final PointMatch m : tiles.get( i ).getMatches() )
+			{
+				owner.put( m.getP1(), unknown[ i ] );
+				++numMatches;
+			}
+		
+		/*
+		 * Every match contributes w * | t_i + p - t_j - q |^2, with p and q
+		 * being the local coordinates of p1 and p2 if their tile is optimized,
+		 * otherwise their constant world coordinates and t = 0.  For each
+		 * match, remember the unknowns of both points and p - q to evaluate
+		 * the displacement during the iterations.
+		 */
+		final int[] matchTile = new int[ numMatches ];
+		final int[] pIndex = new int[ numMatches ];
+		final int[] qIndex = new int[ numMatches ];
+		final double[] offset = new double[ numMatches * n ];
+		final int[] numTileMatches = new int[ numTiles ];
+		
+		int k = 0;
+		for ( int i = 0; i < numTiles; ++i )
+			for ( final PointMatch m : tiles.get( i ).getMatches() )
+			{
+				final Integer j = owner.get( m.getP2() );
+				matchTile[ k ] = i;
+				pIndex[ k ] = unknown[ i ];
+				qIndex[ k ] = j == null ? -1 : j.intValue();
+				final float[] pk = pIndex[ k ] >= 0 ? m.getP1().getL() : m.getP1().getW();
+				final float[] qk = qIndex[ k ] >= 0 ? m.getP2().getL() : m.getP2().getW();
+				for ( int d = 0; d < n; ++d )
+					offset[ k * n + d ] = ( double )pk[ d ] - qk[ d ];
+				++numTileMatches[ i ];
+				++k;
+			}
+		
+		// the sparse symmetric system A t = b, one right hand side per dimension
+		final int[] rowStart = new int[ numUnknowns + 1 ];
+		final int[] columns = new int[ numMatches ];
+		final double[] values = new double[ numMatches ];
+		final double[] diagonal = new double[ numUnknowns ];
+		final double[][] b = new double[ n ][ numUnknowns ];
+		
+		final double[] rowValues = new double[ numUnknowns ];
+		final int[] rowColumns = new int[ numUnknowns ];
+		int numEntries = 0;
+		k = 0;
+		for ( int i = 0; i < numTiles; ++i )
+		{
+			final int row = unknown[ i ];
+			if ( row < 0 )
+			{
+				k += numTileMatches[ i ];
+				continue;
+			}
+			
+			int numRowColumns = 0;
+			for ( final PointMatch m : tiles.get( i ).getMatches() )
+			{
+				final double w = m.getWeight();
+				diagonal[ row ] += w;
+				for ( int d = 0; d < n; ++d )
+					b[ d ][ row ] -= w * offset[ k * n + d ];
+				
+				final int column = qIndex[ k ];
+				if ( column >= 0 && column != row )
+				{
+					if ( rowValues[ column ] == 0 )
+						rowColumns[ numRowColumns++ ] = column;
+					rowValues[ column ] -= w;
+				}
+				++k;
+			}
+			
+			if ( diagonal[ row ] <= 0 )
+				throw new NotEnoughDataPointsException( "Tile " + i + " has no weighted point matches, its translation cannot be estimated." );
+			
+			rowStart[ row ] = numEntries;
+			for ( int c = 0; c < numRowColumns; ++c )
+			{
+				columns[ numEntries ] = rowColumns[ c ];
+				values[ numEntries++ ] = rowValues[ rowColumns[ c ] ];
+				rowValues[ rowColumns[ c ] ] = 0;
+			}
+		}
+		rowStart[ numUnknowns ] = numEntries;
+		
+		// preconditioned conjugate gradients, starting at the current translations
+		final double[][] x = new double[ n ][ numUnknowns ];
+		final double[][] r = new double[ n ][ numUnknowns ];
+		final double[][] p = new double[ n ][ numUnknowns ];
+		final double[][] q = new double[ n ][ numUnknowns ];
+		final double[] rz = new double[ n ];
+		
+		for ( int i = 0; i < numTiles; ++i )
+			if ( unknown[ i ] >= 0 )
+				for ( int d = 0; d < n; ++d )
+					x[ d ][ unknown[ i ] ] = translations[ i ][ d ];
+		
+		multiply( rowStart, columns, values, diagonal, x, q );
+		double maxStep = 0;
+		for ( int d = 0; d < n; ++d )
+			for ( int row = 0; row < numUnknowns; ++row )
+			{
+				r[ d ][ row ] = b[ d ][ row ] - q[ d ][ row ];
+				p[ d ][ row ] = r[ d ][ row ] / diagonal[ row ];
+				rz[ d ] += r[ d ][ row ] * p[ d ][ row ];
+				maxStep = Math.max( maxStep, Math.abs( p[ d ][ row ] ) );
+			}
+		
+		observer = new ErrorStatistic();
+		final double[] tileDistance = new double[ numTiles ];
+		
+		int i = 0;
+		while ( i < maxIterations && maxStep > precision )
+		{
+			multiply( rowStart, columns, values, diagonal, p, q );
+			
+			maxStep = 0;
+			for ( int d = 0; d < n; ++d )
+			{
+				double pq = 0;
+				for ( int row = 0; row < numUnknowns; ++row )
+					pq += p[ d ][ row ] * q[ d ][ row ];
+				
+				// this dimension has converged already
+				if ( pq <= 0 )
+					continue;
+				
+				final double alpha = rz[ d ] / pq;
+				double rzNew = 0;
+				for ( int row = 0; row < numUnknowns; ++row )
+				{
+					x[ d ][ row ] += alpha * p[ d ][ row ];
+					r[ d ][ row ] -= alpha * q[ d ][ row ];
+					final double z = r[ d ][ row ] / diagonal[ row ];
+					rzNew += r[ d ][ row ] * z;
+					maxStep = Math.max( maxStep, Math.abs( z ) );
+				}
+				
+				final double beta = rzNew / rz[ d ];
+				rz[ d ] = rzNew;
+				for ( int row = 0; row < numUnknowns; ++row )
+					p[ d ][ row ] = r[ d ][ row ] / diagonal[ row ] + beta * p[ d ][ row ];
+			}
+			
+			// the average displacement, as computed by update()
+			for ( int t = 0; t < numTiles; ++t )
+				tileDistance[ t ] = 0;
+			
+			for ( k = 0; k < numMatches; ++k )
+			{
+				double sum = 0;
+				for ( int d = 0; d < n; ++d )
+				{
+					double diff = offset[ k * n + d ];
+					if ( pIndex[ k ] >= 0 ) diff += x[ d ][ pIndex[ k ] ];
+					if ( qIndex[ k ] >= 0 ) diff -= x[ d ][ qIndex[ k ] ];
+					sum += diff * diff;
+				}
+				tileDistance[ matchTile[ k ] ] += Math.sqrt( sum ) / numTileMatches[ matchTile[ k ] ];
+			}
+			
+			double cd = 0;
+			for ( int t = 0; t < numTiles; ++t )
+				cd += tileDistance[ t ];
+			observer.add( cd / numTiles );
+			
+			++i;
+		}
+		
+		for ( int t = 0; t < numTiles; ++t )
+			if ( unknown[ t ] >= 0 )
+				for ( int d = 0; d < n; ++d )
+					translations[ t ][ d ] = ( float )x[ d ][ unknown[ t ] ];
+		
+		// move all points first, update() measures against the points of the other tiles
+		for ( final Tile t : tiles )
+			t.update();
+		update();
+		
+		IJ.log( "Successfully optimized configuration of " + tiles.size() + " tiles after " + i + " iterations:" );
+		IJ.log( "  average displacement: " + decimalFormat.format( error ) + "px" );
+		IJ.log( "  minimal displacement: " + decimalFormat.format( minError ) + "px" );
+		IJ.log( "  maximal displacement: " + decimalFormat.format( maxError ) + "px" );
+	}
+	
+	/**
+	 * The translation vector of a {@link TranslationModel2D} or
+	 * {@link TranslationModel3D}, null for other {@link Model}s.
+	 */
+	final static private float[] getTranslation( final Model model )
+	{
+		if ( model instanceof TranslationModel2D )
+			return ( ( TranslationModel2D )model ).getTranslation();
+		else if ( model instanceof TranslationModel3D )
+			return ( ( TranslationModel3D )model ).getTranslation();
+		else
+			return null;
+	}
+	
+	/**
+	 * q = A p for the sparse symmetric matrix given by its diagonal and the
+	 * off-diagonal entries of each row, for all dimensions.
+	 */
+	final static private void multiply(
+			final int[] rowStart,
+			final int[] columns,
+			final double[] values,
+			final double[] diagonal,
+			final double[][] p,
+			final double[][] q )
+	{
+		for ( int d = 0; d < p.length; ++d )
+		{
+			final double[] pd = p[ d ];
+			final double[] qd = q[ d ];
+			for ( int row = 0; row < diagonal.length; ++row )
+			{
+				double sum = diagonal[ row ] * pd[ row ];
+				for ( int e = rowStart[ row ]; e < rowStart[ row + 1 ]; ++e )
+					sum += values[ e ] * pd[ columns[ e ] ];
+				qd[ row ] = sum;
+			}
+		}
+	}
 }
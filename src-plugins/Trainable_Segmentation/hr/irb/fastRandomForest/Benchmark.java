@@ -51,6 +51,12 @@ import weka.experiment.PairedStatsCorrected;
  * As third command-line parameter, supply a comma separated list of number of
  * threads to use, eg. "1,2,4". If ommited, default value is assumed (autodetect
  * number of cores in machine).
+ *
+ * After the crossvalidation, a FastRandomForest is trained on the whole of each
+ * dataset, and the time needed to classify all its instances is compared
+ * between walking the FastRandomTree objects one instance at a time, the
+ * flat array forest one instance at a time, and the batched prediction over
+ * columns of values with each of the given numbers of threads.
  * 
  * @author Fran Supek (fran.supek[AT]irb.hr)
  */
@@ -182,6 +188,8 @@ public class Benchmark {
               pscTime.xStats.mean / pscTime.yStats.mean
               );
 
+      benchmarkPrediction(curArff.getName(), data, args[1], threadNums);
+
     } // arff by arff
 
     
@@ -189,6 +197,82 @@ public class Benchmark {
 
   
 
+  /**
+   * Trains a FastRandomForest on the whole dataset, then classifies all its
+   * instances numRuns times in each of these ways, and prints the times:
+   * (a) instance by instance, walking the FastRandomTree objects (as before
+   * the trees were stored in flat arrays), (b) instance by instance, using
+   * the flat arrays, and (c) in batches over columns of values, using each
+   * of the given numbers of threads. Also checks that the predictions agree.
+   */
+  public static void benchmarkPrediction(String name, Instances data,
+          String numTrees, List<Integer> threadNums) throws Exception {
+
+    FastRandomForest forest = new FastRandomForest();
+    forest.setOptions(new String[]{"-I", numTrees});
+    forest.buildClassifier(data);
+
+    int numInstances = data.numInstances();
+
+    // column-major copy of the data, as FastRandomForest.classifyColumns wants
+    float[][] columns = new float[data.numAttributes()][numInstances];
+    for (int a = 0; a < data.numAttributes(); a++)
+      for (int i = 0; i < numInstances; i++)
+        columns[a][i] = data.instance(i).isMissing(a)
+                ? Float.NaN : (float) data.instance(i).value(a);
+
+    double[] treeResult = new double[numInstances];
+    long millis = System.currentTimeMillis();
+    for (int curRun = 0; curRun < numRuns; curRun++)
+      for (int i = 0; i < numInstances; i++)
+        treeResult[i] = Utils.maxIndex(
+                forest.m_bagger.distributionForInstance(data.instance(i)));
+    long treeTime = System.currentTimeMillis() - millis;
+
+    double[] flatResult = new double[numInstances];
+    millis = System.currentTimeMillis();
+    for (int curRun = 0; curRun < numRuns; curRun++)
+      for (int i = 0; i < numInstances; i++)
+        flatResult[i] = Utils.maxIndex(
+                forest.distributionForInstance(data.instance(i)));
+    long flatTime = System.currentTimeMillis() - millis;
+
+    int disagreements = 0;
+    for (int i = 0; i < numInstances; i++)
+      if (treeResult[i] != flatResult[i])
+        disagreements++;
+
+    StringBuilder s = new StringBuilder();
+    for (int numThreads : threadNums) {
+
+      forest.setNumThreads(numThreads);
+      double[] batchResult = null;
+      millis = System.currentTimeMillis();
+      for (int curRun = 0; curRun < numRuns; curRun++)
+        batchResult = forest.classifyColumns(columns, numInstances);
+      long batchTime = System.currentTimeMillis() - millis;
+
+      for (int i = 0; i < numInstances; i++)
+        if (treeResult[i] != batchResult[i] && !Double.isNaN(batchResult[i]))
+          disagreements++;
+
+      s.append(String.format( Locale.US, ", batched with %d threads %d ms " +
+              "(speedup %4.1f times)", numThreads, batchTime,
+              treeTime / (double) Math.max(1, batchTime)));
+
+    }
+
+    System.out.printf( Locale.US, "Dataset '%s': classifying %d instances " +
+            "%d times took %d ms with the tree objects, %d ms with the flat " +
+            "trees (speedup %4.1f times)%s. Predictions differing: %d.\n",
+            name, numInstances, numRuns, treeTime, flatTime,
+            treeTime / (double) Math.max(1, flatTime), s.toString(),
+            disagreements);
+
+  }
+
+
+
   /**
    * When supplied with a directory name, returns an ArrayList with all the
    * files inside that directory that have the specified extension.
@@ -94,15 +94,7 @@ public class DataCache {
     numClasses = origData.numClasses();
     numInstances = origData.numInstances();
 
-    attNumVals = new int[origData.numAttributes()];
-    for (int i = 0; i < attNumVals.length; i++) {
-      if (origData.attribute(i).isNumeric()) {
-        attNumVals[i] = 0;
-      } else if (origData.attribute(i).isNominal()) {
-        attNumVals[i] = origData.attribute(i).numValues();
-      } else
-        throw new Exception("Only numeric and nominal attributes are supported.");
-    }
+    attNumVals = getAttNumVals(origData);
 
     /* Array is indexed by attribute first, to speed access in RF splitting. */
     vals = new float[numAttributes][numInstances];
@@ -122,8 +114,93 @@ public class DataCache {
       instClassValues[i] = (int) origData.instance(i).classValue();
     }
 
-    /* compute the sortedInstances for the whole dataset */
-    
+    createSortedIndices();
+
+    // System.out.println(" Done.");
+
+  }
+
+
+
+  /**
+   * Creates a DataCache directly from columns of attribute values, without
+   * going through weka.core.Instances - no object is created per instance.
+   * The columns are used as they are (not copied), except that NaN values in
+   * them are replaced by Float.MAX_VALUE, which marks missing values here.
+   *
+   * @param columns the attribute values, first indexed by attribute, then by
+   * instance; the column of the class attribute may be null
+   * @param header attribute information, with the class index set
+   * @param classValues the class each instance belongs to
+   * @param weights the instance weights, or null for a weight of 1 for all
+   * @throws Exception if there are unsupported attributes
+   */
+  public DataCache(float[][] columns, Instances header, int[] classValues,
+          double[] weights) throws Exception {
+
+    classIndex = header.classIndex();
+    numAttributes = header.numAttributes();
+    numClasses = header.numClasses();
+    numInstances = classValues.length;
+
+    if (columns.length != numAttributes)
+      throw new Exception("Expected " + numAttributes + " columns, got " +
+              columns.length + ".");
+
+    attNumVals = getAttNumVals(header);
+
+    vals = columns;
+    for (int a = 0; a < numAttributes; a++) {
+      if (a == classIndex && vals[a] == null) {
+        vals[a] = new float[numInstances];
+        for (int i = 0; i < numInstances; i++)
+          vals[a][i] = classValues[i];
+        continue;
+      }
+      if (vals[a].length != numInstances)
+        throw new Exception("Column " + a + " has " + vals[a].length +
+                " values instead of " + numInstances + ".");
+      float[] column = vals[a];
+      for (int i = 0; i < numInstances; i++)
+        if (Float.isNaN(column[i]))
+          column[i] = Float.MAX_VALUE;
+    }
+
+    instClassValues = classValues;
+    instWeights = new double[numInstances];
+    for (int i = 0; i < numInstances; i++)
+      instWeights[i] = (weights == null) ? 1.0 : weights[i];
+
+    createSortedIndices();
+
+  }
+
+
+
+  /**
+   * Describes the attributes of a dataset: 0 for numeric attributes, the
+   * number of categories for nominal ones.
+   */
+  private static int[] getAttNumVals(Instances data) throws Exception {
+
+    int[] attNumVals = new int[data.numAttributes()];
+    for (int i = 0; i < attNumVals.length; i++) {
+      if (data.attribute(i).isNumeric()) {
+        attNumVals[i] = 0;
+      } else if (data.attribute(i).isNominal()) {
+        attNumVals[i] = data.attribute(i).numValues();
+      } else
+        throw new Exception("Only numeric and nominal attributes are supported.");
+    }
+    return attNumVals;
+
+  }
+
+
+
+  /** Computes the sortedIndices for the whole dataset. */
+  private void createSortedIndices() {
+
     sortedIndices = new int[numAttributes][];
 
     for (int a = 0; a < numAttributes; a++) { // ================= attr by attr
@@ -163,8 +240,6 @@ public class DataCache {
 
     } // ========================================================= attr by attr
 
-    // System.out.println(" Done.");
-
   }
 
   
@@ -27,6 +27,7 @@ import weka.classifiers.AbstractClassifier;
 import weka.classifiers.Classifier;
 import weka.core.AdditionalMeasureProducer;
 import weka.core.Capabilities;
+import weka.core.DenseInstance;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Option;
@@ -41,8 +42,15 @@ import weka.core.TechnicalInformation.Type;
 
 
 
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import weka.core.RevisionUtils;
 
 /**
@@ -132,6 +140,9 @@ public class FastRandomForest
 
   /** The bagger. */
   protected FastRfBagging m_bagger = null;
+
+  /** The trees of the bagger frozen into flat arrays, used for prediction. */
+  protected transient FastRfFlatForest m_FlatForest = null;
   
   /** The maximum depth of the trees (0 = unlimited) */
   protected int m_MaxDepth = 0;
@@ -303,7 +314,8 @@ public class FastRandomForest
   }
 
   /**
-   * Get the number of simultaneous threads used in training, 0 for autodetect.
+   * Get the number of simultaneous threads used in training and in batch
+   * classification, 0 for autodetect.
    *
    * @return 		the maximum depth.
    */
@@ -312,7 +324,8 @@ public class FastRandomForest
   }
 
   /**
-   * Set the number of simultaneous threads used in training, 0 for autodetect.
+   * Set the number of simultaneous threads used in training and in batch
+   * classification, 0 for autodetect.
    *
    * @param value 	the maximum depth.
    */
@@ -578,6 +591,66 @@ public class FastRandomForest
     m_bagger.setCalcOutOfBag(true);
 
     m_bagger.buildClassifier(data, m_NumThreads, this);
+    m_FlatForest = m_bagger.createFlatForest(m_Info);
+  }
+
+
+  /**
+   * Builds a classifier for a set of instances held in a DataCache, which
+   * can be created directly from columns of attribute values without making
+   * an Instance object for each of them.
+   *
+   * @param data the instances to train the classifier with, none of them
+   * with a missing class
+   * @param header the attribute information of the data, with the class
+   * index set
+   * @throws Exception if something goes wrong
+   */
+  public void buildClassifier(DataCache data, Instances header) throws Exception {
+
+    // can classifier handle the data?
+    getCapabilities().testWithFail(header);
+
+    // only class? -> build ZeroR model
+    if (header.numAttributes() == 1) {
+      System.err.println(
+	  "Cannot build model (only class attribute present in data!), "
+	  + "using ZeroR model instead!");
+      Instances classOnly = new Instances(header, data.numInstances);
+      for (int i = 0; i < data.numInstances; i++)
+        classOnly.add(new DenseInstance(data.instWeights[i],
+                new double[]{ data.instClassValues[i] }));
+      m_ZeroR = new weka.classifiers.rules.ZeroR();
+      m_ZeroR.buildClassifier(classOnly);
+      m_Info = new Instances(header, 0);
+      return;
+    }
+    else {
+      m_ZeroR = null;
+    }
+
+    /* Save header with attribute info. Can be accessed later by FastRfTrees
+     * through their m_MotherForest field. */
+    m_Info = new Instances(header, 0);
+
+    m_bagger = new FastRfBagging();
+
+    // Set up the ree options which are held in the motherForest.
+    m_KValue = m_numFeatures;
+    if (m_KValue > header.numAttributes()-1) m_KValue = header.numAttributes()-1;
+    if (m_KValue < 1) m_KValue = (int) Utils.log2(header.numAttributes())+1;
+
+    FastRandomTree rTree = new FastRandomTree();
+    rTree.m_MotherForest = this; // allows to retrieve KValue and MaxDepth
+
+    // set up the bagger and build the forest
+    m_bagger.setClassifier(rTree);
+    m_bagger.setSeed(m_randomSeed);
+    m_bagger.setNumIterations(m_numTrees);
+    m_bagger.setCalcOutOfBag(true);
+
+    m_bagger.buildClassifier(data, m_NumThreads, this);
+    m_FlatForest = m_bagger.createFlatForest(m_Info);
   }
 
 
@@ -594,10 +667,178 @@ public class FastRandomForest
       return m_ZeroR.distributionForInstance(instance);
     }
         
-    return m_bagger.distributionForInstance(instance);
+    return getFlatForest().distributionForInstance(instance);
     
   }
 
+
+  /**
+   * Returns the class probability distribution for an instance stored in
+   * columns of attribute values, such as the planes of a feature stack, in
+   * the same order as the attributes the classifier was trained with. No
+   * Instance object is created, so whole images can be classified cheaply.
+   *
+   * @param vals the attribute values, first indexed by attribute, then by
+   * instance (the class column is not used and may be null)
+   * @param row the index of the instance in the columns
+   * @return the distribution the forest generates for the instance
+   * @throws Exception if computation fails
+   */
+  public double[] distributionForColumns(float[][] vals, int row) throws Exception {
+
+    if (m_ZeroR != null) {  // default model?
+      return zeroRDistribution();
+    }
+
+    return getFlatForest().distributionForColumns(vals, row);
+
+  }
+
+
+  /**
+   * Returns the class probability distributions for a range of instances
+   * stored in columns of attribute values. The instances are classified in
+   * blocks, each tree being applied to all the instances of a block in turn.
+   *
+   * @param vals the attribute values, first indexed by attribute, then by
+   * instance (the class column is not used and may be null)
+   * @param from the index of the first instance
+   * @param to the index after the last instance
+   * @return the distribution of each instance, the first one at index 0
+   * @throws Exception if computation fails
+   */
+  public double[][] distributionsForColumns(float[][] vals, int from, int to)
+          throws Exception {
+
+    if (m_ZeroR != null) {  // default model?
+      double[][] result = new double[to - from][];
+      for (int i = 0; i < result.length; i++)
+        result[i] = zeroRDistribution();
+      return result;
+    }
+
+    return getFlatForest().distributionsForColumns(vals, from, to);
+
+  }
+
+
+  /**
+   * Classifies a range of instances stored in columns of attribute values,
+   * with the same result as classifyInstance() gives for each of them. The
+   * instances are classified in blocks, each tree being applied to all the
+   * instances of a block in turn.
+   *
+   * @param vals the attribute values, first indexed by attribute, then by
+   * instance (the class column is not used and may be null)
+   * @param from the index of the first instance
+   * @param to the index after the last instance
+   * @param result the class index of instance i is stored here at index i
+   * (or a missing value, if the class cannot be predicted)
+   * @throws Exception if computation fails
+   */
+  public void classifyColumns(float[][] vals, int from, int to,
+          double[] result) throws Exception {
+
+    if (m_ZeroR != null) {  // default model?
+      double value = classifyInstance(zeroRInstance());
+      for (int i = from; i < to; i++)
+        result[i] = value;
+      return;
+    }
+
+    getFlatForest().classifyColumns(vals, from, to, result);
+
+  }
+
+
+  /**
+   * Classifies the first numInstances instances stored in columns of
+   * attribute values, using the number of threads set with setNumThreads().
+   * The threads take blocks of instances in turns.
+   *
+   * @param vals the attribute values, first indexed by attribute, then by
+   * instance (the class column is not used and may be null)
+   * @param numInstances the number of instances to classify
+   * @return the class index of each instance (or a missing value, if the
+   * class cannot be predicted)
+   * @throws Exception if computation fails
+   */
+  public double[] classifyColumns(final float[][] vals, final int numInstances)
+          throws Exception {
+
+    final double[] result = new double[numInstances];
+    final int numBlocks = (numInstances + FastRfFlatForest.BLOCK_SIZE - 1)
+            / FastRfFlatForest.BLOCK_SIZE;
+    final AtomicInteger nextBlock = new AtomicInteger();
+
+    int numThreads = m_NumThreads > 0 ? m_NumThreads
+            : Runtime.getRuntime().availableProcessors();
+    numThreads = Math.max(1, Math.min(numThreads, numBlocks));
+    ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
+
+    try {
+
+      List< Future<?> > futures = new ArrayList< Future<?> >(numThreads);
+      for (int t = 0; t < numThreads; t++) {
+        futures.add(threadPool.submit(new Callable<Object>() {
+          public Object call() throws Exception {
+            for (int block = nextBlock.getAndIncrement(); block < numBlocks;
+                    block = nextBlock.getAndIncrement()) {
+              int from = block * FastRfFlatForest.BLOCK_SIZE;
+              int to = Math.min(numInstances, from + FastRfFlatForest.BLOCK_SIZE);
+              classifyColumns(vals, from, to, result);
+            }
+            return null;
+          }
+        }));
+      }
+
+      for (Future<?> future : futures)
+        future.get();
+
+      threadPool.shutdown();
+
+    } finally {
+
+      threadPool.shutdownNow();
+
+    }
+
+    return result;
+
+  }
+
+
+  /**
+   * Returns the trees frozen into flat arrays, creating them if the forest
+   * was deserialized.
+   */
+  protected synchronized FastRfFlatForest getFlatForest() {
+
+    if (m_FlatForest == null)
+      m_FlatForest = m_bagger.createFlatForest(m_Info);
+    return m_FlatForest;
+
+  }
+
+
+  /** Returns an instance with missing values, for the ZeroR model. */
+  private Instance zeroRInstance() {
+
+    Instance instance = new DenseInstance(m_Info.numAttributes());
+    instance.setDataset(m_Info);
+    return instance;
+
+  }
+
+
+  /** Returns the class distribution predicted by the ZeroR model. */
+  private double[] zeroRDistribution() throws Exception {
+
+    return m_ZeroR.distributionForInstance(zeroRInstance());
+
+  }
+
   /**
    * Outputs a description of this classifier.
    *
@@ -259,6 +259,65 @@ class FastRandomTree
   }
 
 
+
+  /**
+   * Computes class distribution of an instance stored in columns of
+   * attribute values, such as the planes of a feature stack, with the same
+   * result as distributionForInstance() would give. NaN and Float.MAX_VALUE
+   * are treated as missing values.
+   *
+   * @param vals the attribute values, first indexed by attribute, then by
+   * instance
+   * @param row the index of the instance in the columns
+   * @return the computed class distribution
+   */
+  public double[] distributionForColumns(float[][] vals, int row) {
+
+    double[] returnedDist = null;
+
+    if (m_Attribute > -1) {  // ============================ node is not a leaf
+
+      float value = vals[m_Attribute][row];
+
+      if (Float.isNaN(value) || value == Float.MAX_VALUE) { // ------ missing
+
+        returnedDist = new double[m_MotherForest.m_Info.numClasses()];
+        // split instance up
+        for (int i = 0; i < m_Successors.length; i++) {
+          double[] help = m_Successors[i].distributionForColumns(vals, row);
+          if (help != null) {
+            for (int j = 0; j < help.length; j++) {
+              returnedDist[j] += m_Prop[i] * help[j];
+            }
+          }
+        }
+
+      } else if (m_MotherForest.m_Info
+              .attribute(m_Attribute).isNominal()) { // ------ nominal
+
+        returnedDist = m_Successors[(int) value]
+                .distributionForColumns(vals, row);
+
+      } else { // ------------------------------------------ numeric attributes
+
+        if (value < m_SplitPoint) {
+          returnedDist = m_Successors[0].distributionForColumns(vals, row);
+        } else {
+          returnedDist = m_Successors[1].distributionForColumns(vals, row);
+        }
+      }
+
+      return returnedDist;
+
+    } else { // =============================================== node is a leaf
+
+      return m_ClassProbs;
+
+    }
+
+  }
+
+
   
   /**
    * Recursively generates a tree. A derivative of the buildTree function from
@@ -111,6 +111,31 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
     data = new Instances(data);
     data.deleteWithMissingClass();
 
+    // sorting is performed inside this constructor
+    DataCache myData = new DataCache(data);
+
+    buildClassifier(myData, numThreads, motherForest);
+
+  }
+
+
+
+  /**
+   * Bagging method, for data already held in a DataCache (e.g. created
+   * directly from columns of feature values, without any Instance objects).
+   * The DataCache must not contain instances with a missing class.
+   *
+   * @param myData The training set to be used for generating the
+   * bagged classifier.
+   * @param numThreads The number of simultaneous threads to use for
+   * computation. Pass zero (0) for autodetection.
+   * @param motherForest A reference to the FastRandomForest object that
+   * invoked this.
+   * @throws Exception if the classifier could not be built successfully
+   */
+  public void buildClassifier(DataCache myData, int numThreads,
+          FastRandomForest motherForest) throws Exception {
+
     if ( ! (m_Classifier instanceof FastRandomTree) )
         throw new IllegalArgumentException("The FastRfBagging class accepts " +
                 "only FastRandomTree as its base classifier.");
@@ -136,10 +161,7 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
     }
     
     
-    // sorting is performed inside this constructor
-    DataCache myData = new DataCache(data);
-
-    int bagSize = data.numInstances() * m_BagSizePercent / 100;
+    int bagSize = myData.numInstances * m_BagSizePercent / 100;
     Random random = new Random(m_Seed);
 
     boolean[][] inBag = new boolean[m_Classifiers.length][];
@@ -186,12 +208,10 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
       // calc OOB error?
       if (getCalcOutOfBag()) {
 
-        boolean numeric = data.classAttribute().isNumeric();
-
         List<Future<Double>> votes =
-                new ArrayList<Future<Double>>(data.numInstances());
-        for (int i = 0; i < data.numInstances(); i++) {
-          VotesCollector aCollector = new VotesCollector(m_Classifiers, i, data, inBag);
+                new ArrayList<Future<Double>>(myData.numInstances);
+        for (int i = 0; i < myData.numInstances; i++) {
+          VotesCollector aCollector = new VotesCollector(m_Classifiers, i, myData, inBag);
           votes.add(threadPool.submit(aCollector));
         }
 
@@ -199,18 +219,14 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
         double outOfBagCount = 0.0;
         double errorSum = 0.0;
 
-        for (int i = 0; i < data.numInstances(); i++) {
+        for (int i = 0; i < myData.numInstances; i++) {
 
           double vote = votes.get(i).get();
 
-          // error for instance
-          outOfBagCount += data.instance(i).weight();
-          if (numeric) {
-            errorSum += StrictMath.abs(vote - data.instance(i).classValue()) * data.instance(i).weight();
-          } else {
-            if (vote != data.instance(i).classValue())
-              errorSum += data.instance(i).weight();
-          }
+          // error for instance (the class is always nominal in a DataCache)
+          outOfBagCount += myData.instWeights[i];
+          if (vote != myData.instClassValues[i])
+            errorSum += myData.instWeights[i];
 
         }
 
@@ -524,6 +540,21 @@ class FastRfBagging extends RandomizableIteratedSingleClassifierEnhancer
     
   }
 
+  /**
+   * Freezes the trained trees into flat arrays, for faster prediction.
+   *
+   * @param info the attribute information of the training data
+   * @return the flat forest
+   */
+  public FastRfFlatForest createFlatForest(Instances info) {
+
+    FastRandomTree[] trees = new FastRandomTree[m_Classifiers.length];
+    for (int i = 0; i < trees.length; i++)
+      trees[i] = (FastRandomTree) m_Classifiers[i];
+    return new FastRfFlatForest(trees, info);
+
+  }
+
   /**
    * Returns description of the bagged classifier.
    *
@@ -0,0 +1,461 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    FastRfFlatForest.java
+ */
+
+package hr.irb.fastRandomForest;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * A trained forest of FastRandomTrees, frozen into flat primitive arrays for
+ * prediction. Walking a FastRandomTree means following a reference to a new
+ * object (and its arrays) at every level; here all the nodes of all the trees
+ * are stored in a few parallel arrays, and the children of a node are stored
+ * next to each other, so much less memory has to be touched per prediction.
+ * <p>
+ * Besides single instances, whole blocks of instances can be classified at
+ * once: the trees are then applied one after the other to every instance of
+ * the block, so the nodes of a tree stay in the cache while it is used.
+ * <p>
+ * The predictions are exactly the same as those of the FastRfBagging the
+ * forest was created from.
+ *
+ * This class should be used only from within the FastRandomForest classifier.
+ */
+class FastRfFlatForest {
+
+  /** Number of instances classified together in the batch methods. */
+  public static final int BLOCK_SIZE = 1024;
+
+  /** Number of classes. */
+  protected final int numClasses;
+
+  /** Number of trees. */
+  protected final int numTrees;
+
+  /** Whether an attribute is nominal, by attribute index. */
+  protected final boolean[] nominal;
+
+  /** Index of the root node of every tree. */
+  protected final int[] roots;
+
+  /** The attribute a node splits on, -1 for leaves. */
+  protected final int[] attribute;
+
+  /** The split point of a node on a numeric attribute. */
+  protected final double[] splitPoint;
+
+  /**
+   * For a node, the index of its first child (the other children follow
+   * it); for a leaf, the offset of its class distribution in classProbs, or
+   * -1 if it has none.
+   */
+  protected final int[] next;
+
+  /** The number of children of a node, 0 for leaves. */
+  protected final int[] numChildren;
+
+  /**
+   * The proportion of the training instances of the parent which went
+   * down to a node (used to split up instances with missing values).
+   */
+  protected final double[] prop;
+
+  /** The class distributions of all leaves, one after the other. */
+  protected final double[] classProbs;
+
+
+
+  /**
+   * Freezes the trees of a forest.
+   *
+   * @param trees the trained trees
+   * @param info the attribute information of the training data
+   */
+  public FastRfFlatForest(FastRandomTree[] trees, Instances info) {
+
+    numClasses = info.numClasses();
+    numTrees = trees.length;
+
+    nominal = new boolean[info.numAttributes()];
+    for (int a = 0; a < nominal.length; a++)
+      nominal[a] = info.attribute(a).isNominal();
+
+    // count the nodes and leaf distributions
+    int numNodes = 0;
+    int numLeaves = 0;
+    for (FastRandomTree tree : trees) {
+      numNodes += tree.numNodes();
+      numLeaves += countLeaves(tree);
+    }
+
+    roots = new int[numTrees];
+    attribute = new int[numNodes];
+    splitPoint = new double[numNodes];
+    next = new int[numNodes];
+    numChildren = new int[numNodes];
+    prop = new double[numNodes];
+    classProbs = new double[numLeaves * numClasses];
+
+    // lay out every tree breadth-first, so siblings are next to each other
+    FastRandomTree[] queue = new FastRandomTree[numNodes];
+    int free = 0;        // next unused node index
+    int leafOffset = 0;  // next unused position in classProbs
+    for (int t = 0; t < numTrees; t++) {
+
+      int first = free;
+      roots[t] = free;
+      queue[free] = trees[t];
+      prop[free] = 1.0;
+      free++;
+
+      for (int node = first; node < free; node++) {
+
+        FastRandomTree cur = queue[node];
+        queue[node] = null;
+
+        if (cur.m_Attribute > -1) { // ---------------------------- inner node
+
+          attribute[node] = cur.m_Attribute;
+          splitPoint[node] = cur.m_SplitPoint;
+          next[node] = free;
+          numChildren[node] = cur.m_Successors.length;
+          for (int i = 0; i < cur.m_Successors.length; i++) {
+            queue[free] = cur.m_Successors[i];
+            prop[free] = cur.m_Prop[i];
+            free++;
+          }
+
+        } else { // ---------------------------------------------------- leaf
+
+          attribute[node] = -1;
+          if (cur.m_ClassProbs == null) {
+            next[node] = -1;
+          } else {
+            next[node] = leafOffset;
+            System.arraycopy(cur.m_ClassProbs, 0, classProbs, leafOffset,
+                    numClasses);
+            leafOffset += numClasses;
+          }
+
+        }
+      }
+    }
+
+  }
+
+
+  /** Counts the leaves of a tree that have a class distribution. */
+  private static int countLeaves(FastRandomTree tree) {
+
+    if (tree.m_Attribute == -1)
+      return tree.m_ClassProbs == null ? 0 : 1;
+    int count = 0;
+    for (int i = 0; i < tree.m_Successors.length; i++)
+      count += countLeaves(tree.m_Successors[i]);
+    return count;
+
+  }
+
+
+
+  /**
+   * Computes the class distribution of an instance, the same way as
+   * FastRfBagging.distributionForInstance does.
+   *
+   * @param instance the instance to be classified
+   * @return the normalized class distribution
+   */
+  public double[] distributionForInstance(Instance instance) {
+
+    double[] vals = new double[nominal.length];
+    for (int a = 0; a < vals.length; a++)
+      vals[a] = instance.isMissing(a) ? Double.NaN : instance.value(a);
+
+    double[] sums = new double[numClasses];
+    for (int t = 0; t < numTrees; t++) {
+
+      int node = roots[t];
+      while (attribute[node] > -1) {
+        double value = vals[attribute[node]];
+        if (Double.isNaN(value)) {
+          node = -1;
+          break;
+        }
+        node = next[node] + childIndex(node, value);
+      }
+
+      if (node > -1) {
+        addLeaf(node, sums, 0);
+      } else { // the tree has to split the instance up
+        double[] dist = distributionWithMissing(roots[t], vals);
+        if (dist != null)
+          for (int j = 0; j < numClasses; j++)
+            sums[j] += dist[j];
+      }
+
+    }
+
+    normalize(sums, 0);
+    return sums;
+
+  }
+
+
+  /**
+   * Computes the class distribution of an instance stored in columns of
+   * attribute values, the same way as FastRfBagging.distributionForColumns
+   * does.
+   *
+   * @param vals the attribute values, first indexed by attribute, then by
+   * instance
+   * @param row the index of the instance in the columns
+   * @return the normalized class distribution
+   */
+  public double[] distributionForColumns(float[][] vals, int row) {
+
+    double[] sums = new double[numClasses];
+    addDistributions(vals, row, row + 1, sums);
+    normalize(sums, 0);
+    return sums;
+
+  }
+
+
+  /**
+   * Computes the class distributions of a range of instances stored in
+   * columns of attribute values.
+   *
+   * @param vals the attribute values, first indexed by attribute, then by
+   * instance
+   * @param from the index of the first instance
+   * @param to the index after the last instance
+   * @return the normalized class distribution of each instance
+   */
+  public double[][] distributionsForColumns(float[][] vals, int from, int to) {
+
+    double[][] result = new double[to - from][numClasses];
+    double[] sums = new double[BLOCK_SIZE * numClasses];
+
+    for (int start = from; start < to; start += BLOCK_SIZE) {
+      int end = Math.min(to, start + BLOCK_SIZE);
+      java.util.Arrays.fill(sums, 0);
+      addDistributions(vals, start, end, sums);
+      for (int i = start; i < end; i++) {
+        int offset = (i - start) * numClasses;
+        normalize(sums, offset);
+        System.arraycopy(sums, offset, result[i - from], 0, numClasses);
+      }
+    }
+
+    return result;
+
+  }
+
+
+  /**
+   * Classifies a range of instances stored in columns of attribute values,
+   * with the same result as classifyInstance() of the forest would give:
+   * the index of the most probable class, or a missing value if no class
+   * has a positive probability.
+   *
+   * @param vals the attribute values, first indexed by attribute, then by
+   * instance
+   * @param from the index of the first instance
+   * @param to the index after the last instance
+   * @param result array the class of instance i is stored to, at index i
+   */
+  public void classifyColumns(float[][] vals, int from, int to,
+          double[] result) {
+
+    double[] sums = new double[BLOCK_SIZE * numClasses];
+
+    for (int start = from; start < to; start += BLOCK_SIZE) {
+      int end = Math.min(to, start + BLOCK_SIZE);
+      java.util.Arrays.fill(sums, 0);
+      addDistributions(vals, start, end, sums);
+      for (int i = start; i < end; i++) {
+        int offset = (i - start) * numClasses;
+        normalize(sums, offset);
+        double max = 0;
+        int maxIndex = 0;
+        for (int j = 0; j < numClasses; j++) {
+          if (sums[offset + j] > max) {
+            maxIndex = j;
+            max = sums[offset + j];
+          }
+        }
+        result[i] = (max > 0) ? maxIndex : Utils.missingValue();
+      }
+    }
+
+  }
+
+
+
+  /**
+   * Adds the (unnormalized) votes of all trees for the instances from-to
+   * to sums, which holds numClasses values per instance. The trees are taken
+   * one after the other, so each of them is walked for all the instances
+   * while it is in the cache.
+   */
+  private void addDistributions(float[][] vals, int from, int to,
+          double[] sums) {
+
+    for (int t = 0; t < numTrees; t++) {
+      int root = roots[t];
+      for (int i = from; i < to; i++) {
+
+        int node = root;
+        while (attribute[node] > -1) {
+          float value = vals[attribute[node]][i];
+          if (Float.isNaN(value) || value == Float.MAX_VALUE) {
+            node = -1;
+            break;
+          }
+          node = next[node] + childIndex(node, value);
+        }
+
+        int offset = (i - from) * numClasses;
+        if (node > -1) {
+          addLeaf(node, sums, offset);
+        } else { // the tree has to split the instance up
+          double[] dist = distributionWithMissing(root, vals, i);
+          if (dist != null)
+            for (int j = 0; j < numClasses; j++)
+              sums[offset + j] += dist[j];
+        }
+
+      }
+    }
+
+  }
+
+
+  /** Returns which child of a node an instance goes to. */
+  private int childIndex(int node, double value) {
+
+    if (nominal[attribute[node]])
+      return (int) value;
+    else
+      return (value < splitPoint[node]) ? 0 : 1;
+
+  }
+
+
+  /** Adds the class distribution of a leaf to sums, from offset on. */
+  private void addLeaf(int leaf, double[] sums, int offset) {
+
+    int leafOffset = next[leaf];
+    if (leafOffset < 0)
+      return;
+    for (int j = 0; j < numClasses; j++)
+      sums[offset + j] += classProbs[leafOffset + j];
+
+  }
+
+
+  /** Returns the class distribution of a leaf, or null if it has none. */
+  private double[] leafDistribution(int leaf) {
+
+    if (next[leaf] < 0)
+      return null;
+    double[] dist = new double[numClasses];
+    System.arraycopy(classProbs, next[leaf], dist, 0, numClasses);
+    return dist;
+
+  }
+
+
+  /**
+   * Computes the distribution of the subtree at node for an instance which
+   * may have missing values, in the same order of operations as
+   * FastRandomTree.distributionForInstance, so the sums are identical.
+   */
+  private double[] distributionWithMissing(int node, double[] vals) {
+
+    if (attribute[node] == -1)
+      return leafDistribution(node);
+
+    double value = vals[attribute[node]];
+    if (Double.isNaN(value)) {
+      double[] dist = new double[numClasses];
+      for (int i = 0; i < numChildren[node]; i++) {
+        int child = next[node] + i;
+        double[] help = distributionWithMissing(child, vals);
+        if (help != null)
+          for (int j = 0; j < help.length; j++)
+            dist[j] += prop[child] * help[j];
+      }
+      return dist;
+    }
+
+    return distributionWithMissing(next[node] + childIndex(node, value), vals);
+
+  }
+
+
+  /**
+   * Computes the distribution of the subtree at node for a row of columns
+   * which may have missing values, like FastRandomTree.distributionForColumns.
+   */
+  private double[] distributionWithMissing(int node, float[][] vals, int row) {
+
+    if (attribute[node] == -1)
+      return leafDistribution(node);
+
+    float value = vals[attribute[node]][row];
+    if (Float.isNaN(value) || value == Float.MAX_VALUE) {
+      double[] dist = new double[numClasses];
+      for (int i = 0; i < numChildren[node]; i++) {
+        int child = next[node] + i;
+        double[] help = distributionWithMissing(child, vals, row);
+        if (help != null)
+          for (int j = 0; j < help.length; j++)
+            dist[j] += prop[child] * help[j];
+      }
+      return dist;
+    }
+
+    return distributionWithMissing(next[node] + childIndex(node, value),
+            vals, row);
+
+  }
+
+
+  /**
+   * Normalizes the numClasses sums from offset on, as FastRfBagging does:
+   * only if they are not all zero.
+   */
+  private void normalize(double[] sums, int offset) {
+
+    double sum = 0;
+    for (int j = 0; j < numClasses; j++)
+      sum += sums[offset + j];
+    if (Utils.eq(sum, 0))
+      return;
+    for (int j = 0; j < numClasses; j++)
+      sums[offset + j] /= sum;
+
+  }
+
+
+}
@@ -41,6 +41,7 @@ public class VotesCollector implements Callable<Double> {
   protected final Classifier[] m_Classifiers;
   protected final int instanceIdx;
   protected final Instances data;
+  protected final DataCache cache;
   protected final boolean[][] inBag;
 
 
@@ -50,6 +51,23 @@ public class VotesCollector implements Callable<Double> {
     this.m_Classifiers = m_Classifiers;
     this.instanceIdx = instanceIdx;
     this.data = data;
+    this.cache = null;
+    this.inBag = inBag;
+
+  }
+
+
+  /**
+   * Collects the vote for an instance of a DataCache, which is classified
+   * directly from its columns of values.
+   */
+  public VotesCollector(Classifier[] m_Classifiers, int instanceIdx,
+          DataCache cache, boolean[][] inBag) {
+
+    this.m_Classifiers = m_Classifiers;
+    this.instanceIdx = instanceIdx;
+    this.data = null;
+    this.cache = cache;
     this.inBag = inBag;
 
   }
@@ -59,6 +77,9 @@ public class VotesCollector implements Callable<Double> {
   @Override
   public Double call() throws Exception {
 
+    if (cache != null)
+      return callForCache();
+
     boolean regression = data.classAttribute().isNumeric();
 
     double[] classProbs = null;
@@ -102,5 +123,28 @@ public class VotesCollector implements Callable<Double> {
 
   }
 
+
+  /** Determine the vote for an instance of the DataCache (classification). */
+  private Double callForCache() {
+
+    double[] classProbs = new double[cache.numClasses];
+
+    for (int treeIdx = 0; treeIdx < m_Classifiers.length; treeIdx++) {
+
+      if (inBag[treeIdx][instanceIdx])
+        continue;
+
+      double[] curDist = ((FastRandomTree) m_Classifiers[treeIdx])
+              .distributionForColumns( cache.vals, instanceIdx );
+
+      for ( int classIdx = 0; classIdx < curDist.length; classIdx++ )
+        classProbs[ classIdx ] += curDist[ classIdx ];
+
+    }
+
+    return (double) Utils.maxIndex(classProbs);   // consensus
+
+  }
+
   
 }
@@ -43,6 +43,15 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import stitching.FloatArray2D;
 
@@ -89,6 +98,14 @@ public class FeatureStack
 	
 	private boolean normalize = false;
 	
+	/** number of threads used to compute the features */
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	
+	/** Gaussian scale space: blurred versions of the original image, by sigma */
+	private final HashMap<Float, ImageProcessor> gaussianCache = new HashMap<Float, ImageProcessor>();
+	/** features computed so far (before normalization), by feature key */
+	private final HashMap<String, ImageStack> featureCache = new HashMap<String, ImageStack>();
+	
 	/**
 	 * Construct object to store stack of image features
 	 * @param image original image
@@ -123,51 +140,303 @@ public class FeatureStack
 		return wholeStack.getWidth();
 	}
 	
-	public void addGaussianBlur(float sigma){
-		ImageProcessor ip = originalImage.getProcessor().duplicate();
+	/**
+	 * Feature of the original image, identified by its type and parameters.
+	 * Computing it gives one or more slices for the feature stack.
+	 */
+	private class Feature implements Callable<ImageStack>
+	{
+		final int type;
+		final float param1;
+		final float param2;
+	
+		Feature(int type, float param1, float param2)
+		{
+			this.type = type;
+			this.param1 = param1;
+			this.param2 = param2;
+		}
+	
+		Feature(int type, float param1)
+		{
+			this(type, param1, 0);
+		}
+	
+		/**
+		 * Key of the feature in the cache
+		 */
+		String getKey()
+		{
+			return availableFeatures[type] + "_" + param1 + "_" + param2;
+		}
+	
+		/**
+		 * Sigmas of the Gaussian blurred images used to compute the feature
+		 */
+		float[] getSigmas()
+		{
+			switch(type)
+			{
+				case GAUSSIAN:
+				case SOBEL:
+				case HESSIAN:
+					return new float[]{param1};
+				case DOG:
+					return new float[]{param1, param2};
+				default:
+					return new float[0];
+			}
+		}
+	
+		public ImageStack call()
+		{
+			switch(type)
+			{
+				case GAUSSIAN:
+					return computeGaussianBlur(param1);
+				case SOBEL:
+					return computeGradient(param1);
+				case HESSIAN:
+					return computeHessian(param1);
+				case DOG:
+					return computeDoG(param1, param2);
+				case MEMBRANE:
+					return computeMembraneFeatures((int) param1, (int) param2);
+				case VARIANCE:
+					return computeRank(VARIANCE, RankFilters.VARIANCE, param1);
+				case MEAN:
+					return computeRank(MEAN, RankFilters.MEAN, param1);
+				case MINIMUM:
+					return computeRank(MINIMUM, RankFilters.MIN, param1);
+				case MAXIMUM:
+					return computeRank(MAXIMUM, RankFilters.MAX, param1);
+				case MEDIAN:
+					return computeRank(MEDIAN, RankFilters.MEDIAN, param1);
+				default:
+					throw new IllegalArgumentException("Unknown feature type " + type);
+			}
+		}
+	}
+	
+	/**
+	 * Get the original image blurred with a Gaussian of the given sigma. The
+	 * blurred images are computed once and shared by all the features that
+	 * use them, so they must not be modified.
+	 *
+	 * @param sigma Gaussian sigma
+	 * @return blurred image
+	 */
+	private ImageProcessor getBlurred(float sigma)
+	{
+		synchronized(gaussianCache)
+		{
+			final ImageProcessor ip = gaussianCache.get(sigma);
+			if(null != ip)
+				return ip;
+		}
+		final ImageProcessor ip = originalImage.getProcessor().duplicate();
 		GaussianBlur gs = new GaussianBlur();
 		gs.blur(ip, sigma);
-		wholeStack.addSlice(availableFeatures[GAUSSIAN] + "_" + sigma, ip);
+		synchronized(gaussianCache)
+		{
+			gaussianCache.put(sigma, ip);
+		}
+		return ip;
+	}
+	
+	/**
+	 * Get the slices of a feature, from the cache if it was computed before.
+	 * The returned slices must not be modified.
+	 *
+	 * @param feature feature to compute
+	 * @return feature slices
+	 */
+	private ImageStack getFeature(Feature feature)
+	{
+		final String key = feature.getKey();
+		synchronized(featureCache)
+		{
+			final ImageStack is = featureCache.get(key);
+			if(null != is)
+				return is;
+		}
+		final ImageStack is = feature.call();
+		synchronized(featureCache)
+		{
+			featureCache.put(key, is);
+		}
+		return is;
+	}
+	
+	/**
+	 * Add the slices of some features to the stack, in the given order.
+	 * The features that are not in the cache yet are computed concurrently,
+	 * after the Gaussian blurred images they need.
+	 *
+	 * @param features list of features to add
+	 */
+	private void addFeatures(ArrayList<Feature> features)
+	{
+		// Collect missing features and scale space levels
+		final ArrayList<Feature> missing = new ArrayList<Feature>();
+		final TreeSet<Float> sigmas = new TreeSet<Float>();
+		synchronized(featureCache)
+		{
+			for(final Feature feature : features)
+				if(!featureCache.containsKey(feature.getKey()))
+				{
+					missing.add(feature);
+					for(final float sigma : feature.getSigmas())
+						sigmas.add(sigma);
+				}
+		}
+		synchronized(gaussianCache)
+		{
+			sigmas.removeAll(gaussianCache.keySet());
+		}
+	
+		if(!missing.isEmpty())
+		{
+			final ExecutorService exe = Executors.newFixedThreadPool(numThreads);
+			try
+			{
+				// Gaussian scale space first, so no level is computed twice
+				final ArrayList<Future<ImageProcessor>> blurred = new ArrayList<Future<ImageProcessor>>();
+				for(final float sigma : sigmas)
+					blurred.add(exe.submit(new Callable<ImageProcessor>() {
+						public ImageProcessor call()
+						{
+							return getBlurred(sigma);
+						}
+					}));
+				for(final Future<ImageProcessor> fu : blurred)
+					fu.get();
+	
+				final AtomicInteger counter = new AtomicInteger();
+				final ArrayList<Future<ImageStack>> computed = new ArrayList<Future<ImageStack>>();
+				for(final Feature feature : missing)
+					computed.add(exe.submit(new Callable<ImageStack>() {
+						public ImageStack call()
+						{
+							final ImageStack is = getFeature(feature);
+							IJ.showStatus("Creating feature stack...   " + counter.incrementAndGet() + "/" + missing.size());
+							return is;
+						}
+					}));
+				for(final Future<ImageStack> fu : computed)
+					fu.get();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			catch(ExecutionException e)
+			{
+				throw new RuntimeException(e.getCause());
+			}
+			finally
+			{
+				exe.shutdown();
+			}
+		}
+	
+		for(final Feature feature : features)
+			addFeature(feature);
+	}
+	
+	/**
+	 * Release the cached features that are not in the given list, and the
+	 * Gaussian blurred images none of the listed features needs.
+	 *
+	 * @param features list of features to keep
+	 */
+	private void retainFeatures(ArrayList<Feature> features)
+	{
+		final HashSet<String> keys = new HashSet<String>();
+		final HashSet<Float> sigmas = new HashSet<Float>();
+		for(final Feature feature : features)
+		{
+			keys.add(feature.getKey());
+			for(final float sigma : feature.getSigmas())
+				sigmas.add(sigma);
+		}
+		synchronized(featureCache)
+		{
+			featureCache.keySet().retainAll(keys);
+		}
+		synchronized(gaussianCache)
+		{
+			gaussianCache.keySet().retainAll(sigmas);
+		}
+	}
+	
+	/**
+	 * Release all the cached features and Gaussian blurred images. The
+	 * slices already in the feature stack are kept, the next update
+	 * computes all the features again.
+	 */
+	public void clearCache()
+	{
+		synchronized(featureCache)
+		{
+			featureCache.clear();
+		}
+		synchronized(gaussianCache)
+		{
+			gaussianCache.clear();
+		}
+	}
+	
+	/**
+	 * Add the slices of a single feature to the stack
+	 *
+	 * @param feature feature to add
+	 */
+	private void addFeature(Feature feature)
+	{
+		final ImageStack is = getFeature(feature);
+		for(int i = 1; i <= is.getSize(); i++)
+			wholeStack.addSlice(is.getSliceLabel(i), is.getProcessor(i));
+	}
+	
+	/**
+	 * Set the number of threads used to compute the features
+	 *
+	 * @param numThreads number of threads
+	 */
+	public void setNumThreads(int numThreads)
+	{
+		this.numThreads = Math.max(1, numThreads);
+	}
+	
+	public void addGaussianBlur(float sigma){
+		addFeature(new Feature(GAUSSIAN, sigma));
 	}
 	
 	public void addVariance(float radius)
 	{
-		final ImageProcessor ip = originalImage.getProcessor().duplicate();
-		final RankFilters filter = new RankFilters();
-		filter.rank(ip, radius, RankFilters.VARIANCE);
-		wholeStack.addSlice(availableFeatures[VARIANCE]+ "_"  + radius, ip);
+		addFeature(new Feature(VARIANCE, radius));
 	}
 	
 	public void addMean(float radius)
 	{
-		final ImageProcessor ip = originalImage.getProcessor().duplicate();
-		final RankFilters filter = new RankFilters();
-		filter.rank(ip, radius, RankFilters.MEAN);
-		wholeStack.addSlice(availableFeatures[MEAN]+ "_"  + radius, ip);
+		addFeature(new Feature(MEAN, radius));
 	}
 	
 	public void addMin(float radius)
 	{
-		final ImageProcessor ip = originalImage.getProcessor().duplicate();
-		final RankFilters filter = new RankFilters();
-		filter.rank(ip, radius, RankFilters.MIN);
-		wholeStack.addSlice(availableFeatures[MINIMUM]+ "_"  + radius, ip);
+		addFeature(new Feature(MINIMUM, radius));
 	}
 	
 	public void addMax(float radius)
 	{
-		final ImageProcessor ip = originalImage.getProcessor().duplicate();
-		final RankFilters filter = new RankFilters();
-		filter.rank(ip, radius, RankFilters.MAX);
-		wholeStack.addSlice(availableFeatures[MAXIMUM]+ "_"  + radius, ip);
+		addFeature(new Feature(MAXIMUM, radius));
 	}
 	
 	public void addMedian(float radius)
 	{
-		final ImageProcessor ip = originalImage.getProcessor().duplicate();
-		final RankFilters filter = new RankFilters();
-		filter.rank(ip, radius, RankFilters.MEDIAN);
-		wholeStack.addSlice(availableFeatures[MEDIAN]+ "_"  + radius, ip);
+		addFeature(new Feature(MEDIAN, radius));
 	}
 	
 	public void writeConfigurationToFile(String filename)
@@ -190,15 +459,46 @@ public class FeatureStack
 	}
 	
 	public void addGradient(float sigma){
-		GaussianBlur gs = new GaussianBlur();
-		ImageProcessor ip_x = originalImage.getProcessor().duplicate();
-		gs.blur(ip_x, sigma);
+		addFeature(new Feature(SOBEL, sigma));
+	}
+	
+	public void addHessian(float sigma)
+	{
+		addFeature(new Feature(HESSIAN, sigma));
+	}
+	
+	public void addDoG(float sigma1, float sigma2)
+	{
+		addFeature(new Feature(DOG, sigma1, sigma2));
+	}
+	
+	public void addMembraneFeatures(int patchSize, int membraneSize){
+		addFeature(new Feature(MEMBRANE, patchSize, membraneSize));
+	}
+	
+	private ImageStack computeGaussianBlur(float sigma){
+		ImageStack result = new ImageStack(width, height);
+		result.addSlice(availableFeatures[GAUSSIAN] + "_" + sigma, getBlurred(sigma));
+		return result;
+	}
+	
+	private ImageStack computeRank(int type, int filterType, float radius)
+	{
+		final ImageProcessor ip = originalImage.getProcessor().duplicate();
+		final RankFilters filter = new RankFilters();
+		filter.rank(ip, radius, filterType);
+		ImageStack result = new ImageStack(width, height);
+		result.addSlice(availableFeatures[type]+ "_"  + radius, ip);
+		return result;
+	}
+	
+	private ImageStack computeGradient(float sigma){
+		ImageProcessor ip_x = getBlurred(sigma).duplicate();
 		Convolver c = new Convolver();
 		float[] sobelFilter_x = {1f,2f,1f,0f,0f,0f,-1f,-2f,-1f};
 		c.convolveFloat(ip_x, sobelFilter_x, 3, 3);
 		
-		ImageProcessor ip_y = originalImage.getProcessor().duplicate();
-		gs.blur(ip_y, sigma);
+		ImageProcessor ip_y = getBlurred(sigma).duplicate();
 		c = new Convolver();
 		float[] sobelFilter_y = {1f,0f,-1f,2f,0f,-2f,1f,0f,-1f};
 		c.convolveFloat(ip_y, sobelFilter_y, 3, 3);
@@ -214,22 +514,21 @@ public class FeatureStack
 		}
 		
 		//ip.add(-ip.getMin());
-		wholeStack.addSlice(availableFeatures[SOBEL]+ "_"  +sigma, ip);
+		ImageStack result = new ImageStack(width, height);
+		result.addSlice(availableFeatures[SOBEL]+ "_"  +sigma, ip);
+		return result;
 	}
 	
-	public void addHessian(float sigma)
+	private ImageStack computeHessian(float sigma)
 	{
 		float[] sobelFilter_x = {1f,2f,1f,0f,0f,0f,-1f,-2f,-1f};
 		float[] sobelFilter_y = {1f,0f,-1f,2f,0f,-2f,1f,0f,-1f};
 		Convolver c = new Convolver();				
-		GaussianBlur gs = new GaussianBlur();
 		
-		ImageProcessor ip_x = originalImage.getProcessor().duplicate();
-		gs.blur(ip_x, sigma);		
+		ImageProcessor ip_x = getBlurred(sigma).duplicate();
 		c.convolveFloat(ip_x, sobelFilter_x, 3, 3);		
 		
-		ImageProcessor ip_y = originalImage.getProcessor().duplicate();
-		gs.blur(ip_y, sigma);
+		ImageProcessor ip_y = getBlurred(sigma).duplicate();
 		c = new Convolver();
 		c.convolveFloat(ip_y, sobelFilter_y, 3, 3);
 		
@@ -260,18 +559,17 @@ public class FeatureStack
 			}
 		}
 		
-		wholeStack.addSlice(availableFeatures[HESSIAN] + "_"  + sigma, ip);
-		wholeStack.addSlice(availableFeatures[HESSIAN]+ "_Trace_"+sigma, ipTr);
-		wholeStack.addSlice(availableFeatures[HESSIAN]+ "_Determinant_"+sigma, ipDet);
+		ImageStack result = new ImageStack(width, height);
+		result.addSlice(availableFeatures[HESSIAN] + "_"  + sigma, ip);
+		result.addSlice(availableFeatures[HESSIAN]+ "_Trace_"+sigma, ipTr);
+		result.addSlice(availableFeatures[HESSIAN]+ "_Determinant_"+sigma, ipDet);
+		return result;
 	}
 	
-	public void addDoG(float sigma1, float sigma2)
+	private ImageStack computeDoG(float sigma1, float sigma2)
 	{
-		GaussianBlur gs = new GaussianBlur();
-		ImageProcessor ip_1 = originalImage.getProcessor().duplicate();
-		gs.blur(ip_1, sigma1);
-		ImageProcessor ip_2 = originalImage.getProcessor().duplicate();
-		gs.blur(ip_2, sigma2);
+		ImageProcessor ip_1 = getBlurred(sigma1);
+		ImageProcessor ip_2 = getBlurred(sigma2);
 		
 		ImageProcessor ip = new FloatProcessor(width, height);
 		
@@ -283,10 +581,12 @@ public class FeatureStack
 			}
 		}
 		
-		wholeStack.addSlice(availableFeatures[DOG]+ "_"+sigma1+"_"+sigma2, ip);
+		ImageStack result = new ImageStack(width, height);
+		result.addSlice(availableFeatures[DOG]+ "_"+sigma1+"_"+sigma2, ip);
+		return result;
 	}
 	
-	public void addMembraneFeatures(int patchSize, int membraneSize){
+	private ImageStack computeMembraneFeatures(int patchSize, int membraneSize){
 		//create membrane patch
 		ImageProcessor membranePatch = new FloatProcessor(patchSize, patchSize);
 		int middle = Math.round(patchSize / 2);
@@ -323,13 +623,15 @@ public class FeatureStack
 		ImagePlus projectStack = new ImagePlus("membraneStack",is);
 		//projectStack.show();
 		
+		ImageStack result = new ImageStack(width, height);
 		ZProjector zp = new ZProjector(projectStack);
 		zp.setStopSlice(is.getSize());
 		for (int i=0;i<6; i++){
 			zp.setMethod(i);
 			zp.doProjection();
-			wholeStack.addSlice(availableFeatures[MEMBRANE] + "_" +i+"_"+patchSize+"_"+membraneSize, zp.getProjection().getChannelProcessor());
+			result.addSlice(availableFeatures[MEMBRANE] + "_" +i+"_"+patchSize+"_"+membraneSize, zp.getProjection().getChannelProcessor());
 		}
+		return result;
 	}
 	
 	
@@ -406,25 +708,37 @@ public class FeatureStack
 		return data;
 	}
 	
+	/**
+	 * Get the features of the whole stack as columns of attribute values,
+	 * in the same order as the attributes of createInstances(): one column
+	 * per feature (the pixel array of its slice, not a copy, so it must not
+	 * be modified) and a last null column in place of the class.
+	 *
+	 * @return feature columns, indexed by attribute and then by pixel
+	 */
+	public float[][] getFeatureColumns()
+	{
+		final float[][] columns = new float[wholeStack.getSize() + 1][];
+		for (int z=1; z<=wholeStack.getSize(); z++)
+			columns[z-1] = (float[]) wholeStack.getProcessor(z).getPixels();
+		return columns;
+	}
+
 	/**
 	 * Add the default features to the feature stack
 	 */
 	public void addDefaultFeatures()
 	{
-		int counter = 1;
+		final ArrayList<Feature> features = new ArrayList<Feature>();
 		for (float i=1.0f; i<FeatureStack.MAX_SIGMA; i*=2){
-			IJ.showStatus("Creating feature stack...   " + counter);
-			this.addGaussianBlur(i); counter++;
-			IJ.showStatus("Creating feature stack...   " + counter);			
-			this.addGradient(i); counter++;
-			IJ.showStatus("Creating feature stack...   " + counter);			
-			this.addHessian(i); counter++;
-			for (float j=1.0f; j<i; j*=2){
-				IJ.showStatus("Creating feature stack...   " + counter);				
-				this.addDoG(i, j); counter++;
-			}
+			features.add(new Feature(GAUSSIAN, i));
+			features.add(new Feature(SOBEL, i));
+			features.add(new Feature(HESSIAN, i));
+			for (float j=1.0f; j<i; j*=2)
+				features.add(new Feature(DOG, i, j));
 		}
-		this.addMembraneFeatures(19, 1);
+		features.add(new Feature(MEMBRANE, 19, 1));
+		addFeatures(features);
 	}
 	
 	/**
@@ -434,95 +748,66 @@ public class FeatureStack
 	{
 		wholeStack = new ImageStack(width, height);
 		wholeStack.addSlice("original", originalImage.getProcessor().duplicate());
-
-		int counter = 1;
+	
+		final ArrayList<Feature> features = new ArrayList<Feature>();
 		for (float i=1.0f; i<= FeatureStack.MAX_SIGMA; i*=2)
 		{
 			// Gaussian blur
 			if(enableFeatures[GAUSSIAN])
-			{
-				IJ.showStatus("Creating feature stack...   " + counter);
-				this.addGaussianBlur(i); 
-				counter++;
-			}
+				features.add(new Feature(GAUSSIAN, i));
 			// Sobel
 			if(enableFeatures[SOBEL])
-			{
-				IJ.showStatus("Creating feature stack...   " + counter);			
-				this.addGradient(i); 
-				counter++;
-			}
+				features.add(new Feature(SOBEL, i));
 			// Hessian
 			if(enableFeatures[HESSIAN])
-			{
-				IJ.showStatus("Creating feature stack...   " + counter);			
-				this.addHessian(i); 
-				counter++;
-			}
+				features.add(new Feature(HESSIAN, i));
 			// Difference of gaussians
 			if(enableFeatures[DOG])
 			{
 				for (float j=1.0f; j<i; j*=2)
-				{
-					IJ.showStatus("Creating feature stack...   " + counter);				
-					this.addDoG(i, j); 
-					counter++;
-				}
+					features.add(new Feature(DOG, i, j));
 			}
 			// Variance
 			if(enableFeatures[VARIANCE])
-			{
-				IJ.showStatus("Creating feature stack...   " + counter);
-				this.addVariance(i); 
-				counter++;
-			}
+				features.add(new Feature(VARIANCE, i));
 			// Mean
 			if(enableFeatures[MEAN])
-			{
-				IJ.showStatus("Creating feature stack...   " + counter);
-				this.addMean(i); 
-				counter++;
-			}
-			
+				features.add(new Feature(MEAN, i));
 			// Min
 			if(enableFeatures[MINIMUM])
-			{
-				IJ.showStatus("Creating feature stack...   " + counter);
-				this.addMin(i); 
-				counter++;
-			}
+				features.add(new Feature(MINIMUM, i));
 			// Max
 			if(enableFeatures[MAXIMUM])
-			{
-				IJ.showStatus("Creating feature stack...   " + counter);
-				this.addMax(i); 
-				counter++;
-			}
-			
+				features.add(new Feature(MAXIMUM, i));
 			// Median
 			if(enableFeatures[MEDIAN])
-			{
-				IJ.showStatus("Creating feature stack...   " + counter);
-				this.addMedian(i); 
-				counter++;
-			}
-			
+				features.add(new Feature(MEDIAN, i));
 		}
 		// Membrane projections
 		if(enableFeatures[MEMBRANE])
-			this.addMembraneFeatures(19, 1);
-		
+			features.add(new Feature(MEMBRANE, 19, 1));
+	
+		// Only the features that are not in the cache are computed
+		addFeatures(features);
+		// and the ones that are not enabled anymore are released
+		retainFeatures(features);
+	
 		if(normalize)
 		{
 			IJ.showStatus("Normalizing stack...");
+			// Normalize a copy, so the cached features are kept as they are
+			final ImageStack normalizedStack = new ImageStack(width, height);
+			for(int i = 1; i <= wholeStack.getSize(); i++)
+				normalizedStack.addSlice(wholeStack.getSliceLabel(i), wholeStack.getProcessor(i).duplicate());
+			wholeStack = normalizedStack;
 			final ImagePlus imp = new ImagePlus("", this.wholeStack);
 			IJ.run(imp, "Enhance Contrast", "saturated=0.1 normalize_all");
 		}
-		
+	
 		IJ.showStatus("Features stack is updated now!");
 	}
 	
-
+	
 	public void setEnableFeatures(boolean[] enableFeatures) {
 		this.enableFeatures = enableFeatures;
 	}
@@ -110,6 +110,7 @@ import weka.classifiers.AbstractClassifier;
 import weka.core.Attribute;
 import weka.core.DenseInstance;
 import weka.core.Instances;
+import hr.irb.fastRandomForest.DataCache;
 import hr.irb.fastRandomForest.FastRandomForest;
 
 public class Trainable_Segmentation implements PlugIn {
@@ -126,12 +127,9 @@ public class Trainable_Segmentation implements PlugIn {
 	private CustomWindow win;
 	private int traceCounter[] = new int[MAX_NUM_CLASSES];
 	private boolean showColorOverlay;
-	private Instances wholeImageData;
 	private Instances loadedTrainingData;
 	private FastRandomForest rf;
 	
-	private boolean updateWholeData = true;
-	
 	final JButton trainButton;
 	final JButton overlayButton;
 	final JButton resultButton;
@@ -776,26 +774,11 @@ public class Trainable_Segmentation implements PlugIn {
 	{
 		//IJ.log("create training instances: num of features = " + featureStack.getSize());
 		
-		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
-		for (int i=1; i<=featureStack.getSize(); i++){
-			String attString = featureStack.getSliceLabel(i) + " numeric";
-			attributes.add(new Attribute(attString));
-		}
-		
-		final ArrayList<String> classes = new ArrayList<String>();
-
 		int numOfInstances = 0;
 		for(int i = 0; i < numOfClasses ; i ++)
-		{
-			// Do not add empty lists
-			if(examples[i].size() > 0)
-				classes.add(classLabels[i]);
 			numOfInstances += examples[i].size();
-		}
-
-		attributes.add(new Attribute("class", classes));
 
-		final Instances trainingData =  new Instances("segment", attributes, numOfInstances);
+		final Instances trainingData = createTrainingHeader(numOfInstances);
 
 		IJ.log("\nTraining input:");
 		
@@ -844,6 +827,121 @@ public class Trainable_Segmentation implements PlugIn {
 		return trainingData;
 	}
 
+	/**
+	 * Create an empty set of instances with the features as attributes
+	 * and the non empty classes as class values
+	 * @param capacity initial capacity of the set
+	 * @return set of instances
+	 */
+	private Instances createTrainingHeader(int capacity)
+	{
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for (int i=1; i<=featureStack.getSize(); i++){
+			String attString = featureStack.getSliceLabel(i) + " numeric";
+			attributes.add(new Attribute(attString));
+		}
+		
+		final ArrayList<String> classes = new ArrayList<String>();
+		for(int i = 0; i < numOfClasses ; i ++)
+		{
+			// Do not add empty lists
+			if(examples[i].size() > 0)
+				classes.add(classLabels[i]);
+		}
+
+		attributes.add(new Attribute("class", classes));
+
+		return new Instances("segment", attributes, capacity);
+	}
+
+	/**
+	 * Create the training data out of the user markings directly as a
+	 * column-major DataCache, reading the values from the feature stack,
+	 * so no instance is created for each marked pixel. The class values
+	 * are the indexes in the class attribute of the header.
+	 * @param header set of instances created by createTrainingHeader
+	 * @return training data
+	 */
+	private DataCache createTrainingDataCache(Instances header) throws Exception
+	{
+		// Collect the coordinates of the marked pixels first
+		int numOfInstances = 0;
+		int[] xs = new int[64];
+		int[] ys = new int[64];
+		int[] classValues = new int[64];
+		int classIndex = 0;
+
+		IJ.log("\nTraining input:");
+		
+		// For all classes
+		for(int l = 0; l < numOfClasses; l++)
+		{
+			if(examples[l].size() == 0)
+				continue;
+			int nl = 0;
+			// Read all lists of examples
+			for(int j=0; j<examples[l].size(); j++)
+			{
+				Roi r = examples[l].get(j);
+				//need to take care of shapeRois that are represented as multiple polygons
+				Roi[] rois;
+				if (r instanceof ij.gui.ShapeRoi)
+					rois = ((ShapeRoi) r).getRois();
+				else
+					rois = new Roi[]{r};
+
+				for(int k=0; k<rois.length; k++)
+				{
+					int[] x = rois[k].getPolygon().xpoints;
+					int[] y = rois[k].getPolygon().ypoints;
+					final int n = rois[k].getPolygon().npoints;
+
+					for (int i=0; i<n; i++)
+					{
+						if(numOfInstances == xs.length)
+						{
+							final int[] xs2 = new int[2 * xs.length];
+							final int[] ys2 = new int[2 * ys.length];
+							final int[] classValues2 = new int[2 * classValues.length];
+							System.arraycopy(xs, 0, xs2, 0, numOfInstances);
+							System.arraycopy(ys, 0, ys2, 0, numOfInstances);
+							System.arraycopy(classValues, 0, classValues2, 0, numOfInstances);
+							xs = xs2;
+							ys = ys2;
+							classValues = classValues2;
+						}
+						xs[numOfInstances] = x[i];
+						ys[numOfInstances] = y[i];
+						classValues[numOfInstances] = classIndex;
+						numOfInstances++;
+						// increase number of instances for this class
+						nl ++;
+					}
+				}
+			}
+			classIndex++;
+			
+			IJ.log("# of pixels selected as " + classLabels[l] + ": " +nl);
+		}
+
+		// Then read the features plane by plane
+		final int numOfFeatures = featureStack.getSize();
+		final float[][] columns = new float[numOfFeatures + 1][];
+		for (int z=1; z<=numOfFeatures; z++)
+		{
+			final ImageProcessor ip = featureStack.getProcessor(z);
+			final float[] column = new float[numOfInstances];
+			for (int i=0; i<numOfInstances; i++)
+				column[i] = ip.getPixelValue(xs[i], ys[i]);
+			columns[z-1] = column;
+		}
+
+		final int[] instanceClasses = new int[numOfInstances];
+		System.arraycopy(classValues, 0, instanceClasses, 0, numOfInstances);
+
+		return new DataCache(columns, header, instanceClasses, null);
+	}
+
 	/**
 	 * Train classifier with the current instances
 	 */
@@ -872,8 +970,28 @@ public class Trainable_Segmentation implements PlugIn {
 
 		IJ.showStatus("Training classifier...");
 		Instances data = null;
+		Instances header = null;
+		DataCache trainingCache = null;
 		if (nonEmpty < 2)
 			IJ.log("Training from loaded data only...");
+		else if (loadedTrainingData == null)
+		{
+			// No data to merge, so take the examples straight from the feature planes
+			final long start = System.currentTimeMillis();
+			header = createTrainingHeader(0);
+			header.setClassIndex(header.numAttributes() - 1);
+			try{
+				trainingCache = createTrainingDataCache(header);
+			}
+			catch(Exception e){
+				IJ.showMessage(e.getMessage());
+				e.printStackTrace();
+				setButtonsEnabled(true);
+				return;
+			}
+			final long end = System.currentTimeMillis();
+			IJ.log("Creating training data took: " + (end-start) + "ms");
+		}
 		else 
 		{
 			final long start = System.currentTimeMillis();
@@ -897,14 +1015,17 @@ public class Trainable_Segmentation implements PlugIn {
 
 		IJ.showStatus("Training classifier...");
 		IJ.log("Training classifier...");
-		if (null == data){
+		if (null == data && null == trainingCache){
 			IJ.log("WTF");
 		}
 		
 		// Train the classifier on the current data
 		final long start = System.currentTimeMillis();
 		try{
-			rf.buildClassifier(data);
+			if (null != trainingCache)
+				rf.buildClassifier(trainingCache, header);
+			else
+				rf.buildClassifier(data);
 		}
 		catch(Exception e){
 			IJ.showMessage(e.getMessage());
@@ -915,12 +1036,9 @@ public class Trainable_Segmentation implements PlugIn {
 		final DecimalFormat df = new DecimalFormat("0.0000");
 		IJ.log("Finished training in "+(end-start)+"ms, out of bag error: " + df.format(rf.measureOutOfBagError()));
 		
-		if(updateWholeData)
-			updateTestSet();
-
 		IJ.log("Classifying whole image...");
 
-		classifiedImage = applyClassifier(wholeImageData, trainingImage.getWidth(), trainingImage.getHeight());
+		classifiedImage = applyClassifier(featureStack, trainingImage.getWidth(), trainingImage.getHeight());
 
 		IJ.log("Finished segmentation of whole image.");
 		
@@ -935,34 +1053,6 @@ public class Trainable_Segmentation implements PlugIn {
 		//featureStack.show();
 	}
 	
-	/**
-	 * Update whole data set with current number of classes and features
-	 */
-	private void updateTestSet() 
-	{
-		IJ.showStatus("Reading whole image data...");
-		
-		long start = System.currentTimeMillis();
-		ArrayList<String> classNames = null;
-		
-		if(loadedTrainingData != null)
-			classNames = loadedClassNames;
-		else
-		{
-			classNames = new ArrayList<String>();
-
-			for(int i = 0; i < numOfClasses; i++)
-				if(examples[i].size() > 0)
-					classNames.add(classLabels[i]);
-		}
-		wholeImageData = featureStack.createInstances(classNames);
-		long end = System.currentTimeMillis();
-		IJ.log("Creating whole image data took: " + (end-start) + "ms");
-		wholeImageData.setClassIndex(wholeImageData.numAttributes() - 1);
-		
-		updateWholeData = false;
-	}
-
 	/**
 	 * Apply current classifier to set of instances
 	 * @param data set of instances
@@ -1041,6 +1131,85 @@ public class Trainable_Segmentation implements PlugIn {
 		return classImg;
 	}
 	
+	/**
+	 * Apply current classifier to the pixels of an image, reading the
+	 * features straight from the planes of its feature stack. The image is
+	 * classified by tiles of rows, which the threads take in turns, without
+	 * creating any instance; each tile is classified by the forest in blocks.
+	 * @param features feature stack of the image
+	 * @param w image width
+	 * @param h image height
+	 * @return result image
+	 */
+	public ImagePlus applyClassifier(final FeatureStack features, int w, int h)
+	{
+		IJ.showStatus("Classifying image...");
+		
+		final long start = System.currentTimeMillis();
+
+		final float[][] columns = features.getFeatureColumns();
+		final int numInstances = w * h;
+		final int tileSize = Math.max(1, 4096 / w) * w;
+		final int numTiles = (numInstances + tileSize - 1) / tileSize;
+		final double[] classificationResult = new double[numInstances];
+
+		final int numOfProcessors = Runtime.getRuntime().availableProcessors();
+		final ExecutorService exe = Executors.newFixedThreadPool(numOfProcessors);
+		Future<?> fu[] = new Future[numOfProcessors];
+		
+		final AtomicInteger nextTile = new AtomicInteger();
+		final AtomicInteger counter = new AtomicInteger();
+		
+		for(int i = 0; i<numOfProcessors; i++)
+		{
+			fu[i] = exe.submit(new Callable<Object>(){
+				public Object call() throws Exception {
+					for(int tile = nextTile.getAndIncrement(); tile < numTiles; tile = nextTile.getAndIncrement())
+					{
+						final int end = Math.min(numInstances, (tile + 1) * tileSize);
+						rf.classifyColumns(columns, tile * tileSize, end, classificationResult);
+						counter.addAndGet(end - tile * tileSize);
+					}
+					return null;
+				}
+			});
+		}
+		
+		ScheduledExecutorService monitor = Executors.newScheduledThreadPool(1);
+		ScheduledFuture task = monitor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				IJ.showProgress(counter.get(), numInstances);
+			}
+		}, 0, 1, TimeUnit.SECONDS);
+		
+		// Join threads
+		try {
+			for(int i = 0; i<numOfProcessors; i++)
+				fu[i].get();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return null;
+		} catch (ExecutionException e) {
+			IJ.showMessage("Could not apply Classifier!");
+			e.printStackTrace();
+			return null;
+		} finally {
+			exe.shutdownNow();
+			task.cancel(true);
+			monitor.shutdownNow();
+			IJ.showProgress(1);
+		}
+		
+		final long end = System.currentTimeMillis();
+		IJ.log("Classifying whole image data took: " + (end-start) + "ms");
+
+		IJ.showStatus("Displaying result...");
+		final ImageProcessor classifiedImageProcessor = new FloatProcessor(w, h, classificationResult);
+		classifiedImageProcessor.convertToByte(true);
+		ImagePlus classImg = new ImagePlus("Classification result", classifiedImageProcessor);
+		return classImg;
+	}
+	
 	/**
 	 * Classify instance concurrently
 	 * @param data set of instances to classify
@@ -1206,16 +1375,7 @@ public class Trainable_Segmentation implements PlugIn {
 		final FeatureStack testImageFeatures = new FeatureStack(testImage);
 		testImageFeatures.addDefaultFeatures();
 
-		// Set proper class names (skip empty list ones)
-		ArrayList<String> classNames = new ArrayList<String>();
-		for(int i = 0; i < numOfClasses; i++)
-			if(examples[i].size() > 0)
-				classNames.add(classLabels[i]);
-		
-		final Instances testData = testImageFeatures.createInstances(classNames);
-		testData.setClassIndex(testData.numAttributes() - 1);
-
-		final ImagePlus testClassImage = applyClassifier(testData, testImage.getWidth(), testImage.getHeight());
+		final ImagePlus testClassImage = applyClassifier(testImageFeatures, testImage.getWidth(), testImage.getHeight());
 		testClassImage.setTitle("classified_" + testImage.getTitle());
 		testClassImage.setProcessor(testClassImage.getProcessor().convertToByte(true).duplicate());
 
@@ -1296,8 +1456,6 @@ public class Trainable_Segmentation implements PlugIn {
 			this.featureStack.setEnableFeatures(usedFeatures);
 			this.featureStack.updateFeatures();
 			this.setButtonsEnabled(true);
-			// Force whole data to be updated
-			updateWholeData = true;
 		}
 	}
 	
@@ -1363,10 +1521,6 @@ public class Trainable_Segmentation implements PlugIn {
 		win.addClass();
 		
 		repaintWindow();
-		
-		// Force whole data to be updated
-		updateWholeData = true;
-		
 	}
 
 	/**
@@ -1471,10 +1625,9 @@ public class Trainable_Segmentation implements PlugIn {
 		}
 		
 		// If there is a change in the class names, 
-		// the data set (instances) must be updated.
+		// the buttons must be updated.
 		if(classNameChanged)
 		{
-			updateWholeData = true;
 			// Pack window to udpate buttons
 			win.pack();
 		}
@@ -1491,8 +1644,6 @@ public class Trainable_Segmentation implements PlugIn {
 			this.featureStack.setEnableFeatures(newEnableFeatures);
 			this.featureStack.updateFeatures();
 			this.setButtonsEnabled(true);
-			// Force whole data to be updated
-			updateWholeData = true;
 		}
 		
 		return true;
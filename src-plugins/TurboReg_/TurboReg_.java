@@ -105,6 +105,7 @@ import java.io.StreamTokenizer;
 import java.io.StringReader;
 import java.util.Stack;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*====================================================================
 |	TurboReg_
@@ -135,6 +136,212 @@ private ImagePlus transformedImage = null;
 	Public methods
 ....................................................................*/
 
+/*********************************************************************
+ Register every slice of a stack to the slice that precedes it, using
+ one thread per processor.
+ @see TurboReg_#alignSequence(ImagePlus, String, double[][], double[][],
+ int)
+ ********************************************************************/
+public double[][][] alignSequence (
+	final ImagePlus source,
+	final String transformation,
+	final double[][] sourcePoints,
+	final double[][] targetPoints
+) {
+	return(alignSequence(source, transformation, sourcePoints, targetPoints,
+		Runtime.getRuntime().availableProcessors()));
+} /* end alignSequence */
+
+/*********************************************************************
+ Register every slice of a stack to the slice that precedes it. The
+ slices are split into as many runs of consecutive slices as there are
+ threads, and the runs are registered concurrently. When there are
+ fewer runs than threads, the remaining threads evaluate the bands of
+ rows of each registration; otherwise, every registration runs on the
+ thread of its run. Within a run,
+ every slice is preprocessed once: the samples and B-spline
+ coefficients computed when it is the source are reused when it
+ becomes the target of the next slice. No output image is computed.
+ @param source Grayscale stack whose slices are to be registered.
+ @param transformation One of <code>-translation</code>,
+ <code>-rigidBody</code>, <code>-scaledRotation</code>,
+ <code>-affine</code>, or <code>-bilinear</code>.
+ @param sourcePoints Initial landmarks, valid in every slice.
+ @param targetPoints Landmarks in the preceding slice that correspond to
+ <code>sourcePoints</code>.
+ @param threads Maximal number of threads.
+ @return The refined landmarks of every slice, indexed from
+ <code>0</code> for the first slice. They match
+ <code>targetPoints</code> in the preceding slice. The landmarks of
+ the first slice are <code>targetPoints</code> themselves. Return
+ <code>null</code> if the parameters are not valid.
+ ********************************************************************/
+public double[][][] alignSequence (
+	final ImagePlus source,
+	final String transformation,
+	final double[][] sourcePoints,
+	final double[][] targetPoints,
+	final int threads
+) {
+	final int code = getTransformation(transformation);
+	if (code == turboRegDialog.GENERIC_TRANSFORMATION) {
+		IJ.error(
+			"Invalid transformation " + transformation);
+		return(null);
+	}
+	if (!isGrayscale(source)) {
+		return(null);
+	}
+	final ImageStack stack = source.getStack();
+	final int slices = stack.getSize();
+	final int pyramidDepth = getPyramidDepth(
+		stack.getWidth(), stack.getHeight(),
+		stack.getWidth(), stack.getHeight());
+	final turboRegMask targetMsk = getClearMask(
+		new ImagePlus("", stack.getProcessor(1)), pyramidDepth);
+	final double[][][] points = new double[slices][][];
+	points[0] = copyPoints(targetPoints, code);
+	final Thread[] workers = new Thread[Math.min(slices - 1,
+		Math.max(1, threads))];
+	final int bandThreads = Math.max(1, threads / Math.max(1, workers.length));
+	for (int n = 0; (n < workers.length); n++) {
+		final int first = 2 + n * (slices - 1) / workers.length;
+		final int last = 1 + (n + 1) * (slices - 1) / workers.length;
+		workers[n] = new Thread() {
+			public void run () {
+				turboRegImage targetImg = getPreprocessedImage(
+					new ImagePlus("", stack.getProcessor(first - 1)),
+					code, true, pyramidDepth);
+				final turboRegPointHandler targetPh = new turboRegPointHandler(
+					new ImagePlus("", stack.getProcessor(first - 1)), code);
+				for (int i = first; (i <= last); i++) {
+					final ImagePlus sourceImp = new ImagePlus("",
+						stack.getProcessor(i));
+					final turboRegImage sourceImg = getPreprocessedImage(
+						sourceImp, code, false, pyramidDepth);
+					final turboRegPointHandler sourcePh =
+						new turboRegPointHandler(sourceImp, code);
+					refineLandmarks(sourceImg, sourcePh, targetImg, targetMsk,
+						targetPh, code, sourcePoints, targetPoints, bandThreads);
+					points[i - 1] = copyPoints(sourcePh.getPoints(), code);
+					if (i < last) {
+						targetImg = new turboRegImage(sourceImg, true);
+						targetImg.run();
+					}
+				}
+			}
+		};
+	}
+	runThreads(workers);
+	return(points);
+} /* end alignSequence */
+
+/*********************************************************************
+ Register every slice of a stack to a single target image, using one
+ thread per processor.
+ @see TurboReg_#alignStack(ImagePlus, ImagePlus, String, double[][],
+ double[][], int)
+ ********************************************************************/
+public double[][][] alignStack (
+	final ImagePlus source,
+	final ImagePlus target,
+	final String transformation,
+	final double[][] sourcePoints,
+	final double[][] targetPoints
+) {
+	return(alignStack(source, target, transformation, sourcePoints,
+		targetPoints, Runtime.getRuntime().availableProcessors()));
+} /* end alignStack */
+
+/*********************************************************************
+ Register every slice of a stack to a single target image. The
+ pyramids of the target are computed once and are shared by all
+ slices, which are registered concurrently by a pool of threads. When
+ there are fewer slices than threads, the remaining threads evaluate
+ the bands of rows of each registration; otherwise, every registration
+ runs on the thread of the pool that picked its slice. The registered
+ stack is then available from <code>getTransformedImage</code>.
+ @param source Grayscale stack whose slices are to be registered.
+ @param target Grayscale target image. Only its current slice is used.
+ @param transformation One of <code>-translation</code>,
+ <code>-rigidBody</code>, <code>-scaledRotation</code>,
+ <code>-affine</code>, or <code>-bilinear</code>.
+ @param sourcePoints Initial landmarks, valid in every slice.
+ @param targetPoints Landmarks in the target image that correspond to
+ <code>sourcePoints</code>.
+ @param threads Maximal number of threads.
+ @return The refined landmarks of every slice, indexed from
+ <code>0</code> for the first slice, or <code>null</code> if the
+ parameters are not valid.
+ ********************************************************************/
+public double[][][] alignStack (
+	final ImagePlus source,
+	final ImagePlus target,
+	final String transformation,
+	final double[][] sourcePoints,
+	final double[][] targetPoints,
+	final int threads
+) {
+	final int code = getTransformation(transformation);
+	if (code == turboRegDialog.GENERIC_TRANSFORMATION) {
+		IJ.error(
+			"Invalid transformation " + transformation);
+		return(null);
+	}
+	if (!isGrayscale(source) || !isGrayscale(target)) {
+		return(null);
+	}
+	final ImageStack stack = source.getStack();
+	final int slices = stack.getSize();
+	final ImagePlus targetImp = new ImagePlus("target",
+		target.getProcessor());
+	final int pyramidDepth = getPyramidDepth(
+		stack.getWidth(), stack.getHeight(),
+		targetImp.getWidth(), targetImp.getHeight());
+	final turboRegImage targetImg = getPreprocessedImage(
+		targetImp, code, true, pyramidDepth);
+	final turboRegMask targetMsk = getClearMask(targetImp, pyramidDepth);
+	final ImageStack outputStack = new ImageStack(targetImp.getWidth(),
+		targetImp.getHeight());
+	for (int i = 0; (i < slices); i++) {
+		outputStack.addSlice("", new FloatProcessor(
+			targetImp.getWidth(), targetImp.getHeight()));
+	}
+	final double[][][] points = new double[slices][][];
+	final AtomicInteger nextSlice = new AtomicInteger(1);
+	final Thread[] workers = new Thread[Math.min(slices,
+		Math.max(1, threads))];
+	final int bandThreads = Math.max(1, threads / workers.length);
+	for (int n = 0; (n < workers.length); n++) {
+		workers[n] = new Thread() {
+			public void run () {
+				final turboRegPointHandler targetPh = new turboRegPointHandler(
+					new ImagePlus("target", targetImp.getProcessor().duplicate()),
+					code);
+				for (int i = nextSlice.getAndIncrement(); (i <= slices);
+					i = nextSlice.getAndIncrement()) {
+					final ImagePlus sourceImp = new ImagePlus("",
+						stack.getProcessor(i));
+					final turboRegImage sourceImg = getPreprocessedImage(
+						sourceImp, code, false, pyramidDepth);
+					final turboRegPointHandler sourcePh =
+						new turboRegPointHandler(sourceImp, code);
+					final turboRegTransform tt = refineLandmarks(sourceImg,
+						sourcePh, targetImg, targetMsk, targetPh, code,
+						sourcePoints, targetPoints, bandThreads);
+					points[i - 1] = copyPoints(sourcePh.getPoints(), code);
+					tt.doBatchFinalTransform(
+						(float[])outputStack.getPixels(i));
+				}
+			}
+		};
+	}
+	runThreads(workers);
+	transformedImage = new ImagePlus("Registered", outputStack);
+	transformedImage.getProcessor().resetMinAndMax();
+	return(points);
+} /* end alignStack */
+
 /*********************************************************************
  Accessor method for the <code>(double[][])sourcePoints</code> variable.
  This variable is valid only after a call to <code>run</code> with the
@@ -1059,6 +1266,21 @@ private ImagePlus alignImages (
 		transformation, interactive));
 } /* end alignImages */
 
+/*------------------------------------------------------------------*/
+private double[][] copyPoints (
+	final double[][] points,
+	final int transformation
+) {
+	final int n = (transformation == turboRegDialog.RIGID_BODY)
+		? (transformation) : (transformation / 2);
+	final double[][] copy = new double[n][2];
+	for (int k = 0; (k < n); k++) {
+		copy[k][0] = points[k][0];
+		copy[k][1] = points[k][1];
+	}
+	return(copy);
+} /* end copyPoints */
+
 /*------------------------------------------------------------------*/
 private ImagePlus[] createAdmissibleImageList (
 ) {
@@ -1138,6 +1360,18 @@ private void dumpSyntax (
 	IJ.write("~~~");
 } /* end dumpSyntax */
 
+/*------------------------------------------------------------------*/
+private turboRegMask getClearMask (
+	final ImagePlus imp,
+	final int pyramidDepth
+) {
+	final turboRegMask msk = new turboRegMask(imp);
+	msk.clearMask();
+	msk.setPyramidDepth(pyramidDepth);
+	msk.run();
+	return(msk);
+} /* end getClearMask */
+
 /*------------------------------------------------------------------*/
 private Boolean getInteractive (
 	final String token
@@ -1153,6 +1387,20 @@ private Boolean getInteractive (
 	}
 } /* end getInteractive */
 
+/*------------------------------------------------------------------*/
+private turboRegImage getPreprocessedImage (
+	final ImagePlus imp,
+	final int transformation,
+	final boolean isTarget,
+	final int pyramidDepth
+) {
+	final turboRegImage img = new turboRegImage(imp, transformation,
+		isTarget);
+	img.setPyramidDepth(pyramidDepth);
+	img.run();
+	return(img);
+} /* end getPreprocessedImage */
+
 /*------------------------------------------------------------------*/
 private int getPyramidDepth (
 	int sw,
@@ -1230,6 +1478,60 @@ private int getTransformation (
 	}
 } /* end getTransformation */
 
+/*------------------------------------------------------------------*/
+private boolean isGrayscale (
+	final ImagePlus imp
+) {
+	if ((imp.getType() != imp.GRAY16)
+		&& (imp.getType() != imp.GRAY32)
+		&& ((imp.getType() != imp.GRAY8)
+		|| imp.getStack().isRGB() || imp.getStack().isHSB())) {
+		IJ.error(
+			imp.getTitle() + " should be grayscale (8, 16, or 32 bit)");
+		return(false);
+	}
+	return(true);
+} /* end isGrayscale */
+
+/*------------------------------------------------------------------*/
+private turboRegTransform refineLandmarks (
+	final turboRegImage sourceImg,
+	final turboRegPointHandler sourcePh,
+	final turboRegImage targetImg,
+	final turboRegMask targetMsk,
+	final turboRegPointHandler targetPh,
+	final int transformation,
+	final double[][] sourcePoints,
+	final double[][] targetPoints,
+	final int bandThreads
+) {
+	sourcePh.setPoints(sourcePoints);
+	targetPh.setPoints(targetPoints);
+	final turboRegTransform tt = new turboRegTransform(sourceImg, null,
+		sourcePh, targetImg, targetMsk, targetPh, transformation, false,
+		false);
+	tt.setBandThreads(bandThreads);
+	tt.doRegistration();
+	return(tt);
+} /* end refineLandmarks */
+
+/*------------------------------------------------------------------*/
+private void runThreads (
+	final Thread[] threads
+) {
+	for (int n = 0; (n < threads.length); n++) {
+		threads[n].start();
+	}
+	try {
+		for (int n = 0; (n < threads.length); n++) {
+			threads[n].join();
+		}
+	} catch (InterruptedException e) {
+		IJ.log(
+			"Unexpected interruption exception " + e.getMessage());
+	}
+} /* end runThreads */
+
 /*------------------------------------------------------------------*/
 private ImagePlus transformImage (
 	final ImagePlus source,
@@ -3407,7 +3709,9 @@ public float[] getYGradient (
  ********************************************************************/
 public void run (
 ) {
-	coefficient = getBasicFromCardinal2D();
+	if (coefficient == null) {
+		coefficient = getBasicFromCardinal2D();
+	}
 	switch (transformation) {
 		case turboRegDialog.GENERIC_TRANSFORMATION: {
 			break;
@@ -3507,6 +3811,30 @@ public turboRegImage (
 	turboRegProgressBar.workloadDone(height);
 } /* end turboRegImage */
 
+/*********************************************************************
+ Share the samples and the B-spline coefficients of an image that has
+ already been preprocessed, so that only the pyramid is computed. This
+ allows the source of one registration to serve as the target of the
+ next one.
+ @param img <code>turboRegImage</code> object whose <code>run</code>
+ method has completed.
+ @param isTarget Tags the current object as a target or source image.
+ ********************************************************************/
+public turboRegImage (
+	final turboRegImage img,
+	final boolean isTarget
+) {
+	t = new Thread(this);
+	t.setDaemon(true);
+	this.isTarget = isTarget;
+	transformation = img.transformation;
+	pyramidDepth = img.pyramidDepth;
+	width = img.width;
+	height = img.height;
+	image = img.image;
+	coefficient = img.coefficient;
+} /* end turboRegImage */
+
 /*....................................................................
 	Private methods
 ....................................................................*/
@@ -5948,6 +6276,14 @@ private static final double PIXEL_LOW_PRECISION = 0.1;
  ********************************************************************/
 private static final int ITERATION_PROGRESSION = 2;
 
+/*********************************************************************
+ Minimal number of samples in a band of rows of the output image.
+ The mean squares of a pyramid level with more than one band are
+ accumulated band by band on several threads. The bands do not depend
+ on the number of processors, so that the result does not either.
+ ********************************************************************/
+private static final int BAND_SAMPLES = 65536;
+
 private final double[] dxWeight = new double[4];
 private final double[] dyWeight = new double[4];
 private final double[] xWeight = new double[4];
@@ -5969,6 +6305,7 @@ private float[] yGradient;
 private float[] inMsk;
 private float[] outMsk;
 private double targetJacobian;
+private double bandMeanSquares;
 private double s;
 private double t;
 private double x;
@@ -5990,6 +6327,7 @@ private double c3u;
 private double c3v;
 private double c3uv;
 private double pixelPrecision;
+private long bandArea;
 private int maxIterations;
 private int p;
 private int q;
@@ -5999,12 +6337,16 @@ private int outNx;
 private int outNy;
 private int twiceInNx;
 private int twiceInNy;
+private int firstRow;
+private int lastRow;
 private int transformation;
 private int pyramidDepth;
 private int iterationPower;
 private int iterationCost;
+private int bandThreads = Runtime.getRuntime().availableProcessors();
 private boolean accelerated;
 private boolean interactive;
+private boolean isBandWorker = false;
 
 /*....................................................................
 	Public methods
@@ -6303,6 +6645,8 @@ public void doRegistration (
 		}
 		twiceInNx = 2 * inNx;
 		twiceInNy = 2 * inNy;
+		firstRow = 0;
+		lastRow = outNy;
 		switch (transformation) {
 			case turboRegDialog.TRANSLATION: {
 				targetJacobian = 1.0;
@@ -6380,6 +6724,8 @@ public void doRegistration (
 	}
 	twiceInNx = 2 * inNx;
 	twiceInNy = 2 * inNy;
+	firstRow = 0;
+	lastRow = outNy;
 	if (accelerated) {
 		turboRegProgressBar.skipProgressBar(
 			iterationCost * (maxIterations - 1));
@@ -6503,6 +6849,20 @@ public String saveTransformation (
 	return(path + filename);
 } /* end saveTransformation */
 
+/*********************************************************************
+ Set the number of threads over which the bands of rows of a mean
+ squares evaluation are spread. With a single thread, the bands are
+ evaluated on the calling thread. The result does not depend on the
+ number of threads.
+ @param bandThreads Maximal number of threads, one processor per
+ thread by default.
+ ********************************************************************/
+public void setBandThreads (
+	final int bandThreads
+) {
+	this.bandThreads = Math.max(1, bandThreads);
+} /* end setBandThreads */
+
 /*********************************************************************
  Keep a local copy of most everything. Select among the pre-stored
  constants.
@@ -6552,6 +6912,28 @@ public turboRegTransform (
 	Private methods
 ....................................................................*/
 
+/*------------------------------------------------------------------*/
+private turboRegTransform (
+	final turboRegTransform parent
+) {
+	inImg = parent.inImg;
+	outImg = parent.outImg;
+	xGradient = parent.xGradient;
+	yGradient = parent.yGradient;
+	inMsk = parent.inMsk;
+	outMsk = parent.outMsk;
+	inNx = parent.inNx;
+	inNy = parent.inNy;
+	outNx = parent.outNx;
+	outNy = parent.outNy;
+	twiceInNx = parent.twiceInNx;
+	twiceInNy = parent.twiceInNy;
+	targetPoint = parent.targetPoint;
+	targetJacobian = parent.targetJacobian;
+	transformation = parent.transformation;
+	isBandWorker = true;
+} /* end turboRegTransform */
+
 /*------------------------------------------------------------------*/
 private void affineTransform (
 	final double[][] matrix
@@ -6843,11 +7225,19 @@ private double getAffineMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
-	if (outMsk == null) {
+	int k = firstRow * outNx;
+	if (isSplitIntoBands()) {
+		meanSquares = getBandMeanSquares(sourcePoint, matrix, null, null);
+		area = bandArea;
+	}
+	else if (outMsk == null) {
 		yx = matrix[0][0];
 		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -6879,7 +7269,11 @@ private double getAffineMeanSquares (
 	else {
 		yx = matrix[0][0];
 		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -6908,6 +7302,8 @@ private double getAffineMeanSquares (
 			yy += matrix[1][2];
 		}
 	}
+	bandMeanSquares = meanSquares;
+	bandArea = area;
 	return(meanSquares / ((double)area * Math.abs(det / targetJacobian)));
 } /* getAffineMeanSquares */
 
@@ -6951,17 +7347,25 @@ private double getAffineMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	uv32 /= det;
 	uv21 /= det;
 	uv13 /= det;
 	for (int i = 0; (i < transformation); i++) {
 		gradient[i] = 0.0;
 	}
-	if (outMsk == null) {
+	if (isSplitIntoBands()) {
+		meanSquares = getBandMeanSquares(sourcePoint, matrix, null, gradient);
+		area = bandArea;
+	}
+	else if (outMsk == null) {
 		yx = matrix[0][0];
 		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7008,7 +7412,11 @@ private double getAffineMeanSquares (
 	else {
 		yx = matrix[0][0];
 		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7052,6 +7460,8 @@ private double getAffineMeanSquares (
 			yy += matrix[1][2];
 		}
 	}
+	bandMeanSquares = meanSquares;
+	bandArea = area;
 	return(meanSquares / ((double)area * Math.abs(det / targetJacobian)));
 } /* getAffineMeanSquares */
 
@@ -7096,7 +7506,7 @@ private double getAffineMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	uv32 /= det;
 	uv21 /= det;
 	uv13 /= det;
@@ -7106,10 +7516,18 @@ private double getAffineMeanSquares (
 			hessian[i][j] = 0.0;
 		}
 	}
-	if (outMsk == null) {
+	if (isSplitIntoBands()) {
+		meanSquares = getBandMeanSquares(sourcePoint, matrix, hessian, gradient);
+		area = bandArea;
+	}
+	else if (outMsk == null) {
 		yx = matrix[0][0];
 		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7177,7 +7595,11 @@ private double getAffineMeanSquares (
 	else {
 		yx = matrix[0][0];
 		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7247,9 +7669,93 @@ private double getAffineMeanSquares (
 			hessian[i][j] = hessian[j][i];
 		}
 	}
+	bandMeanSquares = meanSquares;
+	bandArea = area;
 	return(meanSquares / ((double)area * Math.abs(det / targetJacobian)));
 } /* getAffineMeanSquares */
 
+/*------------------------------------------------------------------*/
+private double getBandMeanSquares (
+	final double[][] sourcePoint,
+	final double[][] matrix,
+	final double[][] hessian,
+	final double[] gradient
+) {
+	final int rows = Math.max(1, BAND_SAMPLES / outNx);
+	final int bands = (outNy + rows - 1) / rows;
+	final double[] meanSquares = new double[bands];
+	final long[] area = new long[bands];
+	final double[][] gradients = (gradient == null) ? (null)
+		: (new double[bands][transformation]);
+	final double[][][] hessians = (hessian == null) ? (null)
+		: (new double[bands][transformation][transformation]);
+	final AtomicInteger nextBand = new AtomicInteger(0);
+	final Throwable[] failure = new Throwable[1];
+	final Thread[] threads = new Thread[Math.min(bands, bandThreads)];
+	for (int n = 0; (n < threads.length); n++) {
+		final turboRegTransform worker = new turboRegTransform(this);
+		threads[n] = new Thread() {
+			public void run () {
+				try {
+					for (int b = nextBand.getAndIncrement(); (b < bands);
+						b = nextBand.getAndIncrement()) {
+						worker.firstRow = b * rows;
+						worker.lastRow = Math.min(worker.firstRow + rows, outNy);
+						worker.getMeanSquares(sourcePoint, matrix,
+							(hessians == null) ? (null) : (hessians[b]),
+							(gradients == null) ? (null) : (gradients[b]));
+						meanSquares[b] = worker.bandMeanSquares;
+						area[b] = worker.bandArea;
+					}
+				} catch (Throwable e) {
+					synchronized (failure) {
+						if (failure[0] == null) {
+							failure[0] = e;
+						}
+					}
+					nextBand.set(bands);
+				}
+			}
+		};
+	}
+	if (threads.length == 1) {
+		threads[0].run();
+	}
+	else {
+		for (int n = 0; (n < threads.length); n++) {
+			threads[n].start();
+		}
+		try {
+			for (int n = 0; (n < threads.length); n++) {
+				threads[n].join();
+			}
+		} catch (InterruptedException e) {
+			IJ.log(
+				"Unexpected interruption exception " + e.getMessage());
+		}
+	}
+	if (failure[0] != null) {
+		throw new RuntimeException("Mean squares computation failed", failure[0]);
+	}
+	double sum = 0.0;
+	bandArea = 0L;
+	for (int b = 0; (b < bands); b++) {
+		sum += meanSquares[b];
+		bandArea += area[b];
+		for (int i = 0; (i < transformation); i++) {
+			if (gradient != null) {
+				gradient[i] += gradients[b][i];
+			}
+			if (hessian != null) {
+				for (int j = 0; (j < transformation); j++) {
+					hessian[i][j] += hessians[b][i][j];
+				}
+			}
+		}
+	}
+	return(sum);
+} /* end getBandMeanSquares */
+
 /*------------------------------------------------------------------*/
 private double getBilinearMeanSquares (
 	final double[][] matrix
@@ -7265,13 +7771,23 @@ private double getBilinearMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
-	if (inMsk == null) {
+	int k = firstRow * outNx;
+	if (isSplitIntoBands()) {
+		meanSquares = getBandMeanSquares(null, matrix, null, null);
+		area = bandArea;
+	}
+	else if (inMsk == null) {
 		yx = matrix[0][0];
 		yy = matrix[1][0];
 		yxy = 0.0;
 		yyy = 0.0;
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+			yxy += matrix[0][3];
+			yyy += matrix[1][3];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7307,7 +7823,13 @@ private double getBilinearMeanSquares (
 		yy = matrix[1][0];
 		yxy = 0.0;
 		yyy = 0.0;
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+			yxy += matrix[0][3];
+			yyy += matrix[1][3];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7339,6 +7861,8 @@ private double getBilinearMeanSquares (
 			yyy += matrix[1][3];
 		}
 	}
+	bandMeanSquares = meanSquares;
+	bandArea = area;
 	return(meanSquares / (double)area);
 } /* getBilinearMeanSquares */
 
@@ -7374,7 +7898,7 @@ private double getBilinearMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	computeBilinearGradientConstants();
 	for (int i = 0; (i < transformation); i++) {
 		gradient[i] = 0.0;
@@ -7382,12 +7906,22 @@ private double getBilinearMeanSquares (
 			hessian[i][j] = 0.0;
 		}
 	}
-	if (inMsk == null) {
+	if (isSplitIntoBands()) {
+		meanSquares = getBandMeanSquares(null, matrix, hessian, gradient);
+		area = bandArea;
+	}
+	else if (inMsk == null) {
 		yx = matrix[0][0];
 		yy = matrix[1][0];
 		yxy = 0.0;
 		yyy = 0.0;
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+			yxy += matrix[0][3];
+			yyy += matrix[1][3];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7482,7 +8016,13 @@ private double getBilinearMeanSquares (
 		yy = matrix[1][0];
 		yxy = 0.0;
 		yyy = 0.0;
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+			yxy += matrix[0][3];
+			yyy += matrix[1][3];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7578,9 +8118,68 @@ private double getBilinearMeanSquares (
 			hessian[i][j] = hessian[j][i];
 		}
 	}
+	bandMeanSquares = meanSquares;
+	bandArea = area;
 	return(meanSquares / (double)area);
 } /* getBilinearMeanSquares */
 
+/*------------------------------------------------------------------*/
+private double getMeanSquares (
+	final double[][] sourcePoint,
+	final double[][] matrix,
+	final double[][] hessian,
+	final double[] gradient
+) {
+	switch (transformation) {
+		case turboRegDialog.TRANSLATION: {
+			if (hessian != null) {
+				return(getTranslationMeanSquares(matrix, hessian, gradient));
+			}
+			if (gradient != null) {
+				return(getTranslationMeanSquares(matrix, gradient));
+			}
+			return(getTranslationMeanSquares(matrix));
+		}
+		case turboRegDialog.RIGID_BODY: {
+			if (hessian != null) {
+				return(getRigidBodyMeanSquares(matrix, hessian, gradient));
+			}
+			if (gradient != null) {
+				return(getRigidBodyMeanSquares(matrix, gradient));
+			}
+			return(getRigidBodyMeanSquares(matrix));
+		}
+		case turboRegDialog.SCALED_ROTATION: {
+			if (hessian != null) {
+				return(getScaledRotationMeanSquares(sourcePoint, matrix,
+					hessian, gradient));
+			}
+			if (gradient != null) {
+				return(getScaledRotationMeanSquares(sourcePoint, matrix,
+					gradient));
+			}
+			return(getScaledRotationMeanSquares(sourcePoint, matrix));
+		}
+		case turboRegDialog.AFFINE: {
+			if (hessian != null) {
+				return(getAffineMeanSquares(sourcePoint, matrix,
+					hessian, gradient));
+			}
+			if (gradient != null) {
+				return(getAffineMeanSquares(sourcePoint, matrix, gradient));
+			}
+			return(getAffineMeanSquares(sourcePoint, matrix));
+		}
+		case turboRegDialog.BILINEAR: {
+			if (hessian != null) {
+				return(getBilinearMeanSquares(matrix, hessian, gradient));
+			}
+			return(getBilinearMeanSquares(matrix));
+		}
+	}
+	return(0.0);
+} /* end getMeanSquares */
+
 /*------------------------------------------------------------------*/
 private double getRigidBodyMeanSquares (
 	final double[][] matrix
@@ -7594,11 +8193,19 @@ private double getRigidBodyMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
-	if (outMsk == null) {
+	int k = firstRow * outNx;
+	if (isSplitIntoBands()) {
+		meanSquares = getBandMeanSquares(null, matrix, null, null);
+		area = bandArea;
+	}
+	else if (outMsk == null) {
 		yx = matrix[0][0];
 		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7630,7 +8237,11 @@ private double getRigidBodyMeanSquares (
 	else {
 		yx = matrix[0][0];
 		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7659,6 +8270,8 @@ private double getRigidBodyMeanSquares (
 			yy += matrix[1][2];
 		}
 	}
+	bandMeanSquares = meanSquares;
+	bandArea = area;
 	return(meanSquares / (double)area);
 } /* getRigidBodyMeanSquares */
 
@@ -7677,14 +8290,22 @@ private double getRigidBodyMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	for (int i = 0; (i < transformation); i++) {
 		gradient[i] = 0.0;
 	}
-	if (outMsk == null) {
+	if (isSplitIntoBands()) {
+		meanSquares = getBandMeanSquares(null, matrix, null, gradient);
+		area = bandArea;
+	}
+	else if (outMsk == null) {
 		yx = matrix[0][0];
 		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7720,7 +8341,11 @@ private double getRigidBodyMeanSquares (
 	else {
 		yx = matrix[0][0];
 		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7753,6 +8378,8 @@ private double getRigidBodyMeanSquares (
 			yy += matrix[1][2];
 		}
 	}
+	bandMeanSquares = meanSquares;
+	bandArea = area;
 	return(meanSquares / (double)area);
 } /* getRigidBodyMeanSquares */
 
@@ -7772,17 +8399,25 @@ private double getRigidBodyMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	for (int i = 0; (i < transformation); i++) {
 		gradient[i] = 0.0;
 		for (int j = 0; (j < transformation); j++) {
 			hessian[i][j] = 0.0;
 		}
 	}
-	if (outMsk == null) {
+	if (isSplitIntoBands()) {
+		meanSquares = getBandMeanSquares(null, matrix, hessian, gradient);
+		area = bandArea;
+	}
+	else if (outMsk == null) {
 		yx = matrix[0][0];
 		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7825,7 +8460,11 @@ private double getRigidBodyMeanSquares (
 	else {
 		yx = matrix[0][0];
 		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7870,6 +8509,8 @@ private double getRigidBodyMeanSquares (
 			hessian[i][j] = hessian[j][i];
 		}
 	}
+	bandMeanSquares = meanSquares;
+	bandArea = area;
 	return(meanSquares / (double)area);
 } /* getRigidBodyMeanSquares */
 
@@ -7894,11 +8535,19 @@ private double getScaledRotationMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
-	if (outMsk == null) {
+	int k = firstRow * outNx;
+	if (isSplitIntoBands()) {
+		meanSquares = getBandMeanSquares(sourcePoint, matrix, null, null);
+		area = bandArea;
+	}
+	else if (outMsk == null) {
 		yx = matrix[0][0];
 		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7930,7 +8579,11 @@ private double getScaledRotationMeanSquares (
 	else {
 		yx = matrix[0][0];
 		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7959,6 +8612,8 @@ private double getScaledRotationMeanSquares (
 			yy += matrix[1][2];
 		}
 	}
+	bandMeanSquares = meanSquares;
+	bandArea = area;
 	return(meanSquares / ((double)area * uv2 / targetJacobian));
 } /* getScaledRotationMeanSquares */
 
@@ -8011,14 +8666,22 @@ private double getScaledRotationMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	for (int i = 0; (i < transformation); i++) {
 		gradient[i] = 0.0;
 	}
-	if (outMsk == null) {
+	if (isSplitIntoBands()) {
+		meanSquares = getBandMeanSquares(sourcePoint, matrix, null, gradient);
+		area = bandArea;
+	}
+	else if (outMsk == null) {
 		yx = matrix[0][0];
 		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -8066,7 +8729,11 @@ private double getScaledRotationMeanSquares (
 	else {
 		yx = matrix[0][0];
 		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -8111,6 +8778,8 @@ private double getScaledRotationMeanSquares (
 			yy += matrix[1][2];
 		}
 	}
+	bandMeanSquares = meanSquares;
+	bandArea = area;
 	return(meanSquares / ((double)area * uv2 / targetJacobian));
 } /* getScaledRotationMeanSquares */
 
@@ -8164,17 +8833,25 @@ private double getScaledRotationMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	for (int i = 0; (i < transformation); i++) {
 		gradient[i] = 0.0;
 		for (int j = 0; (j < transformation); j++) {
 			hessian[i][j] = 0.0;
 		}
 	}
-	if (outMsk == null) {
+	if (isSplitIntoBands()) {
+		meanSquares = getBandMeanSquares(sourcePoint, matrix, hessian, gradient);
+		area = bandArea;
+	}
+	else if (outMsk == null) {
 		yx = matrix[0][0];
 		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -8232,7 +8909,11 @@ private double getScaledRotationMeanSquares (
 	else {
 		yx = matrix[0][0];
 		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			yx += matrix[0][2];
+			yy += matrix[1][2];
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -8292,6 +8973,8 @@ private double getScaledRotationMeanSquares (
 			hessian[i][j] = hessian[j][i];
 		}
 	}
+	bandMeanSquares = meanSquares;
+	bandArea = area;
 	return(meanSquares / ((double)area * uv2 / targetJacobian));
 } /* getScaledRotationMeanSquares */
 
@@ -8455,13 +9138,20 @@ private double getTranslationMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	x = dx - Math.floor(dx);
 	y = dy - Math.floor(dy);
 	xWeights();
 	yWeights();
-	if (outMsk == null) {
-		for (int v = 0; (v < outNy); v++) {
+	if (isSplitIntoBands()) {
+		meanSquares = getBandMeanSquares(null, matrix, null, null);
+		area = bandArea;
+	}
+	else if (outMsk == null) {
+		for (int v = 0; (v < firstRow); v++) {
+			dy++;
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			y = dy++;
 			yMsk = (0.0 <= y) ? ((int)(y + 0.5)) : ((int)(y - 0.5));
 			if ((0 <= yMsk) && (yMsk < inNy)) {
@@ -8487,7 +9177,10 @@ private double getTranslationMeanSquares (
 		}
 	}
 	else {
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			dy++;
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			y = dy++;
 			yMsk = (0.0 <= y) ? ((int)(y + 0.5)) : ((int)(y - 0.5));
 			if ((0 <= yMsk) && (yMsk < inNy)) {
@@ -8512,6 +9205,8 @@ private double getTranslationMeanSquares (
 			}
 		}
 	}
+	bandMeanSquares = meanSquares;
+	bandArea = area;
 	return(meanSquares / (double)area);
 } /* end getTranslationMeanSquares */
 
@@ -8528,7 +9223,7 @@ private double getTranslationMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	for (int i = 0; (i < transformation); i++) {
 		gradient[i] = 0.0;
 	}
@@ -8536,8 +9231,15 @@ private double getTranslationMeanSquares (
 	y = dy - Math.floor(dy);
 	xWeights();
 	yWeights();
-	if (outMsk == null) {
-		for (int v = 0; (v < outNy); v++) {
+	if (isSplitIntoBands()) {
+		meanSquares = getBandMeanSquares(null, matrix, null, gradient);
+		area = bandArea;
+	}
+	else if (outMsk == null) {
+		for (int v = 0; (v < firstRow); v++) {
+			dy++;
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			y = dy++;
 			yMsk = (0.0 <= y) ? ((int)(y + 0.5)) : ((int)(y - 0.5));
 			if ((0 <= yMsk) && (yMsk < inNy)) {
@@ -8565,7 +9267,10 @@ private double getTranslationMeanSquares (
 		}
 	}
 	else {
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			dy++;
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			y = dy++;
 			yMsk = (0.0 <= y) ? ((int)(y + 0.5)) : ((int)(y - 0.5));
 			if ((0 <= yMsk) && (yMsk < inNy)) {
@@ -8592,6 +9297,8 @@ private double getTranslationMeanSquares (
 			}
 		}
 	}
+	bandMeanSquares = meanSquares;
+	bandArea = area;
 	return(meanSquares / (double)area);
 } /* end getTranslationMeanSquares */
 
@@ -8609,7 +9316,7 @@ private double getTranslationMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	for (int i = 0; (i < transformation); i++) {
 		gradient[i] = 0.0;
 		for (int j = 0; (j < transformation); j++) {
@@ -8620,8 +9327,15 @@ private double getTranslationMeanSquares (
 	y = dy - Math.floor(dy);
 	xWeights();
 	yWeights();
-	if (outMsk == null) {
-		for (int v = 0; (v < outNy); v++) {
+	if (isSplitIntoBands()) {
+		meanSquares = getBandMeanSquares(null, matrix, hessian, gradient);
+		area = bandArea;
+	}
+	else if (outMsk == null) {
+		for (int v = 0; (v < firstRow); v++) {
+			dy++;
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			y = dy++;
 			yMsk = (0.0 <= y) ? ((int)(y + 0.5)) : ((int)(y - 0.5));
 			if ((0 <= yMsk) && (yMsk < inNy)) {
@@ -8652,7 +9366,10 @@ private double getTranslationMeanSquares (
 		}
 	}
 	else {
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = 0; (v < firstRow); v++) {
+			dy++;
+		}
+		for (int v = firstRow; (v < lastRow); v++) {
 			y = dy++;
 			yMsk = (0.0 <= y) ? ((int)(y + 0.5)) : ((int)(y - 0.5));
 			if ((0 <= yMsk) && (yMsk < inNy)) {
@@ -8687,6 +9404,8 @@ private double getTranslationMeanSquares (
 			hessian[i][j] = hessian[j][i];
 		}
 	}
+	bandMeanSquares = meanSquares;
+	bandArea = area;
 	return(meanSquares / (double)area);
 } /* end getTranslationMeanSquares */
 
@@ -9041,6 +9760,12 @@ private void invertGauss (
 	}
 } /* end invertGauss */
 
+/*------------------------------------------------------------------*/
+private boolean isSplitIntoBands (
+) {
+	return(!isBandWorker && (Math.max(1, BAND_SAMPLES / outNx) < outNy));
+} /* end isSplitIntoBands */
+
 /*------------------------------------------------------------------*/
 private void MarquardtLevenbergOptimization (
 	int workload
@@ -39,6 +39,9 @@ import java.util.Stack;
  * 		<li>The pyramids are not calculated in the constructors but in the method <code>startPyramids</code>.</li>
  * 		<li>For images, even if they are set to be scaled, the original image information is stored.</li>
  * 		<li>The information corresponding to the output window size is also stored at any time.</li>
+ * 		<li>The image and coefficient pyramids are built concurrently, and their coarser levels
+ * 		are stored in single precision. They can be shared between models of the same image
+ * 		through {@link PyramidCache}.</li>
  * </ul>
  */
 public class BSplineModel implements Runnable
@@ -47,9 +50,12 @@ public class BSplineModel implements Runnable
 	// Some constants
 	/** maximum output window dimensions */
 	public static int MAX_OUTPUT_SIZE = 1024;
-	
+
 	/** minimum image size */
 	private static int min_image_size = 4;
+
+	/** minimum number of samples filtered by each thread */
+	private static final int MIN_SAMPLES_PER_THREAD = 1 << 15;
 	
 	/** image information (after corresponding scaling) */
 	private ImageProcessor ip = null;
@@ -905,7 +911,7 @@ public class BSplineModel implements Runnable
 		{
 			currentWidth       = ((Integer)cpyramid.pop()).intValue();
 			currentHeight      = ((Integer)cpyramid.pop()).intValue();
-			currentCoefficient = (double [])cpyramid.pop();
+			currentCoefficient = toDouble((float [])cpyramid.pop());
 		}
 
 		if (currentDepth > 0) 
@@ -918,7 +924,7 @@ public class BSplineModel implements Runnable
 				System.out.println("I cannot understand");
 			if (currentHeight != ((Integer)imgpyramid.pop()).intValue())
 				System.out.println("I cannot understand");
-			currentImage = (double [])imgpyramid.pop();
+			currentImage = toDouble((float [])imgpyramid.pop());
 		} else currentImage = image;
 	}
 	//------------------------------------------------------------------
@@ -1606,9 +1612,55 @@ public class BSplineModel implements Runnable
 	/**
 	 * Start the image pre-computations. The computation of the B-spline
 	 * coefficients of the full-size image is not interruptible; all other
-	 * methods are.
+	 * methods are. When the {@link PyramidCache} is enabled, the pyramids
+	 * of an image are computed only once and shared by all its models.
 	 */
 	public void run ()
+	{
+		final boolean buildImages = isTarget || this.bSubsampledOutput;
+		final PyramidCache.Entry entry = (image == null && ip != null)
+			? PyramidCache.getEntry(ip, maxImageSubsamplingFactor, pyramidDepth)
+			: null;
+		if(entry == null)
+		{
+			buildPyramids(true, buildImages);
+			return;
+		}
+
+		// Models of the same image wait for each other, so the pyramids
+		// are computed only once
+		synchronized(entry)
+		{
+			final boolean hasCoefficients = entry.coefficientPyramid != null;
+			final boolean hasImages = entry.imagePyramid != null;
+			if(hasCoefficients)
+				restoreCoefficients(entry);
+			if(buildImages && hasImages)
+				restoreImages(entry);
+
+			buildPyramids(!hasCoefficients, buildImages && !hasImages);
+
+			// Incomplete pyramids are not shared
+			if(t.isInterrupted())
+				return;
+			if(!hasCoefficients)
+				storeCoefficients(entry);
+			if(buildImages && !hasImages)
+				storeImages(entry);
+		}
+	} // end run
+
+	//------------------------------------------------------------------
+	/**
+	 * Read the image and build the requested pyramids. The image pyramid
+	 * is built in a separate thread while the coefficients are computed.
+	 *
+	 * @param buildCoefficients flag to build the coefficients pyramid
+	 * @param buildImages flag to build the image pyramid
+	 */
+	private void buildPyramids (
+			final boolean buildCoefficients,
+			final boolean buildImages)
 	{
 		if(image == null && ip != null)
 		{
@@ -1639,16 +1691,132 @@ public class BSplineModel implements Runnable
 				this.subImage = this.image;
 			}
 		}
-		coefficient = getBasicFromCardinal2D();
-		
-		if(coefficient != null)
-			buildCoefficientPyramid();
-		else 
-			buildEmptyCoefficientPyramid();
-		
-		if (isTarget || this.bSubsampledOutput) 
-			buildImagePyramid();
-	} // end run 
+
+		// The image pyramid only depends on the image, so it is
+		// built at the same time as the coefficients
+		Thread imageThread = null;
+		if(buildImages)
+		{
+			if(buildCoefficients)
+			{
+				imageThread = new Thread() {
+					public void run()
+					{
+						buildImagePyramid();
+					}
+				};
+				imageThread.start();
+			}
+			else
+				buildImagePyramid();
+		}
+
+		if(buildCoefficients)
+		{
+			coefficient = getBasicFromCardinal2D();
+
+			if(coefficient != null)
+				buildCoefficientPyramid();
+			else
+				buildEmptyCoefficientPyramid();
+		}
+
+		if(imageThread != null)
+		{
+			try {
+				imageThread.join();
+			} catch (InterruptedException e) {
+				// Keep the interrupted status for the callers of run()
+				t.interrupt();
+				try {
+					imageThread.join();
+				} catch (InterruptedException e2) {
+					// The image pyramid stops at the next level
+				}
+			}
+		}
+	} // end buildPyramids
+
+	//------------------------------------------------------------------
+	/**
+	 * Restore the image, coefficients and coefficients pyramid from the cache.
+	 *
+	 * @param entry cache entry of the image
+	 */
+	private void restoreCoefficients (final PyramidCache.Entry entry)
+	{
+		this.original_image = entry.originalImage;
+		this.originalWidth = entry.originalWidth;
+		this.originalHeight = entry.originalHeight;
+		this.image = entry.image;
+		this.width = entry.width;
+		this.height = entry.height;
+		this.coefficient = entry.coefficient;
+
+		// update sub-sampled output version information if necessary
+		if(this.width <= this.subWidth)
+		{
+			this.subWidth = this.width;
+			this.subHeight = this.height;
+			this.subImage = this.image;
+		}
+
+		cpyramid.addAll(entry.coefficientPyramid);
+		this.subCoeffs = entry.subCoeffs;
+		this.smallestWidth = entry.smallestWidth;
+		this.smallestHeight = entry.smallestHeight;
+		this.currentDepth = pyramidDepth + 1;
+	} // end restoreCoefficients
+
+	//------------------------------------------------------------------
+	/**
+	 * Restore the image pyramid from the cache.
+	 *
+	 * @param entry cache entry of the image
+	 */
+	private void restoreImages (final PyramidCache.Entry entry)
+	{
+		imgpyramid.addAll(entry.imagePyramid);
+		if(entry.subImage != null)
+			this.subImage = entry.subImage;
+	} // end restoreImages
+
+	//------------------------------------------------------------------
+	/**
+	 * Store the image, coefficients and coefficients pyramid in the cache.
+	 *
+	 * @param entry cache entry of the image
+	 */
+	private void storeCoefficients (final PyramidCache.Entry entry)
+	{
+		entry.originalImage = this.original_image;
+		entry.originalWidth = this.originalWidth;
+		entry.originalHeight = this.originalHeight;
+		entry.image = this.image;
+		entry.width = this.width;
+		entry.height = this.height;
+		entry.coefficient = this.coefficient;
+		entry.subCoeffs = this.subCoeffs;
+		entry.smallestWidth = this.smallestWidth;
+		entry.smallestHeight = this.smallestHeight;
+		final Stack levels = new Stack();
+		levels.addAll(cpyramid);
+		entry.coefficientPyramid = levels;
+	} // end storeCoefficients
+
+	//------------------------------------------------------------------
+	/**
+	 * Store the image pyramid in the cache.
+	 *
+	 * @param entry cache entry of the image
+	 */
+	private void storeImages (final PyramidCache.Entry entry)
+	{
+		entry.subImage = this.subImage == this.image ? null : this.subImage;
+		final Stack levels = new Stack();
+		levels.addAll(imgpyramid);
+		entry.imagePyramid = levels;
+	} // end storeImages
 
 	//------------------------------------------------------------------
 	/**
@@ -1782,10 +1950,6 @@ public class BSplineModel implements Runnable
 			final int height,
 			final int degree)
 	{
-		final double[] hLine = new double[width];
-		final double[] vLine = new double[height];
-		final double[] hData = new double[width];
-		final double[] vData = new double[height];
 		double[] h = null;
 		switch (degree) {
 		case 3:
@@ -1804,16 +1968,21 @@ public class BSplineModel implements Runnable
 			h = new double[1];
 		h[0] = 1.0;
 		}
-		for (int y = 0; ((y < height) && (!t.isInterrupted())); y++) {
-			extractRow(basic, y, hLine);
-			symmetricFirMirrorOffBounds1D(h, hLine, hData);
-			putRow(cardinal, y, hData);
-		}
-		for (int x = 0; ((x < width) && (!t.isInterrupted())); x++) {
-			extractColumn(cardinal, width, x, vLine);
-			symmetricFirMirrorOffBounds1D(h, vLine, vData);
-			putColumn(cardinal, width, x, vData);
-		}
+		final double[] filter = h;
+		new LineFilter(width, width, true) {
+			void filter (final int y, final double[] hLine, final double[] hData) {
+				extractRow(basic, y, hLine);
+				symmetricFirMirrorOffBounds1D(filter, hLine, hData);
+				putRow(cardinal, y, hData);
+			}
+		}.filterLines(height);
+		new LineFilter(height, height, true) {
+			void filter (final int x, final double[] vLine, final double[] vData) {
+				extractColumn(cardinal, width, x, vLine);
+				symmetricFirMirrorOffBounds1D(filter, vLine, vData);
+				putColumn(cardinal, width, x, vData);
+			}
+		}.filterLines(width);
 	} /* end basicToCardinal2D */
 
 	//------------------------------------------------------------------
@@ -1844,7 +2013,7 @@ public class BSplineModel implements Runnable
 			{				 
 				if(this.bSubsampledOutput)
 					IJ.log("Coefficients pyramid " + fullWidth + "x" + fullHeight);
-				cpyramid.push(fullDual);
+				cpyramid.push(toFloat(fullDual));
 				cpyramid.push(new Integer(fullHeight));
 				cpyramid.push(new Integer(fullWidth));
 				halfWidth *= 2;
@@ -1859,7 +2028,7 @@ public class BSplineModel implements Runnable
 			
 			if(this.bSubsampledOutput)
 				IJ.log("Coefficients pyramid " + halfWidth + "x" + halfHeight);
-			cpyramid.push(halfCoefficient);
+			cpyramid.push(toFloat(halfCoefficient));
 			cpyramid.push(new Integer(halfHeight));
 			cpyramid.push(new Integer(halfWidth));
 			
@@ -1911,7 +2080,7 @@ public class BSplineModel implements Runnable
 					if(this.bSubsampledOutput)
 						IJ.log("Coefficients pyramid " + fullWidth + "x" + fullHeight);
 					
-					cpyramid.push(fullDual);
+					cpyramid.push(toFloat(fullDual));
 					cpyramid.push(new Integer(fullHeight));
 					cpyramid.push(new Integer(fullWidth));
 					halfWidth *= 2;
@@ -1922,7 +2091,7 @@ public class BSplineModel implements Runnable
 				// Otherwise, we reduce the coefficients by 2			
 				if(this.bSubsampledOutput)
 					IJ.log("Coefficients pyramid " + halfWidth + "x" + halfHeight);
-				cpyramid.push(halfCoefficient);
+				cpyramid.push(toFloat(halfCoefficient));
 				cpyramid.push(new Integer(halfHeight));
 				cpyramid.push(new Integer(halfWidth));
 								
@@ -1970,7 +2139,7 @@ public class BSplineModel implements Runnable
 			 {				 
 				 if(this.bSubsampledOutput)
 						IJ.log(" Image pyramid " + fullWidth + "x" + fullHeight);
-				 imgpyramid.push(fullDual);
+				 imgpyramid.push(toFloat(fullDual));
 				 imgpyramid.push(new Integer(fullHeight));
 				 imgpyramid.push(new Integer(fullWidth));
 				 halfWidth *= 2;
@@ -1985,7 +2154,7 @@ public class BSplineModel implements Runnable
 			
 			 if(this.bSubsampledOutput)
 				 IJ.log(" Image pyramid " + halfWidth + "x" + halfHeight);
-			 imgpyramid.push(halfImage);
+			 imgpyramid.push(toFloat(halfImage));
 			 imgpyramid.push(new Integer(halfHeight));
 			 imgpyramid.push(new Integer(halfWidth));
 			 
@@ -2182,18 +2351,20 @@ public class BSplineModel implements Runnable
 			 return null;
 		 
 		 final double[] basic = new double[width * height];
-		 final double[] hLine = new double[width];
-		 final double[] vLine = new double[height];
-		 for (int y = 0; (y < height); y++) {
-			 extractRow(image, y, hLine);
-			 samplesToInterpolationCoefficient1D(hLine, 3, 0.0);
-			 putRow(basic, y, hLine);
-		 }
-		 for (int x = 0; (x < width); x++) {
-			 extractColumn(basic, width, x, vLine);
-			 samplesToInterpolationCoefficient1D(vLine, 3, 0.0);
-			 putColumn(basic, width, x, vLine);
-		 }
+		 new LineFilter(width, 0, false) {
+			 void filter (final int y, final double[] hLine, final double[] unused) {
+				 extractRow(image, y, hLine);
+				 samplesToInterpolationCoefficient1D(hLine, 3, 0.0);
+				 putRow(basic, y, hLine);
+			 }
+		 }.filterLines(height);
+		 new LineFilter(height, 0, false) {
+			 void filter (final int x, final double[] vLine, final double[] unused) {
+				 extractColumn(basic, width, x, vLine);
+				 samplesToInterpolationCoefficient1D(vLine, 3, 0.0);
+				 putColumn(basic, width, x, vLine);
+			 }
+		 }.filterLines(width);
 		 return(basic);
 	 } /* end getBasicFromCardinal2D */
 
@@ -2216,18 +2387,20 @@ public class BSplineModel implements Runnable
 			 final int degree)
 	 {
 		 final double[] basic = new double[width * height];
-		 final double[] hLine = new double[width];
-		 final double[] vLine = new double[height];
-		 for (int y = 0; ((y < height) && (!t.isInterrupted())); y++) {
-			 extractRow(cardinal, y, hLine);
-			 samplesToInterpolationCoefficient1D(hLine, degree, 0.0);
-			 putRow(basic, y, hLine);
-		 }
-		 for (int x = 0; ((x < width) && (!t.isInterrupted())); x++) {
-			 extractColumn(basic, width, x, vLine);
-			 samplesToInterpolationCoefficient1D(vLine, degree, 0.0);
-			 putColumn(basic, width, x, vLine);
-		 }
+		 new LineFilter(width, 0, true) {
+			 void filter (final int y, final double[] hLine, final double[] unused) {
+				 extractRow(cardinal, y, hLine);
+				 samplesToInterpolationCoefficient1D(hLine, degree, 0.0);
+				 putRow(basic, y, hLine);
+			 }
+		 }.filterLines(height);
+		 new LineFilter(height, 0, true) {
+			 void filter (final int x, final double[] vLine, final double[] unused) {
+				 extractColumn(basic, width, x, vLine);
+				 samplesToInterpolationCoefficient1D(vLine, degree, 0.0);
+				 putColumn(basic, width, x, vLine);
+			 }
+		 }.filterLines(width);
 		 return(basic);
 	 } /* end getBasicFromCardinal2D */
 
@@ -2246,22 +2419,22 @@ public class BSplineModel implements Runnable
 	 {
 		 final int halfWidth = fullWidth / 2;
 		 final int halfHeight = fullHeight / 2;
-		 final double[] hLine = new double[fullWidth];
-		 final double[] hData = new double[halfWidth];
-		 final double[] vLine = new double[fullHeight];
-		 final double[] vData = new double[halfHeight];
 		 final double[] demiDual = new double[halfWidth * fullHeight];
 		 final double[] halfDual = new double[halfWidth * halfHeight];
-		 for (int y = 0; ((y < fullHeight) && (!t.isInterrupted())); y++) {
-			 extractRow(fullDual, y, hLine);
-			 reduceDual1D(hLine, hData);
-			 putRow(demiDual, y, hData);
-		 }
-		 for (int x = 0; ((x < halfWidth) && (!t.isInterrupted())); x++) {
-			 extractColumn(demiDual, halfWidth, x, vLine);
-			 reduceDual1D(vLine, vData);
-			 putColumn(halfDual, halfWidth, x, vData);
-		 }
+		 new LineFilter(fullWidth, halfWidth, true) {
+			 void filter (final int y, final double[] hLine, final double[] hData) {
+				 extractRow(fullDual, y, hLine);
+				 reduceDual1D(hLine, hData);
+				 putRow(demiDual, y, hData);
+			 }
+		 }.filterLines(fullHeight);
+		 new LineFilter(fullHeight, halfHeight, true) {
+			 void filter (final int x, final double[] vLine, final double[] vData) {
+				 extractColumn(demiDual, halfWidth, x, vLine);
+				 reduceDual1D(vLine, vData);
+				 putColumn(halfDual, halfWidth, x, vData);
+			 }
+		 }.filterLines(halfWidth);
 		 return(halfDual);
 	 } /* end getHalfDual2D */
 
@@ -2576,8 +2749,160 @@ public class BSplineModel implements Runnable
 	  */
 	 public void setSubsamplingFactor(int maxImageSubsamplingFactor) 
 	 {
-		 this.maxImageSubsamplingFactor = maxImageSubsamplingFactor;		
+		 this.maxImageSubsamplingFactor = maxImageSubsamplingFactor;
 	 }
-	 
+
+	 //------------------------------------------------------------------
+	 /**
+	  * Convert a pyramid level to single precision for storage.
+	  *
+	  * @param level pyramid level in double precision
+	  * @return copy of the level in single precision
+	  */
+	 private static float[] toFloat (final double[] level)
+	 {
+		 final float[] f = new float[level.length];
+		 for (int i = 0; i < level.length; i++)
+			 f[i] = (float) level[i];
+		 return f;
+	 } /* end toFloat */
+
+	 //------------------------------------------------------------------
+	 /**
+	  * Convert a stored pyramid level back to double precision.
+	  *
+	  * @param level pyramid level in single precision
+	  * @return copy of the level in double precision
+	  */
+	 private static double[] toDouble (final float[] level)
+	 {
+		 final double[] d = new double[level.length];
+		 for (int i = 0; i < level.length; i++)
+			 d[i] = level[i];
+		 return d;
+	 } /* end toDouble */
+
+	 /*....................................................................
+	    Private inner classes
+	 ....................................................................*/
+
+	 //------------------------------------------------------------------
+	 /**
+	  * Filter applied to all rows or all columns of a 2D signal. The lines
+	  * are split into contiguous blocks that are filtered by concurrent
+	  * threads, each one with its own line buffers.
+	  */
+	 private abstract class LineFilter
+	 {
+		 /** length of the input line buffer */
+		 private final int inLength;
+		 /** length of the output line buffer */
+		 private final int outLength;
+		 /** flag to stop when the model thread is interrupted */
+		 private final boolean interruptible;
+		 /** flag to stop when the calling thread is interrupted */
+		 private volatile boolean stopped = false;
+
+		 //------------------------------------------------------------------
+		 /**
+		  * Create a line filter.
+		  *
+		  * @param inLength length of the input line buffer
+		  * @param outLength length of the output line buffer
+		  * @param interruptible flag to stop when the model thread is interrupted
+		  */
+		 LineFilter (
+				 final int inLength,
+				 final int outLength,
+				 final boolean interruptible)
+		 {
+			 this.inLength = inLength;
+			 this.outLength = outLength;
+			 this.interruptible = interruptible;
+		 }
+
+		 //------------------------------------------------------------------
+		 /**
+		  * Filter one line.
+		  *
+		  * @param line line index
+		  * @param in input line buffer
+		  * @param out output line buffer
+		  */
+		 abstract void filter (int line, double[] in, double[] out);
+
+		 //------------------------------------------------------------------
+		 /**
+		  * Filter all lines. Small signals are filtered in the calling thread.
+		  *
+		  * @param lines number of lines
+		  */
+		 void filterLines (final int lines)
+		 {
+			 final int nproc = MiscTools.getNumberOfThreads();
+			 final int nThreads = (int) Math.max(1, Math.min(nproc,
+					 (long) lines * inLength / MIN_SAMPLES_PER_THREAD));
+			 if (nThreads == 1)
+			 {
+				 filterBlock(0, lines);
+				 return;
+			 }
+
+			 final Thread[] threads = new Thread[nThreads];
+			 for (int i = 0; i < nThreads; i++)
+			 {
+				 final int first = (int) ((long) lines * i / nThreads);
+				 final int last = (int) ((long) lines * (i + 1) / nThreads);
+				 threads[i] = new Thread() {
+					 public void run()
+					 {
+						 filterBlock(first, last);
+					 }
+				 };
+				 threads[i].start();
+			 }
+
+			 boolean interrupted = false;
+			 for (int i = 0; i < nThreads; i++)
+			 {
+				 try {
+					 threads[i].join();
+				 } catch (InterruptedException e) {
+					 interrupted = true;
+					 stopped = interruptible;
+					 i--;
+				 }
+			 }
+			 if (interrupted)
+				 Thread.currentThread().interrupt();
+		 }
+
+		 //------------------------------------------------------------------
+		 /**
+		  * Filter a block of lines.
+		  *
+		  * @param first first line of the block
+		  * @param last line after the block
+		  */
+		 private void filterBlock (final int first, final int last)
+		 {
+			 final double[] in = new double[inLength];
+			 final double[] out = new double[outLength];
+			 for (int line = first; line < last && !isStopped(); line++)
+				 filter(line, in, out);
+		 }
+
+		 //------------------------------------------------------------------
+		 /**
+		  * Check if the filtering has to stop.
+		  *
+		  * @return true if the filtering was interrupted
+		  */
+		 private boolean isStopped ()
+		 {
+			 return interruptible && (stopped || (t != null && t.isInterrupted()));
+		 }
+	 } /* end LineFilter */
+
 
 } /* end class BSplineModel */
@@ -0,0 +1,445 @@
+package bunwarpj;
+
+/**
+ * bUnwarpJ plugin for ImageJ(C).
+ * Copyright (C) 2005-2010 Ignacio Arganda-Carreras and Jan Kybic
+ *
+ * More information at http://biocomp.cnb.csic.es/%7Eiarganda/bUnwarpJ/
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.io.Opener;
+import ij.process.ImageProcessor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*====================================================================
+|   BatchRegistration
+\===================================================================*/
+
+/*------------------------------------------------------------------*/
+/**
+ * Headless registration of a list of image pairs, such as the
+ * consecutive sections of a serial series:
+ * <p>
+ * <ul>
+ * 		<li>Several pairs are registered concurrently, and every pair uses
+ * 		a bounded number of threads (see {@link MiscTools#setThreadBudget}).</li>
+ * 		<li>Every image is opened once, even if it belongs to several pairs,
+ * 		and its pyramids are shared through the {@link PyramidCache}. It is
+ * 		released as soon as the last pair that uses it is done.</li>
+ * 		<li>The source image of every pair is warped into the target space and
+ * 		written to disk as soon as the pair is registered. No window is shown.</li>
+ * 		<li>The direct transformation is saved in binary format (see
+ * 		{@link MiscTools#saveBinaryElasticTransformation}), or in text format
+ * 		if the file name ends with ".txt".</li>
+ * </ul>
+ */
+public class BatchRegistration
+{ /* begin class BatchRegistration */
+
+	/** registration parameters, shared by all the pairs */
+	private final Param parameter;
+	/** pairs to register, in the order they are started */
+	private final ArrayList<Pair> pairs = new ArrayList<Pair>();
+	/** maximum number of threads of every pair */
+	private int threadsPerPair = 1;
+	/** maximum number of pairs registered at the same time, 0 to fill the processors */
+	private int concurrentPairs = 0;
+	/** images opened for the running pairs, by file name */
+	private final HashMap<String, SharedImage> images = new HashMap<String, SharedImage>();
+
+	/*....................................................................
+       Public methods
+    ....................................................................*/
+
+	//------------------------------------------------------------------
+	/**
+	 * Create an empty batch.
+	 *
+	 * @param parameter registration parameters for all the pairs
+	 */
+	public BatchRegistration(final Param parameter)
+	{
+		this.parameter = parameter;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Add a pair of images to register.
+	 *
+	 * @param targetFile target image file name
+	 * @param sourceFile source image file name
+	 * @param outputFile file name of the warped source (TIFF), null to skip it
+	 * @param transformationFile file name of the direct transformation, null to skip it
+	 */
+	public void addPair(
+			final String targetFile,
+			final String sourceFile,
+			final String outputFile,
+			final String transformationFile)
+	{
+		pairs.add(new Pair(targetFile, sourceFile, outputFile, transformationFile));
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Add the pairs listed in a text file. Every line holds the target,
+	 * source, output image and transformation file names, separated by
+	 * blanks. The output image or transformation may be NULL to skip it.
+	 * Relative file names are taken from the folder of the list. Empty
+	 * lines and lines starting with '#' are ignored.
+	 *
+	 * @param filename pair list file name
+	 * @return number of pairs read, -1 if the file could not be read
+	 */
+	public int readPairs(final String filename)
+	{
+		final File folder = new File(filename).getAbsoluteFile().getParentFile();
+		int n = 0;
+		try {
+			final BufferedReader br = new BufferedReader(new FileReader(filename));
+			try {
+				String line;
+				int lineN = 0;
+				while ((line = br.readLine()) != null)
+				{
+					lineN++;
+					line = line.trim();
+					if (line.length() == 0 || line.startsWith("#"))
+						continue;
+					final StringTokenizer st = new StringTokenizer(line);
+					if (st.countTokens() != 4)
+					{
+						IJ.log(filename + ", line " + lineN + ": 4 file names expected");
+						return -1;
+					}
+					final String target = resolve(folder, st.nextToken());
+					final String source = resolve(folder, st.nextToken());
+					final String output = resolve(folder, st.nextToken());
+					final String transformation = resolve(folder, st.nextToken());
+					addPair(target, source, output, transformation);
+					n++;
+				}
+			} finally {
+				br.close();
+			}
+		} catch (IOException e) {
+			IJ.log("Error reading " + filename + ": " + e);
+			return -1;
+		}
+		return n;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Set the maximum number of threads of every pair.
+	 *
+	 * @param threadsPerPair number of threads (at least 1)
+	 */
+	public void setThreadsPerPair(final int threadsPerPair)
+	{
+		this.threadsPerPair = Math.max(1, threadsPerPair);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Set the maximum number of pairs registered at the same time. Every
+	 * running pair keeps its two images and their pyramids in memory. By
+	 * default, as many pairs as fit in the processors with the number of
+	 * threads per pair are run.
+	 *
+	 * @param concurrentPairs number of pairs, 0 for the default
+	 */
+	public void setConcurrentPairs(final int concurrentPairs)
+	{
+		this.concurrentPairs = Math.max(0, concurrentPairs);
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Register all the pairs and write their results. The pairs are
+	 * started in the order they were added.
+	 *
+	 * @return number of pairs that could not be registered or saved
+	 */
+	public int run()
+	{
+		if (pairs.isEmpty())
+			return 0;
+
+		// Count the pairs that use every image
+		images.clear();
+		for (int k = 0; k < pairs.size(); k++)
+		{
+			addUser(pairs.get(k).targetFile);
+			addUser(pairs.get(k).sourceFile);
+		}
+
+		// Every running pair caches the pyramids of its two images and the
+		// model of its warped source. The pyramids of an image are dropped
+		// from the cache as soon as no pair uses it anymore.
+		final int maxPairs = (concurrentPairs > 0) ? concurrentPairs
+				: Math.max(1, Runtime.getRuntime().availableProcessors() / threadsPerPair);
+		final int nThreads = Math.min(maxPairs, pairs.size());
+		final int previousCapacity = PyramidCache.getCapacity();
+		PyramidCache.setCapacity(Math.max(previousCapacity, 3 * nThreads + 2));
+
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicInteger failed = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		final Thread[] threads = new Thread[nThreads];
+		for (int i = 0; i < nThreads; i++)
+		{
+			threads[i] = new Thread()
+			{
+				public void run()
+				{
+					MiscTools.setThreadBudget(threadsPerPair);
+					for (int k = next.getAndIncrement(); k < pairs.size() && !isInterrupted();
+						 k = next.getAndIncrement())
+					{
+						final Pair pair = pairs.get(k);
+						if (!register(pair))
+						{
+							failed.incrementAndGet();
+							IJ.log("Failed to register " + pair.sourceFile + " to " + pair.targetFile);
+						}
+						IJ.log("Pairs done: " + done.incrementAndGet() + "/" + pairs.size());
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		for (int i = 0; i < nThreads; i++)
+		{
+			try {
+				threads[i].join();
+			} catch (InterruptedException e) {
+				for (int j = 0; j < nThreads; j++)
+					threads[j].interrupt();
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		PyramidCache.setCapacity(previousCapacity);
+		// Pairs not started because of an interruption count as failed
+		return failed.get() + pairs.size() - done.get();
+	}
+
+	/*....................................................................
+       Private methods
+    ....................................................................*/
+
+	//------------------------------------------------------------------
+	/**
+	 * Register one pair and write its results.
+	 *
+	 * @param pair pair to register
+	 * @return false if the pair could not be registered or saved
+	 */
+	private boolean register(final Pair pair)
+	{
+		try {
+			final ImagePlus targetImp = acquireImage(pair.targetFile);
+			final ImagePlus sourceImp = acquireImage(pair.sourceFile);
+			if (targetImp == null || sourceImp == null)
+				return false;
+
+			final Transformation warp = bUnwarpJ_.computeTransformationBatch(
+					targetImp, sourceImp, null, null, parameter);
+			if (warp == null)
+				return false;
+
+			final int intervals = warp.getIntervals();
+			final double[][] cx = warp.getDirectDeformationCoefficientsX();
+			final double[][] cy = warp.getDirectDeformationCoefficientsY();
+			boolean saved = true;
+
+			if (pair.transformationFile != null)
+			{
+				if (pair.transformationFile.toLowerCase().endsWith(".txt"))
+					MiscTools.saveElasticTransformation(intervals, cx, cy, pair.transformationFile);
+				else
+					saved = MiscTools.saveBinaryElasticTransformation(
+							intervals, cx, cy, pair.transformationFile);
+			}
+
+			if (pair.outputFile != null)
+			{
+				final BSplineModel source = new BSplineModel(sourceImp.getProcessor(), false, 1);
+				final ImageProcessor result = MiscTools.applyTransformationMT(
+						sourceImp, targetImp, source, intervals, cx, cy);
+				saved &= new FileSaver(new ImagePlus(sourceImp.getTitle(), result))
+					.saveAsTiff(pair.outputFile);
+			}
+			return saved;
+		} catch (RuntimeException e) {
+			IJ.log("Error registering " + pair.sourceFile + ": " + e);
+			return false;
+		} finally {
+			releaseImage(pair.targetFile);
+			releaseImage(pair.sourceFile);
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Resolve a file name of a pair list.
+	 *
+	 * @param folder folder of the pair list
+	 * @param name file name as written in the list
+	 * @return absolute file name, or null if the name is NULL
+	 */
+	private static String resolve(final File folder, final String name)
+	{
+		if (name.equalsIgnoreCase("NULL"))
+			return null;
+		final File file = new File(name);
+		return file.isAbsolute() ? name : new File(folder, name).getPath();
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Count one more pair that uses an image.
+	 *
+	 * @param filename image file name
+	 */
+	private void addUser(final String filename)
+	{
+		SharedImage image = images.get(filename);
+		if (image == null)
+		{
+			image = new SharedImage();
+			images.put(filename, image);
+		}
+		image.users++;
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get an image, opening it if no running pair has opened it yet.
+	 *
+	 * @param filename image file name
+	 * @return image, or null if it could not be opened
+	 */
+	private ImagePlus acquireImage(final String filename)
+	{
+		final SharedImage image;
+		synchronized (images)
+		{
+			image = images.get(filename);
+		}
+		// Different images are opened concurrently
+		synchronized (image)
+		{
+			if (image.imp == null && !image.failed)
+			{
+				image.imp = new Opener().openImage(filename);
+				if (image.imp == null)
+				{
+					image.failed = true;
+					IJ.log("Error: " + filename + " could not be opened");
+				}
+			}
+			return image.imp;
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Release an image for one pair. When no pair uses it anymore, the
+	 * image and its cached pyramids are dropped.
+	 *
+	 * @param filename image file name
+	 */
+	private void releaseImage(final String filename)
+	{
+		final SharedImage image;
+		synchronized (images)
+		{
+			image = images.get(filename);
+			if (--image.users > 0)
+				return;
+			images.remove(filename);
+		}
+		synchronized (image)
+		{
+			if (image.imp != null)
+				PyramidCache.remove(image.imp.getProcessor());
+			image.imp = null;
+		}
+	}
+
+	/*....................................................................
+       Inner classes
+    ....................................................................*/
+
+	//------------------------------------------------------------------
+	/**
+	 * Files of one pair of images.
+	 */
+	private static class Pair
+	{
+		/** target image file name */
+		final String targetFile;
+		/** source image file name */
+		final String sourceFile;
+		/** warped source file name, null to skip it */
+		final String outputFile;
+		/** direct transformation file name, null to skip it */
+		final String transformationFile;
+
+		Pair(
+				final String targetFile,
+				final String sourceFile,
+				final String outputFile,
+				final String transformationFile)
+		{
+			this.targetFile = targetFile;
+			this.sourceFile = sourceFile;
+			this.outputFile = outputFile;
+			this.transformationFile = transformationFile;
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Image shared by the pairs that use it.
+	 */
+	private static class SharedImage
+	{
+		/** number of pairs that still have to use the image */
+		int users = 0;
+		/** opened image, null until a pair needs it */
+		ImagePlus imp = null;
+		/** true if the image could not be opened */
+		boolean failed = false;
+	}
+
+} /* end class BatchRegistration */
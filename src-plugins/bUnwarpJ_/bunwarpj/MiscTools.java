@@ -35,8 +35,14 @@ import ij.process.ShortProcessor;
 
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -48,6 +54,46 @@ import java.util.StringTokenizer;
  */
 public class MiscTools
 {
+	/** first int of the binary transformation files ("bUJ" and format version 1) */
+	public static final int BINARY_TRANSFORMATION_MAGIC = 0x62554A01;
+
+	/** maximum number of threads of the registration running in the current thread */
+	private static final InheritableThreadLocal<Integer> threadBudget = new InheritableThreadLocal<Integer>();
+
+	/* --------------------------------------------------------------------*/
+	/**
+	 * Bound the number of threads used by the registrations and
+	 * transformations run from the current thread. The bound is inherited
+	 * by the threads started afterwards from the current thread, so it
+	 * applies to all the threads of a registration.
+	 *
+	 * @param nThreads maximum number of threads, 0 to use all the processors
+	 */
+	public static void setThreadBudget(int nThreads)
+	{
+		if (nThreads > 0)
+			threadBudget.set(new Integer(nThreads));
+		else
+			threadBudget.remove();
+	}
+
+	/* --------------------------------------------------------------------*/
+	/**
+	 * Get the number of threads the current registration may use: the
+	 * number of processors, bounded by the thread budget of the current
+	 * thread if there is one.
+	 *
+	 * @return number of threads (at least 1)
+	 */
+	public static int getNumberOfThreads()
+	{
+		final int nproc = Runtime.getRuntime().availableProcessors();
+		final Integer budget = threadBudget.get();
+		if (budget == null)
+			return nproc;
+		return Math.max(1, Math.min(nproc, budget.intValue()));
+	}
+
 	/* --------------------------------------------------------------------*/
 	/**
 	 * Apply a given B-spline transformation to the source (gray-scale) image.
@@ -1673,6 +1719,12 @@ public class MiscTools
 	public static void loadTransformation(String filename,
 			final double [][]cx, final double [][]cy)
 	{
+		if (isBinaryTransformation(filename))
+		{
+			loadBinaryTransformation(filename, cx, cy);
+			return;
+		}
+
 		try {
 			final FileReader fr = new FileReader(filename);
 			final BufferedReader br = new BufferedReader(fr);
@@ -1743,6 +1795,72 @@ public class MiscTools
 		}
 	}
 
+	//------------------------------------------------------------------
+	/**
+	 * Check if a transformation file was saved in binary format
+	 * (see {@link #saveBinaryElasticTransformation}).
+	 *
+	 * @param filename transformation file name
+	 * @return true if the file starts with the binary transformation header
+	 */
+	public static boolean isBinaryTransformation(String filename)
+	{
+		try {
+			final DataInputStream in = new DataInputStream(new FileInputStream(filename));
+			try {
+				return in.readInt() == BINARY_TRANSFORMATION_MAGIC;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// Missing or too short files are left to the text reader
+			return false;
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Load a transformation saved in binary format.
+	 *
+	 * @param filename transformation file name
+	 * @param cx x- B-spline coefficients
+	 * @param cy y- B-spline coefficients
+	 */
+	public static void loadBinaryTransformation(String filename,
+			final double [][]cx, final double [][]cy)
+	{
+		try {
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(filename)));
+			try {
+				if (in.readInt() != BINARY_TRANSFORMATION_MAGIC)
+				{
+					IJ.error(filename + " is not a binary transformation file");
+					return;
+				}
+				final int intervals = in.readInt();
+				if (cx.length != intervals+3 || cy.length != intervals+3)
+				{
+					IJ.error(filename + ": the transformation has " + intervals
+							+ " intervals, " + (cx.length-3) + " were expected");
+					return;
+				}
+				for (int i= 0; i<intervals+3; i++)
+					for (int j=0; j<intervals+3; j++)
+						cx[i][j] = in.readDouble();
+				for (int i= 0; i<intervals+3; i++)
+					for (int j=0; j<intervals+3; j++)
+						cy[i][j] = in.readDouble();
+			} finally {
+				in.close();
+			}
+		} catch (FileNotFoundException e) {
+			IJ.error("File not found exception" + e);
+		} catch (IOException e) {
+			IJ.error("IOException exception" + e);
+		}
+	}
+
 	//------------------------------------------------------------------
 	/**
 	 * Load a raw transformation from a file.
@@ -2449,6 +2567,50 @@ public class MiscTools
 		}
 	}
 
+	//------------------------------------------------------------------
+	/**
+	 * Save the elastic transformation in binary format: the header
+	 * {@link #BINARY_TRANSFORMATION_MAGIC}, the number of intervals and
+	 * the x- and y- coefficients row by row, as big-endian doubles.
+	 * The coefficients are stored exactly and the file is about a third
+	 * of the text format. It is read back by {@link #loadTransformation}.
+	 *
+	 * @param intervals number of intervals in the deformation
+	 * @param cx x- deformation coefficients
+	 * @param cy y- deformation coefficients
+	 * @param filename transformation file name
+	 * @return true if the file was saved
+	 */
+	public static boolean saveBinaryElasticTransformation(
+			int intervals,
+			double [][]cx,
+			double [][]cy,
+			String filename)
+	{
+		try {
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(filename)));
+			try {
+				out.writeInt(BINARY_TRANSFORMATION_MAGIC);
+				out.writeInt(intervals);
+				for (int i= 0; i<intervals + 3; i++)
+					for (int j = 0; j < intervals + 3; j++)
+						out.writeDouble(cx[i][j]);
+				for (int i= 0; i<intervals + 3; i++)
+					for (int j = 0; j < intervals + 3; j++)
+						out.writeDouble(cy[i][j]);
+			} finally {
+				out.close();
+			}
+			return true;
+		} catch (IOException e) {
+			IJ.error("IOException exception" + e);
+		} catch (SecurityException e) {
+			IJ.error("Security exception" + e);
+		}
+		return false;
+	}
+
 	//------------------------------------------------------------------
 	/**
 	 * Save a raw transformation
@@ -2529,6 +2691,22 @@ public class MiscTools
 	 */
 	static public int numberOfIntervalsOfTransformation(String filename)
 	{
+		if (isBinaryTransformation(filename))
+		{
+			try {
+				final DataInputStream in = new DataInputStream(new FileInputStream(filename));
+				try {
+					in.readInt();
+					return in.readInt();
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				IJ.error("IOException exception" + e);
+				return -1;
+			}
+		}
+
 		try {
 			final FileReader fr = new FileReader(filename);
 			final BufferedReader br = new BufferedReader(fr);
@@ -2774,8 +2952,8 @@ public class MiscTools
 			
 			FloatProcessor fp = new FloatProcessor(targetWidth, targetHeight);
 			
-			// Check the number of processors in the computer 
-			int nproc = Runtime.getRuntime().availableProcessors();
+			// Check the number of threads available to the registration
+			int nproc = getNumberOfThreads();
 
 			// We will use threads to display parts of the output image
 			int block_height = targetHeight / nproc;
@@ -2855,8 +3033,8 @@ public class MiscTools
 			FloatProcessor fpG = new FloatProcessor(targetWidth, targetHeight);
 			FloatProcessor fpB = new FloatProcessor(targetWidth, targetHeight);
 			
-			// Check the number of processors in the computer 
-			int nproc = Runtime.getRuntime().availableProcessors();
+			// Check the number of threads available to the registration
+			int nproc = getNumberOfThreads();
 
 			// We will use threads to display parts of the output image
 			int block_height = targetHeight / nproc;
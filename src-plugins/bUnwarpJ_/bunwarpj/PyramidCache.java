@@ -0,0 +1,301 @@
+package bunwarpj;
+
+/**
+ * bUnwarpJ plugin for ImageJ(C).
+ * Copyright (C) 2005-2010 Ignacio Arganda-Carreras and Jan Kybic
+ *
+ * More information at http://biocomp.cnb.csic.es/%7Eiarganda/bUnwarpJ/
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ */
+
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Stack;
+
+/*====================================================================
+|   PyramidCache
+\===================================================================*/
+
+/*------------------------------------------------------------------*/
+/**
+ * Cache of the image and coefficient pyramids of {@link BSplineModel},
+ * shared across registrations:
+ * <p>
+ * <ul>
+ * 		<li>When serial sections are registered pairwise, every image is the target
+ * 		of one registration and the source of the next one. Its pyramids are then
+ * 		computed only once.</li>
+ * 		<li>The pyramids are looked up by the identity of the pixel array of the image
+ * 		and by the parameters that change them: image size, sub-sampling factor,
+ * 		pyramid depth and maximum output size.</li>
+ * 		<li>A checksum of the pixels is kept, so the pyramids of an image that was
+ * 		modified in place are computed again.</li>
+ * 		<li>The cache is disabled until its capacity is set to a positive number of
+ * 		images. The least recently used images are dropped first.</li>
+ * </ul>
+ */
+public class PyramidCache
+{ /* begin class PyramidCache */
+
+	/** maximum number of images whose pyramids are kept */
+	private static int capacity = 0;
+
+	/** cached pyramids, from the least to the most recently used */
+	private static final LinkedHashMap<Key, Entry> entries =
+		new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+	/*....................................................................
+       Public methods
+    ....................................................................*/
+
+	//------------------------------------------------------------------
+	/**
+	 * Set the maximum number of images whose pyramids are kept.
+	 *
+	 * @param capacity number of images, 0 to disable the cache
+	 */
+	public static void setCapacity(final int capacity)
+	{
+		synchronized (entries)
+		{
+			PyramidCache.capacity = Math.max(0, capacity);
+			shrink();
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the maximum number of images whose pyramids are kept.
+	 *
+	 * @return number of images, 0 if the cache is disabled
+	 */
+	public static int getCapacity()
+	{
+		synchronized (entries)
+		{
+			return capacity;
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Release all the cached pyramids.
+	 */
+	public static void clear()
+	{
+		synchronized (entries)
+		{
+			entries.clear();
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get the entry that holds the pyramids of an image, creating an empty
+	 * one if the image is not in the cache yet or if its pixels changed.
+	 *
+	 * @param ip image before scaling
+	 * @param maxImageSubsamplingFactor sub-sampling factor at highest resolution level
+	 * @param pyramidDepth pyramid depth
+	 * @return entry of the image, or null if the cache is disabled
+	 */
+	static Entry getEntry(
+			final ImageProcessor ip,
+			final int maxImageSubsamplingFactor,
+			final int pyramidDepth)
+	{
+		if (getCapacity() == 0)
+			return null;
+
+		// The checksum is computed outside the lock, it reads all the pixels
+		final int checksum = checksum(ip.getPixels());
+		final Key key = new Key(ip, maxImageSubsamplingFactor, pyramidDepth);
+		synchronized (entries)
+		{
+			Entry entry = entries.get(key);
+			if (entry == null || entry.checksum != checksum)
+			{
+				entry = new Entry(checksum);
+				entries.put(key, entry);
+				shrink();
+			}
+			return entry;
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Release the pyramids of an image, whatever the parameters they
+	 * were computed with.
+	 *
+	 * @param ip image before scaling
+	 */
+	static void remove(final ImageProcessor ip)
+	{
+		final Object pixels = ip.getPixels();
+		synchronized (entries)
+		{
+			final Iterator<Key> it = entries.keySet().iterator();
+			while (it.hasNext())
+				if (it.next().pixels == pixels)
+					it.remove();
+		}
+	}
+
+	/*....................................................................
+       Private methods
+    ....................................................................*/
+
+	//------------------------------------------------------------------
+	/**
+	 * Drop the least recently used entries beyond the capacity.
+	 */
+	private static void shrink()
+	{
+		final Iterator<Key> it = entries.keySet().iterator();
+		while (entries.size() > capacity)
+		{
+			it.next();
+			it.remove();
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Compute a checksum of a pixel array.
+	 *
+	 * @param pixels byte, short, float or int array
+	 * @return checksum of the pixels
+	 */
+	private static int checksum(final Object pixels)
+	{
+		if (pixels instanceof byte[])
+			return Arrays.hashCode((byte[]) pixels);
+		if (pixels instanceof short[])
+			return Arrays.hashCode((short[]) pixels);
+		if (pixels instanceof float[])
+			return Arrays.hashCode((float[]) pixels);
+		if (pixels instanceof int[])
+			return Arrays.hashCode((int[]) pixels);
+		return 0;
+	}
+
+	/*....................................................................
+       Inner classes
+    ....................................................................*/
+
+	//------------------------------------------------------------------
+	/**
+	 * Identity of an image and the parameters its pyramids depend on.
+	 */
+	private static class Key
+	{
+		/** pixel array of the image, compared by identity */
+		private final Object pixels;
+		/** image width */
+		private final int width;
+		/** image height */
+		private final int height;
+		/** sub-sampling factor at highest resolution level */
+		private final int maxImageSubsamplingFactor;
+		/** pyramid depth */
+		private final int pyramidDepth;
+		/** maximum output window dimensions */
+		private final int maxOutputSize;
+
+		Key(
+				final ImageProcessor ip,
+				final int maxImageSubsamplingFactor,
+				final int pyramidDepth)
+		{
+			this.pixels = ip.getPixels();
+			this.width = ip.getWidth();
+			this.height = ip.getHeight();
+			this.maxImageSubsamplingFactor = maxImageSubsamplingFactor;
+			this.pyramidDepth = pyramidDepth;
+			this.maxOutputSize = BSplineModel.MAX_OUTPUT_SIZE;
+		}
+
+		public boolean equals(final Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+			final Key k = (Key) o;
+			return pixels == k.pixels && width == k.width && height == k.height
+				&& maxImageSubsamplingFactor == k.maxImageSubsamplingFactor
+				&& pyramidDepth == k.pyramidDepth && maxOutputSize == k.maxOutputSize;
+		}
+
+		public int hashCode()
+		{
+			int h = System.identityHashCode(pixels);
+			h = 31 * h + width;
+			h = 31 * h + height;
+			h = 31 * h + maxImageSubsamplingFactor;
+			h = 31 * h + pyramidDepth;
+			return 31 * h + maxOutputSize;
+		}
+	}
+
+	//------------------------------------------------------------------
+	/**
+	 * Pyramids of one image. The fields are filled by {@link BSplineModel}
+	 * while it holds the lock of the entry, and are never modified afterwards.
+	 */
+	static class Entry
+	{
+		/** checksum of the pixels the pyramids were computed from */
+		final int checksum;
+
+		/** original image, full-size without scaling */
+		double[] originalImage = null;
+		/** original image width */
+		int originalWidth;
+		/** original image height */
+		int originalHeight;
+		/** working image at maximum resolution (after scaling) */
+		double[] image = null;
+		/** working image width */
+		int width;
+		/** working image height */
+		int height;
+		/** image spline coefficients */
+		double[] coefficient = null;
+
+		/** coefficients pyramid, null until computed */
+		Stack coefficientPyramid = null;
+		/** subsampled output image B-spline coefficients */
+		double[] subCoeffs = null;
+		/** smallest image width */
+		int smallestWidth;
+		/** smallest image height */
+		int smallestHeight;
+
+		/** image pyramid, null until computed */
+		Stack imagePyramid = null;
+		/** subsampled output image */
+		double[] subImage = null;
+
+		Entry(final int checksum)
+		{
+			this.checksum = checksum;
+		}
+	}
+
+} /* end class PyramidCache */
@@ -0,0 +1,296 @@
+package bunwarpj;
+
+/**
+ * bUnwarpJ plugin for ImageJ/Fiji.
+ * Copyright (C) 2005-2010 Ignacio Arganda-Carreras and Jan Kybic
+ *
+ * More information at http://biocomp.cnb.csic.es/%7Eiarganda/bUnwarpJ/
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation (http://www.gnu.org/licenses/gpl.txt )
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ */
+
+import java.util.ArrayList;
+
+/*====================================================================
+|   QuasiNewtonHessian
+\===================================================================*/
+/**
+ * Hessian estimate of the Levenberg-Marquardt optimizer in bUnwarpJ.
+ * The estimate starts as the identity and is refined by BFGS updates.
+ * Each update adds two rank-one terms, which are kept as vectors instead
+ * of being added to an M x M matrix. The vectors are only summed into
+ * a dense matrix once they take more memory than the matrix itself.
+ * The damped systems are solved by conjugate gradients with a Jacobi
+ * preconditioner, so no matrix has to be factorized.
+ */
+public class QuasiNewtonHessian
+{
+	/** relative residual at which the conjugate gradients stop */
+	private static final double CG_TOLERANCE = 1e-10;
+
+	/** number of variables */
+	private final int M;
+	/** dense part of the Hessian (M x M), null while it is the identity */
+	private double[] dense = null;
+	/** vectors of the rank-one terms */
+	private final ArrayList<double[]> vectors = new ArrayList<double[]>();
+	/** weights of the rank-one terms, grown as needed */
+	private double[] weights = new double[16];
+	/** diagonal of the Hessian */
+	private final double[] diagonal;
+
+	/*------------------------------------------------------------------*/
+	/**
+	 * Create a Hessian estimate equal to the identity.
+	 *
+	 * @param M number of variables
+	 */
+	public QuasiNewtonHessian(int M)
+	{
+		this.M = M;
+		this.diagonal = new double[M];
+		for (int i = 0; i < M; i++)
+			diagonal[i] = 1.0;
+	}
+
+	/*------------------------------------------------------------------*/
+	/**
+	 * Multiply the Hessian by a vector.
+	 *
+	 * @param x input vector of size M
+	 * @param y output vector of size M, y = H x
+	 */
+	public void multiply(final double[] x, final double[] y)
+	{
+		if (dense == null)
+			System.arraycopy(x, 0, y, 0, M);
+		else
+			for (int i = 0, p = 0; i < M; i++)
+			{
+				double s = 0;
+				for (int j = 0; j < M; j++, p++)
+					s += dense[p] * x[j];
+				y[i] = s;
+			}
+
+		for (int t = 0; t < vectors.size(); t++)
+		{
+			final double[] v = vectors.get(t);
+			double s = 0;
+			for (int i = 0; i < M; i++)
+				s += v[i] * x[i];
+			s *= weights[t];
+			for (int i = 0; i < M; i++)
+				y[i] += s * v[i];
+		}
+	}
+
+	/*------------------------------------------------------------------*/
+	/**
+	 * Apply the BFGS update H + fac g g^t - fae Hdx Hdx^t.
+	 *
+	 * @param fac weight of the gradient difference term
+	 * @param diffgrad gradient difference
+	 * @param fae weight of the Hessian times step term
+	 * @param Hdx Hessian times step
+	 */
+	public void update(
+			final double fac,
+			final double[] diffgrad,
+			final double fae,
+			final double[] Hdx)
+	{
+		addTerm(fac, diffgrad);
+		addTerm(-fae, Hdx);
+
+		// Once the terms take as much memory as a dense matrix,
+		// they are cheaper to apply from it
+		if (vectors.size() >= M)
+			collapse();
+	}
+
+	/*------------------------------------------------------------------*/
+	/**
+	 * Solve the damped system restricted to a subset of the variables,
+	 * (H_S + (lambda - 1) Diag(H_S)) update = g, by preconditioned
+	 * conjugate gradients.
+	 *
+	 * @param index indexes of the variables in the subset
+	 * @param g right hand side, one value per variable in the subset
+	 * @param lambda factor applied to the diagonal of the Hessian
+	 * @return solution, one value per variable in the subset, or null if
+	 *         the system is not positive definite
+	 */
+	public double[] solveDamped(
+			final int[] index,
+			final double[] g,
+			final double lambda)
+	{
+		final int n = index.length;
+		final double[] x = new double[n];
+		final double[] r = new double[n];
+		final double[] z = new double[n];
+		final double[] p = new double[n];
+		final double[] Ap = new double[n];
+		final double[] precond = new double[n];
+
+		double normg = 0;
+		for (int i = 0; i < n; i++)
+		{
+			precond[i] = 1.0 / (lambda * diagonal[index[i]]);
+			r[i] = g[i];
+			z[i] = precond[i] * r[i];
+			p[i] = z[i];
+			normg += g[i] * g[i];
+		}
+		if (normg == 0)
+			return x;
+
+		double rz = 0;
+		for (int i = 0; i < n; i++)
+			rz += r[i] * z[i];
+
+		final double threshold = CG_TOLERANCE * CG_TOLERANCE * normg;
+		// In exact arithmetic the solution is reached after n iterations
+		for (int iter = 0; iter < n; iter++)
+		{
+			multiplyDamped(index, p, Ap, lambda);
+			double pAp = 0;
+			for (int i = 0; i < n; i++)
+				pAp += p[i] * Ap[i];
+			if (!(pAp > 0))
+				return null;
+
+			final double alpha = rz / pAp;
+			double normr = 0;
+			for (int i = 0; i < n; i++)
+			{
+				x[i] += alpha * p[i];
+				r[i] -= alpha * Ap[i];
+				normr += r[i] * r[i];
+			}
+			if (normr <= threshold)
+				break;
+
+			double rzNew = 0;
+			for (int i = 0; i < n; i++)
+			{
+				z[i] = precond[i] * r[i];
+				rzNew += r[i] * z[i];
+			}
+			final double beta = rzNew / rz;
+			rz = rzNew;
+			for (int i = 0; i < n; i++)
+				p[i] = z[i] + beta * p[i];
+		}
+		return x;
+	}
+
+	/*------------------------------------------------------------------*/
+	/**
+	 * Multiply the damped Hessian restricted to a subset of the variables
+	 * by a vector.
+	 *
+	 * @param index indexes of the variables in the subset
+	 * @param x input vector, one value per variable in the subset
+	 * @param y output vector, one value per variable in the subset
+	 * @param lambda factor applied to the diagonal of the Hessian
+	 */
+	private void multiplyDamped(
+			final int[] index,
+			final double[] x,
+			final double[] y,
+			final double lambda)
+	{
+		final int n = index.length;
+		if (dense == null)
+			for (int i = 0; i < n; i++)
+				y[i] = x[i];
+		else
+			for (int i = 0; i < n; i++)
+			{
+				final int row = index[i] * M;
+				double s = 0;
+				for (int j = 0; j < n; j++)
+					s += dense[row + index[j]] * x[j];
+				y[i] = s;
+			}
+
+		for (int t = 0; t < vectors.size(); t++)
+		{
+			final double[] v = vectors.get(t);
+			double s = 0;
+			for (int i = 0; i < n; i++)
+				s += v[index[i]] * x[i];
+			s *= weights[t];
+			for (int i = 0; i < n; i++)
+				y[i] += s * v[index[i]];
+		}
+
+		for (int i = 0; i < n; i++)
+			y[i] += (lambda - 1) * diagonal[index[i]] * x[i];
+	}
+
+	/*------------------------------------------------------------------*/
+	/**
+	 * Add a rank-one term w v v^t.
+	 *
+	 * @param w weight of the term
+	 * @param v vector of the term, it is copied
+	 */
+	private void addTerm(final double w, final double[] v)
+	{
+		final double[] copy = new double[M];
+		System.arraycopy(v, 0, copy, 0, M);
+		final int t = vectors.size();
+		if (t == weights.length)
+		{
+			final double[] grown = new double[2 * t];
+			System.arraycopy(weights, 0, grown, 0, t);
+			weights = grown;
+		}
+		weights[t] = w;
+		vectors.add(copy);
+		for (int i = 0; i < M; i++)
+			diagonal[i] += w * v[i] * v[i];
+	}
+
+	/*------------------------------------------------------------------*/
+	/**
+	 * Sum the rank-one terms into the dense part of the Hessian.
+	 */
+	private void collapse()
+	{
+		if (dense == null)
+		{
+			dense = new double[M * M];
+			for (int i = 0; i < M; i++)
+				dense[i * M + i] = 1.0;
+		}
+		for (int t = 0; t < vectors.size(); t++)
+		{
+			final double[] v = vectors.get(t);
+			final double w = weights[t];
+			for (int i = 0, p = 0; i < M; i++)
+			{
+				final double wvi = w * v[i];
+				for (int j = 0; j < M; j++, p++)
+					dense[p] += wvi * v[j];
+			}
+		}
+		vectors.clear();
+	}
+
+} /* end class QuasiNewtonHessian */
@@ -36,8 +36,11 @@ import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -3171,10 +3174,6 @@ public class Transformation
 			x1[p + halfM] = c[i + M];
 		}
 
-		// Source to Target evaluation (Similarity + Landmarks + Regularization)
-		//double f = evaluateSimilarity(x1, intervals, auxGrad1, only_image, show_error, false);
-		double f = evaluateSimilarityMultiThread(x1, intervals, auxGrad1, only_image, false);
-
 		double []x2 = new double [M];
 		for(int i = halfM, p = 0; i<M; i++, p++)
 		{
@@ -3182,9 +3181,34 @@ public class Transformation
 			x2[p + halfM] = c[i + M];
 		}
 
+		// The similarity, regularization and consistency terms of both
+		// directions are evaluated in a single parallel pass
+		final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+
+		// Source to Target evaluation (Similarity + Landmarks + Regularization)
+		//double f = evaluateSimilarity(x1, intervals, auxGrad1, only_image, show_error, false);
+		final SimilarityTerms direct = new SimilarityTerms(x1, intervals, auxGrad1, only_image, false, tasks);
+
 		// Target to Source evaluation (Similarity + Landmarks + Regularization)
 		//f += evaluateSimilarity(x2, intervals, auxGrad2, only_image, show_error, true);
-		f += evaluateSimilarityMultiThread(x2, intervals, auxGrad2, only_image, true);
+		final SimilarityTerms inverse = new SimilarityTerms(x2, intervals, auxGrad2, only_image, true, tasks);
+
+		// Consistency term
+		ConsistencyTerms consistency = null;
+		double []vgradcons = null;
+		if(this.consistencyWeight != 0)
+		{
+			// Consistency gradient.
+			vgradcons = new double[grad.length];
+
+			//f_consistency = evaluateConsistency(intervals, vgradcons);
+			consistency = new ConsistencyTerms(vgradcons, tasks);
+		}
+
+		runTasks(tasks);
+
+		double f = direct.finish();
+		f += inverse.finish();
 
 		// Gradient composition.
 		for(int i = 0, p = 0; i<halfM; i++, p++)
@@ -3197,14 +3221,9 @@ public class Transformation
 
 		double f_consistency = 0;
 
-		// Consistency term
-		if(this.consistencyWeight != 0)
+		if(consistency != null)
 		{
-			// Consistency gradient.
-			double []vgradcons = new double[grad.length];
-
-			//f_consistency = evaluateConsistency(intervals, vgradcons);
-			f_consistency = evaluateConsistencyMultiThread(intervals, vgradcons);
+			f_consistency = consistency.finish();
 
 			// Update gradient.
 			for(int i = 0; i < grad.length; i++)
@@ -4097,15 +4116,15 @@ public class Transformation
 	 *     H is the hessian of the function f,
 	 *     gradient is the gradient of the function f,
 	 *     Diag(H) is a matrix with the diagonal of H.
+	 *     The system is solved by preconditioned conjugate gradients.
 	 */
 	private void Marquardt_it (
 			double   []x,
 			boolean  []optimize,
 			double   []gradient,
-			double   []Hessian,
+			QuasiNewtonHessian hessian,
 			double     lambda)
 	{
-//		final double TINY  = FLT_EPSILON;
 		final int   M      = x.length;
 
 		// Find the threshold for the most important components
@@ -4125,57 +4144,24 @@ public class Transformation
 			if(sortedgradient[i] >= gradient_th)
 				Mused++;
 
-
-		double [][] u         = new double  [Mused][Mused];
-//		double [][] v         = null; //new double  [Mused][Mused];
-//		double   [] w         = null; //new double  [Mused];
-		double   [] g         = new double  [Mused];
-		double   [] update    = new double  [Mused];
-		boolean  [] optimizep = new boolean [M];
-
-		System.arraycopy(optimize,0,optimizep,0,M);
-
 		lambda+=1.0F;
 
-
-		int m = 0, i;
-
 		// Take the Mused components with big gradients
-		for (i=0; i<M; i++)
-			if  (optimizep[i] && Math.abs(gradient[i])>=gradient_th) {
+		int m = 0;
+		for (int i=0; i<M && m<Mused; i++)
+			if  (optimize[i] && Math.abs(gradient[i])>=gradient_th)
 				m++;
-				if (m==Mused) break;
+		int      [] index     = new int     [m];
+		double   [] g         = new double  [m];
+		double   [] update    = null;
+		for (int i=0, iw=0; iw<m; i++)
+			if  (optimize[i] && Math.abs(gradient[i])>=gradient_th) {
+				index[iw] = i;
+				g[iw++] = gradient[i];
 			}
-			else
-				optimizep[i]=false;
-		// Set the rest to 0
-		for (i=i+1; i<M; i++)
-			optimizep[i]=false;
-
-
-		// Gradient descent
-		//for (int i=0; i<M; i++) if (optimizep[i]) x[i]-=0.01*gradient[i];
-		//if (true) return;
 
-		/* u will be a copy of the Hessian where we take only those
-           components corresponding to variables being optimized */
-		int kr=0, iw=0;
-		for (int ir = 0; ir<M; kr=kr+M,ir++)
-		{
-			if (optimizep[ir])
-			{
-				int jw=0;
-				for (int jr = 0; jr<M; jr++)
-					if (optimizep[jr]) u[iw][jw++] = Hessian[kr + jr];
-				g[iw]=gradient[ir];
-				u[iw][iw] *= lambda;
-				iw++;
-			}
-		}
-
-		// Solve he equation system
-		/* SVD u=u*w*v^t */
-		update = MathTools.linearLeastSquares(u,g);
+		// Solve the equation system
+		update = hessian.solveDamped(index, g, lambda);
 		if(update == null)
 		{
 			IJ.log("Error when calculating linear least square solution...");
@@ -4183,9 +4169,8 @@ public class Transformation
 		}
 
 		/* x = x - update */
-		kr=0;
-		for (int kw = 0; kw<M; kw++)
-			if (optimizep[kw]) x[kw] -=  update[kr++];
+		for (int kw = 0; kw<index.length; kw++)
+			x[index[kw]] -= update[kw];
 
 	} /* end Marquardt_it */
 
@@ -4238,13 +4223,10 @@ public class Transformation
 		double   []grad         = new double   [M];
 		double   []diffgrad     = new double   [M];
 		double   []Hdx          = new double   [M];
-		double   []rescuedhess  = new double   [M*M];
-		double   []hess         = new double   [M*M];
-//		double   []safehess     = new double   [M*M];
-		double   []proposedHess = new double   [M*M];
+		QuasiNewtonHessian hess = new QuasiNewtonHessian(M);
 		boolean  []optimize     = new boolean  [M];
 		int        i, j, p, iter = 1;
-		boolean    skip_update, ill_hessian;
+		boolean    skip_update;
 		double     improvementx = (double)Math.sqrt(TINY),
 		lambda = FIRSTLAMBDA, max_normx, distx, aux, gmax;
 		double     fac, fae, dgdx, dxHdx, sumdiffg, sumdiffx;
@@ -4286,19 +4268,13 @@ public class Transformation
 
 		if (showMarquardtOptim) IJ.write("f(1)="+f);
 
-		/* Initially the hessian is the identity matrix multiplied by
-          the first function value */
-		for (i=0,p=0; i<M; i++)
-			for (j=0; j<M; j++,p++)
-				if (i==j) hess[p]=1.0F;
-				else hess[p]=0.0F;
-
+		/* Initially the hessian is the identity matrix. It is only
+          modified when an iteration is accepted, so it does not need
+          to be rescued */
 		rescuedf    = f;
-		for (i=0,p=0; i<M; i++) {
+		for (i=0; i<M; i++) {
 			rescuedx[i]=x[i];
 			rescuedgrad[i]=grad[i];
-			for (j=0; j<M; j++,p++)
-				rescuedhess[p]=hess[p];
 		}
 
 		// Maximum iteration number
@@ -4375,12 +4351,7 @@ public class Transformation
 					diffgrad[i] = grad[i]-rescuedgrad[i];
 
 				/* Multiply this difference by the current inverse of the hessian */
-				for (i=0, p=0; i<M; i++) 
-				{
-					Hdx[i] = 0.0F;
-					for (j=0; j<M; j++, p++) 
-						Hdx[i] += hess[p]*diffx[j];
-				}
+				hess.multiply(diffx, Hdx);
 
 				/* Calculate dot products for the denominators ................ */
 				dgdx = dxHdx = sumdiffg = sumdiffx = 0.0F;
@@ -4405,25 +4376,7 @@ public class Transformation
 					fac=1.0F/dgdx;
 
 					/* Update the hessian after BFGS formula */
-					for (i=0, p=0; i<M; i++)
-						for (j=0; j<M; j++, p++) 
-						{
-							if (i<=j) proposedHess[p]=hess[p]+
-							fac*diffgrad[i]*diffgrad[j]
-							                         -fae*(Hdx[i]*Hdx[j]);
-							else proposedHess[p]=proposedHess[j*M+i];
-						}
-
-					ill_hessian=false;
-					if (!ill_hessian) 
-					{
-						for (i=0, p=0; i<M; i++)
-							for (j=0; j<M; j++,p++)
-								hess[p]= proposedHess[p];
-					} 
-					else
-						if (showMarquardtOptim)
-							IJ.write("Hessian cannot be safely updated, ill-conditioned");
+					hess.update(fac, diffgrad, fae, Hdx);
 
 				} else
 					if (showMarquardtOptim)
@@ -4431,12 +4384,10 @@ public class Transformation
 
 				/* Update geometry and lambda ................................. */
 				rescuedf = f;
-				for (i=0, p=0; i<M; i++) 
+				for (i=0; i<M; i++) 
 				{
 					rescuedx[i]=x[i];
 					rescuedgrad[i]=grad[i];
-					for (j=0; j<M; j++,p++) 
-						rescuedhess[p]=hess[p];
 				}
 				if (1e-4 < lambda) 
 					lambda = lambda/10;
@@ -4445,12 +4396,10 @@ public class Transformation
 			{
 				/* else, if it is worse, then recover the last geometry
              		and increase lambda, saturate lambda with FIRSTLAMBDA */
-				for (i=0,p=0; i<M; i++) 
+				for (i=0; i<M; i++) 
 				{
 					x[i] = rescuedx[i];
 					grad[i] = rescuedgrad[i];
-					for (j=0; j<M; j++,p++) 
-						hess[p] = rescuedhess[p];
 				}
 				if (lambda < 1.0/TINY) 
 					lambda*=10;
@@ -4522,12 +4471,10 @@ public class Transformation
 		double   []grad         = new double   [M];
 		double   []diffgrad     = new double   [M];
 		double   []Hdx          = new double   [M];
-		double   []rescuedhess  = new double   [M*M];
-		double   []hess         = new double   [M*M];
-		double   []proposedHess = new double   [M*M];
+		QuasiNewtonHessian hess = new QuasiNewtonHessian(M);
 		boolean  []optimize     = new boolean  [M];
 		int        i, j, p, iter = 1;
-		boolean    skip_update, ill_hessian;
+		boolean    skip_update;
 		double     improvementx = (double)Math.sqrt(TINY),
 		lambda = FIRSTLAMBDA, max_normx, distx, aux, gmax;
 		double     fac, fae, dgdx, dxHdx, sumdiffg, sumdiffx;
@@ -4560,19 +4507,13 @@ public class Transformation
 
 		if (showMarquardtOptim) IJ.write("f(1)="+f);
 
-		/* Initially the hessian is the identity matrix multiplied by
-          the first function value */
-		for (i=0,p=0; i<M; i++)
-			for (j=0; j<M; j++,p++)
-				if (i==j) hess[p]=1.0F;
-				else hess[p]=0.0F;
-
+		/* Initially the hessian is the identity matrix. It is only
+          modified when an iteration is accepted, so it does not need
+          to be rescued */
 		rescuedf    = f;
-		for (i=0,p=0; i<M; i++) {
+		for (i=0; i<M; i++) {
 			rescuedx[i]=x[i];
 			rescuedgrad[i]=grad[i];
-			for (j=0; j<M; j++,p++)
-				rescuedhess[p]=hess[p];
 		}
 
 		// Maximum iteration number
@@ -4646,12 +4587,7 @@ public class Transformation
 					diffgrad[i] = grad[i]-rescuedgrad[i];
 
 				/* Multiply this difference by the current inverse of the hessian */
-				for (i=0, p=0; i<M; i++) 
-				{
-					Hdx[i] = 0.0F;
-					for (j=0; j<M; j++, p++) 
-						Hdx[i] += hess[p]*diffx[j];
-				}
+				hess.multiply(diffx, Hdx);
 
 				/* Calculate dot products for the denominators ................ */
 				dgdx = dxHdx = sumdiffg = sumdiffx = 0.0F;
@@ -4676,25 +4612,7 @@ public class Transformation
 					fac=1.0F/dgdx;
 
 					/* Update the hessian after BFGS formula */
-					for (i=0, p=0; i<M; i++)
-						for (j=0; j<M; j++, p++) 
-						{
-							if (i<=j) proposedHess[p]=hess[p]+
-							fac*diffgrad[i]*diffgrad[j]
-							                         -fae*(Hdx[i]*Hdx[j]);
-							else proposedHess[p]=proposedHess[j*M+i];
-						}
-
-					ill_hessian=false;
-					if (!ill_hessian) 
-					{
-						for (i=0, p=0; i<M; i++)
-							for (j=0; j<M; j++,p++)
-								hess[p]= proposedHess[p];
-					} 
-					else
-						if (showMarquardtOptim)
-							IJ.write("Hessian cannot be safely updated, ill-conditioned");
+					hess.update(fac, diffgrad, fae, Hdx);
 
 				} else
 					if (showMarquardtOptim)
@@ -4702,12 +4620,10 @@ public class Transformation
 
 				/* Update geometry and lambda ................................. */
 				rescuedf = f;
-				for (i=0, p=0; i<M; i++) 
+				for (i=0; i<M; i++) 
 				{
 					rescuedx[i]=x[i];
 					rescuedgrad[i]=grad[i];
-					for (j=0; j<M; j++,p++) 
-						rescuedhess[p]=hess[p];
 				}
 				if (1e-4 < lambda) 
 					lambda = lambda/10;
@@ -4716,12 +4632,10 @@ public class Transformation
 			{
 				/* else, if it is worse, then recover the last geometry
              		and increase lambda, saturate lambda with FIRSTLAMBDA */
-				for (i=0,p=0; i<M; i++) 
+				for (i=0; i<M; i++) 
 				{
 					x[i] = rescuedx[i];
 					grad[i] = rescuedgrad[i];
-					for (j=0; j<M; j++,p++) 
-						hess[p] = rescuedhess[p];
 				}
 				if (lambda < 1.0/TINY) 
 					lambda*=10;
@@ -5198,8 +5112,8 @@ public class Transformation
 				}
 			}
 
-			// Check the number of processors in the computer 
-			int nproc = Runtime.getRuntime().availableProcessors();
+			// Check the number of threads available to the registration
+			int nproc = MiscTools.getNumberOfThreads();
 
 			// We will use threads to display parts of the output image
 			int block_height = auxTargetHeight / nproc;
@@ -5298,8 +5212,8 @@ public class Transformation
 			FloatProcessor fpB 		= new FloatProcessor(auxTargetWidth, auxTargetHeight);
 			ColorProcessor cp_mask	= new ColorProcessor(auxTargetWidth, auxTargetHeight);			
 			
-			// Check the number of processors in the computer 
-			int nproc = Runtime.getRuntime().availableProcessors();
+			// Check the number of threads available to the registration
+			int nproc = MiscTools.getNumberOfThreads();
 
 			// We will use threads to display parts of the output image
 			int block_height = auxTargetHeight / nproc;
@@ -6024,8 +5938,8 @@ public class Transformation
 		
 		int uv = 0;
 
-		// Check the number of processors in the computer 
-		int nproc = Runtime.getRuntime().availableProcessors();
+		// Check the number of threads available to the registration
+		int nproc = MiscTools.getNumberOfThreads();
 
 		// We will use threads to display parts of the output image
 		int block_height = auxTargetHeight / ((int)subFactorHeight * nproc);
@@ -6399,259 +6313,421 @@ public class Transformation
 			final boolean only_image,
 			boolean bIsReverse)
 	{
+		final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+		final SimilarityTerms similarity = new SimilarityTerms(c, intervals, grad, only_image, bIsReverse, tasks);
+		runTasks(tasks);
+		return similarity.finish();
+	}
 
-		// Auxiliary variables for changing from source to target and inversely
-		final BSplineModel auxTarget = (!bIsReverse) ?  target : source;
-		final BSplineModel auxSource = (!bIsReverse) ? source : target;
+	/*--------------------------------------------------------------------------*/
+	/**
+	 * Run a list of tasks with as many threads as processors. Every thread
+	 * takes the next pending task until all of them are done.
+	 *
+	 * @param tasks tasks to run
+	 */
+	private void runTasks(final List<Runnable> tasks)
+	{
+		// Check the number of threads available to the registration
+		final int nproc = MiscTools.getNumberOfThreads();
+		final int nThreads = Math.min(nproc, tasks.size());
+
+		if (nThreads <= 1)
+		{
+			for (Runnable task : tasks)
+				task.run();
+			return;
+		}
 
-		final Mask auxTargetMsk = (!bIsReverse) ? targetMsk : sourceMsk;
-		final Mask auxSourceMsk = (!bIsReverse) ? sourceMsk : targetMsk;
+		final AtomicInteger next = new AtomicInteger(0);
+		Thread[] threads = new Thread[nThreads];
+		for (int i=0; i<nThreads; i++) 
+		{
+			threads[i] = new Thread() {
+				public void run()
+				{
+					for (int t = next.getAndIncrement(); t < tasks.size(); t = next.getAndIncrement())
+						tasks.get(t).run();
+				}
+			};
+			threads[i].start();
+		}
+
+		// Wait for the threads to finish
+		for (int i=0; i<nThreads; i++) 
+		{
+			try {
+				threads[i].join();
+				threads[i] = null;
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}			
+		}
+	}
+
+	/*--------------------------------------------------------------------------*/
+	/**
+	 * Evaluate the regularization energy c^t P c and its gradient. P only
+	 * couples coefficients whose B-spline supports overlap, i.e. coefficients
+	 * less than 4 rows and 4 columns apart, so only that band is visited.
+	 *
+	 * @param c Input: Deformation coefficients
+	 * @param intervals Input: Number of intervals for the deformation
+	 * @param P11 Input: regularization matrix of the x coefficients
+	 * @param P12 Input: regularization matrix coupling x and y coefficients
+	 * @param P22 Input: regularization matrix of the y coefficients
+	 * @param vgradreg Output: Gradient of the regularization
+	 * @return regularization energy
+	 */
+	private double evaluateRegularization(
+			final double []c,
+			final int intervals,
+			final double [][]P11,
+			final double [][]P12,
+			final double [][]P22,
+			final double []vgradreg)
+	{
+		final int cYdim = intervals+3;
+		final int Nk = cYdim * cYdim;
+
+		double regularization = 0.0;
+		for (int i=0; i<Nk; i++)
+		{
+			final int row = i / cYdim;
+			final int col = i % cYdim;
+			final int firstRow = Math.max(0, row - 3);
+			final int lastRow = Math.min(cYdim - 1, row + 3);
+			final int firstCol = Math.max(0, col - 3);
+			final int lastCol = Math.min(cYdim - 1, col + 3);
+			for (int r = firstRow; r <= lastRow; r++)
+				for (int j = r * cYdim + firstCol; j <= r * cYdim + lastCol; j++) {
+					regularization+=c[   i]*P11[i][j]*c[   j]+// c1^t P11 c1
+					c[Nk+i]*P22[i][j]*c[Nk+j]+// c2^t P22 c2
+					c[   i]*P12[i][j]*c[Nk+j];// c1^t P12 c2
+					vgradreg[   i]+=2*P11[i][j]*c[j];         // 2 P11 c1
+					vgradreg[Nk+i]+=2*P22[i][j]*c[Nk+j];      // 2 P22 c2
+					vgradreg[   i]+=  P12[i][j]*c[Nk+j];      //   P12 c2
+					vgradreg[Nk+i]+=  P12[j][i]*c[   j];      //   P12^t c1
+				}
+		}
+		return regularization;
+	}
 
-		final PointHandler auxTargetPh = (!bIsReverse) ? targetPh : sourcePh;
-		final PointHandler auxSourcePh = (!bIsReverse) ? sourcePh : targetPh;
+	/* ------------------------------------------------------------------------ */
+	/**
+	 * Similarity, regularization and landmark terms of one deformation
+	 * direction. The constructor adds the image similarity tiles and the
+	 * regularization to a list of tasks, so they can run in the same
+	 * parallel pass as other terms, and finish() combines their results.
+	 */
+	private class SimilarityTerms
+	{
+		/** deformation coefficients */
+		final double []c;
+		/** number of intervals between B-spline coefficients */
+		final int intervals;
+		/** output gradient */
+		final double []grad;
+		/** if true, only the image term is considered and not the regularization */
+		final boolean only_image;
+		/** transformation direction (target-source=FALSE or source-target=TRUE) */
+		final boolean bIsReverse;
+
+		/** number of image similarity tiles */
+		final int nThreads;
+		/** similarity gradient of every tile */
+		final double [][]grad_thread;
+		/** partial image similarity and number of pixels of every tile */
+		final double [][]result;
+		/** regularization gradient */
+		final double []vgradreg;
+		/** regularization value */
+		double regularization = 0.0;
 
-		final BSplineModel swx = (!bIsReverse) ? swxTargetToSource : swxSourceToTarget;
-		final BSplineModel swy = (!bIsReverse) ? swyTargetToSource : swySourceToTarget;
+		/**
+		 * Set the deformation coefficients and create the similarity tasks.
+		 *
+		 * @param c Input: Deformation coefficients
+		 * @param intervals Input: Number of intervals for the deformation
+		 * @param grad Output: Gradient of the similarity
+		 * @param only_image Input: if true, only the image term is considered and not the regularization
+		 * @param bIsReverse Input: flag to determine the transformation direction (target-source=FALSE or source-target=TRUE)
+		 * @param tasks Output: list the tasks are added to
+		 */
+		SimilarityTerms(
+				final double []c,
+				final int intervals,
+				final double []grad,
+				final boolean only_image,
+				final boolean bIsReverse,
+				final List<Runnable> tasks)
+		{
+			this.c = c;
+			this.intervals = intervals;
+			this.grad = grad;
+			this.only_image = only_image;
+			this.bIsReverse = bIsReverse;
 
-		final double auxFactorWidth = (!bIsReverse) ? this.target.getFactorWidth() : this.sourceFactorWidth;
-		final double auxFactorHeight = (!bIsReverse) ? this.target.getFactorHeight() : this.sourceFactorHeight;
+			// Auxiliary variables for changing from source to target and inversely
+			final BSplineModel auxTarget = (!bIsReverse) ?  target : source;
+			final BSplineModel auxSource = (!bIsReverse) ? source : target;
 
-		final double P11[][] = (!bIsReverse) ? this.P11_TargetToSource : this.P11_SourceToTarget;
-		final double P12[][] = (!bIsReverse) ? this.P12_TargetToSource : this.P12_SourceToTarget;
-		final double P22[][] = (!bIsReverse) ? this.P22_TargetToSource : this.P12_SourceToTarget;
+			final Mask auxTargetMsk = (!bIsReverse) ? targetMsk : sourceMsk;
+			final Mask auxSourceMsk = (!bIsReverse) ? sourceMsk : targetMsk;
 
-		final int auxTargetCurrentWidth = (!bIsReverse) ? this.targetCurrentWidth : this.sourceCurrentWidth;
-		final int auxTargetCurrentHeight = (!bIsReverse) ? this.targetCurrentHeight : this.sourceCurrentHeight;
+			final BSplineModel swx = (!bIsReverse) ? swxTargetToSource : swxSourceToTarget;
+			final BSplineModel swy = (!bIsReverse) ? swyTargetToSource : swySourceToTarget;
 
+			final double auxFactorWidth = (!bIsReverse) ? target.getFactorWidth() : sourceFactorWidth;
+			final double auxFactorHeight = (!bIsReverse) ? target.getFactorHeight() : sourceFactorHeight;
 
-		final int cYdim = intervals+3;
-		final int cXdim = cYdim;
-		final int Nk = cYdim * cXdim;
-		final int twiceNk = 2 * Nk;
-		
-		final double []vgradreg = new double[grad.length];
-		final double []vgradland = new double[grad.length];
+			final double P11[][] = (!bIsReverse) ? P11_TargetToSource : P11_SourceToTarget;
+			final double P12[][] = (!bIsReverse) ? P12_TargetToSource : P12_SourceToTarget;
+			final double P22[][] = (!bIsReverse) ? P22_TargetToSource : P12_SourceToTarget;
 
-		// Set the transformation coefficients to the interpolator
-		swx.setCoefficients(c, cYdim, cXdim, 0);
-		swy.setCoefficients(c, cYdim, cXdim, Nk);
+			final int auxTargetCurrentWidth = (!bIsReverse) ? targetCurrentWidth : sourceCurrentWidth;
+			final int auxTargetCurrentHeight = (!bIsReverse) ? targetCurrentHeight : sourceCurrentHeight;
 
-		// Initialize gradient
-		for (int k=0; k<twiceNk; k++) 
-			vgradreg[k]=vgradland[k]=grad[k]=0.0F;
+			final int cYdim = intervals+3;
+			final int cXdim = cYdim;
+			final int Nk = cYdim * cXdim;
+			final int twiceNk = 2 * Nk;
 
-		// Estimate the similarity and gradient between both images
-		double imageSimilarity = 0.0;
-		
-		//final int Ydim = auxTarget.getCurrentHeight();
-		//final int Xdim = auxTarget.getCurrentWidth();
+			this.vgradreg = new double[grad.length];
 
+			// Set the transformation coefficients to the interpolator
+			swx.setCoefficients(c, cYdim, cXdim, 0);
+			swy.setCoefficients(c, cYdim, cXdim, Nk);
 
-		// Image similarity calculated in a concurrent way
-		if(imageWeight != 0)
-		{
-			// Check the number of processors in the computer 
-			final int nproc = Runtime.getRuntime().availableProcessors();
+			// Initialize gradient
+			for (int k=0; k<twiceNk; k++) 
+				grad[k]=0.0F;
 
-			// We will use threads to calculate the similarity of the different 
-			// parts of the target and source image
-			int block_height = auxTargetCurrentHeight / nproc;
-			if (auxTargetCurrentHeight % 2 != 0) 
-				block_height++;
-			
-			// We use as many threads as processors
-			final int nThreads = nproc; 
-			
-			Thread[] threads  = new Thread[nThreads];
-			Rectangle[] rects = new Rectangle[nThreads];
-			
-			// Every thread will provide the corresponding similarity value and
-			// gradient
-			final double [][]grad_thread = new double[nThreads][grad.length];
-			// Result array:
-			// First result is the partial image similarity and second the number of pixels
-			final double [][]result = new double[nThreads][2];
-			// Number of processed pixels (taking into account the masks)
-			int n = 0;
-			
-			for (int i=0; i<nThreads; i++) 
+			// Image similarity calculated in a concurrent way
+			if(imageWeight != 0)
 			{
-				// Last block goes to the end of the window
-				int y_start = i * block_height;
-				if (nThreads-1 == i) 
-					block_height = auxTargetCurrentHeight  - i * block_height;
-				
-				// Corresponding rectangle
-				rects[i] = new Rectangle(0, y_start, auxTargetCurrentWidth, block_height);
-				
-				
-				// Create threads and start them.
-				threads[i] = new Thread(new EvaluateSimilarityTile(auxTarget, auxSource, auxTargetMsk,
-							   										auxSourceMsk, swx, swy, auxFactorWidth, auxFactorHeight,
-							   										intervals, grad_thread[i], result[i],
-							   										rects[i]));
-				threads[i].start();
-			}
-			
-			// Wait for the threads to finish
-			for (int i=0; i<nThreads; i++) 
-			{
-				try {
-					threads[i].join();
-					threads[i] = null;
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}			
-			}
-			
-			// Accumulate results
-			for (int i=0; i<nThreads; i++) 
-			{
-				imageSimilarity += result[i][0];
-				n += result[i][1];								
+				// Check the number of threads available to the registration
+				final int nproc = MiscTools.getNumberOfThreads();
+
+				// We will use tiles to calculate the similarity of the different 
+				// parts of the target and source image
+				int block_height = auxTargetCurrentHeight / nproc;
+				if (auxTargetCurrentHeight % 2 != 0) 
+					block_height++;
+
+				// We use as many tiles as processors
+				this.nThreads = nproc;
+
+				// Every tile will provide the corresponding similarity value and
+				// gradient
+				this.grad_thread = new double[nThreads][grad.length];
+				// Result array:
+				// First result is the partial image similarity and second the number of pixels
+				this.result = new double[nThreads][2];
+
+				for (int i=0; i<nThreads; i++) 
+				{
+					// Last block goes to the end of the window
+					int y_start = i * block_height;
+					if (nThreads-1 == i) 
+						block_height = auxTargetCurrentHeight  - i * block_height;
+
+					// Corresponding rectangle
+					final Rectangle rect = new Rectangle(0, y_start, auxTargetCurrentWidth, block_height);
+
+					tasks.add(new EvaluateSimilarityTile(auxTarget, auxSource, auxTargetMsk,
+																auxSourceMsk, swx, swy, auxFactorWidth, auxFactorHeight,
+																intervals, grad_thread[i], result[i],
+																rect));
+				}
 			}
-			
-			// Average image similarity
-			imageSimilarity /= n;
-			// Average gradients
-			for(int i = 0; i<nThreads; i++)
+			else
 			{
-				for(int j = 0; j < grad.length; j++)
-					grad[j] += (grad_thread[i][j]/n);
+				this.nThreads = 0;
+				this.grad_thread = null;
+				this.result = null;
 			}
-			
-		}
-		
-		
 
-		// Compute regularization term ..............................................
-		double regularization = 0.0;
-		if (!only_image)
-		{
-			for (int i=0; i<Nk; i++)
-				for (int j=0; j<Nk; j++) {
-					regularization+=c[   i]*P11[i][j]*c[   j]+// c1^t P11 c1
-					c[Nk+i]*P22[i][j]*c[Nk+j]+// c2^t P22 c2
-					c[   i]*P12[i][j]*c[Nk+j];// c1^t P12 c2
-					vgradreg[   i]+=2*P11[i][j]*c[j];         // 2 P11 c1
-					vgradreg[Nk+i]+=2*P22[i][j]*c[Nk+j];      // 2 P22 c2
-					vgradreg[   i]+=  P12[i][j]*c[Nk+j];      //   P12 c2
-					vgradreg[Nk+i]+=  P12[j][i]*c[   j];      //   P12^t c1
-				}
-			regularization*=1.0/(auxTargetCurrentHeight * auxTargetCurrentWidth);
-			for (int k=0; k<twiceNk; k++) 
-				vgradreg [k]*=1.0/(auxTargetCurrentHeight * auxTargetCurrentWidth);
+			// Compute regularization term ..............................................
+			if (!only_image)
+				tasks.add(new Runnable() {
+					public void run()
+					{
+						regularization = evaluateRegularization(c, intervals, P11, P12, P22, vgradreg);
+					}
+				});
 		}
 
-		// Compute landmark error and derivative ...............................
-		// Get the list of landmarks
-		double landmarkError = 0.0;
-		int K = 0;
-		if (auxTargetPh!=null) 
-			K = auxTargetPh.getPoints().size();
-		
-		if (landmarkWeight != 0)
+		/**
+		 * Combine the results of the tasks and add the landmark term.
+		 * To be called once all the tasks are done.
+		 *
+		 * @return images similarity value
+		 */
+		double finish()
 		{
-			Vector <Point> sourceVector = null;
-			if (auxSourcePh!=null) sourceVector = auxSourcePh.getPoints();
-			else                   sourceVector = new Vector <Point> ();
-			Vector <Point> targetVector = null;
-			if (auxTargetPh!=null) targetVector = auxTargetPh.getPoints();
-			else                   targetVector = new Vector <Point> ();
+			final PointHandler auxTargetPh = (!bIsReverse) ? targetPh : sourcePh;
+			final PointHandler auxSourcePh = (!bIsReverse) ? sourcePh : targetPh;
 
-			for (int kp=0; kp<K; kp++)
-			{
-				// Get the landmark coordinate in the target image
-				final Point sourcePoint = (Point)sourceVector.elementAt(kp);
-				final Point targetPoint = (Point)targetVector.elementAt(kp);
-				double u = auxFactorWidth *(double)targetPoint.x;
-				double v = auxFactorHeight*(double)targetPoint.y;
+			final BSplineModel swx = (!bIsReverse) ? swxTargetToSource : swxSourceToTarget;
+			final BSplineModel swy = (!bIsReverse) ? swyTargetToSource : swySourceToTarget;
 
-				// Express it in "spline" units
-				double tu = (double)(u * intervals) / (double)(auxTargetCurrentWidth  - 1) + 1.0F;
-				double tv = (double)(v * intervals) / (double)(auxTargetCurrentHeight - 1) + 1.0F;
+			final double auxFactorWidth = (!bIsReverse) ? target.getFactorWidth() : sourceFactorWidth;
+			final double auxFactorHeight = (!bIsReverse) ? target.getFactorHeight() : sourceFactorHeight;
 
-				// Transform this coordinate to the source image
-				swx.prepareForInterpolation(tu, tv, false);
-				double x = swx.interpolateI();
-				swy.prepareForInterpolation(tu, tv, false);
-				double y = swy.interpolateI();
+			final int auxTargetCurrentWidth = (!bIsReverse) ? targetCurrentWidth : sourceCurrentWidth;
+			final int auxTargetCurrentHeight = (!bIsReverse) ? targetCurrentHeight : sourceCurrentHeight;
 
-				// Substract the result from the residual
-				double dx = auxFactorWidth  * (double)sourcePoint.x - x;
-				double dy = auxFactorHeight * (double)sourcePoint.y - y;
+			final int cYdim = intervals+3;
+			final int Nk = cYdim * cYdim;
+			final int twiceNk = 2 * Nk;
 
-				// Add to landmark error
-				landmarkError += dx*dx + dy*dy;
+			final double []vgradland = new double[grad.length];
 
-				// Compute the derivative with respect to all the c coefficients
-				for (int l=0; l<4; l++)
-					for (int m=0; m<4; m++)
-					{
-						if (swx.yIndex[l]==-1 || swx.xIndex[m]==-1) continue;
-						int k=swx.yIndex[l]*cYdim+swx.xIndex[m];
+			// Estimate the similarity and gradient between both images
+			double imageSimilarity = 0.0;
 
-						// There's also a multiplication by 2 that I will do later
-						// Derivative related to X deformation
-						vgradland[k]   -=dx*swx.getWeightI(l,m);
+			if(imageWeight != 0)
+			{
+				// Number of processed pixels (taking into account the masks)
+				int n = 0;
 
-						// Derivative related to Y deformation
-						vgradland[k+Nk]-=dy*swy.getWeightI(l,m);
-					}
+				// Accumulate results
+				for (int i=0; i<nThreads; i++) 
+				{
+					imageSimilarity += result[i][0];
+					n += result[i][1];								
+				}
+
+				// Average image similarity
+				imageSimilarity /= n;
+				// Average gradients
+				for(int i = 0; i<nThreads; i++)
+				{
+					for(int j = 0; j < grad.length; j++)
+						grad[j] += (grad_thread[i][j]/n);
+				}
 			}
-		}
 
-		if (K!=0)
-		{
-			landmarkError *= landmarkWeight/K;
-			double aux = 2.0 * landmarkWeight/K;
-			// This is the 2 coming from the derivative
-			// computation that I would do at the end
-			for (int k=0; k<twiceNk; k++) 
-				vgradland[k] *= aux;
-		}
-		if (only_image) landmarkError = 0;
-		
-		
-		
-		// Finish computations .............................................................
-		// Add all gradient terms (similarity + regularization + landmarks)
-		for (int k=0; k<twiceNk; k++)
-			grad[k] += vgradreg[k] + vgradland[k];
+			// Scale regularization term ..............................................
+			if (!only_image)
+			{
+				regularization*=1.0/(auxTargetCurrentHeight * auxTargetCurrentWidth);
+				for (int k=0; k<twiceNk; k++) 
+					vgradreg [k]*=1.0/(auxTargetCurrentHeight * auxTargetCurrentWidth);
+			}
 
+			// Compute landmark error and derivative ...............................
+			// Get the list of landmarks
+			double landmarkError = 0.0;
+			int K = 0;
+			if (auxTargetPh!=null) 
+				K = auxTargetPh.getPoints().size();
 
-		if (showMarquardtOptim)
-		{
-			String s = bIsReverse ? new String("(t-s)") : new String("(s-t)");
-			if (imageWeight != 0) 
+			if (landmarkWeight != 0)
 			{
-				IJ.write("    Image          error " + s + ": " + imageSimilarity);
-				if(bIsReverse)
-					this.partialInverseSimilarityError = imageSimilarity;
-				else
-					this.partialDirectSimilarityError = imageSimilarity;
+				Vector <Point> sourceVector = null;
+				if (auxSourcePh!=null) sourceVector = auxSourcePh.getPoints();
+				else                   sourceVector = new Vector <Point> ();
+				Vector <Point> targetVector = null;
+				if (auxTargetPh!=null) targetVector = auxTargetPh.getPoints();
+				else                   targetVector = new Vector <Point> ();
+
+				for (int kp=0; kp<K; kp++)
+				{
+					// Get the landmark coordinate in the target image
+					final Point sourcePoint = (Point)sourceVector.elementAt(kp);
+					final Point targetPoint = (Point)targetVector.elementAt(kp);
+					double u = auxFactorWidth *(double)targetPoint.x;
+					double v = auxFactorHeight*(double)targetPoint.y;
+
+					// Express it in "spline" units
+					double tu = (double)(u * intervals) / (double)(auxTargetCurrentWidth  - 1) + 1.0F;
+					double tv = (double)(v * intervals) / (double)(auxTargetCurrentHeight - 1) + 1.0F;
+
+					// Transform this coordinate to the source image
+					swx.prepareForInterpolation(tu, tv, false);
+					double x = swx.interpolateI();
+					swy.prepareForInterpolation(tu, tv, false);
+					double y = swy.interpolateI();
+
+					// Substract the result from the residual
+					double dx = auxFactorWidth  * (double)sourcePoint.x - x;
+					double dy = auxFactorHeight * (double)sourcePoint.y - y;
+
+					// Add to landmark error
+					landmarkError += dx*dx + dy*dy;
+
+					// Compute the derivative with respect to all the c coefficients
+					for (int l=0; l<4; l++)
+						for (int m=0; m<4; m++)
+						{
+							if (swx.yIndex[l]==-1 || swx.xIndex[m]==-1) continue;
+							int k=swx.yIndex[l]*cYdim+swx.xIndex[m];
 
+							// There's also a multiplication by 2 that I will do later
+							// Derivative related to X deformation
+							vgradland[k]   -=dx*swx.getWeightI(l,m);
+
+							// Derivative related to Y deformation
+							vgradland[k+Nk]-=dy*swy.getWeightI(l,m);
+						}
+				}
 			}
-			if (landmarkWeight != 0)               
+
+			if (K!=0)
 			{
-				IJ.write("    Landmark       error " + s + ": " + landmarkError);
-				if(bIsReverse)
-					this.partialInverseLandmarkError = landmarkError;
-				else
-					this.partialDirectLandmarkError = landmarkError;
+				landmarkError *= landmarkWeight/K;
+				double aux = 2.0 * landmarkWeight/K;
+				// This is the 2 coming from the derivative
+				// computation that I would do at the end
+				for (int k=0; k<twiceNk; k++) 
+					vgradland[k] *= aux;
 			}
-			if (divWeight != 0 || curlWeight != 0)
+			if (only_image) landmarkError = 0;
+
+
+
+			// Finish computations .............................................................
+			// Add all gradient terms (similarity + regularization + landmarks)
+			for (int k=0; k<twiceNk; k++)
+				grad[k] += vgradreg[k] + vgradland[k];
+
+
+			if (showMarquardtOptim)
 			{
-				IJ.write("    Regularization error " + s + ": " + regularization);
-				if(bIsReverse)
-					this.partialInverseRegularizationError = regularization;
-				else
-					this.partialDirectRegularizationError = regularization;
-					
+				String s = bIsReverse ? new String("(t-s)") : new String("(s-t)");
+				if (imageWeight != 0) 
+				{
+					IJ.write("    Image          error " + s + ": " + imageSimilarity);
+					if(bIsReverse)
+						partialInverseSimilarityError = imageSimilarity;
+					else
+						partialDirectSimilarityError = imageSimilarity;
+
+				}
+				if (landmarkWeight != 0)               
+				{
+					IJ.write("    Landmark       error " + s + ": " + landmarkError);
+					if(bIsReverse)
+						partialInverseLandmarkError = landmarkError;
+					else
+						partialDirectLandmarkError = landmarkError;
+				}
+				if (divWeight != 0 || curlWeight != 0)
+				{
+					IJ.write("    Regularization error " + s + ": " + regularization);
+					if(bIsReverse)
+						partialInverseRegularizationError = regularization;
+					else
+						partialDirectRegularizationError = regularization;
+
+				}
 			}
+			return imageSimilarity + landmarkError + regularization;
 		}
-		return imageSimilarity + landmarkError + regularization;
-	}
+
+	} // end class SimilarityTerms
 	
 	/* ------------------------------------------------------------------------ */
 	/**
@@ -6863,114 +6939,144 @@ public class Transformation
 			final int intervals,
 			double []grad)
 	{
-		// Consistency values
-		double f_direct = 0.0;
-		double f_inverse = 0.0;
-		
-		
-		// Check the number of processors in the computer 
-		final int nproc = Runtime.getRuntime().availableProcessors();
-
-		// We will use threads to calculate the similarity of the different 
-		// parts of the target and source image
-		int block_height_target = this.targetCurrentHeight / nproc;
-		if (this.targetCurrentHeight % 2 != 0) 
-			block_height_target++;
-		
-		int block_height_source = this.sourceCurrentHeight / nproc;
-		if (this.sourceCurrentHeight % 2 != 0) 
-			block_height_source++;
-		
-		// We use as many threads as processors
-		final int nThreads = nproc; 
-		
-		Thread[] threads  = new Thread[nThreads];
-		Rectangle[] rect_target = new Rectangle[nThreads];
-		Rectangle[] rect_source = new Rectangle[nThreads];
-		
-		// Every thread will provide the corresponding consistency value and
-		// gradient
-		final double [][]grad_direct = new double[nThreads][grad.length];
-		final double [][]grad_inverse = new double[nThreads][grad.length];
-		// Result array:
-		// First result is the direct partial consistency, second the number of pixels (direct),
-		// third the inverse partical consistency and fourth the number of pixels (inverse)
-		final double [][]result = new double[nThreads][4];
-		// Number of processed pixels (taking into account the masks)
-		int n_direct = 0;
-		int n_inverse = 0;
-		
-		for (int i=0; i<nThreads; i++) 
+		final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+		final ConsistencyTerms consistency = new ConsistencyTerms(grad, tasks);
+		runTasks(tasks);
+		return consistency.finish();
+	}
+
+	/* ------------------------------------------------------------------------ */
+	/**
+	 * Consistency term between the direct and inverse deformations. The
+	 * constructor adds the consistency tiles to a list of tasks, so they can
+	 * run in the same parallel pass as other terms, and finish() combines
+	 * their results.
+	 */
+	private class ConsistencyTerms
+	{
+		/** output gradient */
+		final double []grad;
+		/** number of consistency tiles */
+		final int nThreads;
+		/** direct consistency gradient of every tile */
+		final double [][]grad_direct;
+		/** inverse consistency gradient of every tile */
+		final double [][]grad_inverse;
+		/** direct and inverse consistency values and number of pixels of every tile */
+		final double [][]result;
+
+		/**
+		 * Create the consistency tasks.
+		 *
+		 * @param grad Output: Gradient of the function
+		 * @param tasks Output: list the tasks are added to
+		 */
+		ConsistencyTerms(
+				final double []grad,
+				final List<Runnable> tasks)
 		{
-			// Last block goes to the end of the window
-			int y_start_target = i * block_height_target;
-			int y_start_source = i * block_height_source;
-			if (nThreads-1 == i) 
+			this.grad = grad;
+
+			// Check the number of threads available to the registration
+			final int nproc = MiscTools.getNumberOfThreads();
+
+			// We will use tiles to calculate the similarity of the different 
+			// parts of the target and source image
+			int block_height_target = targetCurrentHeight / nproc;
+			if (targetCurrentHeight % 2 != 0) 
+				block_height_target++;
+
+			int block_height_source = sourceCurrentHeight / nproc;
+			if (sourceCurrentHeight % 2 != 0) 
+				block_height_source++;
+
+			// We use as many tiles as processors
+			this.nThreads = nproc; 
+
+			// Every tile will provide the corresponding consistency value and
+			// gradient
+			this.grad_direct = new double[nThreads][grad.length];
+			this.grad_inverse = new double[nThreads][grad.length];
+			// Result array:
+			// First result is the direct partial consistency, second the number of pixels (direct),
+			// third the inverse partical consistency and fourth the number of pixels (inverse)
+			this.result = new double[nThreads][4];
+
+			for (int i=0; i<nThreads; i++) 
 			{
-				block_height_target = this.targetCurrentHeight - i * block_height_target;
-				block_height_source = this.sourceCurrentHeight - i * block_height_source;
+				// Last block goes to the end of the window
+				int y_start_target = i * block_height_target;
+				int y_start_source = i * block_height_source;
+				if (nThreads-1 == i) 
+				{
+					block_height_target = targetCurrentHeight - i * block_height_target;
+					block_height_source = sourceCurrentHeight - i * block_height_source;
+				}
+
+				// Corresponding rectangles
+				final Rectangle rect_target = new Rectangle(0, y_start_target, targetCurrentHeight, block_height_target);
+				final Rectangle rect_source = new Rectangle(0, y_start_source, sourceCurrentHeight, block_height_source);
+
+				tasks.add(new EvaluateConsistencyTile(Transformation.this, grad_direct[i], grad_inverse[i], result[i],
+													rect_target, rect_source));
 			}
-			
-			// Corresponding rectangles
-			rect_target[i] = new Rectangle(0, y_start_target, this.targetCurrentHeight, block_height_target);
-			rect_source[i] = new Rectangle(0, y_start_source, this.sourceCurrentHeight, block_height_source);
-			
-			// Create threads and start them.
-			threads[i] = new Thread(new EvaluateConsistencyTile(this, grad_direct[i], grad_inverse[i], result[i],
-						   										rect_target[i], rect_source[i]));
-			threads[i].start();
-		}
-		
-		// Wait for the threads to finish
-		for (int i=0; i<nThreads; i++) 
-		{
-			try {
-				threads[i].join();
-				threads[i] = null;
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}			
-		}
-		
-		// Accumulate results
-		for (int i=0; i<nThreads; i++) 
-		{
-			f_direct += result[i][0];
-			n_direct += result[i][1];								
-			f_inverse += result[i][2];
-			n_inverse += result[i][3];
 		}
-		
-		// Average consistency
-		f_direct /= n_direct;
-		f_inverse /= n_inverse;
-		
-		// Average and combine gradients
-		for(int i = 0; i<nThreads; i++)
+
+		/**
+		 * Combine the results of the tasks. To be called once all the tasks are done.
+		 *
+		 * @return geometric error between the source-target and target-source deformations.
+		 */
+		double finish()
 		{
-			for(int j = 0; j < grad.length; j++)				
-				grad[j] += (grad_direct[i][j]/n_direct) + (grad_inverse[i][j]/n_inverse);
-		}
-		
-		
-		this.partialDirectConsitencyError = this.consistencyWeight * f_direct;
-		this.partialInverseConsitencyError = this.consistencyWeight * f_inverse;
+			// Consistency values
+			double f_direct = 0.0;
+			double f_inverse = 0.0;
+			// Number of processed pixels (taking into account the masks)
+			int n_direct = 0;
+			int n_inverse = 0;
 
+			// Accumulate results
+			for (int i=0; i<nThreads; i++) 
+			{
+				f_direct += result[i][0];
+				n_direct += result[i][1];								
+				f_inverse += result[i][2];
+				n_inverse += result[i][3];
+			}
 
-		double consistencyDirectError = (n_direct == 0) ? 1.0/FLT_EPSILON : (this.consistencyWeight * f_direct);
-		double consistencyInverseError = (n_inverse == 0) ? 1.0/FLT_EPSILON : (this.consistencyWeight * f_inverse);
+			// Average consistency
+			f_direct /= n_direct;
+			f_inverse /= n_inverse;
 
-		if (showMarquardtOptim)
-		{
-			IJ.write("    Consistency Error (s-t): " + consistencyDirectError);
-			IJ.write("    Consistency Error (t-s): " + consistencyInverseError);
-		}
+			// Average and combine gradients
+			for(int i = 0; i<nThreads; i++)
+			{
+				for(int j = 0; j < grad.length; j++)				
+					grad[j] += (grad_direct[i][j]/n_direct) + (grad_inverse[i][j]/n_inverse);
+			}
 
 
-		if(n_direct == 0 || n_inverse == 0)
-			return 1/FLT_EPSILON;
-		return (this.consistencyWeight * (f_direct + f_inverse));
-	}
+			partialDirectConsitencyError = consistencyWeight * f_direct;
+			partialInverseConsitencyError = consistencyWeight * f_inverse;
+
+
+			double consistencyDirectError = (n_direct == 0) ? 1.0/FLT_EPSILON : (consistencyWeight * f_direct);
+			double consistencyInverseError = (n_inverse == 0) ? 1.0/FLT_EPSILON : (consistencyWeight * f_inverse);
+
+			if (showMarquardtOptim)
+			{
+				IJ.write("    Consistency Error (s-t): " + consistencyDirectError);
+				IJ.write("    Consistency Error (t-s): " + consistencyInverseError);
+			}
+
+
+			if(n_direct == 0 || n_inverse == 0)
+				return 1/FLT_EPSILON;
+			return (consistencyWeight * (f_direct + f_inverse));
+		}
+
+	} // end class ConsistencyTerms
 	
 	/* ------------------------------------------------------------------------ */
 	/**
@@ -1100,6 +1100,7 @@ public class bUnwarpJ_ implements PlugIn
        {
           if      (args[0].equals("-help"))                 dumpSyntax();
           else if (args[0].equals("-align"))                alignImagesCommandLine(args);
+          else if (args[0].equals("-batch"))                batchCommandLine(args);
           else if (args[0].equals("-elastic_transform"))    elasticTransformImageCommandLine(args);
           else if (args[0].equals("-raw_transform"))        rawTransformImageCommandLine(args);
           else if (args[0].equals("-compare_elastic"))      compareElasticTransformationsCommandLine(args);
@@ -1363,6 +1364,80 @@ public class bUnwarpJ_ implements PlugIn
        
     } // end alignImagesCommandLine
 
+    //------------------------------------------------------------------
+    /**
+     * Method for the alignment of a list of image pairs with no
+     * graphical interface (see {@link BatchRegistration}).
+     *
+     * @param args arguments for the program
+     */
+    private static void batchCommandLine(String args[])
+    {
+       if (args.length < 9)
+       {
+           dumpSyntax();
+           System.exit(0);
+       }
+       // Read input parameters
+       String fn_pairs = args[1];
+       int min_scale_deformation = Integer.parseInt(args[2]);
+       int max_scale_deformation = Integer.parseInt(args[3]);
+       int max_subsamp_fact = Integer.parseInt(args[4]);
+       double  divWeight = Double.parseDouble(args[5]);
+       double  curlWeight = Double.parseDouble(args[6]);
+       double  imageWeight = Double.parseDouble(args[7]);
+       double  consistencyWeight = Double.parseDouble(args[8]);
+
+       int     accurate_mode = MainDialog.ACCURATE_MODE;
+       int     threadsPerPair = 1;
+       int     concurrentPairs = 0;
+
+       for (int i = 9; i < args.length; i++)
+       {
+    	   if (args[i].equalsIgnoreCase("-mono"))
+    		   accurate_mode = MainDialog.MONO_MODE;
+    	   else if (args[i].equalsIgnoreCase("-threads") && i + 1 < args.length)
+    		   threadsPerPair = Integer.parseInt(args[++i]);
+    	   else if (args[i].equalsIgnoreCase("-pairs") && i + 1 < args.length)
+    		   concurrentPairs = Integer.parseInt(args[++i]);
+    	   else
+    	   {
+    		   dumpSyntax();
+    		   System.exit(0);
+    	   }
+       }
+
+       // Show parameters
+       IJ.log("Pair list              : " + fn_pairs);
+       IJ.log("Min. Scale Deformation : " + min_scale_deformation);
+       IJ.log("Max. Scale Deformation : " + max_scale_deformation);
+       IJ.log("Max. Subsampling factor: " + max_subsamp_fact);
+       IJ.log("Div. Weight            : " + divWeight);
+       IJ.log("Curl Weight            : " + curlWeight);
+       IJ.log("Image Weight           : " + imageWeight);
+       IJ.log("Consistency Weight     : " + consistencyWeight);
+       String sMode = (accurate_mode == MainDialog.MONO_MODE) ? "Mono" : "Accurate";
+       IJ.log("Registration mode      : " + sMode);
+       IJ.log("Threads per pair       : " + threadsPerPair);
+
+       final Param parameter = new Param(accurate_mode, max_subsamp_fact,
+    		   min_scale_deformation, max_scale_deformation, divWeight, curlWeight,
+    		   0, imageWeight, consistencyWeight, 1e-2);
+
+       final BatchRegistration batch = new BatchRegistration(parameter);
+       if (batch.readPairs(fn_pairs) < 0)
+    	   System.exit(1);
+       batch.setThreadsPerPair(threadsPerPair);
+       batch.setConcurrentPairs(concurrentPairs);
+
+       long start = System.currentTimeMillis(); // start timing
+       final int failed = batch.run();
+       long stop = System.currentTimeMillis(); // stop timing
+       IJ.log("Batch time: " + (stop - start) + "ms, failed pairs: " + failed);
+       if (failed > 0)
+    	   System.exit(1);
+    } // end batchCommandLine
+
     //------------------------------------------------------------------
     /**
      * Create a list with the open images in ImageJ that bUnwarpJ can
@@ -1430,10 +1505,27 @@ public class bUnwarpJ_ implements PlugIn
        IJ.log("                   Affine_file_2    : Initial target affine matrix transformation");
        IJ.log("             OR -mono    : Unidirectional registration (source to target)");      
        IJ.log("");
+       IJ.log("  -batch                      : ALIGN A LIST OF IMAGE PAIRS");
+       IJ.log("          pair_list           : Text file, one pair per line:");
+       IJ.log("                                target source output_image transformation_file");
+       IJ.log("                                (output_image or transformation_file may be NULL,");
+       IJ.log("                                the transformation is binary unless it ends in .txt)");
+       IJ.log("          min_scale_def       : Scale of the coarsest deformation");
+       IJ.log("          max_scale_def       : Scale of the finest deformation");
+       IJ.log("          max_subsamp_fact    : Maximum subsampling factor (power of 2: [0, 1, 2 ... 7]");
+       IJ.log("          Div_weight          : Weight of the divergence term");
+       IJ.log("          Curl_weight         : Weight of the curl term");
+       IJ.log("          Image_weight        : Weight of the image term");
+       IJ.log("          Consistency_weight  : Weight of the deformation consistency");
+       IJ.log("          Optional parameters :");
+       IJ.log("             -mono             : Unidirectional registration (source to target)");
+       IJ.log("             -threads N        : Threads per pair (default 1)");
+       IJ.log("             -pairs N          : Pairs registered at the same time (default: processors / threads)");
+       IJ.log("");
        IJ.log("  -elastic_transform          : TRANSFORM A SOURCE IMAGE WITH A GIVEN ELASTIC DEFORMATION");
        IJ.log("          target_image        : In any image format");
        IJ.log("          source_image        : In any image format");
-       IJ.log("          transformation_file : As saved by bUnwarpJ in elastic format");
+       IJ.log("          transformation_file : As saved by bUnwarpJ in elastic (text or binary) format");
        IJ.log("          Output image        : Output result in TIFF");
        IJ.log("");
        IJ.log("  -raw_transform              : TRANSFORM A SOURCE IMAGE WITH A GIVEN RAW DEFORMATION");
@@ -1503,6 +1595,8 @@ public class bUnwarpJ_ implements PlugIn
        IJ.log("   bUnwarpj_ -align target.tif target_mask.tif source.tif source_mask.tif 0 2 0 0.1 0.1 1 10 output_1.tif output_2.tif -affine affine_mat1.txt affine_mat2.txt");       
        IJ.log("Align two images using only landmarks (no subsampling)");
        IJ.log("   bUnwarpj_ -align target.jpg NULL source.jpg NULL 0 2 0 0.1 0.1 0 0 output.tif_1 output_2.tif -landmarks 1 landmarks.txt");
+       IJ.log("Align a list of image pairs, 2 threads per pair");
+       IJ.log("   bUnwarpj_ -batch pairs.txt 0 2 0 0.1 0.1 1 10 -threads 2");
        IJ.log("Transform the source image with a previously computed elastic transformation");
        IJ.log("   bUnwarpj_ -elastic_transform target.jpg source.jpg elastic_transformation.txt output.tif");       
        IJ.log("Transform the source image with a previously computed raw transformation");
@@ -6,6 +6,7 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Base class for tiled array data structure
@@ -15,16 +16,29 @@ public abstract class DeferredArray3D
    private final int xdim, ydim, zdim;
    private final int xtiles, ytiles, ztiles;
    protected final int tilesize;
-   protected final Object[] tiles;
+   private final TileStore tiles;
    
    /**
-    * Creates a new instance of DeferredArray3D
+    * Creates a new instance of DeferredArray3D which keeps all tiles on the heap
     * @param xdim Size in X direction
     * @param ydim Size in Y direction
     * @param zdim Size in Z direction
     * @param tilesize The tile size - length of an edge tile.
     */
    public DeferredArray3D(final int xdim, final int ydim, final int zdim, final int tilesize)
+   {
+      this(xdim, ydim, zdim, tilesize, new HeapTileStore());
+   }
+   
+   /**
+    * Creates a new instance of DeferredArray3D
+    * @param xdim Size in X direction
+    * @param ydim Size in Y direction
+    * @param zdim Size in Z direction
+    * @param tilesize The tile size - length of an edge tile.
+    * @param tiles The store for the tiles, must not be used by another array
+    */
+   public DeferredArray3D(final int xdim, final int ydim, final int zdim, final int tilesize, final TileStore tiles)
    {
       this.tilesize = tilesize;
       
@@ -44,7 +58,17 @@ public abstract class DeferredArray3D
       if (zdim % tilesize > 0) ztiles++;
       this.ztiles = ztiles;
       
-      tiles = new Object[xtiles * ytiles * ztiles];
+      this.tiles = tiles;
+      tiles.init(this, xtiles * ytiles * ztiles);
+   }
+   
+   /**
+    * Returns the store the tiles are kept in
+    * @return The tile store
+    */
+   public final TileStore getTileStore()
+   {
+      return tiles;
    }
    
    /**
@@ -75,11 +99,12 @@ public abstract class DeferredArray3D
       
       final int offset = x_tile + y_tile * xtiles + z_tile * xtiles * ytiles;
       
-      final Object tile = tiles[offset];
+      final Object tile = tiles.get(offset, create);
       if (tile == null && create == true)
       {
-         tiles[offset] = createTile(tilesize);
-         return tiles[offset];
+         final Object newTile = createTile(tilesize);
+         tiles.put(offset, newTile);
+         return newTile;
       }
       
       return tile;
@@ -161,6 +186,38 @@ public abstract class DeferredArray3D
     */
    protected abstract Object createTile(final int tilesize);
    
+   /**
+    * Returns the size of one element in bytes, for tile stores that keep
+    * tiles off the heap. Not supported by default.
+    * @return The element size in bytes
+    */
+   protected int getBytesPerElement()
+   {
+      throw new UnsupportedOperationException(getClass().getName() + " tiles cannot be stored off the heap");
+   }
+   
+   /**
+    * Copies a tile into a buffer of getBytesPerElement() * tilesize^3 bytes.
+    * Not supported by default.
+    * @param tile The tile
+    * @param buffer The buffer
+    */
+   protected void writeTile(final Object tile, final ByteBuffer buffer)
+   {
+      throw new UnsupportedOperationException(getClass().getName() + " tiles cannot be stored off the heap");
+   }
+   
+   /**
+    * Creates a tile from a buffer written by writeTile(). Not supported by
+    * default.
+    * @param buffer The buffer
+    * @return The tile
+    */
+   protected Object readTile(final ByteBuffer buffer)
+   {
+      throw new UnsupportedOperationException(getClass().getName() + " tiles cannot be stored off the heap");
+   }
+   
    /**
     * Returns the data at the requested position represented as a String
     * @param x The X index
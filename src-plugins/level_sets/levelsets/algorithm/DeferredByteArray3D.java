@@ -2,6 +2,8 @@
 
 package levelsets.algorithm;
 
+import java.nio.ByteBuffer;
+
 /**
  * Tiled array data structure for byte data type
  */
@@ -16,6 +18,15 @@ public class DeferredByteArray3D extends DeferredArray3D
       this.defaultval = defaultval;
    }
    
+   /**
+    * Creates a new instance of DeferredByteArray3D with the given tile store
+    */
+   public DeferredByteArray3D(final int xdim, final int ydim, final int zdim, final int tilesize, final byte defaultval, final TileStore tiles)
+   {
+      super(xdim, ydim, zdim, tilesize, tiles);
+      this.defaultval = defaultval;
+   }
+   
    public final void set(final int x, final int y, final int z, final byte value)
    {
       final byte[][][] tile = (byte[][][]) getTile(x, y, z, true);
@@ -62,4 +73,34 @@ public class DeferredByteArray3D extends DeferredArray3D
       
       return tile;
    }
+   
+   protected final int getBytesPerElement()
+   {
+      return 1;
+   }
+   
+   protected final void writeTile(final Object tile, final ByteBuffer buffer)
+   {
+      final byte[][][] t = (byte[][][]) tile;
+      for (int x = 0; x < tilesize; x++)
+      {
+         for (int y = 0; y < tilesize; y++)
+         {
+            buffer.put(t[x][y]);
+         }
+      }
+   }
+   
+   protected final Object readTile(final ByteBuffer buffer)
+   {
+      final byte[][][] tile = new byte [tilesize][tilesize][tilesize];
+      for (int x = 0; x < tilesize; x++)
+      {
+         for (int y = 0; y < tilesize; y++)
+         {
+            buffer.get(tile[x][y]);
+         }
+      }
+      return tile;
+   }
 }
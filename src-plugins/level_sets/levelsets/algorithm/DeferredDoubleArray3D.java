@@ -1,6 +1,9 @@
 // $Revision$, $Date$, $Author$
 package levelsets.algorithm;
 
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+
 /**
  * Tiled array data structure for double data type
  */
@@ -15,6 +18,15 @@ public class DeferredDoubleArray3D extends DeferredArray3D
       this.defaultval = defaultval;
    }
    
+   /**
+    * Creates a new instance of DeferredDoubleArray3D with the given tile store
+    */
+   public DeferredDoubleArray3D(final int xdim, final int ydim, final int zdim, final int tilesize, final double defaultval, final TileStore tiles)
+   {
+      super(xdim, ydim, zdim, tilesize, tiles);
+      this.defaultval = defaultval;
+   }
+   
    public final void set(final int x, final int y, final int z, final double value)
    {
       final double[][][] tile = (double[][][]) getTile(x, y, z, true);
@@ -61,4 +73,36 @@ public class DeferredDoubleArray3D extends DeferredArray3D
       
       return tile;
    }
+   
+   protected final int getBytesPerElement()
+   {
+      return 8;
+   }
+   
+   protected final void writeTile(final Object tile, final ByteBuffer buffer)
+   {
+      final double[][][] t = (double[][][]) tile;
+      final DoubleBuffer out = buffer.asDoubleBuffer();
+      for (int x = 0; x < tilesize; x++)
+      {
+         for (int y = 0; y < tilesize; y++)
+         {
+            out.put(t[x][y]);
+         }
+      }
+   }
+   
+   protected final Object readTile(final ByteBuffer buffer)
+   {
+      final double[][][] tile = new double [tilesize][tilesize][tilesize];
+      final DoubleBuffer in = buffer.asDoubleBuffer();
+      for (int x = 0; x < tilesize; x++)
+      {
+         for (int y = 0; y < tilesize; y++)
+         {
+            in.get(tile[x][y]);
+         }
+      }
+      return tile;
+   }
 }
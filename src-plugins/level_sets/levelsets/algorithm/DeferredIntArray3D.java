@@ -2,6 +2,9 @@
 
 package levelsets.algorithm;
 
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
 /**
  * Tiled array data structure for int data type
  */
@@ -16,6 +19,15 @@ public class DeferredIntArray3D extends DeferredArray3D
       this.defaultval = defaultval;
    }
    
+   /**
+    * Creates a new instance of DeferredIntArray3D with the given tile store
+    */
+   public DeferredIntArray3D(final int xdim, final int ydim, final int zdim, final int tilesize, final int defaultval, final TileStore tiles)
+   {
+      super(xdim, ydim, zdim, tilesize, tiles);
+      this.defaultval = defaultval;
+   }
+   
    public final void set(final int x, final int y, final int z, final int value)
    {
       final int[][][] tile = (int[][][]) getTile(x, y, z, true);
@@ -61,4 +73,36 @@ public class DeferredIntArray3D extends DeferredArray3D
       
       return tile;
    }
+   
+   protected final int getBytesPerElement()
+   {
+      return 4;
+   }
+   
+   protected final void writeTile(final Object tile, final ByteBuffer buffer)
+   {
+      final int[][][] t = (int[][][]) tile;
+      final IntBuffer out = buffer.asIntBuffer();
+      for (int x = 0; x < tilesize; x++)
+      {
+         for (int y = 0; y < tilesize; y++)
+         {
+            out.put(t[x][y]);
+         }
+      }
+   }
+   
+   protected final Object readTile(final ByteBuffer buffer)
+   {
+      final int[][][] tile = new int [tilesize][tilesize][tilesize];
+      final IntBuffer in = buffer.asIntBuffer();
+      for (int x = 0; x < tilesize; x++)
+      {
+         for (int y = 0; y < tilesize; y++)
+         {
+            in.get(tile[x][y]);
+         }
+      }
+      return tile;
+   }
 }
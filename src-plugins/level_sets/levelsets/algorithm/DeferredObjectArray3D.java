@@ -16,6 +16,16 @@ public class DeferredObjectArray3D<T> extends DeferredArray3D
       this.defaultval = defaultval;
    }
    
+   /**
+    * Creates a new instance of DeferredObjectArray3D with the given tile store.
+    * Objects cannot be moved off the heap, so only a HeapTileStore works here.
+    */
+   public DeferredObjectArray3D(int xdim, int ydim, int zdim, int tilesize, T defaultval, TileStore tiles)
+   {
+      super(xdim, ydim, zdim, tilesize, tiles);
+      this.defaultval = defaultval;
+   }
+   
    public final void set(final int x, final int y, final int z, final T value)
    {
       final Object[][][] tile = (Object[][][]) getTile(x, y, z, true);
@@ -4,8 +4,8 @@ package levelsets.algorithm;
 
 import ij.IJ;
 
-import java.util.PriorityQueue;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import levelsets.filter.GreyValueErosion;
 import levelsets.filter.MorphologicalOperator;
@@ -15,21 +15,19 @@ import levelsets.ij.StateContainer;
 
 /**
  * Implementation of the Fast Marching algorithm. Uses tiles array data
- * structure.
+ * structure. By default a single front is started from all seed points; see
+ * setParallelFronts() for running one front per seed point in parallel.
  */
 public class FastMarching implements StagedAlgorithm
 {
-   // Holds the state of the voxels
+   // Holds the state of the voxels - with parallel fronts only once they are merged
    private DeferredByteArray3D map = null;
-   // Holds the arrival timeof the voxels
-   private DeferredDoubleArray3D arrival = null;
-   /* Holds the distance (shortest way over already visited voxels) from seed
-    * point of the voxels
-    */
-   private DeferredDoubleArray3D distances = null;
-   
-   // Lookup table for fast location of the voxel element for given coordinate
-   private DeferredObjectArray3D<BandElement> elementLUT = null;
+   // The fronts - a single one unless parallel fronts are used
+   private Front [] fronts = null;
+   // Which front reached a voxel first - only used with parallel fronts
+   private FrontOwnerMap owners = null;
+   // Start one front per seed point and advance them in parallel?
+   private boolean parallel_fronts = false;
    
    // The seed points - held for later initialization
    private ArrayList<Coordinate> seeds = null;
@@ -45,17 +43,12 @@ public class FastMarching implements StagedAlgorithm
    // The image where the progress is shown
    private ImageProgressContainer progress = null;
    
-   // Heap data structure for sorting the trial set elements
-   private PriorityQueue<BandElement> heap = null;
+   // Creates the stores for the tiles of map, arrival and distances
+   private TileStoreFactory tile_stores = TileStoreFactory.HEAP;
    
    // Constant for the exponent of the image term
    private final static double ALPHA = 0.005d;
    
-   // Arrival time of the last voxel added to the alive set
-   private double lastFreezeTime = 0;
-   // Maximum distance in pixels from seed point travelled so far
-   private double max_distance = 0;
-   
    // Use the halting conditions or run over the entire domain?
    private boolean halt = false;
    // Flag: Initialization needed? If true - will be flipped afterwards
@@ -63,11 +56,6 @@ public class FastMarching implements StagedAlgorithm
    // Tag to signal if a problem was encountered which prevents more iterations
    private boolean invalid = false;
    
-   // Cache for BandElement objects to avoid continuous reallocation
-   private BandElementCache elem_cache = null;
-   // Size of that cache (number of elements)
-   private final static int ELEMENT_CACHE_SIZE = 1000;
-   
    // preallocate
    final int [] pixel = new int[4];
    
@@ -141,6 +129,40 @@ public class FastMarching implements StagedAlgorithm
    }
    
   
+   /**
+    * Sets where the tiles of the state map, arrival times and distances are
+    * kept. Must be called before the first step.
+    * @param tile_stores The factory for the tile stores
+    */
+   public final void setTileStoreFactory(final TileStoreFactory tile_stores)
+   {
+      this.tile_stores = tile_stores;
+   }
+   
+   /**
+    * Lets every seed point start a front of its own and advances the fronts in
+    * parallel, one step advancing every front by up to granularity voxels. Must
+    * be called before the first step. Off by default: then a single front is
+    * started from all seed points, which is the exact (and reproducible)
+    * algorithm.
+    * <p>
+    * Halting with parallel fronts: the distance threshold compares the distance
+    * of a voxel with the largest distance reached by its own front, and
+    * exceeding the maximum distance or the extreme growth limit only stops the
+    * front it happens in - the other fronts go on until they stop themselves.
+    * A voxel belongs to the front that reaches it first, the other fronts treat
+    * it like the image border, so fronts merge where they meet instead of
+    * running through each other. The result is the union of the alive sets of
+    * all fronts. Where two fronts meet depends on the timing of the threads, so
+    * the result can differ slightly from run to run if fronts touch. Every front
+    * keeps its own tiled arrays, so memory use grows with the number of seeds.
+    * @param parallel_fronts Whether to run one front per seed point in parallel
+    */
+   public final void setParallelFronts(final boolean parallel_fronts)
+   {
+      this.parallel_fronts = parallel_fronts;
+   }
+   
    /**
     * Returns the default Grey value.
     * @return The grey value threshold
@@ -162,15 +184,6 @@ public class FastMarching implements StagedAlgorithm
     */
    private final boolean init()
    {
-      // Initialize all the data structures
-      map = new DeferredByteArray3D(source.getWidth(), source.getHeight(), source.getImageCount(), 5, FAR);
-      arrival = new DeferredDoubleArray3D(source.getWidth(), source.getHeight(), source.getImageCount(), 5, 0);
-      distances = new DeferredDoubleArray3D(source.getWidth(), source.getHeight(), source.getImageCount(), 5, 0d);
-      elementLUT = new DeferredObjectArray3D<BandElement>(source.getWidth(), source.getHeight(), source.getImageCount(), 5, null);
-      heap = new PriorityQueue<BandElement>(1000);
-      
-      elem_cache = new BandElementCache(ELEMENT_CACHE_SIZE);
-      
       /* Create a working copy of the input image which then is filtered as
        * needed
        */
@@ -187,19 +200,46 @@ public class FastMarching implements StagedAlgorithm
     	  throw new IllegalArgumentException("Fast Marching needs seed points but didn't find any! Did you specify an area?");
       }
       
-      /* Add all seed points to the heap. Also determine mean grey value
-       * around seed points
+      /* Add all seed points to the heap of their front. Also determine mean
+       * grey value around seed points
        */       
+      if (parallel_fronts)
+      {
+         owners = new FrontOwnerMap(source.getWidth(), source.getHeight(), source.getImageCount());
+      }
+      final ArrayList<Front> started = new ArrayList<Front>();
       for (int i = 0; i< seeds.size(); i++)
       {
          final Coordinate seed = seeds.get(i);
          this.seed_greyvalue += probeSeedGreyValue(seed.getX(), seed.getY(), seed.getZ());
          
-         final BandElement start = elem_cache.getRecycledBandElement(seed.getX(), seed.getY(), seed.getZ(), 0);
-         elementLUT.set(seed.getX(), seed.getY(), seed.getZ(), start);
-         map.set(seed.getX(), seed.getY(), seed.getZ(), BAND);
+         final Front front;
+         if (parallel_fronts)
+         {
+            // a seed point given twice starts only one front
+            if (!owners.claim(seed.getX(), seed.getY(), seed.getZ(), started.size() + 1)) continue;
+            front = new Front(started.size() + 1);
+            started.add(front);
+         }
+         else
+         {
+            if (started.isEmpty()) started.add(new Front(1));
+            front = started.get(0);
+            // a seed point given twice is queued only once
+            if (front.heap.contains(seed.getX(), seed.getY(), seed.getZ())) continue;
+         }
          
-         heap.add(start);
+         front.map.set(seed.getX(), seed.getY(), seed.getZ(), BAND);
+         front.heap.offer(seed.getX(), seed.getY(), seed.getZ(), 0);
+      }
+      fronts = started.toArray(new Front[started.size()]);
+      if (!parallel_fronts)
+      {
+         map = fronts[0].map;
+      }
+      else
+      {
+         IJ.log("Fast Marching: " + fronts.length + " fronts in parallel");
       }
       
       this.seed_greyvalue /= seeds.size();
@@ -238,103 +278,6 @@ public class FastMarching implements StagedAlgorithm
    }
    
    
-   private final void freeze(final BandElement elem)
-   {
-      final int freezeX = elem.getX();
-      final int freezeY = elem.getY();
-      final int freezeZ = elem.getZ();
-      
-      map.set(freezeX, freezeY, freezeZ, ALIVE);
-      elementLUT.set(freezeX, freezeY, freezeZ, null);
-      
-      final double dist = distances.get(freezeX, freezeY, freezeZ);
-      
-      if (dist > DISTANCE_STOP)
-      {
-         System.out.println("Stopped - max distance exceeded");
-         heap.clear();
-         return;
-      }
-      else if (dist < max_distance * DISTANCE_THRESHOLD || (dist < max_distance - 30))
-                                                         
-      {
-         arrival.set(freezeX, freezeY, freezeZ, Double.MAX_VALUE);
-         distances.set(freezeX, freezeY, freezeZ, Double.MAX_VALUE);
-         //System.out.println("Sorted out voxel");
-      }
-      else
-      {
-         arrival.set(freezeX, freezeY, freezeZ, elem.getValue());
-         
-         if (max_distance < distances.get(freezeX, freezeY, freezeZ))
-         {
-            max_distance = distances.get(freezeX, freezeY, freezeZ);
-         }
-         
-         if (freezeX > 0) update(freezeX - 1, freezeY, freezeZ);
-         if (freezeX + 1 < map.getXLength()) update(freezeX + 1, freezeY, freezeZ);
-         if (freezeY > 0) update(freezeX, freezeY - 1, freezeZ);
-         if (freezeY + 1 < map.getYLength()) update(freezeX, freezeY + 1, freezeZ);
-         if (freezeZ > 0) update(freezeX, freezeY, freezeZ - 1);
-         if (freezeZ + 1 < map.getZLength()) update(freezeX, freezeY, freezeZ + 1);
-         
-         //   if (halt)
-         //   {
-         //      if (heap.size() > 100 || arrival[freezeX][freezeY][freezeZ] > ((lastFreezeDistance + 1) * 1.1))
-         //         //                     if (heap.size() > 100)
-         if (arrival.get(freezeX, freezeY, freezeZ) > (((lastFreezeTime + EXTREME_GROWTH))))
-         {
-            
-            IJ.log("Fast marching stopped - extreme growth");
-            IJ.log("Last -> " + lastFreezeTime);
-            IJ.log("Now -> " + arrival.get(freezeX, freezeY, freezeZ));
-            heap.clear();
-            elementLUT = null;
-         }
-         else
-         {
-            lastFreezeTime = arrival.get(freezeX, freezeY, freezeZ);
-         }
-         //   }
-      }
-   }
-   
-   // Updates a voxel in the neighbourhood of voxel just moved to alive set
-   private final void update(final int x, final int y, final int z)
-   {
-      final byte cell_state = map.get(x, y, z);
-      if (cell_state == ALIVE) return;
-      
-      final double time = calculateArrivalTime(x, y, z);
-      final double dist = calculateDistance(x, y, z);
-      
-      // If this voxel is already in the trial update arrival time and distance
-      if (cell_state == BAND)
-      {
-         final BandElement elem = elementLUT.get(x, y, z);
-         
-         /* updated distance and arrival time is guaranteed to be <= old
-          * distance so omit a time consuming check
-          */
-         
-         heap.remove(elem);
-         elem.setValue(time);
-         heap.offer(elem);
-         
-         distances.set(x, y, z, dist);
-      }
-      // If this voxel is currently in the far set add it to the trial set
-      else if (cell_state == FAR)
-      {
-         final BandElement elem = elem_cache.getRecycledBandElement(x, y, z, time);
-         heap.offer(elem);
-         
-         map.set(x, y, z, BAND);
-         elementLUT.set(x, y, z, elem);
-         distances.set(x, y, z, dist);
-      }
-   }
-   
    // See StagedAlgorithm interface defintion for javadoc
    public final boolean step(final int granularity)
    {
@@ -352,8 +295,18 @@ public class FastMarching implements StagedAlgorithm
          }
       }
       
-      if (heap.isEmpty())
+      final boolean active;
+      if (fronts.length == 1)
+      {
+         active = fronts[0].advance(granularity);
+      }
+      else
       {
+         active = advanceInParallel(granularity);
+      }
+      if (!active)
+      {
+         mergeFronts();
          postProcessStatemap();
          visualize(false);
          cleanup();
@@ -362,22 +315,6 @@ public class FastMarching implements StagedAlgorithm
          return false;
       }
       
-      for (int i = 0; i < granularity; i++)
-      {
-         final BandElement next = heap.poll();
-         freeze(next);
-         elem_cache.recycleBandElement(next);
-         if (heap.isEmpty())
-         {
-            postProcessStatemap();
-            visualize(false);
-            cleanup();
-            // map.dumpToFile("D:\\temp\\fm_output.txt");
-            //new Java3DVisualizer(this).setVisible(true);
-            return false;
-         }
-      }
-      
       steps += granularity;
       IJ.log("Steps done : " + steps);
       visualize(false);
@@ -418,139 +355,6 @@ public class FastMarching implements StagedAlgorithm
       return this.seed_greyvalue;
    }
    
-   private final double calculateArrivalTime(final int x, final int y, final int z)
-   {
-      // Get neighbour with minimal arrival time in every spatial direction
-      final double dist = Double.MAX_VALUE;
-      
-      final double xB = (x > 0 && map.get(x - 1, y, z) == ALIVE) ?
-         arrival.get(x - 1, y, z) : Double.MAX_VALUE;
-      final double xF = (x + 1 < map.getXLength() && map.get(x + 1, y, z) == ALIVE) ?
-         arrival.get(x + 1, y, z) : Double.MAX_VALUE;
-      final double yB = (y > 0 && map.get(x, y - 1, z) == ALIVE) ?
-         arrival.get(x, y - 1, z) : Double.MAX_VALUE;
-      final double yF = (y + 1 < map.getYLength() && map.get(x, y + 1, z) == ALIVE) ?
-         arrival.get(x, y + 1, z) : Double.MAX_VALUE;
-      final double zB = (z > 0 && map.get(x, y, z - 1) == ALIVE) ?
-         arrival.get(x, y , z - 1) : Double.MAX_VALUE;
-      final double zF = (z + 1 < map.getZLength() && map.get(x, y, z + 1) == ALIVE) ?
-         arrival.get(x, y, z + 1) : Double.MAX_VALUE;
-      
-      
-      final double xVal = (xB < xF) ? xB : xF;
-      final double yVal = (yB < yF) ? yB : yF;
-      final double zVal = (zB < zF) ? zB : zF;
-      
-      // Determine quadratic cooefficient.
-      int quadCoeff = 0;
-      if (xVal < Double.MAX_VALUE) quadCoeff++;
-      if (yVal < Double.MAX_VALUE) quadCoeff++;
-      if (zVal < Double.MAX_VALUE) quadCoeff++;
-      
-      final double speed = getSpeedTerm(x, y, z);
-      
-      /* If only one spatial  direction contributes to the quadratic
-       * coefficient, than there ist a much more efficient solution - so this
-       * is calculated and returned instead then. */
-      if (quadCoeff == 1)
-      {
-         if (xVal < Double.MAX_VALUE)
-         {
-            return xVal + (1 / speed);
-         }
-         else if (yVal < Double.MAX_VALUE)
-         {
-            return yVal + (1 / speed);
-         }
-         else
-         {
-            return zVal + (1 / speed);
-         }
-      }
-      
-      int numSol = 0;
-      double solution = 0;
-      double linCoeff = 0;
-      double abs = (-1 / (speed * speed));
-      
-      /* Calculate linear and absolute term contributions for every spatial
-       * direction if alive.
-       */
-      if (xVal < Double.MAX_VALUE)
-      {
-         linCoeff -= 2 * xVal;
-         abs += xVal * xVal;
-      }
-      if (yVal < Double.MAX_VALUE)
-      {
-         linCoeff -= 2 * yVal;
-         abs += yVal * yVal;
-      }
-      if (zVal < Double.MAX_VALUE)
-      {
-         linCoeff -= 2 * zVal;
-         abs += zVal * zVal;
-      }
-      
-      // Discriminat of the general quadratic equation
-      final double discriminant = (linCoeff * linCoeff) - (4 * quadCoeff * abs);
-      
-      // Two solutions exist. Calculate the bigger one.
-      if (discriminant > 0)
-      {
-         final double rootDiscriminant = Math.sqrt(discriminant);
-         solution = ((-linCoeff) + rootDiscriminant) / (2 * quadCoeff);
-      }
-      // No solution exists - read below
-      else
-      {
-         /* Something went really wrong - no solution for the quadratic equation.
-          * This should NEVER happen, so it clearly indicates a problem with the
-          * speed calculation.
-          */
-         IJ.log("OUCH !!! # solutions = 0 (at " + x + ", " + y + ")");
-         IJ.log("quad. coefficient = " + quadCoeff);
-         IJ.log("lin. coefficient = " + linCoeff);
-         IJ.log("absolute term = " + abs);
-         IJ.log("xVal = " + xVal);
-         IJ.log("yVal = " + yVal);
-         IJ.log("Speedterm = " + speed);
-         IJ.log("xB, xF, yB, yF = " + xB + ", " + xF + ", " + yB + ", " + yF);
-         IJ.log("**********************************");
-         System.exit(0);
-      }
-      
-      return solution;
-   }
-   
-   // Calculate the distance to the nearest seedpoint using only alive waypoints
-   private final double calculateDistance(final int x, final int y, final int z)
-   {
-      // Get distances of all alive neighbours
-      final double xB = (x > 0 && map.get(x - 1, y, z) == ALIVE) ?
-         distances.get(x - 1, y, z) : Double.MAX_VALUE;
-      final double xF = (x + 1 < map.getXLength() && map.get(x + 1, y, z) == ALIVE) ?
-         distances.get(x + 1, y, z) : Double.MAX_VALUE;
-      final double yB = (y > 0 && map.get(x, y - 1, z) == ALIVE) ?
-         distances.get(x, y - 1, z) : Double.MAX_VALUE;
-      final double yF = (y + 1 < map.getYLength() && map.get(x, y + 1, z) == ALIVE) ?
-         distances.get(x, y + 1, z) : Double.MAX_VALUE;
-      final double zB = (z > 0 && map.get(x, y, z - 1) == ALIVE) ?
-         distances.get(x, y, z - 1) : Double.MAX_VALUE;
-      final double zF = (z + 1 < map.getZLength() && map.get(x, y, z + 1) == ALIVE) ?
-         distances.get(x, y, z + 1) : Double.MAX_VALUE;
-      
-      // Find minimum of the distances
-      final double xVal = (xB < xF) ? xB : xF;
-      final double yVal = (yB < yF) ? yB : yF;
-      final double zVal = (zB < zF) ? zB : zF;
-      
-      final double dist = Math.min(Math.min(xVal, yVal), zVal);
-      
-      // Add 1 to the smallest way of its neighbours to reach this voxel
-      return (dist + 1);
-   }
-   
    private final double getSpeedTerm(final int x, final int y, final int z)
    {
       //      int pixelval = inImg.getPixel(x, y, z, pixel)[0];
@@ -583,13 +387,13 @@ public class FastMarching implements StagedAlgorithm
       }
       progress.showProgressStep();
       byte cell_state = 0;
-      for (int z = 0; z < map.getZLength(); z++)
+      for (int z = 0; z < img.getImageCount(); z++)
       {
-         for (int x = 0; x < map.getXLength(); x++)
+         for (int x = 0; x < img.getWidth(); x++)
          {
-            for (int y = 0; y < map.getYLength(); y++)
+            for (int y = 0; y < img.getHeight(); y++)
             {
-               cell_state = map.get(x, y, z);
+               cell_state = getState(x, y, z);
                if (cell_state == ALIVE)
                {
                   output.setPixel(x, y, z, ALIVE_PIXEL);
@@ -611,15 +415,119 @@ public class FastMarching implements StagedAlgorithm
       progress.showProgressStep();
    }
    
+   /* Advances the fronts that did not stop yet by up to granularity voxels each,
+    * in as many threads as there are processors. Returns whether a front is
+    * left that did not stop.
+    */
+   private final boolean advanceInParallel(final int granularity)
+   {
+      final AtomicInteger next_front = new AtomicInteger(0);
+      final Throwable [] failure = new Throwable[1];
+      final Thread [] threads = new Thread[Math.min(fronts.length, Runtime.getRuntime().availableProcessors())];
+      for (int t = 0; t < threads.length; t++)
+      {
+         threads[t] = new Thread(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  for (int i = next_front.getAndIncrement(); i < fronts.length; i = next_front.getAndIncrement())
+                  {
+                     fronts[i].advance(granularity);
+                  }
+               }
+               catch (Throwable e)
+               {
+                  synchronized (failure)
+                  {
+                     if (failure[0] == null) failure[0] = e;
+                  }
+                  // make the other threads stop as well
+                  next_front.set(fronts.length);
+               }
+            }
+         });
+         threads[t].start();
+      }
+      
+      try
+      {
+         for (int t = 0; t < threads.length; t++)
+         {
+            threads[t].join();
+         }
+      }
+      catch (InterruptedException ie)
+      {
+         throw new RuntimeException(ie);
+      }
+      if (failure[0] != null)
+      {
+         throw new RuntimeException("Fast Marching front failed", failure[0]);
+      }
+      
+      for (int i = 0; i < fronts.length; i++)
+      {
+         if (!fronts[i].heap.isEmpty()) return true;
+      }
+      return false;
+   }
+   
+   /* Merges parallel fronts into the state map: a voxel is alive if it is alive
+    * in the front that owns it.
+    */
+   private final void mergeFronts()
+   {
+      if (owners == null) return;
+      
+      map = new DeferredByteArray3D(img.getWidth(), img.getHeight(), img.getImageCount(), 5, FAR,
+            tile_stores.createStore(5, 1));
+      for (int z = 0; z < map.getZLength(); z++)
+      {
+         for (int y = 0; y < map.getYLength(); y++)
+         {
+            for (int x = 0; x < map.getXLength(); x++)
+            {
+               final int owner = owners.get(x, y, z);
+               if (owner != FrontOwnerMap.NO_OWNER && fronts[owner - 1].map.get(x, y, z) == ALIVE)
+               {
+                  map.set(x, y, z, ALIVE);
+               }
+            }
+         }
+      }
+      
+      for (int i = 0; i < fronts.length; i++)
+      {
+         fronts[i].map.getTileStore().close();
+      }
+      owners = null;
+   }
+   
+   // State of a voxel in the front that owns it, or in the merged state map
+   private final byte getState(final int x, final int y, final int z)
+   {
+      if (owners == null) return map.get(x, y, z);
+      
+      final int owner = owners.get(x, y, z);
+      return owner == FrontOwnerMap.NO_OWNER ? FAR : fronts[owner - 1].map.get(x, y, z);
+   }
+   
    // Derefrence large data structure to allow garbage collection
    private final void cleanup()
    {
-      arrival = null;
+      if (fronts != null)
+      {
+         for (int i = 0; i < fronts.length; i++)
+         {
+            fronts[i].arrival.getTileStore().close();
+            fronts[i].distances.getTileStore().close();
+         }
+      }
+      fronts = null;
       this.gradients = null;
-      elementLUT = null;
       img = source = null;
-      heap = null;
-      elem_cache = null;
    }
    
    // Determine mean grey value of the seed pixel and neighbourhood
@@ -649,7 +557,8 @@ public class FastMarching implements StagedAlgorithm
    {
       IJ.log("Postprocessing Statemap...");
       
-      final DeferredByteArray3D processed_map = new DeferredByteArray3D(map.getXLength(), map.getYLength(), map.getZLength(), map.getTileSize(), FAR);
+      final DeferredByteArray3D processed_map = new DeferredByteArray3D(map.getXLength(), map.getYLength(), map.getZLength(), map.getTileSize(), FAR,
+            tile_stores.createStore(map.getTileSize(), 1));
       
       for (int i = 0; i < map.getXLength(); i++)
       {
@@ -686,6 +595,285 @@ public class FastMarching implements StagedAlgorithm
          }
       }
       
+      map.getTileStore().close();
       map = processed_map;
    }
+   
+   /* One front: the voxels it reached with their arrival times and distances,
+    * its trial set and the values its halting conditions depend on.
+    */
+   private final class Front
+   {
+      // Owner value of this front in the owner map
+      private final int id;
+      // Holds the state of the voxels
+      private final DeferredByteArray3D map;
+      // Holds the arrival timeof the voxels
+      private final DeferredDoubleArray3D arrival;
+      /* Holds the distance (shortest way over already visited voxels) from seed
+       * point of the voxels
+       */
+      private final DeferredDoubleArray3D distances;
+      // Heap data structure for sorting the trial set elements
+      private final FastMarchingQueue heap;
+      
+      // Arrival time of the last voxel added to the alive set
+      private double lastFreezeTime = 0;
+      // Maximum distance in pixels from seed point travelled so far
+      private double max_distance = 0;
+      
+      // Alive state of the neighbours of the voxel being updated: x-, x+, y-, y+, z-, z+
+      private final boolean [] alive_neighbours = new boolean[6];
+      
+      Front(final int id)
+      {
+         this.id = id;
+         map = new DeferredByteArray3D(source.getWidth(), source.getHeight(), source.getImageCount(), 5, FAR,
+               tile_stores.createStore(5, 1));
+         arrival = new DeferredDoubleArray3D(source.getWidth(), source.getHeight(), source.getImageCount(), 5, 0,
+               tile_stores.createStore(5, 8));
+         distances = new DeferredDoubleArray3D(source.getWidth(), source.getHeight(), source.getImageCount(), 5, 0d,
+               tile_stores.createStore(5, 8));
+         heap = new FastMarchingQueue(source.getWidth(), source.getHeight(), source.getImageCount(), 5, 1000);
+      }
+      
+      // Freezes up to granularity voxels, returns false once the trial set is empty
+      private final boolean advance(final int granularity)
+      {
+         for (int i = 0; i < granularity && !heap.isEmpty(); i++)
+         {
+            final int x = heap.peekX();
+            final int y = heap.peekY();
+            final int z = heap.peekZ();
+            final double time = heap.peekTime();
+            heap.poll();
+            freeze(x, y, z, time);
+         }
+         return !heap.isEmpty();
+      }
+      
+      private final void freeze(final int freezeX, final int freezeY, final int freezeZ, final double time)
+      {
+         map.set(freezeX, freezeY, freezeZ, ALIVE);
+      
+         final double dist = distances.get(freezeX, freezeY, freezeZ);
+      
+         if (dist > DISTANCE_STOP)
+         {
+            System.out.println("Stopped - max distance exceeded");
+            heap.clear();
+            return;
+         }
+         else if (dist < max_distance * DISTANCE_THRESHOLD || (dist < max_distance - 30))
+                                                         
+         {
+            arrival.set(freezeX, freezeY, freezeZ, Double.MAX_VALUE);
+            distances.set(freezeX, freezeY, freezeZ, Double.MAX_VALUE);
+            //System.out.println("Sorted out voxel");
+         }
+         else
+         {
+            arrival.set(freezeX, freezeY, freezeZ, time);
+         
+            if (max_distance < distances.get(freezeX, freezeY, freezeZ))
+            {
+               max_distance = distances.get(freezeX, freezeY, freezeZ);
+            }
+         
+            if (freezeX > 0) update(freezeX - 1, freezeY, freezeZ);
+            if (freezeX + 1 < map.getXLength()) update(freezeX + 1, freezeY, freezeZ);
+            if (freezeY > 0) update(freezeX, freezeY - 1, freezeZ);
+            if (freezeY + 1 < map.getYLength()) update(freezeX, freezeY + 1, freezeZ);
+            if (freezeZ > 0) update(freezeX, freezeY, freezeZ - 1);
+            if (freezeZ + 1 < map.getZLength()) update(freezeX, freezeY, freezeZ + 1);
+         
+            //   if (halt)
+            //   {
+            //      if (heap.size() > 100 || arrival[freezeX][freezeY][freezeZ] > ((lastFreezeDistance + 1) * 1.1))
+            //         //                     if (heap.size() > 100)
+            if (arrival.get(freezeX, freezeY, freezeZ) > (((lastFreezeTime + EXTREME_GROWTH))))
+            {
+            
+               IJ.log("Fast marching stopped - extreme growth");
+               IJ.log("Last -> " + lastFreezeTime);
+               IJ.log("Now -> " + arrival.get(freezeX, freezeY, freezeZ));
+               heap.clear();
+            }
+            else
+            {
+               lastFreezeTime = arrival.get(freezeX, freezeY, freezeZ);
+            }
+            //   }
+         }
+      }
+   
+      // Updates a voxel in the neighbourhood of voxel just moved to alive set
+      private final void update(final int x, final int y, final int z)
+      {
+         final byte cell_state = map.get(x, y, z);
+         if (cell_state == ALIVE) return;
+         // with parallel fronts, a voxel another front reached first is left to it
+         if (cell_state == FAR && owners != null && !owners.claim(x, y, z, id)) return;
+      
+         findAliveNeighbours(x, y, z);
+         final double time = calculateArrivalTime(x, y, z);
+         final double dist = calculateDistance(x, y, z);
+      
+         // If this voxel is already in the trial update arrival time and distance
+         if (cell_state == BAND)
+         {
+            /* updated distance and arrival time is guaranteed to be <= old
+             * distance so omit a time consuming check
+             */
+         
+            heap.update(x, y, z, time);
+         
+            distances.set(x, y, z, dist);
+         }
+         // If this voxel is currently in the far set add it to the trial set
+         else if (cell_state == FAR)
+         {
+            heap.offer(x, y, z, time);
+         
+            map.set(x, y, z, BAND);
+            distances.set(x, y, z, dist);
+         }
+      }
+   
+      // Looks up which neighbours of a voxel are alive, for the calculations below
+      private final void findAliveNeighbours(final int x, final int y, final int z)
+      {
+         alive_neighbours[0] = x > 0 && map.get(x - 1, y, z) == ALIVE;
+         alive_neighbours[1] = x + 1 < map.getXLength() && map.get(x + 1, y, z) == ALIVE;
+         alive_neighbours[2] = y > 0 && map.get(x, y - 1, z) == ALIVE;
+         alive_neighbours[3] = y + 1 < map.getYLength() && map.get(x, y + 1, z) == ALIVE;
+         alive_neighbours[4] = z > 0 && map.get(x, y, z - 1) == ALIVE;
+         alive_neighbours[5] = z + 1 < map.getZLength() && map.get(x, y, z + 1) == ALIVE;
+      }
+   
+      // Requires findAliveNeighbours() to be called for the voxel first
+      private final double calculateArrivalTime(final int x, final int y, final int z)
+      {
+         // Get neighbour with minimal arrival time in every spatial direction
+         final double dist = Double.MAX_VALUE;
+      
+         final double xB = alive_neighbours[0] ? arrival.get(x - 1, y, z) : Double.MAX_VALUE;
+         final double xF = alive_neighbours[1] ? arrival.get(x + 1, y, z) : Double.MAX_VALUE;
+         final double yB = alive_neighbours[2] ? arrival.get(x, y - 1, z) : Double.MAX_VALUE;
+         final double yF = alive_neighbours[3] ? arrival.get(x, y + 1, z) : Double.MAX_VALUE;
+         final double zB = alive_neighbours[4] ? arrival.get(x, y, z - 1) : Double.MAX_VALUE;
+         final double zF = alive_neighbours[5] ? arrival.get(x, y, z + 1) : Double.MAX_VALUE;
+      
+      
+         final double xVal = (xB < xF) ? xB : xF;
+         final double yVal = (yB < yF) ? yB : yF;
+         final double zVal = (zB < zF) ? zB : zF;
+      
+         // Determine quadratic cooefficient.
+         int quadCoeff = 0;
+         if (xVal < Double.MAX_VALUE) quadCoeff++;
+         if (yVal < Double.MAX_VALUE) quadCoeff++;
+         if (zVal < Double.MAX_VALUE) quadCoeff++;
+      
+         final double speed = getSpeedTerm(x, y, z);
+      
+         /* If only one spatial  direction contributes to the quadratic
+          * coefficient, than there ist a much more efficient solution - so this
+          * is calculated and returned instead then. */
+         if (quadCoeff == 1)
+         {
+            if (xVal < Double.MAX_VALUE)
+            {
+               return xVal + (1 / speed);
+            }
+            else if (yVal < Double.MAX_VALUE)
+            {
+               return yVal + (1 / speed);
+            }
+            else
+            {
+               return zVal + (1 / speed);
+            }
+         }
+      
+         int numSol = 0;
+         double solution = 0;
+         double linCoeff = 0;
+         double abs = (-1 / (speed * speed));
+      
+         /* Calculate linear and absolute term contributions for every spatial
+          * direction if alive.
+          */
+         if (xVal < Double.MAX_VALUE)
+         {
+            linCoeff -= 2 * xVal;
+            abs += xVal * xVal;
+         }
+         if (yVal < Double.MAX_VALUE)
+         {
+            linCoeff -= 2 * yVal;
+            abs += yVal * yVal;
+         }
+         if (zVal < Double.MAX_VALUE)
+         {
+            linCoeff -= 2 * zVal;
+            abs += zVal * zVal;
+         }
+      
+         // Discriminat of the general quadratic equation
+         final double discriminant = (linCoeff * linCoeff) - (4 * quadCoeff * abs);
+      
+         // Two solutions exist. Calculate the bigger one.
+         if (discriminant > 0)
+         {
+            final double rootDiscriminant = Math.sqrt(discriminant);
+            solution = ((-linCoeff) + rootDiscriminant) / (2 * quadCoeff);
+         }
+         // No solution exists - read below
+         else
+         {
+            /* Something went really wrong - no solution for the quadratic equation.
+             * This should NEVER happen, so it clearly indicates a problem with the
+             * speed calculation.
+             */
+            IJ.log("OUCH !!! # solutions = 0 (at " + x + ", " + y + ")");
+            IJ.log("quad. coefficient = " + quadCoeff);
+            IJ.log("lin. coefficient = " + linCoeff);
+            IJ.log("absolute term = " + abs);
+            IJ.log("xVal = " + xVal);
+            IJ.log("yVal = " + yVal);
+            IJ.log("Speedterm = " + speed);
+            IJ.log("xB, xF, yB, yF = " + xB + ", " + xF + ", " + yB + ", " + yF);
+            IJ.log("**********************************");
+            System.exit(0);
+         }
+      
+         return solution;
+      }
+   
+      /* Calculate the distance to the nearest seedpoint using only alive waypoints
+       * Requires findAliveNeighbours() to be called for the voxel first
+       */
+      private final double calculateDistance(final int x, final int y, final int z)
+      {
+         // Get distances of all alive neighbours
+         final double xB = alive_neighbours[0] ? distances.get(x - 1, y, z) : Double.MAX_VALUE;
+         final double xF = alive_neighbours[1] ? distances.get(x + 1, y, z) : Double.MAX_VALUE;
+         final double yB = alive_neighbours[2] ? distances.get(x, y - 1, z) : Double.MAX_VALUE;
+         final double yF = alive_neighbours[3] ? distances.get(x, y + 1, z) : Double.MAX_VALUE;
+         final double zB = alive_neighbours[4] ? distances.get(x, y, z - 1) : Double.MAX_VALUE;
+         final double zF = alive_neighbours[5] ? distances.get(x, y, z + 1) : Double.MAX_VALUE;
+      
+         // Find minimum of the distances
+         final double xVal = (xB < xF) ? xB : xF;
+         final double yVal = (yB < yF) ? yB : yF;
+         final double zVal = (zB < zF) ? zB : zF;
+      
+         final double dist = Math.min(Math.min(xVal, yVal), zVal);
+      
+         // Add 1 to the smallest way of its neighbours to reach this voxel
+         return (dist + 1);
+      }
+   
+   }
 }
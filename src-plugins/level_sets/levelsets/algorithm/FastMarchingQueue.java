@@ -0,0 +1,253 @@
+// $Revision$, $Date$, $Author$
+
+package levelsets.algorithm;
+
+/**
+ * Priority queue for the Fast Marching trial set, ordered by arrival time.
+ * The queued voxels are held in primitive arrays (binary heap) and the heap
+ * position of every queued voxel is kept in a tiled array, so the arrival time
+ * of a queued voxel can be changed without searching the heap and nothing is
+ * allocated per voxel. Voxels with equal arrival times leave the queue in the
+ * same order as BandElements would leave a java.util.PriorityQueue.
+ */
+public class FastMarchingQueue
+{
+   // Number of queued voxels
+   private int size = 0;
+   // Heap of arrival times and the coordinates belonging to them
+   private double [] times;
+   private int [] xs;
+   private int [] ys;
+   private int [] zs;
+   // Heap position per voxel, NOT_QUEUED for voxels not in the queue
+   private final DeferredIntArray3D positions;
+
+   private static final int NOT_QUEUED = -1;
+
+   /**
+    * Creates a new, empty queue
+    * @param xdim Size of the volume in X direction
+    * @param ydim Size of the volume in Y direction
+    * @param zdim Size of the volume in Z direction
+    * @param tilesize Tile size for the heap position lookup table
+    * @param capacity Initial capacity
+    */
+   public FastMarchingQueue(final int xdim, final int ydim, final int zdim, final int tilesize, final int capacity)
+   {
+      positions = new DeferredIntArray3D(xdim, ydim, zdim, tilesize, NOT_QUEUED);
+      times = new double[capacity];
+      xs = new int[capacity];
+      ys = new int[capacity];
+      zs = new int[capacity];
+   }
+
+   /**
+    * Returns whether the queue is empty
+    * @return true if no voxel is queued
+    */
+   public final boolean isEmpty()
+   {
+      return size == 0;
+   }
+
+   /**
+    * Returns the number of queued voxels
+    * @return The number of queued voxels
+    */
+   public final int size()
+   {
+      return size;
+   }
+
+   /**
+    * Returns whether a voxel is queued
+    * @param x The X coordinate
+    * @param y The Y coordinate
+    * @param z The Z coordinate
+    * @return true if the voxel is queued
+    */
+   public final boolean contains(final int x, final int y, final int z)
+   {
+      return positions.get(x, y, z) != NOT_QUEUED;
+   }
+
+   /**
+    * Adds a voxel that is not queued yet
+    * @param x The X coordinate
+    * @param y The Y coordinate
+    * @param z The Z coordinate
+    * @param time The arrival time
+    */
+   public final void offer(final int x, final int y, final int z, final double time)
+   {
+      if (size == times.length)
+      {
+         grow();
+      }
+      siftUp(size++, x, y, z, time);
+   }
+
+   /**
+    * Changes the arrival time of a queued voxel
+    * @param x The X coordinate
+    * @param y The Y coordinate
+    * @param z The Z coordinate
+    * @param time The new arrival time
+    */
+   public final void update(final int x, final int y, final int z, final double time)
+   {
+      removeAt(positions.get(x, y, z));
+      offer(x, y, z, time);
+   }
+
+   /**
+    * Returns the X coordinate of the voxel with the smallest arrival time
+    * @return The X coordinate
+    */
+   public final int peekX()
+   {
+      return xs[0];
+   }
+
+   /**
+    * Returns the Y coordinate of the voxel with the smallest arrival time
+    * @return The Y coordinate
+    */
+   public final int peekY()
+   {
+      return ys[0];
+   }
+
+   /**
+    * Returns the Z coordinate of the voxel with the smallest arrival time
+    * @return The Z coordinate
+    */
+   public final int peekZ()
+   {
+      return zs[0];
+   }
+
+   /**
+    * Returns the smallest arrival time in the queue
+    * @return The arrival time
+    */
+   public final double peekTime()
+   {
+      return times[0];
+   }
+
+   /**
+    * Removes the voxel with the smallest arrival time
+    */
+   public final void poll()
+   {
+      removeAt(0);
+   }
+
+   /**
+    * Removes all voxels from the queue
+    */
+   public final void clear()
+   {
+      for (int i = 0; i < size; i++)
+      {
+         positions.set(xs[i], ys[i], zs[i], NOT_QUEUED);
+      }
+      size = 0;
+   }
+
+   private final void removeAt(final int i)
+   {
+      positions.set(xs[i], ys[i], zs[i], NOT_QUEUED);
+
+      final int last = --size;
+      if (last == i)
+      {
+         return;
+      }
+
+      final int x = xs[last];
+      final int y = ys[last];
+      final int z = zs[last];
+      final double time = times[last];
+
+      siftDown(i, x, y, z, time);
+      if (positions.get(x, y, z) == i)
+      {
+         siftUp(i, x, y, z, time);
+      }
+   }
+
+   // Moves the voxel from position k up until its parent is not later
+   private final void siftUp(int k, final int x, final int y, final int z, final double time)
+   {
+      while (k > 0)
+      {
+         final int parent = (k - 1) >>> 1;
+         if (!(time < times[parent]))
+         {
+            break;
+         }
+         move(parent, k);
+         k = parent;
+      }
+      set(k, x, y, z, time);
+   }
+
+   // Moves the voxel from position k down until no child is earlier
+   private final void siftDown(int k, final int x, final int y, final int z, final double time)
+   {
+      final int half = size >>> 1;
+      while (k < half)
+      {
+         int child = 2 * k + 1;
+         final int right = child + 1;
+         if (right < size && !(times[child] < times[right]))
+         {
+            child = right;
+         }
+         if (time < times[child])
+         {
+            break;
+         }
+         move(child, k);
+         k = child;
+      }
+      set(k, x, y, z, time);
+   }
+
+   private final void move(final int from, final int to)
+   {
+      set(to, xs[from], ys[from], zs[from], times[from]);
+   }
+
+   private final void set(final int k, final int x, final int y, final int z, final double time)
+   {
+      xs[k] = x;
+      ys[k] = y;
+      zs[k] = z;
+      times[k] = time;
+      positions.set(x, y, z, k);
+   }
+
+   private final void grow()
+   {
+      final int capacity = 2 * times.length + 1;
+
+      final double [] newTimes = new double[capacity];
+      System.arraycopy(times, 0, newTimes, 0, size);
+      times = newTimes;
+
+      final int [] newXs = new int[capacity];
+      System.arraycopy(xs, 0, newXs, 0, size);
+      xs = newXs;
+
+      final int [] newYs = new int[capacity];
+      System.arraycopy(ys, 0, newYs, 0, size);
+      ys = newYs;
+
+      final int [] newZs = new int[capacity];
+      System.arraycopy(zs, 0, newZs, 0, size);
+      zs = newZs;
+   }
+}
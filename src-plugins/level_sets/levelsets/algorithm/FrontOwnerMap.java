@@ -0,0 +1,81 @@
+// $Revision$, $Date$, $Author$
+
+package levelsets.algorithm;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records which of several Fast Marching fronts running at the same time has
+ * reached a voxel first. A voxel is claimed once and keeps its owner, so the
+ * fronts never work on the same voxel. Tiles are created when the first voxel
+ * in them is claimed. Can be used from several threads at once.
+ */
+public class FrontOwnerMap
+{
+   // Owner per voxel, NO_OWNER for voxels not reached by any front
+   public static final int NO_OWNER = 0;
+
+   private static final int TILE_SIZE = 16;
+
+   private final int xtiles, ytiles;
+   private final AtomicReferenceArray<AtomicIntegerArray> tiles;
+
+   /**
+    * Creates a new map without owners
+    * @param xdim Size of the volume in X direction
+    * @param ydim Size of the volume in Y direction
+    * @param zdim Size of the volume in Z direction
+    */
+   public FrontOwnerMap(final int xdim, final int ydim, final int zdim)
+   {
+      xtiles = (xdim + TILE_SIZE - 1) / TILE_SIZE;
+      ytiles = (ydim + TILE_SIZE - 1) / TILE_SIZE;
+      final int ztiles = (zdim + TILE_SIZE - 1) / TILE_SIZE;
+      tiles = new AtomicReferenceArray<AtomicIntegerArray>(xtiles * ytiles * ztiles);
+   }
+
+   /**
+    * Returns the owner of a voxel
+    * @param x The X coordinate
+    * @param y The Y coordinate
+    * @param z The Z coordinate
+    * @return The owner, or NO_OWNER
+    */
+   public final int get(final int x, final int y, final int z)
+   {
+      final AtomicIntegerArray tile = tiles.get(getTileIndex(x, y, z));
+      return tile == null ? NO_OWNER : tile.get(getIndexInTile(x, y, z));
+   }
+
+   /**
+    * Makes a front the owner of a voxel, unless another front got it first
+    * @param x The X coordinate
+    * @param y The Y coordinate
+    * @param z The Z coordinate
+    * @param owner The front, must not be NO_OWNER
+    * @return true if the front owns the voxel now
+    */
+   public final boolean claim(final int x, final int y, final int z, final int owner)
+   {
+      final int index = getTileIndex(x, y, z);
+      AtomicIntegerArray tile = tiles.get(index);
+      if (tile == null)
+      {
+         tiles.compareAndSet(index, null, new AtomicIntegerArray(TILE_SIZE * TILE_SIZE * TILE_SIZE));
+         tile = tiles.get(index);
+      }
+      final int i = getIndexInTile(x, y, z);
+      return tile.compareAndSet(i, NO_OWNER, owner) || tile.get(i) == owner;
+   }
+
+   private final int getTileIndex(final int x, final int y, final int z)
+   {
+      return x / TILE_SIZE + (y / TILE_SIZE + (z / TILE_SIZE) * ytiles) * xtiles;
+   }
+
+   private final int getIndexInTile(final int x, final int y, final int z)
+   {
+      return x % TILE_SIZE + (y % TILE_SIZE + (z % TILE_SIZE) * TILE_SIZE) * TILE_SIZE;
+   }
+}
@@ -0,0 +1,31 @@
+// $Revision$, $Date$, $Author$
+
+package levelsets.algorithm;
+
+/**
+ * Keeps all tiles on the heap, once created a tile is never released. This is
+ * the default store and the fastest one. Does not count hits and misses.
+ */
+public class HeapTileStore extends TileStore
+{
+   private Object[] tiles = null;
+   
+   protected final void init(final DeferredArray3D array, final int numTiles)
+   {
+      if (tiles != null)
+      {
+         throw new IllegalStateException("Tile store is already in use by another array");
+      }
+      tiles = new Object[numTiles];
+   }
+   
+   protected final Object get(final int index, final boolean write)
+   {
+      return tiles[index];
+   }
+   
+   protected final void put(final int index, final Object tile)
+   {
+      tiles[index] = tile;
+   }
+}
@@ -43,6 +43,9 @@ public class LevelSetFactory {
 	
 	protected LevelSetDef def_global;
 	
+	// Where the implementations keep the tiles of their arrays
+	protected TileStoreFactory tile_stores = TileStoreFactory.HEAP;
+	
 	final int verbose = 0;
 	
 	
@@ -102,8 +105,10 @@ public class LevelSetFactory {
 				IJ.log(((String) param_desc.get(Parameter.TOL_GRAYSCALE)) + " = " + grey_tol );
 			}
 			
-			return new ActiveContours(image, img_progress, init_state, 
+			final LevelSetImplementation ls = new ActiveContours(image, img_progress, init_state, 
 					convergence, advection, curvature, grey_tol);
+			ls.setTileStoreFactory(tile_stores);
+			return ls;
 			
 		} else if (impl.equals("Geodesic Active Contours"))	{
 
@@ -119,8 +124,10 @@ public class LevelSetFactory {
 				IJ.log(((String) param_desc.get(Parameter.W_PROPAGATION)) + " = " + propagation );
 			}
 
-			return new GeodesicActiveContour(image, img_progress, init_state, 
+			final LevelSetImplementation ls = new GeodesicActiveContour(image, img_progress, init_state, 
 					convergence, advection, curvature, propagation, 0d);
+			ls.setTileStoreFactory(tile_stores);
+			return ls;
 
 		} else {
 			return null;
@@ -206,6 +213,19 @@ public class LevelSetFactory {
 		param_val.put(key, value);
 	}
 	
+	
+	/*
+	 * Sets where the implementations returned from now on keep the tiles of their arrays
+	 */
+	public void setTileStoreFactory(TileStoreFactory tile_stores) {
+		this.tile_stores = tile_stores;
+	}
+	
+	
+	public final TileStoreFactory getTileStoreFactory() {
+		return tile_stores;
+	}
+	
 	/*
 	 * Makes sure that all the parameters for this implementation exist and, if not, are set to default value. 
 	 */
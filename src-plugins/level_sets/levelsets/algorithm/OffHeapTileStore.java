@@ -0,0 +1,308 @@
+// $Revision$, $Date$, $Author$
+
+package levelsets.algorithm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps only a bounded number of recently used tiles on the heap. When more
+ * tiles are needed, a tile that was not used recently is moved off the heap,
+ * either into direct buffers or into a memory-mapped scratch file, and loaded
+ * back when it is requested again. Tiles which were only read since they were
+ * loaded are not written out again. The tiles to move are picked with the
+ * clock algorithm, so reading a tile on the heap does not need a lock.
+ * Only works for arrays of primitive data types. Tiles may be read from
+ * several threads at once, but must only be written from one thread at a
+ * time: the tile last requested for writing is pinned to the heap until
+ * another tile is requested for writing, so a value stored into it cannot be
+ * lost by a concurrent eviction.
+ */
+public class OffHeapTileStore extends TileStore
+{
+   // Size of the blocks of off-heap memory the tiles are moved to
+   private static final int CHUNK_SIZE = 1 << 26;
+
+   private static final int NONE = -1;
+
+   // Maximum number of tiles on the heap
+   private final int capacity;
+   // Directory for the scratch file, null to use direct buffers
+   private final File directory;
+
+   private DeferredArray3D array = null;
+
+   // Tiles on the heap, null if not on the heap. Read without locking.
+   private AtomicReferenceArray<Object> tiles;
+   // Whether a tile on the heap was used since the clock hand last passed it
+   private boolean[] referenced;
+   // Whether a tile on the heap may differ from its copy off the heap
+   private boolean[] dirty;
+   // Whether a tile has a copy off the heap, set before the tile leaves the heap
+   private boolean[] stored;
+   // Tiles on the heap in clock order
+   private int[] clock;
+   private int hand = 0;
+   private int size = 0;
+   // Tile last requested for writing, never moved off the heap
+   private volatile int pinned = NONE;
+
+   private int bytesPerTile;
+   private int tilesPerChunk;
+   private ByteBuffer[] chunks;
+
+   private File file = null;
+   private RandomAccessFile raf = null;
+   private FileChannel channel = null;
+
+   // Counted without locking, may miss a few hits when several threads read
+   private long hits = 0;
+   private long misses = 0;
+   private long evictions = 0;
+
+   /**
+    * Creates a store that moves tiles into direct buffers
+    * @param capacity Maximum number of tiles kept on the heap, at least 2
+    */
+   public OffHeapTileStore(final int capacity)
+   {
+      this(capacity, null);
+   }
+
+   /**
+    * Creates a store that moves tiles into a memory-mapped scratch file. The
+    * file is deleted when the store is closed or the VM exits.
+    * @param capacity Maximum number of tiles kept on the heap, at least 2
+    * @param directory Directory for the scratch file, null to use direct buffers
+    */
+   public OffHeapTileStore(final int capacity, final File directory)
+   {
+      // one tile may be pinned while another one is loaded
+      if (capacity < 2)
+      {
+         throw new IllegalArgumentException("At least two tiles need to fit on the heap");
+      }
+      this.capacity = capacity;
+      this.directory = directory;
+   }
+
+   protected final synchronized void init(final DeferredArray3D array, final int numTiles)
+   {
+      if (this.array != null)
+      {
+         throw new IllegalStateException("Tile store is already in use by another array");
+      }
+      this.array = array;
+
+      final int tilesize = array.getTileSize();
+      bytesPerTile = tilesize * tilesize * tilesize * array.getBytesPerElement();
+      tilesPerChunk = Math.max(1, CHUNK_SIZE / bytesPerTile);
+      chunks = new ByteBuffer[(numTiles + tilesPerChunk - 1) / tilesPerChunk];
+
+      tiles = new AtomicReferenceArray<Object>(numTiles);
+      referenced = new boolean[numTiles];
+      dirty = new boolean[numTiles];
+      stored = new boolean[numTiles];
+      clock = new int[Math.min(capacity, numTiles)];
+
+      if (directory != null)
+      {
+         try
+         {
+            file = File.createTempFile("tiles", ".tmp", directory);
+            file.deleteOnExit();
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+         }
+         catch (IOException ioe)
+         {
+            throw new RuntimeException("Could not create scratch file for tiles in " + directory, ioe);
+         }
+      }
+   }
+
+   protected final Object get(final int index, final boolean write)
+   {
+      final Object tile = tiles.get(index);
+      if (tile != null)
+      {
+         // the pinned tile is dirty already and cannot be evicted
+         if (!write || index == pinned)
+         {
+            referenced[index] = true;
+            hits++;
+            return tile;
+         }
+      }
+      else if (!stored[index])
+      {
+         // not created yet; stored[] is set before a tile leaves the heap
+         return null;
+      }
+      return load(index, write);
+   }
+
+   protected final synchronized void put(final int index, final Object tile)
+   {
+      makeResident(index, tile);
+      dirty[index] = true;
+      pinned = index;
+   }
+
+   public final long getHits()
+   {
+      return hits;
+   }
+
+   public final synchronized long getMisses()
+   {
+      return misses;
+   }
+
+   /**
+    * Returns how often a tile was moved off the heap
+    * @return The number of evictions
+    */
+   public final synchronized long getEvictions()
+   {
+      return evictions;
+   }
+
+   /**
+    * Returns the number of tiles currently on the heap
+    * @return The number of tiles on the heap
+    */
+   public final synchronized int getResidentTiles()
+   {
+      return size;
+   }
+
+   public final synchronized void close()
+   {
+      chunks = null;
+      if (channel != null)
+      {
+         try
+         {
+            channel.close();
+            raf.close();
+         }
+         catch (IOException ioe)
+         {
+            ioe.printStackTrace();
+         }
+         // might fail while the mapping is not garbage collected yet, then
+         // the file is removed on exit
+         file.delete();
+         channel = null;
+         raf = null;
+      }
+   }
+
+   // Slow path of get(): loads the tile or marks it for writing
+   private final synchronized Object load(final int index, final boolean write)
+   {
+      Object tile = tiles.get(index);
+      if (tile != null)
+      {
+         hits++;
+         referenced[index] = true;
+      }
+      else if (stored[index])
+      {
+         misses++;
+         tile = array.readTile(getBuffer(index));
+         makeResident(index, tile);
+      }
+      else
+      {
+         return null;
+      }
+
+      if (write)
+      {
+         dirty[index] = true;
+         pinned = index;
+      }
+      return tile;
+   }
+
+   private final void makeResident(final int index, final Object tile)
+   {
+      final int slot;
+      if (size < clock.length)
+      {
+         slot = size++;
+      }
+      else
+      {
+         slot = evict();
+      }
+      clock[slot] = index;
+      referenced[index] = true;
+      dirty[index] = false;
+      // publishes the tile content to readers that do not lock
+      tiles.set(index, tile);
+   }
+
+   // Moves the first tile the clock hand finds unused off the heap, returns its slot
+   private final int evict()
+   {
+      while (true)
+      {
+         final int slot = hand;
+         final int index = clock[slot];
+         hand = (hand + 1) % clock.length;
+         if (index == pinned || referenced[index])
+         {
+            referenced[index] = false;
+            continue;
+         }
+
+         if (dirty[index])
+         {
+            array.writeTile(tiles.get(index), getBuffer(index));
+            stored[index] = true;
+         }
+         tiles.set(index, null);
+         evictions++;
+         return slot;
+      }
+   }
+
+   // Returns the off-heap memory of a tile
+   private final ByteBuffer getBuffer(final int index)
+   {
+      final int chunk = index / tilesPerChunk;
+      if (chunks[chunk] == null)
+      {
+         final int chunkBytes = tilesPerChunk * bytesPerTile;
+         if (channel == null)
+         {
+            chunks[chunk] = ByteBuffer.allocateDirect(chunkBytes);
+         }
+         else
+         {
+            try
+            {
+               chunks[chunk] = channel.map(FileChannel.MapMode.READ_WRITE, (long)chunk * chunkBytes, chunkBytes);
+            }
+            catch (IOException ioe)
+            {
+               throw new RuntimeException("Could not map scratch file " + file, ioe);
+            }
+         }
+      }
+
+      final int offset = (index % tilesPerChunk) * bytesPerTile;
+      final ByteBuffer buffer = chunks[chunk].duplicate();
+      buffer.position(offset);
+      buffer.limit(offset + bytesPerTile);
+      return buffer.slice().order(ByteOrder.nativeOrder());
+   }
+}
@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import levelsets.ij.ImageContainer;
 import levelsets.ij.ImageProgressContainer;
@@ -93,11 +94,26 @@ public abstract class SparseFieldLevelSet implements StagedAlgorithm
    // List for voxel that are scheduled for Phi value update
    private ArrayList<BandElement> update_list = new ArrayList<BandElement>(INITIAL_LISTSIZE);
    
+   // delta Phi per voxel of the active layer, in the order of the layer list
+   private double [] delta_phis = new double[INITIAL_LISTSIZE];
+   // Minimum number of active voxels per thread to compute delta Phi in parallel
+   private static final int MIN_VOXELS_PER_THREAD = 2000;
+   // Number of active voxels a thread claims at a time
+   private static final int VOXEL_BLOCK_SIZE = 500;
+   
+   // Offsets of the 6-neighbourhood of a voxel
+   private static final int [] NEIGHBOUR_X = {-1, 1, 0, 0, 0, 0};
+   private static final int [] NEIGHBOUR_Y = {0, 0, -1, 1, 0, 0};
+   private static final int [] NEIGHBOUR_Z = {0, 0, 0, 0, -1, 1};
+   
    // Cache for BandElement objects to avoid continuous reallocation
    private BandElementCache elem_cache = null;
    // Size of that cache (number of elements)
    private static int ELEMENT_CACHE_SIZE = 10000;
    
+   // Creates the stores for the tiles of Phi and the actions
+   private TileStoreFactory tile_stores = TileStoreFactory.HEAP;
+   
    // Reference to the Fast Marching stage that was run before to get the start contour
    // private FastMarching fm = null;
    // No link to previous stage. Instead: The initial contour as independent container
@@ -154,6 +170,18 @@ public abstract class SparseFieldLevelSet implements StagedAlgorithm
       CONVERGENCE_WEIGHT = convergence;
    }
    
+   /**
+    * Sets where the tiles of Phi and the scheduled actions are kept. Must be
+    * called before the first step. Phi is only read by the threads that
+    * calculate delta Phi and only written from the stepping thread, as the
+    * off-heap stores require.
+    * @param tile_stores The factory for the tile stores
+    */
+   public final void setTileStoreFactory(final TileStoreFactory tile_stores)
+   {
+      this.tile_stores = tile_stores;
+   }
+   
    /**
     * Returns the state map
     * @return The state map
@@ -190,9 +218,11 @@ public abstract class SparseFieldLevelSet implements StagedAlgorithm
    
    protected void init()
    {
-      phi = new DeferredDoubleArray3D(source.getWidth(), source.getHeight(), source.getImageCount(), 5 , 0);
+      phi = new DeferredDoubleArray3D(source.getWidth(), source.getHeight(), source.getImageCount(), 5 , 0,
+            tile_stores.createStore(5, 8));
       state = new int[source.getWidth()][source.getHeight()][source.getImageCount()];
-      action = new DeferredIntArray3D(source.getWidth(), source.getHeight(), source.getImageCount(), 5, 0);
+      action = new DeferredIntArray3D(source.getWidth(), source.getHeight(), source.getImageCount(), 5, 0,
+            tile_stores.createStore(5, 4));
       elementLUT = new DeferredObjectArray3D<BandElement>(source.getWidth(), source.getHeight(), source.getImageCount(), 5, null);
       
       //        global_curvatures = new double[img.getImageCount()];
@@ -385,15 +415,82 @@ public abstract class SparseFieldLevelSet implements StagedAlgorithm
    
    /* Calculates delta Phi for voxel at x/y/z
     * Abstract base class, overridden by the implementation
+    * Called from several threads at once, so it may only read Phi and the image
     */
    protected abstract double getDeltaPhi(int x, int y, int z);
    
    
+   /* Calculates delta Phi for all voxels in the active layer into delta_phis.
+    * Phi is not changed while doing so, therefore blocks of the active layer
+    * are handed out to several threads if the layer is large enough.
+    */
+   final private void calculateDeltaPhis()
+   {
+      final ArrayList<BandElement> active = layers[ZERO_LAYER];
+      final int size = active.size();
+      
+      if (delta_phis.length < size)
+      {
+         delta_phis = new double[Math.max(size, 2 * delta_phis.length)];
+      }
+      final double [] deltas = delta_phis;
+      
+      final int numThreads = Math.min(Runtime.getRuntime().availableProcessors(), size / MIN_VOXELS_PER_THREAD);
+      if (numThreads < 2)
+      {
+         for (int i = 0; i < size; i++)
+         {
+            final BandElement elem = active.get(i);
+            deltas[i] = getDeltaPhi(elem.getX(), elem.getY(), elem.getZ());
+         }
+         return;
+      }
+      
+      final AtomicInteger nextBlock = new AtomicInteger(0);
+      final Thread [] threads = new Thread[numThreads];
+      for (int t = 0; t < numThreads; t++)
+      {
+         threads[t] = new Thread(new Runnable()
+         {
+            public void run()
+            {
+               for (int start = nextBlock.getAndIncrement() * VOXEL_BLOCK_SIZE; start < size;
+                     start = nextBlock.getAndIncrement() * VOXEL_BLOCK_SIZE)
+               {
+                  final int end = Math.min(start + VOXEL_BLOCK_SIZE, size);
+                  for (int i = start; i < end; i++)
+                  {
+                     final BandElement elem = active.get(i);
+                     deltas[i] = getDeltaPhi(elem.getX(), elem.getY(), elem.getZ());
+                  }
+               }
+            }
+         });
+         threads[t].start();
+      }
+      
+      try
+      {
+         for (int t = 0; t < numThreads; t++)
+         {
+            threads[t].join();
+         }
+      }
+      catch (InterruptedException ie)
+      {
+         throw new RuntimeException(ie);
+      }
+   }
+   
+   
    /* Calculates delta Phi for all voxels in the active layer. Then updates
     * all voxels that remain in the active layer and the voxels that will move 
     * into it (some neighbours of voxels moving out). The actual updates are 
     * delayed until all voxels have been calculated to avoid influencing the
-    * result by using neighbour voxels with already updated values
+    * result by using neighbour voxels with already updated values.
+    * The delta Phi values are calculated up front (in parallel), the layer
+    * changes are then applied in list order so the result does not depend on
+    * the number of threads.
     */
    final private boolean updateActiveLayer()
    {
@@ -403,6 +500,9 @@ public abstract class SparseFieldLevelSet implements StagedAlgorithm
       total_change = 0;
       num_updated = 0;
       
+      calculateDeltaPhis();
+      
+      int index = 0;
       final Iterator<BandElement> it = layers[ZERO_LAYER].iterator();
       while (it.hasNext())
       {
@@ -412,7 +512,7 @@ public abstract class SparseFieldLevelSet implements StagedAlgorithm
          final int z = elem.getZ();
          
          // get the delta Phi         
-         final double delta_phi = getDeltaPhi(x, y, z);
+         final double delta_phi = delta_phis[index++];
                   
          // add absolute value of the net change of this voxel to the total change
          total_change += Math.abs(delta_phi);
@@ -480,6 +580,7 @@ public abstract class SparseFieldLevelSet implements StagedAlgorithm
          // tag the element so it is not updated again (would be expensive)
          elem.setValue(Double.MAX_VALUE);
       }
+      update_list.clear();
       
       // check for convergence
       if ( verbose > 0 ) 
@@ -589,13 +690,12 @@ public abstract class SparseFieldLevelSet implements StagedAlgorithm
             /* Step through neighbours and look for voxels with the appropriate
              * state (index) for dragging
              */
-            final Iterator<BandElement> neighbours = neighbourhood(elem_x, elem_y, elem_z);
-            while (neighbours.hasNext())
+            for (int n = 0; n < NEIGHBOUR_X.length; n++)
             {
-               final BandElement neighbour = neighbours.next();
-               final int neighbour_x = neighbour.getX();
-               final int neighbour_y = neighbour.getY();
-               final int neighbour_z = neighbour.getZ();
+               final int neighbour_x = elem_x + NEIGHBOUR_X[n];
+               final int neighbour_y = elem_y + NEIGHBOUR_Y[n];
+               final int neighbour_z = elem_z + NEIGHBOUR_Z[n];
+               if (outOfRange(neighbour_x, neighbour_y, neighbour_z)) continue;
                
                /* If this voxel is not scheduled for layer change yet, get a
                 * BandElement object to represent this voxel and queue it in
@@ -623,16 +723,15 @@ public abstract class SparseFieldLevelSet implements StagedAlgorithm
    final private void updateZeroLayerNeighbours(final int x, final int y, final int z, final int layer,
            final double temp_phi, final List update_list)
    {
-      final Iterator<BandElement> neighbours = neighbourhood(x, y, z);
-      while (neighbours.hasNext())
+      for (int n = 0; n < NEIGHBOUR_X.length; n++)
       {
-         final BandElement aNeighbour = neighbours.next();
-         if (state[aNeighbour.getX()][aNeighbour.getY()][aNeighbour.getZ()] != (layer - NUM_LAYERS)) continue;
+         final int neighbour_x = x + NEIGHBOUR_X[n];
+         final int neighbour_y = y + NEIGHBOUR_Y[n];
+         final int neighbour_z = z + NEIGHBOUR_Z[n];
+         if (outOfRange(neighbour_x, neighbour_y, neighbour_z)) continue;
+         if (state[neighbour_x][neighbour_y][neighbour_z] != (layer - NUM_LAYERS)) continue;
          
-         final BandElement elem = elementLUT.get(aNeighbour.getX(), aNeighbour.getY(), aNeighbour.getZ());
-         final int neighbour_x = elem.getX();
-         final int neighbour_y = elem.getY();
-         final int neighbour_z = elem.getZ();
+         final BandElement elem = elementLUT.get(neighbour_x, neighbour_y, neighbour_z);
          
          final int side = (layer < ZERO_LAYER) ? INSIDE : OUTSIDE;
          final double value = (elem.getValue() == Double.MAX_VALUE) ? (Double.MAX_VALUE * side) : elem.getValue();
@@ -674,13 +773,12 @@ public abstract class SparseFieldLevelSet implements StagedAlgorithm
          value = Double.MAX_VALUE * OUTSIDE;
       }
       
-      final Iterator<BandElement> it = neighbourhood(x, y, z);
-      while (it.hasNext())
+      for (int n = 0; n < NEIGHBOUR_X.length; n++)
       {
-         final BandElement elem = it.next();
-         final int elem_x = elem.getX();
-         final int elem_y = elem.getY();
-         final int elem_z = elem.getZ();
+         final int elem_x = x + NEIGHBOUR_X[n];
+         final int elem_y = y + NEIGHBOUR_Y[n];
+         final int elem_z = z + NEIGHBOUR_Z[n];
+         if (outOfRange(elem_x, elem_y, elem_z)) continue;
          
          // not a node in the next inner layer
          if (state[elem_x][elem_y][elem_z] != (from_layer - NUM_LAYERS))
@@ -711,13 +809,12 @@ public abstract class SparseFieldLevelSet implements StagedAlgorithm
    
    final private boolean zeroLayerNeighbourMovement(final int x, final int y, final int z, final int direction)
    {
-      final Iterator<BandElement> it = neighbourhood(x, y, z);
-      while (it.hasNext())
+      for (int n = 0; n < NEIGHBOUR_X.length; n++)
       {
-         final BandElement elem = it.next();
-         final int elem_x = elem.getX();
-         final int elem_y = elem.getY();
-         final int elem_z = elem.getZ();
+         final int elem_x = x + NEIGHBOUR_X[n];
+         final int elem_y = y + NEIGHBOUR_Y[n];
+         final int elem_z = z + NEIGHBOUR_Z[n];
+         if (outOfRange(elem_x, elem_y, elem_z)) continue;
          
          // check if zero layer
          if (state[elem_x][elem_y][elem_z] != ZERO_LAYER)
@@ -743,10 +840,13 @@ public abstract class SparseFieldLevelSet implements StagedAlgorithm
          {
             final BandElement elem = it.next();
             
-            final Iterator<BandElement> neighbours = neighbourhood(elem.getX(), elem.getY(), elem.getZ());
-            while (neighbours.hasNext())
+            for (int n = 0; n < NEIGHBOUR_X.length; n++)
             {
-                addToLayerIfFar(neighbours.next(), ZERO_LAYER + i * INSIDE);
+               final int x = elem.getX() + NEIGHBOUR_X[n];
+               final int y = elem.getY() + NEIGHBOUR_Y[n];
+               final int z = elem.getZ() + NEIGHBOUR_Z[n];
+               if (outOfRange(x, y, z)) continue;
+               addToLayerIfFar(x, y, z, ZERO_LAYER + i * INSIDE);
             }
          }
          
@@ -757,21 +857,20 @@ public abstract class SparseFieldLevelSet implements StagedAlgorithm
          {
             final BandElement elem = it2.next();
             
-            final Iterator<BandElement> neighbours = neighbourhood(elem.getX(), elem.getY(), elem.getZ());
-            while (neighbours.hasNext())
+            for (int n = 0; n < NEIGHBOUR_X.length; n++)
             {
-                addToLayerIfFar(neighbours.next(), ZERO_LAYER + i * OUTSIDE);
+               final int x = elem.getX() + NEIGHBOUR_X[n];
+               final int y = elem.getY() + NEIGHBOUR_Y[n];
+               final int z = elem.getZ() + NEIGHBOUR_Z[n];
+               if (outOfRange(x, y, z)) continue;
+               addToLayerIfFar(x, y, z, ZERO_LAYER + i * OUTSIDE);
             }
          }
       }
    }
    
-   final private void addToLayerIfFar(final BandElement element, final int from_layer)
+   final private void addToLayerIfFar(final int x, final int y, final int z, final int from_layer)
    {
-      final int x = element.getX(); 
-      final int y = element.getY(); 
-      final int z = element.getZ(); 
-      
       if (state[x][y][z] == INSIDE_FAR)
       {
          final BandElement elem = new BandElement(x, y, z, Double.MAX_VALUE);
@@ -878,38 +977,6 @@ public abstract class SparseFieldLevelSet implements StagedAlgorithm
       else return false;
    }
    
-   final private Iterator<BandElement> neighbourhood(final int x, final int y, final int z)
-   {
-      // 2 neighbours per dimension, 3 dimensions
-      final ArrayList<BandElement> neighbourList = new ArrayList<BandElement>(6);
-      if (!outOfRange(x - 1, y, z))
-      {
-         neighbourList.add(elem_cache.getRecycledBandElement(x - 1, y, z, Double.MAX_VALUE));
-      }
-      if (!outOfRange(x + 1, y, z))
-      {
-         neighbourList.add(elem_cache.getRecycledBandElement(x + 1, y, z, Double.MAX_VALUE));
-      }
-      if (!outOfRange(x, y - 1, z))
-      {
-         neighbourList.add(elem_cache.getRecycledBandElement(x, y - 1, z, Double.MAX_VALUE));
-      }
-      if (!outOfRange(x, y + 1, z))
-      {
-         neighbourList.add(elem_cache.getRecycledBandElement(x, y + 1, z, Double.MAX_VALUE));
-      }
-      if (!outOfRange(x, y, z - 1))
-      {
-         neighbourList.add(elem_cache.getRecycledBandElement(x, y, z - 1, Double.MAX_VALUE));
-      }
-      if (!outOfRange(x, y, z + 1))
-      {
-         neighbourList.add(elem_cache.getRecycledBandElement(x, y, z + 1, Double.MAX_VALUE));
-      }
-      
-      return neighbourList.iterator();
-   }
-   
    final private void checkConsistency()
    {
       for (int i = 0; i < (2 * NUM_LAYERS + 1); i++)
@@ -944,8 +1011,10 @@ public abstract class SparseFieldLevelSet implements StagedAlgorithm
    protected void cleanup()
    {
       this.elem_cache = null;
+      if (this.phi != null) this.phi.getTileStore().close();
       this.phi = null;
       //      this.state = null;
+      if (this.action != null) this.action.getTileStore().close();
       this.action = null;
       this.img = source = null;
       //System.gc();
@@ -0,0 +1,59 @@
+// $Revision$, $Date$, $Author$
+
+package levelsets.algorithm;
+
+/**
+ * Storage for the tiles of a DeferredArray3D. The array asks the store for
+ * tiles by their index and hands newly created tiles to it, the store decides
+ * where the tiles are kept. A store serves exactly one array.
+ */
+public abstract class TileStore
+{
+   /**
+    * Called once by the array the store is assigned to
+    * @param array The array
+    * @param numTiles The number of tiles the array consists of
+    */
+   protected abstract void init(final DeferredArray3D array, final int numTiles);
+   
+   /**
+    * Returns the tile with the given index
+    * @param index The tile index
+    * @param write Whether the tile is going to be written to
+    * @return The tile, or null if it has not been created yet
+    */
+   protected abstract Object get(final int index, final boolean write);
+   
+   /**
+    * Adds a newly created tile
+    * @param index The tile index
+    * @param tile The tile
+    */
+   protected abstract void put(final int index, final Object tile);
+   
+   /**
+    * Returns how often a requested tile was found on the heap
+    * @return The number of hits
+    */
+   public long getHits()
+   {
+      return 0;
+   }
+   
+   /**
+    * Returns how often a requested tile had to be loaded back onto the heap
+    * @return The number of misses
+    */
+   public long getMisses()
+   {
+      return 0;
+   }
+   
+   /**
+    * Releases the resources held by the store. The array must not be used
+    * any more afterwards.
+    */
+   public void close()
+   {
+   }
+}
@@ -0,0 +1,72 @@
+// $Revision$, $Date$, $Author$
+
+package levelsets.algorithm;
+
+import java.io.File;
+
+/**
+ * Creates the tile stores of the tiled arrays used by the fast marching and
+ * level set algorithms. Without a memory limit all tiles are kept on the heap.
+ * With a limit, every array keeps at most that much memory of tiles on the
+ * heap and moves the others into direct buffers, or into a memory-mapped
+ * scratch file if a directory is given.
+ */
+public class TileStoreFactory
+{
+   /**
+    * Keeps all tiles on the heap
+    */
+   public static final TileStoreFactory HEAP = new TileStoreFactory(0, null);
+
+   // Maximum number of bytes of tiles on the heap per array, 0 for no limit
+   private final long heapBytes;
+   // Directory for the scratch files, null to use direct buffers
+   private final File directory;
+
+   /**
+    * Creates a new instance of TileStoreFactory
+    * @param heapBytes Maximum number of bytes of tiles kept on the heap per array, 0 for no limit
+    * @param directory Directory for the scratch files, null to use direct buffers
+    */
+   public TileStoreFactory(final long heapBytes, final File directory)
+   {
+      this.heapBytes = Math.max(0, heapBytes);
+      this.directory = directory;
+   }
+
+   /**
+    * Returns whether the stores move tiles off the heap
+    * @return True if there is a memory limit
+    */
+   public final boolean isOffHeap()
+   {
+      return heapBytes > 0;
+   }
+
+   /**
+    * Creates a store for an array of a primitive data type
+    * @param tilesize The tile size of the array
+    * @param bytesPerElement The size of one element of the array in bytes
+    * @return A new store, to be used by one array only
+    */
+   public final TileStore createStore(final int tilesize, final int bytesPerElement)
+   {
+      if (heapBytes == 0)
+      {
+         return new HeapTileStore();
+      }
+      final long bytesPerTile = (long)tilesize * tilesize * tilesize * bytesPerElement;
+      final int capacity = (int)Math.max(2, Math.min(Integer.MAX_VALUE, heapBytes / bytesPerTile));
+      return new OffHeapTileStore(capacity, directory);
+   }
+
+   public String toString()
+   {
+      if (heapBytes == 0)
+      {
+         return "all tiles on the heap";
+      }
+      return (heapBytes >> 20) + " MB of tiles on the heap per array, others "
+         + (directory == null ? "in direct buffers" : "mapped from " + directory);
+   }
+}
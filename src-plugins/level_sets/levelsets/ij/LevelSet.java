@@ -44,6 +44,7 @@ import java.awt.Checkbox;
 import java.awt.Component;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
+import java.io.File;
 import java.util.Date;
 import java.util.EnumMap;
 import java.util.Iterator;
@@ -52,6 +53,7 @@ import levelsets.algorithm.DeferredObjectArray3D;
 import levelsets.algorithm.FastMarching;
 import levelsets.algorithm.LevelSetFactory;
 import levelsets.algorithm.LevelSetImplementation;
+import levelsets.algorithm.TileStoreFactory;
 import levelsets.algorithm.LevelSetFactory.Parameter;
 import levelsets.ij.StateContainer.States;
 
@@ -80,6 +82,9 @@ public class LevelSet implements PlugIn {
 	// Parameters (used and not used yet)
 	protected static double fm_dist = -1; // Fast Marching
 	protected static int fm_grey = -1; // Fast Marching
+	protected static boolean fm_parallel = false; // Fast Marching: one front per seed point, in parallel
+	protected static int tile_memory = 0; // MB of tiles on the heap per array, 0 = no limit
+	protected static String tile_directory = ""; // scratch files for tiles, empty = direct buffers
 	protected EnumMap<Parameter,String> parameters;
 	
 	protected preprocessChoices preprocess = preprocessChoices.none;
@@ -202,10 +207,18 @@ public class LevelSet implements PlugIn {
 		
 		IJ.showStatus("Press 'Esc' to abort");
 		
+		// Where the tiled arrays of both stages are kept
+		final TileStoreFactory tile_stores = getTileStoreFactory();
+		if ( tile_stores.isOffHeap() ) {
+			IJ.log("Tiles: " + tile_stores);
+		}
+		
 		try {
 			// Fast marching
 			if ( fast_marching ) {
 				final FastMarching fm = new FastMarching(ic, progressImage, sc_roi, true, (int) fm_grey, fm_dist);
+				fm.setTileStoreFactory(tile_stores);
+				fm.setParallelFronts(fm_parallel);
 				IJ.log("Fast Marching: Starting " + new Date(System.currentTimeMillis()));
 				for ( iter = 0; iter < this.fm_maxiter; iter ++ ) {
 					if ( fm.step(this.ITER_INC) == false ) {
@@ -236,6 +249,7 @@ public class LevelSet implements PlugIn {
 				IJ.log("Level Set (" + levelsetList[ls_choice] +"): Starting " + new Date(System.currentTimeMillis()));
 				IJ.log("Note: Each iteration step is " + ITER_INC + " iterations");
 
+				lf.setTileStoreFactory(tile_stores);
 				LevelSetImplementation ls = lf.getImplementation(levelsetList[ls_choice], ic, progressImage, sc_ls);
 
 				for ( iter = 0; iter < this.ls_maxiter; iter ++ ) {
@@ -311,6 +325,17 @@ public class LevelSet implements PlugIn {
 	}
 	
 	
+	/**
+	 * Returns the factory for the tile stores as set in the dialog
+	 */
+	protected TileStoreFactory getTileStoreFactory() {
+		if ( tile_memory <= 0 ) {
+			return TileStoreFactory.HEAP;
+		}
+		final File dir = tile_directory.length() == 0 ? null : new File(tile_directory);
+		return new TileStoreFactory(((long) tile_memory) << 20, dir);
+	}
+	
 	public boolean showDialog() {
 		// TODO interactive selection of gray value range
 		
@@ -319,6 +344,7 @@ public class LevelSet implements PlugIn {
 		gd.addCheckbox("Use Fast Marching", fast_marching);
 		gd.addNumericField("Grey value threshold", fm_grey, 0);
 		gd.addNumericField("Distance threshold", fm_dist, 2);
+		gd.addCheckbox("Parallel fronts (one per seed point)", fm_parallel);
 		gd.addCheckbox("Use Level Sets", level_sets);
 		gd.addChoice("Method", levelsetList, levelsetList[0]);
 		gd.addMessage("(Not all parameters used in all methods)");
@@ -340,6 +366,9 @@ public class LevelSet implements PlugIn {
 		gd.addMessage("Leve set convergence criterion");
 		gd.addNumericField("Convergence", ((Double) lf.getParameterValue(Parameter.CONVERGENCE)).doubleValue(), 4);
 		gd.addChoice("Region expands to ", expansionList, expansionList[expansion_choice]);
+		gd.addMessage("Memory for large stacks");
+		gd.addNumericField("Tile memory per array (MB, 0 = no limit)", tile_memory, 0);
+		gd.addStringField("Tile scratch directory (empty = direct buffers)", tile_directory, 20);
 		gd.addMessage("");
 		gd.addMessage("Developed by Erwin Frise.\nBased on code by Arne-Michael Toersel\n");
 		
@@ -361,6 +390,7 @@ public class LevelSet implements PlugIn {
 		// this.shapeStack = WindowManager.getImage(stackIDs[((Choice)gd.getChoices().get(0)).getSelectedIndex()]);
 		
 		this.fast_marching = gd.getNextBoolean();
+		this.fm_parallel = gd.getNextBoolean();
 		this.level_sets = gd.getNextBoolean();
 		
 		this.fm_grey = (int) gd.getNextNumber();
@@ -373,6 +403,8 @@ public class LevelSet implements PlugIn {
 		}
 		
 		lf.setParameterValue(Parameter.CONVERGENCE, new Double(gd.getNextNumber()));
+		this.tile_memory = Math.max(0, (int) gd.getNextNumber());
+		this.tile_directory = gd.getNextString().trim();
 		String expansion = gd.getNextChoice();
 		if ( expansion.contentEquals(expansionList[1]) ) {
 			this.insideout = true;
@@ -385,7 +417,7 @@ public class LevelSet implements PlugIn {
 		if ( test_dialog ) {
 			IJ.log("Convergence to " + lf.getParameterValue(Parameter.CONVERGENCE));
 			IJ.log("Fast Marching enabled = " + fast_marching );
-			IJ.log("Fast Marching: fm_grey=" + fm_grey + " , fm_dist=" + fm_dist);
+			IJ.log("Fast Marching: fm_grey=" + fm_grey + " , fm_dist=" + fm_dist + " , fm_parallel=" + fm_parallel);
 			IJ.log("Level Sets enabled = " + level_sets );
 			IJ.log("Level Sets: w_adv= " + lf.getParameterValue(Parameter.W_ADVECTION) + 
 					", w_curv=" + lf.getParameterValue(Parameter.W_CURVATURE) + 